@@ -14,23 +14,21 @@
  * limitations under the License.
  */
 
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NamedNodeMap;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
+import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Reader;
-import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -39,10 +37,16 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
 
 /**
  * Gathers statistics about attribute usage in layout files. This is how the "topAttrs"
@@ -53,6 +57,10 @@ import javax.xml.parsers.ParserConfigurationException;
  * This program takes one or more directory paths, and then it searches all of them recursively
  * for layout files that are not in folders containing the string "test", and computes and
  * prints frequency statistics.
+ * <p>
+ * The directories are walked by a pool of threads, one task per directory and per layout
+ * file. Layouts are streamed through a SAX parser, and the counts of each file are added to
+ * concurrent counters once the file was parsed successfully.
  */
 public class Analyzer {
     /** Number of attributes to print for each view */
@@ -61,7 +69,6 @@ public class Analyzer {
     public static final int THRESHOLD = 10; // percent
 
     private List<File> mDirectories;
-    private File mCurrentFile;
     private boolean mListAdvanced;
 
     /** Map from view id to map from attribute to frequency count */
@@ -71,29 +78,65 @@ public class Analyzer {
     private Map<String, Map<String, Usage>> mLayoutAttributeFrequencies =
             new HashMap<String, Map<String, Usage>>(100);
 
+    /** Counts gathered by the scanning threads, copied into {@link #mFrequencies} */
+    private ConcurrentMap<String, ConcurrentMap<String, AtomicInteger>> mAttributeCounts =
+            new ConcurrentHashMap<String, ConcurrentMap<String, AtomicInteger>>(100);
+
+    /** Counts gathered by the scanning threads, copied into
+     * {@link #mLayoutAttributeFrequencies} */
+    private ConcurrentMap<String, ConcurrentMap<String, AtomicInteger>> mLayoutAttributeCounts =
+            new ConcurrentHashMap<String, ConcurrentMap<String, AtomicInteger>>(100);
+
     private Map<String, String> mTopAttributes = new HashMap<String, String>(100);
     private Map<String, String> mTopLayoutAttributes = new HashMap<String, String>(100);
 
-    private int mFileVisitCount;
-    private int mLayoutFileCount;
+    private final AtomicInteger mFileVisitCount = new AtomicInteger();
+    private final AtomicInteger mLayoutFileCount = new AtomicInteger();
     private File mXmlMetadataFile;
+    private File mJsonFile;
+
+    private ExecutorService mExecutor;
+    /** Number of submitted tasks that have not completed yet */
+    private final AtomicInteger mPendingTasks = new AtomicInteger();
+    private final CountDownLatch mScanDone = new CountDownLatch(1);
 
-    private Analyzer(List<File> directories, File xmlMetadataFile, boolean listAdvanced) {
+    /** Parser of each scanning thread */
+    private final ThreadLocal<SAXParser> mParser = new ThreadLocal<SAXParser>() {
+        @Override
+        protected SAXParser initialValue() {
+            SAXParserFactory factory = SAXParserFactory.newInstance();
+            factory.setNamespaceAware(true);
+            factory.setValidating(false);
+            try {
+                return factory.newSAXParser();
+            } catch (ParserConfigurationException e) {
+                throw new RuntimeException(e);
+            } catch (SAXException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    };
+
+    private Analyzer(List<File> directories, File xmlMetadataFile, File jsonFile,
+            boolean listAdvanced) {
         mDirectories = directories;
         mXmlMetadataFile = xmlMetadataFile;
+        mJsonFile = jsonFile;
         mListAdvanced = listAdvanced;
     }
 
     public static void main(String[] args) {
         if (args.length < 1) {
             System.err.println("Usage: " + Analyzer.class.getSimpleName()
-                    + " <directory1> [directory2 [directory3 ...]]\n");
+                    + " [--json <file>] <directory1> [directory2 [directory3 ...]]\n");
             System.err.println("Recursively scans for layouts in the given directory and");
             System.err.println("computes statistics about attribute frequencies.");
+            System.err.println("--json writes the attribute counts to the given file as JSON.");
             System.exit(-1);
         }
 
         File metadataFile = null;
+        File jsonFile = null;
         List<File> directories = new ArrayList<File>();
         boolean listAdvanced = false;
         for (int i = 0, n = args.length; i < n; i++) {
@@ -123,6 +166,17 @@ public class Analyzer {
                 metadataFile = file;
                 continue;
             }
+
+            // The --json flag writes the attribute counts of each view to the given file
+            if (arg.equals("--json")) {
+                i++;
+                if (i == n) {
+                    System.err.println("--json requires an output file");
+                    System.exit(-7);
+                }
+                jsonFile = new File(args[i]);
+                continue;
+            }
             File directory = new File(arg);
             if (!directory.exists()) {
                 System.err.println(directory.getName() + " does not exist");
@@ -137,13 +191,11 @@ public class Analyzer {
             directories.add(directory);
         }
 
-        new Analyzer(directories, metadataFile, listAdvanced).analyze();
+        new Analyzer(directories, metadataFile, jsonFile, listAdvanced).analyze();
     }
 
     private void analyze() {
-        for (File directory : mDirectories) {
-            scanDirectory(directory);
-        }
+        scanDirectories();
 
         if (mListAdvanced) {
             listAdvanced();
@@ -154,6 +206,58 @@ public class Analyzer {
         if (mXmlMetadataFile != null) {
             printMergedMetadata();
         }
+
+        if (mJsonFile != null) {
+            writeJson();
+        }
+    }
+
+    private void scanDirectories() {
+        mExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+
+        // Hold a task count while submitting, such that the scan cannot be considered
+        // done before all the directories are submitted
+        mPendingTasks.incrementAndGet();
+        for (final File directory : mDirectories) {
+            submit(new Runnable() {
+                @Override
+                public void run() {
+                    scanDirectory(directory);
+                }
+            });
+        }
+        taskDone();
+
+        try {
+            mScanDone.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            mExecutor.shutdownNow();
+        }
+
+        copyCounts(mAttributeCounts, mFrequencies);
+        copyCounts(mLayoutAttributeCounts, mLayoutAttributeFrequencies);
+    }
+
+    private void submit(final Runnable task) {
+        mPendingTasks.incrementAndGet();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    taskDone();
+                }
+            }
+        });
+    }
+
+    private void taskDone() {
+        if (mPendingTasks.decrementAndGet() == 0) {
+            mScanDone.countDown();
+        }
     }
 
     private void scanDirectory(File directory) {
@@ -162,14 +266,21 @@ public class Analyzer {
             return;
         }
 
-        for (File file : files) {
-            mFileVisitCount++;
-            if (mFileVisitCount % 50000 == 0) {
-                System.out.println("Analyzed " + mFileVisitCount + " files...");
+        for (final File file : files) {
+            int visitCount = mFileVisitCount.incrementAndGet();
+            if (visitCount % 50000 == 0) {
+                System.out.println("Analyzed " + visitCount + " files...");
             }
 
             if (file.isFile()) {
-                scanFile(file);
+                if (isLayout(file)) {
+                    submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            analyzeLayout(file);
+                        }
+                    });
+                }
             } else if (file.isDirectory()) {
                 // Skip stuff related to tests
                 if (file.getName().contains("test")) {
@@ -177,83 +288,121 @@ public class Analyzer {
                 }
 
                 // Recurse over subdirectories
-                scanDirectory(file);
+                submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        scanDirectory(file);
+                    }
+                });
             }
         }
     }
 
-    private void scanFile(File file) {
+    private static boolean isLayout(File file) {
         if (file.getName().endsWith(".xml")) {
             File parent = file.getParentFile();
             if (parent.getName().startsWith("layout")) {
-                analyzeLayout(file);
+                return true;
             }
         }
 
+        return false;
     }
 
     private void analyzeLayout(File file) {
-        mCurrentFile = file;
-        mLayoutFileCount++;
-        Document document = null;
-        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-        InputSource is = new InputSource(new StringReader(readFile(file)));
+        mLayoutFileCount.incrementAndGet();
+        LayoutHandler handler = new LayoutHandler(file);
+        InputStream is = null;
         try {
-            factory.setNamespaceAware(true);
-            factory.setValidating(false);
-            DocumentBuilder builder = factory.newDocumentBuilder();
-            document = builder.parse(is);
-
-            analyzeDocument(document);
-
-        } catch (ParserConfigurationException e) {
-            // pass -- ignore files we can't parse
+            is = new BufferedInputStream(new FileInputStream(file));
+            mParser.get().parse(is, handler);
         } catch (SAXException e) {
             // pass -- ignore files we can't parse
+            return;
         } catch (IOException e) {
             // pass -- ignore files we can't parse
+            return;
+        } finally {
+            try {
+                if (is != null) {
+                    is.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
+
+        addCounts(handler.frequencies, mAttributeCounts);
+        addCounts(handler.layoutAttributeFrequencies, mLayoutAttributeCounts);
     }
 
+    /**
+     * Counts the attributes of the elements of a single layout file. The counts are only
+     * merged into the global counters once the whole file was parsed, so files we can't
+     * parse are ignored entirely.
+     */
+    private static class LayoutHandler extends DefaultHandler {
+        private final File mFile;
+        /** Tags of the elements enclosing the current element */
+        private final List<String> mParents = new ArrayList<String>();
+        /** Nesting depth within an ignored element, or 0 */
+        private int mSkipDepth;
 
-    private void analyzeDocument(Document document) {
-        analyzeElement(document.getDocumentElement());
-    }
+        final Map<String, Map<String, Usage>> frequencies =
+                new HashMap<String, Map<String, Usage>>();
+        final Map<String, Map<String, Usage>> layoutAttributeFrequencies =
+                new HashMap<String, Map<String, Usage>>();
 
-    private void analyzeElement(Element element) {
-        if (element.getTagName().equals("item")) {
-            // Resource files shouldn't be in the layout/ folder but I came across
-            // some cases
-            System.out.println("Warning: found <item> tag in a layout file in "
-                    + mCurrentFile.getPath());
-            return;
+        LayoutHandler(File file) {
+            mFile = file;
         }
 
-        countAttributes(element);
-        countLayoutAttributes(element);
+        @Override
+        public void startElement(String uri, String localName, String qName,
+                Attributes attributes) {
+            if (mSkipDepth > 0) {
+                mSkipDepth++;
+                return;
+            }
 
-        // Recurse over children
-        NodeList childNodes = element.getChildNodes();
-        for (int i = 0, n = childNodes.getLength(); i < n; i++) {
-            Node child = childNodes.item(i);
-            if (child.getNodeType() == Node.ELEMENT_NODE) {
-                analyzeElement((Element) child);
+            if (qName.equals("item")) {
+                // Resource files shouldn't be in the layout/ folder but I came across
+                // some cases
+                System.out.println("Warning: found <item> tag in a layout file in "
+                        + mFile.getPath());
+                mSkipDepth = 1;
+                return;
             }
+
+            String parentTag = mParents.isEmpty()
+                    ? "#document" : mParents.get(mParents.size() - 1);
+            countAttributes(qName, attributes, frequencies);
+            countLayoutAttributes(parentTag, attributes, layoutAttributeFrequencies);
+
+            mParents.add(qName);
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            if (mSkipDepth > 0) {
+                mSkipDepth--;
+                return;
+            }
+
+            mParents.remove(mParents.size() - 1);
         }
     }
 
-    private void countAttributes(Element element) {
-        String tag = element.getTagName();
-        Map<String, Usage> attributeMap = mFrequencies.get(tag);
+    private static void countAttributes(String tag, Attributes attributes,
+            Map<String, Map<String, Usage>> frequencies) {
+        Map<String, Usage> attributeMap = frequencies.get(tag);
         if (attributeMap == null) {
             attributeMap = new HashMap<String, Usage>(70);
-            mFrequencies.put(tag, attributeMap);
+            frequencies.put(tag, attributeMap);
         }
 
-        NamedNodeMap attributes = element.getAttributes();
         for (int i = 0, n = attributes.getLength(); i < n; i++) {
-            Node attribute = attributes.item(i);
-            String name = attribute.getNodeName();
+            String name = attributes.getQName(i);
 
             if (name.startsWith("android:layout_")) {
                 // Skip layout attributes; they are a function of the parent layout that this
@@ -284,18 +433,16 @@ public class Analyzer {
         }
     }
 
-    private void countLayoutAttributes(Element element) {
-        String parentTag = element.getParentNode().getNodeName();
-        Map<String, Usage> attributeMap = mLayoutAttributeFrequencies.get(parentTag);
+    private static void countLayoutAttributes(String parentTag, Attributes attributes,
+            Map<String, Map<String, Usage>> frequencies) {
+        Map<String, Usage> attributeMap = frequencies.get(parentTag);
         if (attributeMap == null) {
             attributeMap = new HashMap<String, Usage>(70);
-            mLayoutAttributeFrequencies.put(parentTag, attributeMap);
+            frequencies.put(parentTag, attributeMap);
         }
 
-        NamedNodeMap attributes = element.getAttributes();
         for (int i = 0, n = attributes.getLength(); i < n; i++) {
-            Node attribute = attributes.item(i);
-            String name = attribute.getNodeName();
+            String name = attributes.getQName(i);
 
             if (!name.startsWith("android:layout_")) {
                 continue;
@@ -317,6 +464,48 @@ public class Analyzer {
         }
     }
 
+    /** Adds the counts of a single file to the global counters */
+    private static void addCounts(Map<String, Map<String, Usage>> frequencies,
+            ConcurrentMap<String, ConcurrentMap<String, AtomicInteger>> counts) {
+        for (Entry<String, Map<String, Usage>> entry : frequencies.entrySet()) {
+            ConcurrentMap<String, AtomicInteger> viewCounts = counts.get(entry.getKey());
+            if (viewCounts == null) {
+                viewCounts = new ConcurrentHashMap<String, AtomicInteger>(70);
+                ConcurrentMap<String, AtomicInteger> previous =
+                        counts.putIfAbsent(entry.getKey(), viewCounts);
+                if (previous != null) {
+                    viewCounts = previous;
+                }
+            }
+
+            for (Usage usage : entry.getValue().values()) {
+                AtomicInteger count = viewCounts.get(usage.attribute);
+                if (count == null) {
+                    count = new AtomicInteger();
+                    AtomicInteger previous = viewCounts.putIfAbsent(usage.attribute, count);
+                    if (previous != null) {
+                        count = previous;
+                    }
+                }
+                count.addAndGet(usage.count);
+            }
+        }
+    }
+
+    private static void copyCounts(
+            ConcurrentMap<String, ConcurrentMap<String, AtomicInteger>> counts,
+            Map<String, Map<String, Usage>> frequencies) {
+        for (Entry<String, ConcurrentMap<String, AtomicInteger>> entry : counts.entrySet()) {
+            Map<String, Usage> attributeMap = new HashMap<String, Usage>(70);
+            for (Entry<String, AtomicInteger> count : entry.getValue().entrySet()) {
+                Usage usage = new Usage(count.getKey());
+                usage.count = count.getValue().get();
+                attributeMap.put(usage.attribute, usage);
+            }
+            frequencies.put(entry.getKey(), attributeMap);
+        }
+    }
+
     // Copied from AdtUtils
     private static String readFile(File file) {
         try {
@@ -357,8 +546,9 @@ public class Analyzer {
     }
 
     private void printStatistics() {
-        System.out.println("Analyzed " + mLayoutFileCount
-                + " layouts (in a directory trees containing " + mFileVisitCount + " files)");
+        System.out.println("Analyzed " + mLayoutFileCount.get()
+                + " layouts (in a directory trees containing " + mFileVisitCount.get()
+                + " files)");
         System.out.println("Top " + ATTRIBUTE_COUNT
                 + " for each view (excluding layout_ attributes) :");
         System.out.println("\n");
@@ -540,6 +730,79 @@ public class Analyzer {
         System.out.println("Done - wrote " + output.getPath());
     }
 
+    /**
+     * Writes the attribute counts to {@link #mJsonFile}, with the views and attributes sorted
+     * by name so that the output of successive runs can be compared.
+     */
+    private void writeJson() {
+        StringBuilder sb = new StringBuilder(100000);
+        sb.append("{\n");
+        sb.append("  \"layouts\": ").append(mLayoutFileCount.get()).append(",\n");
+        sb.append("  \"files\": ").append(mFileVisitCount.get()).append(",\n");
+        sb.append("  \"attributes\": ");
+        appendJson(sb, mFrequencies);
+        sb.append(",\n");
+        sb.append("  \"layoutAttributes\": ");
+        appendJson(sb, mLayoutAttributeFrequencies);
+        sb.append("\n}\n");
+
+        try {
+            BufferedWriter writer = new BufferedWriter(new FileWriter(mJsonFile));
+            writer.write(sb.toString());
+            writer.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        System.out.println("Wrote " + mJsonFile.getPath());
+    }
+
+    private static void appendJson(StringBuilder sb, Map<String, Map<String, Usage>> map) {
+        sb.append('{');
+        List<String> views = new ArrayList<String>(map.keySet());
+        Collections.sort(views);
+        boolean firstView = true;
+        for (String view : views) {
+            Map<String, Usage> usages = map.get(view);
+            if (usages.isEmpty()) {
+                continue;
+            }
+
+            sb.append(firstView ? "\n" : ",\n");
+            firstView = false;
+            sb.append("    ");
+            appendJsonString(sb, view);
+            sb.append(": {");
+
+            List<String> attributes = new ArrayList<String>(usages.keySet());
+            Collections.sort(attributes);
+            boolean firstAttribute = true;
+            for (String attribute : attributes) {
+                sb.append(firstAttribute ? "\n" : ",\n");
+                firstAttribute = false;
+                sb.append("      ");
+                appendJsonString(sb, attribute);
+                sb.append(": ").append(usages.get(attribute).count);
+            }
+            sb.append("\n    }");
+        }
+        sb.append(firstView ? "}" : "\n  }");
+    }
+
+    private static void appendJsonString(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0, n = s.length(); i < n; i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+
     //private File mPublicFile = new File(location, "data/res/values/public.xml");
     private File mPublicFile = new File("/Volumes/AndroidWork/git/frameworks/base/core/res/res/values/public.xml");
 
@@ -145,9 +145,9 @@ public class AidlProcessor extends SourceProcessor {
                     new SubProgressMonitor(monitor, 10));
         }
 
-        boolean success = false;
-
-        // loop until we've compile them all
+        // prepare the command line of each file. This is done first on the build thread as
+        // it deals with the workspace.
+        List<String[]> fileCommands = new ArrayList<String[]>(sources.size());
         for (IFile sourceFile : sources) {
             if (verbose) {
                 String name = sourceFile.getName();
@@ -182,11 +182,34 @@ public class AidlProcessor extends SourceProcessor {
             }
 
             // finish to set the command line.
-            commands[index] = quote(osSourcePath);
-            commands[index + 1] = quote(data.getOutput().getLocation().toOSString());
+            String[] fileCommand = commands.clone();
+            fileCommand[index] = quote(osSourcePath);
+            fileCommand[index + 1] = quote(data.getOutput().getLocation().toOSString());
+
+            if (verbose) {
+                StringBuilder sb = new StringBuilder();
+                for (String c : fileCommand) {
+                    sb.append(c);
+                    sb.append(' ');
+                }
+                String cmd_line = sb.toString();
+                AdtPlugin.printToConsole(project, cmd_line);
+            }
 
-            // launch the process
-            if (execAidl(builder, project, commands, sourceFile, verbose) == false) {
+            fileCommands.add(fileCommand);
+        }
+
+        // launch the processes. Each file is compiled independently, so several can run at
+        // the same time.
+        List<CommandResult> results = execCommands(project, fileCommands);
+
+        boolean success = false;
+
+        // loop on the results, in the order of the files
+        for (int i = 0; i < sources.size(); i++) {
+            IFile sourceFile = sources.get(i);
+
+            if (handleAidlResult(project, results.get(i), sourceFile, verbose) == false) {
                 // aidl failed. File should be marked. We add the file to the list
                 // of file that will need compilation again.
                 notCompiledOut.add(sourceFile);
@@ -232,78 +255,56 @@ public class AidlProcessor extends SourceProcessor {
     }
 
     /**
-     * Execute the aidl command line, parse the output, and mark the aidl file
+     * Parses the output of an aidl command line, and marks the aidl file
      * with any reported errors.
-     * @param command the String array containing the command line to execute.
+     * @param result the result of the aidl command line.
      * @param file The IFile object representing the aidl file being
      *      compiled.
      * @param verbose the build verbosity
      * @return false if the exec failed, and build needs to be aborted.
      */
-    private boolean execAidl(BaseBuilder builder, IProject project, String[] command, IFile file,
+    private boolean handleAidlResult(IProject project, CommandResult result, IFile file,
             boolean verbose) {
-        // do the exec
-        try {
-            if (verbose) {
-                StringBuilder sb = new StringBuilder();
-                for (String c : command) {
-                    sb.append(c);
-                    sb.append(' ');
-                }
-                String cmd_line = sb.toString();
-                AdtPlugin.printToConsole(project, cmd_line);
-            }
-
-            Process p = Runtime.getRuntime().exec(command);
-
-            // list to store each line of stderr
-            ArrayList<String> stdErr = new ArrayList<String>();
+        if (result.exception != null) {
+            // mark the project and exit
+            String msg = String.format(Messages.AIDL_Exec_Error_s, result.command[0]);
+            BaseProjectHelper.markResource(project, AdtConstants.MARKER_AIDL, msg,
+                    IMarker.SEVERITY_ERROR);
+            return false;
+        }
 
-            // get the output and return code from the process
-            int returnCode = BuildHelper.grabProcessOutput(project, p, stdErr);
+        ArrayList<String> stdErr = result.stdErr;
+        int returnCode = result.returnCode;
 
-            if (stdErr.size() > 0) {
-                // attempt to parse the error output
-                boolean parsingError = parseAidlOutput(stdErr, file);
+        if (stdErr.size() > 0) {
+            // attempt to parse the error output
+            boolean parsingError = parseAidlOutput(stdErr, file);
 
-                // If the process failed and we couldn't parse the output
-                // we print a message, mark the project and exit
-                if (returnCode != 0) {
+            // If the process failed and we couldn't parse the output
+            // we print a message, mark the project and exit
+            if (returnCode != 0) {
 
-                    if (parsingError || verbose) {
-                        // display the message in the console.
-                        if (parsingError) {
-                            AdtPlugin.printErrorToConsole(project, stdErr.toArray());
+                if (parsingError || verbose) {
+                    // display the message in the console.
+                    if (parsingError) {
+                        AdtPlugin.printErrorToConsole(project, stdErr.toArray());
 
-                            // mark the project
-                            BaseProjectHelper.markResource(project, AdtConstants.MARKER_AIDL,
-                                    Messages.Unparsed_AIDL_Errors, IMarker.SEVERITY_ERROR);
-                        } else {
-                            AdtPlugin.printToConsole(project, stdErr.toArray());
-                        }
+                        // mark the project
+                        BaseProjectHelper.markResource(project, AdtConstants.MARKER_AIDL,
+                                Messages.Unparsed_AIDL_Errors, IMarker.SEVERITY_ERROR);
+                    } else {
+                        AdtPlugin.printToConsole(project, stdErr.toArray());
                     }
-                    return false;
                 }
-            } else if (returnCode != 0) {
-                // no stderr output but exec failed.
-                String msg = String.format(Messages.AIDL_Exec_Error_d, returnCode);
-
-                BaseProjectHelper.markResource(project, AdtConstants.MARKER_AIDL,
-                       msg, IMarker.SEVERITY_ERROR);
-
                 return false;
             }
-        } catch (IOException e) {
-            // mark the project and exit
-            String msg = String.format(Messages.AIDL_Exec_Error_s, command[0]);
-            BaseProjectHelper.markResource(project, AdtConstants.MARKER_AIDL, msg,
-                    IMarker.SEVERITY_ERROR);
-            return false;
-        } catch (InterruptedException e) {
-            // mark the project and exit
-            String msg = String.format(Messages.AIDL_Exec_Error_s, command[0]);
-            BaseProjectHelper.markResource(project, AdtConstants.MARKER_AIDL, msg,
-                    IMarker.SEVERITY_ERROR);
+        } else if (returnCode != 0) {
+            // no stderr output but exec failed.
+            String msg = String.format(Messages.AIDL_Exec_Error_d, returnCode);
+
+            BaseProjectHelper.markResource(project, AdtConstants.MARKER_AIDL,
+                   msg, IMarker.SEVERITY_ERROR);
+
             return false;
         }
 
@@ -43,10 +43,6 @@ import com.android.sdklib.internal.build.DebugKeyProvider.KeytoolException;
 import com.android.utils.GrabProcessOutput;
 import com.android.utils.GrabProcessOutput.IProcessOutput;
 import com.android.utils.GrabProcessOutput.Wait;
-import com.google.common.base.Charsets;
-import com.google.common.hash.HashCode;
-import com.google.common.hash.HashFunction;
-import com.google.common.hash.Hashing;
 
 import org.eclipse.core.resources.IFile;
 import org.eclipse.core.resources.IFolder;
@@ -65,6 +61,7 @@ import org.eclipse.jdt.core.JavaCore;
 import org.eclipse.jdt.core.JavaModelException;
 import org.eclipse.jface.preference.IPreferenceStore;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
@@ -79,6 +76,13 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * Helper with methods for the last 3 steps of the generation of an APK.
@@ -131,6 +135,13 @@ public class BuildHelper {
     public static long sStartJavaCTime = 0;
 
     private final static int MILLION = 1000000;
+
+    /**
+     * Maximum number of library jars pre-dexed at the same time. Each one needs its own copy of
+     * the dex library, and dx can use a lot of memory.
+     */
+    private final static int MAX_PRE_DEX_WORKERS = 4;
+
     private String mProguardFile;
 
     /**
@@ -742,56 +753,45 @@ public class BuildHelper {
                     Messages.ApkBuilder_UnableBuild_Dex_Not_loaded));
         }
 
+        PreDexCache preDexCache = PreDexCache.getInstance();
+        List<String> preDexKeys = new ArrayList<String>();
+
         try {
             // set a temporary prefix on the print streams.
             mOutStream.setPrefix(CONSOLE_PREFIX_DX);
             mErrStream.setPrefix(CONSOLE_PREFIX_DX);
 
-            IFolder binFolder = BaseProjectHelper.getAndroidOutputFolder(javaProject.getProject());
-            File binFile = binFolder.getLocation().toFile();
-            File dexedLibs = new File(binFile, "dexedLibs");
-            if (dexedLibs.exists() == false) {
-                dexedLibs.mkdir();
-            }
-
             // replace the libs by their dexed versions (dexing them if needed.)
+            // The dexed versions come from the workspace-wide cache, where they are keyed by
+            // the content of the jar and the dx options.
             List<String> finalInputPaths = new ArrayList<String>(inputPaths.size());
             if (mDisableDexMerger || inputPaths.size() == 1) {
                 // only one input, no need to put a pre-dexed version, even if this path is
                 // just a jar file (case for proguard'ed builds)
                 finalInputPaths.addAll(inputPaths);
             } else {
+                List<PreDexJob> preDexJobs = new ArrayList<PreDexJob>();
 
                 for (String input : inputPaths) {
                     File inputFile = new File(input);
                     if (inputFile.isDirectory()) {
                         finalInputPaths.add(input);
                     } else if (inputFile.isFile()) {
-                        String fileName = getDexFileName(inputFile);
+                        String fileName = preDexCache.getKey(inputFile, mForceJumbo,
+                                mBuildToolInfo.getRevision().toString());
 
-                        File dexedLib = new File(dexedLibs, fileName);
+                        File dexedLib = preDexCache.acquire(fileName);
+                        preDexKeys.add(fileName);
                         String dexedLibPath = dexedLib.getAbsolutePath();
 
-                        if (dexedLib.isFile() == false ||
-                                dexedLib.lastModified() < inputFile.lastModified()) {
-
+                        if (dexedLib.isFile() == false) {
                             if (mVerbose) {
                                 mOutStream.println(
                                         String.format("Pre-Dexing %1$s -> %2$s", input, fileName));
                             }
 
-                            if (dexedLib.isFile()) {
-                                dexedLib.delete();
-                            }
-
-                            int res = wrapper.run(dexedLibPath, Collections.singleton(input),
-                                    mForceJumbo, mVerbose, mOutStream, mErrStream);
-
-                            if (res != 0) {
-                                // output error message and mark the project.
-                                String message = String.format(Messages.Dalvik_Error_d, res);
-                                throw new DexException(message);
-                            }
+                            preDexJobs.add(new PreDexJob(input,
+                                    preDexCache.createTempFile().getAbsolutePath(), dexedLib));
                         } else {
                             if (mVerbose) {
                                 mOutStream.println(
@@ -803,6 +803,8 @@ public class BuildHelper {
                         finalInputPaths.add(dexedLibPath);
                     }
                 }
+
+                preDexLibraries(wrapper, preDexCache, preDexJobs);
             }
 
             if (mVerbose) {
@@ -835,23 +837,134 @@ public class BuildHelper {
             message = String.format(Messages.Dalvik_Error_s, message);
 
             throw new DexException(message, t);
+        } finally {
+            if (!preDexKeys.isEmpty()) {
+                preDexCache.release(preDexKeys);
+            }
+        }
+    }
+
+    /**
+     * A library jar to convert to a dex file.
+     * dx writes to a temporary file, which is moved to the pre-dex cache once it succeeded.
+     * The output of dx is kept in memory while it runs, so that the output of several
+     * jars pre-dexed at the same time does not get mixed up on the console.
+     */
+    private static class PreDexJob {
+        final String input;
+        final String output;
+        final File cacheEntry;
+        final ByteArrayOutputStream outBuffer = new ByteArrayOutputStream();
+        final ByteArrayOutputStream errBuffer = new ByteArrayOutputStream();
+
+        PreDexJob(String input, String output, File cacheEntry) {
+            this.input = input;
+            this.output = output;
+            this.cacheEntry = cacheEntry;
+        }
+    }
+
+    /**
+     * Pre-dexes library jars, running several dx commands at once on up to
+     * {@link #MAX_PRE_DEX_WORKERS} threads.
+     * The output of each jar is written to the console once it is done, in the order of the
+     * jobs. The first failure, in the order of the jobs, is thrown.
+     */
+    private void preDexLibraries(DexWrapper wrapper, PreDexCache cache, List<PreDexJob> jobs)
+            throws CoreException, DexException, IOException {
+        if (jobs.isEmpty()) {
+            return;
+        }
+
+        int workerCount = Math.min(jobs.size(),
+                Math.min(MAX_PRE_DEX_WORKERS, Runtime.getRuntime().availableProcessors()));
+        if (workerCount == 1) {
+            for (PreDexJob job : jobs) {
+                int res = wrapper.run(job.output, Collections.singleton(job.input),
+                        mForceJumbo, mVerbose, mOutStream, mErrStream);
+                finishPreDexJob(cache, job, res);
+            }
+            return;
+        }
+
+        List<DexWrapper> workers = wrapper.getWorkers(workerCount);
+        final BlockingQueue<DexWrapper> idleWorkers = new LinkedBlockingQueue<DexWrapper>(workers);
+
+        ExecutorService executor = Executors.newFixedThreadPool(workers.size());
+        try {
+            List<Future<Integer>> results = new ArrayList<Future<Integer>>(jobs.size());
+            for (final PreDexJob job : jobs) {
+                results.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        DexWrapper worker = idleWorkers.take();
+                        PrintStream out = new PrintStream(job.outBuffer, true);
+                        PrintStream err = new PrintStream(job.errBuffer, true);
+                        try {
+                            return worker.run(job.output, Collections.singleton(job.input),
+                                    mForceJumbo, mVerbose, out, err);
+                        } finally {
+                            out.close();
+                            err.close();
+                            idleWorkers.add(worker);
+                        }
+                    }
+                }));
+            }
+
+            for (int i = 0; i < jobs.size(); i++) {
+                int res;
+                try {
+                    res = results.get(i).get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof CoreException) {
+                        throw (CoreException) cause;
+                    }
+                    String message = cause.getMessage();
+                    if (message == null) {
+                        message = cause.getClass().getCanonicalName();
+                    }
+                    throw new DexException(String.format(Messages.Dalvik_Error_s, message),
+                            cause);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new DexException(String.format(Messages.Dalvik_Error_s,
+                            e.getClass().getCanonicalName()), e);
+                } finally {
+                    PreDexJob job = jobs.get(i);
+                    printBuffer(job.outBuffer, mOutStream);
+                    printBuffer(job.errBuffer, mErrStream);
+                }
+
+                finishPreDexJob(cache, jobs.get(i), res);
+            }
+        } finally {
+            executor.shutdownNow();
         }
     }
 
-    private String getDexFileName(File inputFile) {
-        // get the filename
-        String name = inputFile.getName();
-        // remove the extension
-        int pos = name.lastIndexOf('.');
-        if (pos != -1) {
-            name = name.substring(0, pos);
+    private static void finishPreDexJob(PreDexCache cache, PreDexJob job, int res)
+            throws DexException, IOException {
+        if (res == 0) {
+            cache.commit(new File(job.output), job.cacheEntry);
+        } else {
+            new File(job.output).delete();
+            // output error message and mark the project.
+            String message = String.format(Messages.Dalvik_Error_d, res);
+            throw new DexException(message);
         }
+    }
 
-        // add a hash of the original file path
-        HashFunction hashFunction = Hashing.md5();
-        HashCode hashCode = hashFunction.hashString(inputFile.getAbsolutePath(), Charsets.UTF_8);
+    private static void printBuffer(ByteArrayOutputStream buffer, PrintStream stream) {
+        if (buffer.size() == 0) {
+            return;
+        }
 
-        return name + "-" + hashCode.toString() + ".jar";
+        // print line by line so that each line gets the console tag and prefix
+        for (String line : buffer.toString().split("\\r?\\n")) { //$NON-NLS-1$
+            stream.println(line);
+        }
     }
 
     /**
@@ -31,7 +31,9 @@ import java.lang.reflect.Method;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 
 /**
  * Wrapper to access dx.jar through reflection.
@@ -58,6 +60,11 @@ public final class DexWrapper {
     private Field mConsoleOut;
     private Field mConsoleErr;
 
+    private String mOsFilepath;
+
+    /** Wrappers with their own copy of the dex library, see {@link #getWorkers(int)}. */
+    private final List<DexWrapper> mWorkers = new ArrayList<DexWrapper>();
+
     /**
      * Loads the dex library from a file path.
      *
@@ -99,6 +106,8 @@ public final class DexWrapper {
                 mConsoleOut = consoleClass.getField("out"); //$NON-NLS-1$
                 mConsoleErr = consoleClass.getField("err"); //$NON-NLS-1$
 
+                mOsFilepath = osFilepath;
+
             } catch (SecurityException e) {
                 return createErrorStatus(Messages.DexWrapper_SecuryEx_Unable_To_Find_API, e);
             } catch (NoSuchMethodException e) {
@@ -134,9 +143,47 @@ public final class DexWrapper {
         mArgVerbose = null;
         mConsoleOut = null;
         mConsoleErr = null;
+        mOsFilepath = null;
+        for (DexWrapper worker : mWorkers) {
+            worker.unload();
+        }
+        mWorkers.clear();
         System.gc();
     }
 
+    /**
+     * Returns wrappers that can run dx commands at the same time.
+     * <p/>
+     * The dex library keeps its state in static fields, which is why
+     * {@link #run(String, Collection, boolean, boolean, PrintStream, PrintStream)} is
+     * synchronized. Each returned wrapper other than this one loads its own copy of the library
+     * in a separate class loader, so that commands run on different wrappers do not share any
+     * state. Those copies are created the first time they are needed, and are unloaded
+     * along with this wrapper.
+     *
+     * @param count the number of wrappers needed.
+     * @return this wrapper, followed by up to <var>count</var> - 1 other wrappers. Fewer
+     * wrappers are returned if the library could not be loaded again.
+     */
+    public synchronized List<DexWrapper> getWorkers(int count) {
+        List<DexWrapper> workers = new ArrayList<DexWrapper>(count);
+        workers.add(this);
+
+        if (mOsFilepath != null) {
+            while (mWorkers.size() < count - 1) {
+                DexWrapper worker = new DexWrapper();
+                if (worker.loadDex(mOsFilepath).isOK() == false) {
+                    break;
+                }
+                mWorkers.add(worker);
+            }
+
+            workers.addAll(mWorkers.subList(0, Math.min(count - 1, mWorkers.size())));
+        }
+
+        return workers;
+    }
+
     /**
      * Runs the dex command.
      * The wrapper must have been initialized via {@link #loadDex(String)} first.
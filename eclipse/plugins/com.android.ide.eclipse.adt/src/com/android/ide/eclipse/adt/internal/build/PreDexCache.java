@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/org/documents/epl-v10.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ide.eclipse.adt.internal.build;
+
+import com.android.SdkConstants;
+import com.android.annotations.NonNull;
+import com.android.ide.eclipse.adt.AdtPlugin;
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Cache of pre-dexed library jars, shared by all the projects of the workspace.
+ * <p/>
+ * The dexed version of a jar is keyed by a hash of the content of the jar, and of the dx
+ * options that affect the output (jumbo mode and build-tools revision), so a library used by
+ * several projects is only dexed once, and a jar whose timestamp changed but not its content
+ * is not dexed again.
+ * <p/>
+ * The cache is bounded in size. Entries are touched each time they are used, and the least
+ * recently used ones are deleted once the cache grows past {@link #MAX_SIZE}. Entries acquired
+ * by a build in progress are never deleted.
+ */
+public final class PreDexCache {
+    private static final String CACHE_FOLDER = "pre-dex-cache"; //$NON-NLS-1$
+    private static final String TEMP_PREFIX = "tmp-"; //$NON-NLS-1$
+
+    /** Maximum size in bytes of the cached files, beyond which entries are deleted. */
+    private static final long MAX_SIZE = 512L * 1024 * 1024;
+
+    /** Temporary files older than this are left over from an interrupted build. */
+    private static final long MAX_TEMP_AGE = 24L * 60 * 60 * 1000;
+
+    private static PreDexCache sInstance;
+
+    private final File mFolder;
+
+    /** Content hashes of the jars, by path, along with the timestamp and size they match. */
+    private final Map<String, JarHash> mJarHashes = new HashMap<String, JarHash>();
+
+    /** Number of builds using each entry, by file name. */
+    private final Map<String, Integer> mInUse = new HashMap<String, Integer>();
+
+    private static final class JarHash {
+        final long lastModified;
+        final long length;
+        final HashCode hash;
+
+        JarHash(long lastModified, long length, HashCode hash) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.hash = hash;
+        }
+    }
+
+    /** Returns the cache of the current workspace. */
+    @NonNull
+    public static synchronized PreDexCache getInstance() {
+        if (sInstance == null) {
+            File folder = AdtPlugin.getDefault().getStateLocation().append(CACHE_FOLDER).toFile();
+            sInstance = new PreDexCache(folder);
+        }
+
+        return sInstance;
+    }
+
+    private PreDexCache(@NonNull File folder) {
+        mFolder = folder;
+    }
+
+    /**
+     * Returns the key of the dexed version of a jar, which is the name of the file holding it
+     * in the cache.
+     *
+     * @param jar the library jar
+     * @param forceJumbo whether dx runs in jumbo mode
+     * @param buildToolsRevision the revision of the build-tools providing dx
+     * @return the key
+     * @throws IOException if the jar could not be read
+     */
+    @NonNull
+    public String getKey(@NonNull File jar, boolean forceJumbo,
+            @NonNull String buildToolsRevision) throws IOException {
+        String name = jar.getName();
+        int pos = name.lastIndexOf('.');
+        if (pos != -1) {
+            name = name.substring(0, pos);
+        }
+
+        HashCode key = Hashing.sha1().newHasher()
+                .putBytes(getContentHash(jar).asBytes())
+                .putBoolean(forceJumbo)
+                .putString(buildToolsRevision, Charsets.UTF_8)
+                .hash();
+
+        return name + "-" + key.toString() + SdkConstants.DOT_JAR; //$NON-NLS-1$
+    }
+
+    private HashCode getContentHash(@NonNull File jar) throws IOException {
+        String path = jar.getAbsolutePath();
+        long lastModified = jar.lastModified();
+        long length = jar.length();
+
+        synchronized (mJarHashes) {
+            JarHash jarHash = mJarHashes.get(path);
+            if (jarHash != null && jarHash.lastModified == lastModified
+                    && jarHash.length == length) {
+                return jarHash.hash;
+            }
+        }
+
+        HashCode hash = Files.hash(jar, Hashing.sha1());
+
+        synchronized (mJarHashes) {
+            mJarHashes.put(path, new JarHash(lastModified, length, hash));
+        }
+
+        return hash;
+    }
+
+    /**
+     * Returns the file of a cache entry, which may not exist yet, and prevents it from being
+     * deleted until it is released with {@link #release(Collection)}.
+     */
+    @NonNull
+    public synchronized File acquire(@NonNull String key) {
+        Integer count = mInUse.get(key);
+        mInUse.put(key, count == null ? 1 : count + 1);
+
+        File file = new File(mFolder, key);
+        if (file.isFile()) {
+            // mark the entry as recently used
+            file.setLastModified(System.currentTimeMillis());
+        }
+
+        return file;
+    }
+
+    /**
+     * Releases entries acquired with {@link #acquire(String)}, and trims the cache if it is too
+     * large.
+     */
+    public synchronized void release(@NonNull Collection<String> keys) {
+        for (String key : keys) {
+            Integer count = mInUse.get(key);
+            if (count == null || count <= 1) {
+                mInUse.remove(key);
+            } else {
+                mInUse.put(key, count - 1);
+            }
+        }
+
+        trim();
+    }
+
+    /**
+     * Returns a new temporary file in the cache folder, to which dx can write the dexed
+     * version of a jar before it is added with {@link #commit(File, File)}.
+     */
+    @NonNull
+    public File createTempFile() throws IOException {
+        if (!mFolder.isDirectory() && !mFolder.mkdirs()) {
+            throw new IOException("Unable to create " + mFolder); //$NON-NLS-1$
+        }
+
+        return File.createTempFile(TEMP_PREFIX, SdkConstants.DOT_JAR, mFolder);
+    }
+
+    /**
+     * Adds a dexed jar written to a temporary file to the cache.
+     *
+     * @param tempFile the file created by {@link #createTempFile()}
+     * @param entry the file returned by {@link #acquire(String)}
+     * @throws IOException if the file could not be moved to the cache
+     */
+    public void commit(@NonNull File tempFile, @NonNull File entry) throws IOException {
+        if (tempFile.renameTo(entry)) {
+            return;
+        }
+
+        // another build may have added the same entry in the meantime
+        tempFile.delete();
+        if (!entry.isFile()) {
+            throw new IOException("Unable to write " + entry); //$NON-NLS-1$
+        }
+    }
+
+    /** Deletes the least recently used entries until the cache is no larger than MAX_SIZE. */
+    private void trim() {
+        File[] files = mFolder.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        long size = 0;
+        for (File file : files) {
+            if (file.getName().startsWith(TEMP_PREFIX)) {
+                if (now - file.lastModified() > MAX_TEMP_AGE) {
+                    file.delete();
+                }
+                continue;
+            }
+            size += file.length();
+        }
+
+        if (size <= MAX_SIZE) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File file1, File file2) {
+                long delta = file1.lastModified() - file2.lastModified();
+                return delta < 0 ? -1 : (delta > 0 ? 1 : 0);
+            }
+        });
+
+        for (File file : files) {
+            if (size <= MAX_SIZE) {
+                break;
+            }
+
+            String name = file.getName();
+            if (name.startsWith(TEMP_PREFIX) || mInUse.containsKey(name)) {
+                continue;
+            }
+
+            long length = file.length();
+            if (file.delete()) {
+                size -= length;
+            }
+        }
+    }
+}
@@ -42,6 +42,10 @@ import java.util.regex.Pattern;
 
 /**
  * A {@link SourceProcessor} for RenderScript files.
+ * <p/>
+ * Commands may be launched from several threads at once. The output of each command is kept,
+ * and only parsed into markers by {@link #finish()}, which must be called from the build
+ * thread once all the commands are done.
  */
 public class RenderScriptLauncher implements CommandLineLauncher {
 
@@ -60,6 +64,20 @@ public class RenderScriptLauncher implements CommandLineLauncher {
     private final IProgressMonitor mMonitor;
     private final boolean mVerbose;
 
+    /** The results of the commands launched since the last call to {@link #finish()}. */
+    private final List<LaunchResult> mResults = new ArrayList<LaunchResult>();
+
+    private static final class LaunchResult {
+        final File executable;
+        final ArrayList<String> stdErr = new ArrayList<String>();
+        int returnCode;
+        Exception exception;
+
+        LaunchResult(File executable) {
+            this.executable = executable;
+        }
+    }
+
     public RenderScriptLauncher(
             @NonNull IProject project,
             @NonNull IFolder sourceOutFolder,
@@ -76,6 +94,11 @@ public class RenderScriptLauncher implements CommandLineLauncher {
     @Override
     public void launch(File executable, List<String> arguments, Map<String, String> envVariableMap)
             throws IOException, InterruptedException {
+        LaunchResult result = new LaunchResult(executable);
+        synchronized (mResults) {
+            mResults.add(result);
+        }
+
         // do the exec
         try {
             if (mVerbose) {
@@ -99,65 +122,35 @@ public class RenderScriptLauncher implements CommandLineLauncher {
 
             Process p = processBuilder.start();
 
-            // list to store each line of stderr
-            ArrayList<String> stdErr = new ArrayList<String>();
-
             // get the output and return code from the process
-            int returnCode = BuildHelper.grabProcessOutput(mProject, p, stdErr);
-
-            if (stdErr.size() > 0) {
-                // attempt to parse the error output
-                boolean parsingError = parseLlvmOutput(stdErr);
-
-                // If the process failed and we couldn't parse the output
-                // we print a message, mark the project and exit
-                if (returnCode != 0) {
-
-                    if (parsingError || mVerbose) {
-                        // display the message in the console.
-                        if (parsingError) {
-                            AdtPlugin.printErrorToConsole(mProject, stdErr.toArray());
-
-                            // mark the project
-                            BaseProjectHelper.markResource(mProject,
-                                    AdtConstants.MARKER_RENDERSCRIPT,
-                                    "Unparsed Renderscript error! Check the console for output.",
-                                    IMarker.SEVERITY_ERROR);
-                        } else {
-                            AdtPlugin.printToConsole(mProject, stdErr.toArray());
-                        }
-                    }
-                    return;
-                }
-            } else if (returnCode != 0) {
-                // no stderr output but exec failed.
-                String msg = String.format("Error executing Renderscript: Return code %1$d",
-                        returnCode);
-
-                BaseProjectHelper.markResource(mProject, AdtConstants.MARKER_AIDL,
-                       msg, IMarker.SEVERITY_ERROR);
-
-                return;
-            }
+            result.returnCode = BuildHelper.grabProcessOutput(mProject, p, result.stdErr);
         } catch (IOException e) {
-            // mark the project and exit
-            String msg = String.format(
-                    "Error executing Renderscript. Please check %1$s is present at %2$s",
-                    executable.getName(), executable.getAbsolutePath());
-            AdtPlugin.log(IStatus.ERROR, msg);
-            BaseProjectHelper.markResource(mProject, AdtConstants.MARKER_RENDERSCRIPT, msg,
-                    IMarker.SEVERITY_ERROR);
+            result.exception = e;
             throw e;
         } catch (InterruptedException e) {
-            // mark the project and exit
-            String msg = String.format(
-                    "Error executing Renderscript. Please check %1$s is present at %2$s",
-                    executable.getName(), executable.getAbsolutePath());
-            AdtPlugin.log(IStatus.ERROR, msg);
-            BaseProjectHelper.markResource(mProject, AdtConstants.MARKER_RENDERSCRIPT, msg,
-                    IMarker.SEVERITY_ERROR);
+            result.exception = e;
             throw e;
         }
+    }
+
+    /**
+     * Marks the project and the RenderScript files with the errors reported by the commands
+     * launched so far, and refreshes the output folders.
+     */
+    public void finish() {
+        List<LaunchResult> results;
+        synchronized (mResults) {
+            results = new ArrayList<LaunchResult>(mResults);
+            mResults.clear();
+        }
+
+        if (results.isEmpty()) {
+            return;
+        }
+
+        for (LaunchResult result : results) {
+            handleResult(result);
+        }
 
         try {
             mSourceOutFolder.refreshLocal(IResource.DEPTH_ONE, mMonitor);
@@ -165,8 +158,55 @@ public class RenderScriptLauncher implements CommandLineLauncher {
         } catch (CoreException e) {
             AdtPlugin.log(e, "failed to refresh folders");
         }
+    }
+
+    private void handleResult(LaunchResult result) {
+        if (result.exception != null) {
+            // mark the project
+            File executable = result.executable;
+            String msg = String.format(
+                    "Error executing Renderscript. Please check %1$s is present at %2$s",
+                    executable.getName(), executable.getAbsolutePath());
+            AdtPlugin.log(IStatus.ERROR, msg);
+            BaseProjectHelper.markResource(mProject, AdtConstants.MARKER_RENDERSCRIPT, msg,
+                    IMarker.SEVERITY_ERROR);
+            return;
+        }
+
+        ArrayList<String> stdErr = result.stdErr;
+        int returnCode = result.returnCode;
+
+        if (stdErr.size() > 0) {
+            // attempt to parse the error output
+            boolean parsingError = parseLlvmOutput(stdErr);
+
+            // If the process failed and we couldn't parse the output
+            // we print a message, mark the project and exit
+            if (returnCode != 0) {
+
+                if (parsingError || mVerbose) {
+                    // display the message in the console.
+                    if (parsingError) {
+                        AdtPlugin.printErrorToConsole(mProject, stdErr.toArray());
+
+                        // mark the project
+                        BaseProjectHelper.markResource(mProject,
+                                AdtConstants.MARKER_RENDERSCRIPT,
+                                "Unparsed Renderscript error! Check the console for output.",
+                                IMarker.SEVERITY_ERROR);
+                    } else {
+                        AdtPlugin.printToConsole(mProject, stdErr.toArray());
+                    }
+                }
+            }
+        } else if (returnCode != 0) {
+            // no stderr output but exec failed.
+            String msg = String.format("Error executing Renderscript: Return code %1$d",
+                    returnCode);
 
-        return;
+            BaseProjectHelper.markResource(mProject, AdtConstants.MARKER_AIDL,
+                   msg, IMarker.SEVERITY_ERROR);
+        }
     }
 
     /**
@@ -36,6 +36,7 @@ import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.jdt.core.IJavaProject;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -43,6 +44,11 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Base class to handle generated java code.
@@ -57,6 +63,13 @@ public abstract class SourceProcessor {
     public final static int COMPILE_STATUS_CODE = 0x1;
     public final static int COMPILE_STATUS_RES = 0x2;
 
+    /**
+     * Default number of source files compiled at the same time. This is the number of
+     * processors, unless set with the adt.build.parallelism system property.
+     */
+    public final static int DEFAULT_PARALLELISM = Math.max(1, Integer.getInteger(
+            "adt.build.parallelism", Runtime.getRuntime().availableProcessors())); //$NON-NLS-1$
+
     /** List of all source files, their dependencies, and their output. */
     private final Map<IFile, SourceFileData> mFiles = new HashMap<IFile, SourceFileData>();
 
@@ -73,6 +86,29 @@ public abstract class SourceProcessor {
 
     private int mLastCompilationStatus = COMPILE_STATUS_NONE;
 
+    private int mParallelism = DEFAULT_PARALLELISM;
+
+    /**
+     * The result of a command run by {@link SourceProcessor#execCommands(IProject, List)}.
+     */
+    protected static final class CommandResult {
+        /** The command line. */
+        final String[] command;
+        /** The lines written by the process to stderr. */
+        final ArrayList<String> stdErr = new ArrayList<String>();
+        /** The return code of the process. */
+        int returnCode;
+        /**
+         * The {@link IOException} or {@link InterruptedException} that prevented the process
+         * from running to completion, or null.
+         */
+        Exception exception;
+
+        CommandResult(String[] command) {
+            this.command = command;
+        }
+    }
+
     /**
      * Quotes a path inside "". If the platform is not windows, the path is returned as is.
      * @param path the path to quote
@@ -130,6 +166,18 @@ public abstract class SourceProcessor {
         mBuildToolInfo = buildToolInfo;
     }
 
+    /**
+     * Sets the maximum number of source files compiled at the same time.
+     * @param parallelism the number of files, 1 to compile them one after another.
+     */
+    public void setParallelism(int parallelism) {
+        mParallelism = Math.max(1, parallelism);
+    }
+
+    public int getParallelism() {
+        return mParallelism;
+    }
+
 
     /**
      * Returns whether the given file is an output of this processor by return the source
@@ -309,6 +357,80 @@ public abstract class SourceProcessor {
         mLastCompilationStatus |= status;
     }
 
+    /**
+     * Runs independent commands, up to {@link #getParallelism()} at the same time, and returns
+     * their results in the same order as the commands.
+     * <p/>
+     * The processes are run from other threads than the build thread, which holds the workspace
+     * lock. Markers must therefore be set by the caller once this returns, based on the
+     * results.
+     *
+     * @param project the project being built, for the console output.
+     * @param commands the command lines to run.
+     * @return the results of the commands.
+     */
+    protected final List<CommandResult> execCommands(final IProject project,
+            List<String[]> commands) {
+        List<CommandResult> results = new ArrayList<CommandResult>(commands.size());
+
+        int threadCount = Math.min(mParallelism, commands.size());
+        if (threadCount <= 1) {
+            for (String[] command : commands) {
+                results.add(execCommand(project, command));
+            }
+            return results;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            List<Future<CommandResult>> futures =
+                    new ArrayList<Future<CommandResult>>(commands.size());
+            for (final String[] command : commands) {
+                futures.add(executor.submit(new Callable<CommandResult>() {
+                    @Override
+                    public CommandResult call() {
+                        return execCommand(project, command);
+                    }
+                }));
+            }
+
+            for (int i = 0; i < commands.size(); i++) {
+                CommandResult result;
+                try {
+                    result = futures.get(i).get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    result = new CommandResult(commands.get(i));
+                    result.exception = e;
+                } catch (ExecutionException e) {
+                    // execCommand does not throw any checked exception
+                    throw new RuntimeException(e.getCause());
+                }
+                results.add(result);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return results;
+    }
+
+    private static CommandResult execCommand(IProject project, String[] command) {
+        CommandResult result = new CommandResult(command);
+        try {
+            Process p = Runtime.getRuntime().exec(command);
+
+            // get the output and return code from the process
+            result.returnCode = BuildHelper.grabProcessOutput(project, p, result.stdErr);
+        } catch (IOException e) {
+            result.exception = e;
+        } catch (InterruptedException e) {
+            result.exception = e;
+        }
+
+        return result;
+    }
+
     protected void doRemoveFiles(SourceFileData data) throws CoreException {
         List<IFile> outputFiles = data.getOutputFiles();
         for (IFile outputFile : outputFiles) {
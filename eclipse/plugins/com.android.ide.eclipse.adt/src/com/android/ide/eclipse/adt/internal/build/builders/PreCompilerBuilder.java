@@ -90,6 +90,11 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.xml.parsers.ParserConfigurationException;
 
@@ -877,19 +882,8 @@ public class PreCompilerBuilder extends BaseBuilder {
             }
         }
 
-        RenderScriptProcessor processor = new RenderScriptProcessor(
-                inputs,
-                importFolders,
-                buildFolder,
-                mGenFolder.getLocation().toFile(),
-                resOutFolder.getLocation().toFile(),
-                new File(buildFolder, SdkConstants.FD_RS_OBJ),
-                new File(buildFolder, SdkConstants.FD_RS_LIBS),
-                mBuildToolInfo,
-                rsTarget,
-                false /*debugBuild, always false for now*/,
-                3,
-                projectState.getRenderScriptSupportMode());
+        RenderScriptProcessor processor = createRsProcessor(inputs, importFolders, buildFolder,
+                resOutFolder, rsTarget, projectState);
 
         // clean old dependency files fiest
         checker.cleanDependencies();
@@ -904,12 +898,110 @@ public class PreCompilerBuilder extends BaseBuilder {
                 monitor,
                 AdtPrefs.getPrefs().getBuildVerbosity() == BuildVerbosity.VERBOSE /*verbose*/);
 
-        // and run the build
-        processor.build(launcher);
+        // and run the build. The files are independent of each other, so unless the support
+        // mode needs to process all the bitcode files together, they are compiled in batches
+        // on several threads. The errors are only reported on the build thread, by
+        // launcher.finish().
+        int parallelism = Math.min(SourceProcessor.DEFAULT_PARALLELISM, inputs.size());
+        try {
+            if (projectState.getRenderScriptSupportMode() || parallelism <= 1) {
+                processor.build(launcher);
+            } else {
+                List<List<File>> batches = new ArrayList<List<File>>(parallelism);
+                for (int i = 0; i < parallelism; i++) {
+                    batches.add(new ArrayList<File>());
+                }
+                for (int i = 0; i < inputs.size(); i++) {
+                    batches.get(i % parallelism).add(inputs.get(i));
+                }
+
+                List<RenderScriptProcessor> processors =
+                        new ArrayList<RenderScriptProcessor>(parallelism);
+                for (List<File> batch : batches) {
+                    processors.add(createRsProcessor(batch, importFolders, buildFolder,
+                            resOutFolder, rsTarget, projectState));
+                }
+
+                buildRs(processors, launcher);
+            }
+        } finally {
+            launcher.finish();
+        }
 
         return SourceProcessor.COMPILE_STATUS_CODE | SourceProcessor.COMPILE_STATUS_RES;
     }
 
+    private RenderScriptProcessor createRsProcessor(
+            @NonNull List<File> inputs,
+            @NonNull List<File> importFolders,
+            @NonNull File buildFolder,
+            @NonNull IFolder resOutFolder,
+            int rsTarget,
+            @NonNull ProjectState projectState) {
+        return new RenderScriptProcessor(
+                inputs,
+                importFolders,
+                buildFolder,
+                mGenFolder.getLocation().toFile(),
+                resOutFolder.getLocation().toFile(),
+                new File(buildFolder, SdkConstants.FD_RS_OBJ),
+                new File(buildFolder, SdkConstants.FD_RS_LIBS),
+                mBuildToolInfo,
+                rsTarget,
+                false /*debugBuild, always false for now*/,
+                3,
+                projectState.getRenderScriptSupportMode());
+    }
+
+    /**
+     * Runs the given RenderScript processors concurrently, and waits for all of them to be
+     * done.
+     */
+    private static void buildRs(
+            @NonNull List<RenderScriptProcessor> processors,
+            @NonNull final RenderScriptLauncher launcher)
+            throws IOException, InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(processors.size());
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>(processors.size());
+            for (final RenderScriptProcessor processor : processors) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        processor.build(launcher);
+                        return null;
+                    }
+                }));
+            }
+
+            // wait for all the batches before reporting the first failure
+            Throwable failure = null;
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause();
+                    }
+                }
+            }
+
+            if (failure instanceof IOException) {
+                throw (IOException) failure;
+            } else if (failure instanceof InterruptedException) {
+                throw (InterruptedException) failure;
+            } else if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            } else if (failure instanceof Error) {
+                throw (Error) failure;
+            } else if (failure != null) {
+                throw new IOException(failure);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     @SuppressWarnings("deprecation")
     private void handleBuildConfig(@SuppressWarnings("rawtypes") Map args)
             throws IOException, CoreException {
@@ -88,6 +88,7 @@ public final class ProjectCallback extends LayoutlibCallback {
     private final ProjectResources mProjectRes;
     private final Object mCredential;
     private boolean mUsed = false;
+    private int mViewLoadCount;
     private String mNamespace;
     private ProjectClassLoader mLoader = null;
     private LayoutLog mLogger;
@@ -154,6 +155,7 @@ public final class ProjectCallback extends LayoutlibCallback {
             Object[] constructorParameters)
             throws Exception {
         mUsed = true;
+        mViewLoadCount++;
 
         if (className == null) {
             // Just make a plain <View> if you specify <view> without a class= attribute.
@@ -350,6 +352,17 @@ public final class ProjectCallback extends LayoutlibCallback {
         return mUsed;
     }
 
+    /**
+     * Returns the number of custom views the loader has been asked to load so far.
+     * Comparing the counts before and after a render tells whether that render used
+     * custom views, unlike {@link #isUsed()} which covers all renders.
+     *
+     * @return the number of requests to load custom views
+     */
+    public int getViewLoadCount() {
+        return mViewLoadCount;
+    }
+
     /**
      * Instantiate a class object, using a specific constructor and parameters.
      * @param clazz the class to instantiate
@@ -1813,6 +1813,9 @@ public class GraphicalEditorPart extends EditorPart
             }
 
             if (recompute) {
+                // cached preview thumbnails may be out of date
+                RenderPreviewManager.bumpResourceRevision();
+
                 if (mEditorDelegate.isGraphicalEditorActive()) {
                     recomputeLayout();
                 } else {
@@ -42,10 +42,19 @@ import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import javax.imageio.ImageIO;
 
@@ -860,88 +869,438 @@ public class ImageUtils {
                     null);
             g2.dispose();
             return scaled;
+        } else if (xScale <= 1 && yScale <= 1 && getPixels(source) != null) {
+            return scaleByAreaAveraging(source, xScale, yScale, rightMargin, bottomMargin);
         } else {
-            // When creating a thumbnail, using the above code doesn't work very well;
-            // you get some visible artifacts, especially for text. Instead use the
-            // technique of repeatedly scaling the image into half; this will cause
-            // proper averaging of neighboring pixels, and will typically (for the kinds
-            // of screen sizes used by this utility method in the layout editor) take
-            // about 3-4 iterations to get the result since we are logarithmically reducing
-            // the size. Besides, each successive pass in operating on much fewer pixels
-            // (a reduction of 4 in each pass).
-            //
-            // However, we may not be resizing to a size that can be reached exactly by
-            // successively diving in half. Therefore, once we're within a factor of 2 of
-            // the final size, we can do a resize to the exact target size.
-            // However, we can get even better results if we perform this final resize
-            // up front. Let's say we're going from width 1000 to a destination width of 85.
-            // The first approach would cause a resize from 1000 to 500 to 250 to 125, and
-            // then a resize from 125 to 85. That last resize can distort/blur a lot.
-            // Instead, we can start with the destination width, 85, and double it
-            // successfully until we're close to the initial size: 85, then 170,
-            // then 340, and finally 680. (The next one, 1360, is larger than 1000).
-            // So, now we *start* the thumbnail operation by resizing from width 1000 to
-            // width 680, which will preserve a lot of visual details such as text.
-            // Then we can successively resize the image in half, 680 to 340 to 170 to 85.
-            // We end up with the expected final size, but we've been doing an exact
-            // divide-in-half resizing operation at the end so there is less distortion.
-
-
-            int iterations = 0; // Number of halving operations to perform after the initial resize
-            int nearestWidth = destWidth; // Width closest to source width that = 2^x, x is integer
-            int nearestHeight = destHeight;
-            while (nearestWidth < sourceWidth / 2) {
-                nearestWidth *= 2;
-                nearestHeight *= 2;
-                iterations++;
-            }
+            return scaleByHalving(source, xScale, yScale, rightMargin, bottomMargin);
+        }
+    }
 
-            // If we're supposed to add in margins, we need to do it in the initial resizing
-            // operation if we don't have any subsequent resizing operations.
-            if (iterations == 0) {
-                nearestWidth += rightMargin;
-                nearestHeight += bottomMargin;
-            }
+    /**
+     * Resize the given image by repeatedly scaling it in half with {@link Graphics2D}.
+     * This is slower than {@link #scaleByAreaAveraging} when creating thumbnails, which
+     * is used instead by {@link #scale(BufferedImage, double, double, int, int)} for the
+     * common {@code int} image types, unless the image is enlarged along one axis.
+     *
+     * @param source the image to be scaled
+     * @param xScale x scale
+     * @param yScale y scale
+     * @param rightMargin extra margin to add on the right
+     * @param bottomMargin extra margin to add on the bottom
+     * @return the scaled image
+     */
+    public static BufferedImage scaleByHalving(BufferedImage source, double xScale,
+            double yScale, int rightMargin, int bottomMargin) {
+        int sourceWidth = source.getWidth();
+        int sourceHeight = source.getHeight();
+        int destWidth = Math.max(1, (int) (xScale * sourceWidth));
+        int destHeight = Math.max(1, (int) (yScale * sourceHeight));
+        int imageType = source.getType();
+        if (imageType == BufferedImage.TYPE_CUSTOM) {
+            imageType = BufferedImage.TYPE_INT_ARGB;
+        }
 
-            BufferedImage scaled = new BufferedImage(nearestWidth, nearestHeight, imageType);
-            Graphics2D g2 = scaled.createGraphics();
-            g2.setRenderingHint(KEY_INTERPOLATION, VALUE_INTERPOLATION_BILINEAR);
+        // When creating a thumbnail, using the above code doesn't work very well;
+        // you get some visible artifacts, especially for text. Instead use the
+        // technique of repeatedly scaling the image into half; this will cause
+        // proper averaging of neighboring pixels, and will typically (for the kinds
+        // of screen sizes used by this utility method in the layout editor) take
+        // about 3-4 iterations to get the result since we are logarithmically reducing
+        // the size. Besides, each successive pass in operating on much fewer pixels
+        // (a reduction of 4 in each pass).
+        //
+        // However, we may not be resizing to a size that can be reached exactly by
+        // successively diving in half. Therefore, once we're within a factor of 2 of
+        // the final size, we can do a resize to the exact target size.
+        // However, we can get even better results if we perform this final resize
+        // up front. Let's say we're going from width 1000 to a destination width of 85.
+        // The first approach would cause a resize from 1000 to 500 to 250 to 125, and
+        // then a resize from 125 to 85. That last resize can distort/blur a lot.
+        // Instead, we can start with the destination width, 85, and double it
+        // successfully until we're close to the initial size: 85, then 170,
+        // then 340, and finally 680. (The next one, 1360, is larger than 1000).
+        // So, now we *start* the thumbnail operation by resizing from width 1000 to
+        // width 680, which will preserve a lot of visual details such as text.
+        // Then we can successively resize the image in half, 680 to 340 to 170 to 85.
+        // We end up with the expected final size, but we've been doing an exact
+        // divide-in-half resizing operation at the end so there is less distortion.
+
+
+        int iterations = 0; // Number of halving operations to perform after the initial resize
+        int nearestWidth = destWidth; // Width closest to source width that = 2^x, x is integer
+        int nearestHeight = destHeight;
+        while (nearestWidth < sourceWidth / 2) {
+            nearestWidth *= 2;
+            nearestHeight *= 2;
+            iterations++;
+        }
+
+        // If we're supposed to add in margins, we need to do it in the initial resizing
+        // operation if we don't have any subsequent resizing operations.
+        if (iterations == 0) {
+            nearestWidth += rightMargin;
+            nearestHeight += bottomMargin;
+        }
+
+        BufferedImage scaled = new BufferedImage(nearestWidth, nearestHeight, imageType);
+        Graphics2D g2 = scaled.createGraphics();
+        g2.setRenderingHint(KEY_INTERPOLATION, VALUE_INTERPOLATION_BILINEAR);
+        g2.setRenderingHint(KEY_RENDERING, VALUE_RENDER_QUALITY);
+        g2.setRenderingHint(KEY_ANTIALIASING, VALUE_ANTIALIAS_ON);
+        g2.drawImage(source, 0, 0, nearestWidth, nearestHeight,
+                0, 0, sourceWidth, sourceHeight, null);
+        g2.dispose();
+
+        sourceWidth = nearestWidth;
+        sourceHeight = nearestHeight;
+        source = scaled;
+
+        for (int iteration = iterations - 1; iteration >= 0; iteration--) {
+            int halfWidth = sourceWidth / 2;
+            int halfHeight = sourceHeight / 2;
+            if (iteration == 0) { // Last iteration: Add margins in final image
+                scaled = new BufferedImage(halfWidth + rightMargin, halfHeight + bottomMargin,
+                        imageType);
+            } else {
+                scaled = new BufferedImage(halfWidth, halfHeight, imageType);
+            }
+            g2 = scaled.createGraphics();
+            g2.setRenderingHint(KEY_INTERPOLATION,VALUE_INTERPOLATION_BILINEAR);
             g2.setRenderingHint(KEY_RENDERING, VALUE_RENDER_QUALITY);
             g2.setRenderingHint(KEY_ANTIALIASING, VALUE_ANTIALIAS_ON);
-            g2.drawImage(source, 0, 0, nearestWidth, nearestHeight,
-                    0, 0, sourceWidth, sourceHeight, null);
+            g2.drawImage(source, 0, 0,
+                    halfWidth, halfHeight, 0, 0,
+                    sourceWidth, sourceHeight,
+                    null);
             g2.dispose();
 
-            sourceWidth = nearestWidth;
-            sourceHeight = nearestHeight;
+            sourceWidth = halfWidth;
+            sourceHeight = halfHeight;
             source = scaled;
+            iterations--;
+        }
+        return scaled;
+    }
 
-            for (int iteration = iterations - 1; iteration >= 0; iteration--) {
-                int halfWidth = sourceWidth / 2;
-                int halfHeight = sourceHeight / 2;
-                if (iteration == 0) { // Last iteration: Add margins in final image
-                    scaled = new BufferedImage(halfWidth + rightMargin, halfHeight + bottomMargin,
-                            imageType);
-                } else {
-                    scaled = new BufferedImage(halfWidth, halfHeight, imageType);
+    /** Images with at least this many pixels are scaled by several threads */
+    private static final int PARALLEL_SCALE_PIXELS = 1024 * 1024;
+
+    /** Minimum number of destination rows scaled by each thread */
+    private static final int MIN_ROWS_PER_BAND = 16;
+
+    /** Threads scaling large images, created on demand */
+    private static ExecutorService sScaleExecutor;
+
+    /** Scratch buffers of the scaling threads, reused from one image to the next */
+    private static final ThreadLocal<ScaleBuffers> sScaleBuffers =
+            new ThreadLocal<ScaleBuffers>() {
+        @Override
+        protected ScaleBuffers initialValue() {
+            return new ScaleBuffers();
+        }
+    };
+
+    private static final class ScaleBuffers {
+        private int[] mRow = new int[0];
+        private float[] mRowSums = new float[0];
+        private float[] mSums = new float[0];
+
+        int[] getRow(int size) {
+            if (mRow.length < size) {
+                mRow = new int[size];
+            }
+            return mRow;
+        }
+
+        float[] getRowSums(int size) {
+            if (mRowSums.length < size) {
+                mRowSums = new float[size];
+            }
+            return mRowSums;
+        }
+
+        float[] getSums(int size) {
+            if (mSums.length < size) {
+                mSums = new float[size];
+            }
+            return mSums;
+        }
+    }
+
+    /**
+     * The source pixels covered by each destination pixel along one axis, and their
+     * coverage. The weights of destination pixel {@code d} are
+     * {@code weights[offsets[d]]} to {@code weights[offsets[d + 1] - 1]}, for the source
+     * pixels starting at {@code starts[d]}, and add up to 1.
+     */
+    private static final class AxisWeights {
+        final int[] starts;
+        final int[] offsets;
+        final float[] weights;
+
+        AxisWeights(int sourceSize, int destSize) {
+            double ratio = sourceSize / (double) destSize;
+            starts = new int[destSize];
+            offsets = new int[destSize + 1];
+            weights = new float[destSize * ((int) Math.ceil(ratio) + 1)];
+
+            int count = 0;
+            for (int d = 0; d < destSize; d++) {
+                double begin = d * ratio;
+                double end = Math.min(sourceSize, (d + 1) * ratio);
+                int first = (int) begin;
+                int last = Math.min(sourceSize, (int) Math.ceil(end));
+                starts[d] = first;
+                offsets[d] = count;
+                for (int i = first; i < last; i++) {
+                    double coverage = Math.min(i + 1, end) - Math.max(i, begin);
+                    weights[count++] = (float) (coverage / (end - begin));
                 }
-                g2 = scaled.createGraphics();
-                g2.setRenderingHint(KEY_INTERPOLATION,VALUE_INTERPOLATION_BILINEAR);
-                g2.setRenderingHint(KEY_RENDERING, VALUE_RENDER_QUALITY);
-                g2.setRenderingHint(KEY_ANTIALIASING, VALUE_ANTIALIAS_ON);
-                g2.drawImage(source, 0, 0,
-                        halfWidth, halfHeight, 0, 0,
-                        sourceWidth, sourceHeight,
-                        null);
-                g2.dispose();
-
-                sourceWidth = halfWidth;
-                sourceHeight = halfHeight;
-                source = scaled;
-                iterations--;
             }
+            offsets[destSize] = count;
+        }
+    }
+
+    /**
+     * Resize the given image by averaging the source pixels covered by each destination
+     * pixel (a box filter). This only works for shrinking images, and is meant for
+     * creating thumbnails: it gives smoother results than bilinear interpolation for
+     * large reductions, and is much faster than {@link #scaleByHalving} since it makes a
+     * single pass over the source pixels and works directly on the pixel arrays of the
+     * common {@code int} image types. Large images are scaled by several threads, each
+     * taking a band of rows.
+     *
+     * @param source the image to be scaled
+     * @param xScale x scale, at most 1
+     * @param yScale y scale, at most 1
+     * @param rightMargin extra margin to add on the right
+     * @param bottomMargin extra margin to add on the bottom
+     * @return the scaled image
+     */
+    public static BufferedImage scaleByAreaAveraging(BufferedImage source, double xScale,
+            double yScale, int rightMargin, int bottomMargin) {
+        assert xScale <= 1 && yScale <= 1;
+        int sourceWidth = source.getWidth();
+        int sourceHeight = source.getHeight();
+        int destWidth = Math.min(sourceWidth, Math.max(1, (int) (xScale * sourceWidth)));
+        int destHeight = Math.min(sourceHeight, Math.max(1, (int) (yScale * sourceHeight)));
+        int imageType = source.getType();
+        if (imageType == BufferedImage.TYPE_CUSTOM) {
+            imageType = BufferedImage.TYPE_INT_ARGB;
+        }
+
+        final BufferedImage scaled = new BufferedImage(destWidth + rightMargin,
+                destHeight + bottomMargin, imageType);
+        final AxisWeights xWeights = new AxisWeights(sourceWidth, destWidth);
+        final AxisWeights yWeights = new AxisWeights(sourceHeight, destHeight);
+
+        int bands = 1;
+        if ((long) sourceWidth * sourceHeight >= PARALLEL_SCALE_PIXELS
+                && getPixels(source) != null && getPixels(scaled) != null) {
+            int processors = Runtime.getRuntime().availableProcessors();
+            bands = Math.max(1, Math.min(processors, destHeight / MIN_ROWS_PER_BAND));
+        }
+
+        if (bands == 1) {
+            scaleRows(source, scaled, xWeights, yWeights, 0, destHeight);
             return scaled;
         }
+
+        final BufferedImage finalSource = source;
+        List<Future<?>> futures = new ArrayList<Future<?>>(bands - 1);
+        ExecutorService executor = getScaleExecutor();
+        int rowsPerBand = (destHeight + bands - 1) / bands;
+        for (int start = rowsPerBand; start < destHeight; start += rowsPerBand) {
+            final int bandStart = start;
+            final int bandEnd = Math.min(destHeight, start + rowsPerBand);
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    scaleRows(finalSource, scaled, xWeights, yWeights, bandStart, bandEnd);
+                }
+            }));
+        }
+
+        // the calling thread takes the first band
+        scaleRows(source, scaled, xWeights, yWeights, 0, Math.min(destHeight, rowsPerBand));
+
+        boolean interrupted = false;
+        for (Future<?> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        return scaled;
+    }
+
+    private static synchronized ExecutorService getScaleExecutor() {
+        if (sScaleExecutor == null) {
+            sScaleExecutor = Executors.newFixedThreadPool(
+                    Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Image Scaler"); //$NON-NLS-1$
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        return sScaleExecutor;
+    }
+
+    /**
+     * Returns the pixel array of an image of one of the common {@code int} types, with
+     * one element per pixel and no padding, or null for other images.
+     */
+    @Nullable
+    private static int[] getPixels(BufferedImage image) {
+        switch (image.getType()) {
+            case BufferedImage.TYPE_INT_ARGB:
+            case BufferedImage.TYPE_INT_ARGB_PRE:
+            case BufferedImage.TYPE_INT_RGB:
+                break;
+            default:
+                return null;
+        }
+
+        WritableRaster raster = image.getRaster();
+        if (raster.getParent() != null
+                || raster.getSampleModelTranslateX() != 0
+                || raster.getSampleModelTranslateY() != 0
+                || !(raster.getSampleModel() instanceof SinglePixelPackedSampleModel)
+                || ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride()
+                        != image.getWidth()) {
+            return null;
+        }
+
+        DataBufferInt buffer = (DataBufferInt) raster.getDataBuffer();
+        if (buffer.getNumBanks() != 1 || buffer.getOffset() != 0) {
+            return null;
+        }
+
+        return buffer.getData();
+    }
+
+    /** Scales the destination rows from {@code destStart} to {@code destEnd} */
+    private static void scaleRows(BufferedImage source, BufferedImage dest,
+            AxisWeights xWeights, AxisWeights yWeights, int destStart, int destEnd) {
+        int sourceWidth = source.getWidth();
+        int destWidth = xWeights.starts.length;
+        int destStride = dest.getWidth();
+        int sourceType = source.getType();
+        int destType = dest.getType();
+        int[] sourcePixels = getPixels(source);
+        int[] destPixels = getPixels(dest);
+
+        ScaleBuffers buffers = sScaleBuffers.get();
+        int[] row = buffers.getRow(Math.max(sourceWidth, destWidth));
+        float[] rowSums = buffers.getRowSums(4 * destWidth);
+        float[] sums = buffers.getSums(4 * destWidth);
+
+        for (int dy = destStart; dy < destEnd; dy++) {
+            Arrays.fill(sums, 0, 4 * destWidth, 0f);
+
+            int sy = yWeights.starts[dy];
+            for (int i = yWeights.offsets[dy], n = yWeights.offsets[dy + 1]; i < n; i++, sy++) {
+                float yWeight = yWeights.weights[i];
+
+                // Read the source row as premultiplied ARGB
+                if (sourcePixels != null && sourceType == BufferedImage.TYPE_INT_ARGB_PRE) {
+                    System.arraycopy(sourcePixels, sy * sourceWidth, row, 0, sourceWidth);
+                } else if (sourcePixels != null && sourceType == BufferedImage.TYPE_INT_RGB) {
+                    for (int x = 0, offset = sy * sourceWidth; x < sourceWidth; x++) {
+                        row[x] = 0xFF000000 | sourcePixels[offset + x];
+                    }
+                } else {
+                    if (sourcePixels != null) {
+                        System.arraycopy(sourcePixels, sy * sourceWidth, row, 0, sourceWidth);
+                    } else {
+                        source.getRGB(0, sy, sourceWidth, 1, row, 0, sourceWidth);
+                    }
+                    premultiply(row, sourceWidth);
+                }
+
+                // Average the row horizontally, then add it to the destination row
+                float[] xw = xWeights.weights;
+                for (int dx = 0; dx < destWidth; dx++) {
+                    float a = 0, r = 0, g = 0, b = 0;
+                    int sx = xWeights.starts[dx];
+                    for (int j = xWeights.offsets[dx], m = xWeights.offsets[dx + 1]; j < m;
+                            j++, sx++) {
+                        int argb = row[sx];
+                        float w = xw[j];
+                        a += w * (argb >>> 24);
+                        r += w * ((argb >> 16) & 0xFF);
+                        g += w * ((argb >> 8) & 0xFF);
+                        b += w * (argb & 0xFF);
+                    }
+                    rowSums[4 * dx] = a;
+                    rowSums[4 * dx + 1] = r;
+                    rowSums[4 * dx + 2] = g;
+                    rowSums[4 * dx + 3] = b;
+                }
+                for (int k = 0, n4 = 4 * destWidth; k < n4; k++) {
+                    sums[k] += yWeight * rowSums[k];
+                }
+            }
+
+            // Write the destination row
+            boolean premultiplied = destType == BufferedImage.TYPE_INT_ARGB_PRE;
+            for (int dx = 0; dx < destWidth; dx++) {
+                float alpha = sums[4 * dx];
+                int a = Math.min(255, (int) (alpha + 0.5f));
+                float r = sums[4 * dx + 1];
+                float g = sums[4 * dx + 2];
+                float b = sums[4 * dx + 3];
+                if (a == 0) {
+                    r = g = b = 0;
+                } else if (!premultiplied && a != 255) {
+                    float factor = 255f / alpha;
+                    r *= factor;
+                    g *= factor;
+                    b *= factor;
+                }
+                row[dx] = a << 24
+                        | Math.min(255, (int) (r + 0.5f)) << 16
+                        | Math.min(255, (int) (g + 0.5f)) << 8
+                        | Math.min(255, (int) (b + 0.5f));
+            }
+            if (destPixels != null) {
+                System.arraycopy(row, 0, destPixels, dy * destStride, destWidth);
+            } else {
+                dest.setRGB(0, dy, destWidth, 1, row, 0, destWidth);
+            }
+        }
+    }
+
+    /** Converts ARGB pixels to premultiplied ARGB */
+    private static void premultiply(int[] pixels, int count) {
+        for (int i = 0; i < count; i++) {
+            int argb = pixels[i];
+            int a = argb >>> 24;
+            if (a == 255) {
+                continue;
+            } else if (a == 0) {
+                pixels[i] = 0;
+            } else {
+                int r = ((argb >> 16) & 0xFF) * a / 255;
+                int g = ((argb >> 8) & 0xFF) * a / 255;
+                int b = (argb & 0xFF) * a / 255;
+                pixels[i] = a << 24 | r << 16 | g << 8 | b;
+            }
+        }
     }
 
     /**
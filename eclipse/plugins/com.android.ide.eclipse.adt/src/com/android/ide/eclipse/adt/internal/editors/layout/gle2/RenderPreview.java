@@ -26,6 +26,7 @@ import static com.android.ide.eclipse.adt.internal.editors.layout.gle2.RenderPre
 
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
+import com.android.ide.common.rendering.LayoutLibrary;
 import com.android.ide.common.rendering.api.RenderSession;
 import com.android.ide.common.rendering.api.ResourceValue;
 import com.android.ide.common.rendering.api.Result;
@@ -39,6 +40,7 @@ import com.android.ide.eclipse.adt.AdtPlugin;
 import com.android.ide.eclipse.adt.AdtUtils;
 import com.android.ide.eclipse.adt.internal.editors.IconFactory;
 import com.android.ide.eclipse.adt.internal.editors.descriptors.DocumentDescriptor;
+import com.android.ide.eclipse.adt.internal.editors.layout.ProjectCallback;
 import com.android.ide.eclipse.adt.internal.editors.layout.configuration.Configuration;
 import com.android.ide.eclipse.adt.internal.editors.layout.configuration.ConfigurationChooser;
 import com.android.ide.eclipse.adt.internal.editors.layout.configuration.ConfigurationClient;
@@ -56,6 +58,7 @@ import com.android.ide.eclipse.adt.internal.sdk.Sdk;
 import com.android.ide.eclipse.adt.io.IFileWrapper;
 import com.android.io.IAbstractFile;
 import com.android.resources.Density;
+import com.android.resources.ResourceFolderType;
 import com.android.resources.ResourceType;
 import com.android.resources.ScreenOrientation;
 import com.android.sdklib.IAndroidTarget;
@@ -65,11 +68,7 @@ import com.android.sdklib.devices.State;
 import com.android.utils.SdkUtils;
 
 import org.eclipse.core.resources.IFile;
-import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.IStatus;
-import org.eclipse.core.runtime.jobs.IJobChangeEvent;
-import org.eclipse.core.runtime.jobs.IJobChangeListener;
-import org.eclipse.core.runtime.jobs.Job;
 import org.eclipse.jface.dialogs.InputDialog;
 import org.eclipse.jface.window.Window;
 import org.eclipse.swt.SWT;
@@ -79,10 +78,9 @@ import org.eclipse.swt.graphics.Image;
 import org.eclipse.swt.graphics.ImageData;
 import org.eclipse.swt.graphics.Point;
 import org.eclipse.swt.graphics.Region;
-import org.eclipse.swt.widgets.Display;
 import org.eclipse.ui.ISharedImages;
 import org.eclipse.ui.PlatformUI;
-import org.eclipse.ui.progress.UIJob;
+import org.eclipse.wst.sse.core.internal.provisional.text.IStructuredDocument;
 import org.w3c.dom.Document;
 
 import java.awt.Graphics2D;
@@ -95,19 +93,10 @@ import java.util.Map;
 /**
  * Represents a preview rendering of a given configuration
  */
-public class RenderPreview implements IJobChangeListener {
+public class RenderPreview {
     /** Whether previews should use large shadows */
     static final boolean LARGE_SHADOWS = false;
 
-    /**
-     * Still doesn't work; get exceptions from layoutlib:
-     * java.lang.IllegalStateException: After scene creation, #init() must be called
-     *   at com.android.layoutlib.bridge.impl.RenderAction.acquire(RenderAction.java:151)
-     * <p>
-     * TODO: Investigate.
-     */
-    private static final boolean RENDER_ASYNC = false;
-
     /**
      * Height of the toolbar shown over a preview during hover. Needs to be
      * large enough to accommodate icons below.
@@ -153,7 +142,6 @@ public class RenderPreview implements IJobChangeListener {
 
     private @NonNull SoftReference<ResourceResolver> mResourceResolver =
             new SoftReference<ResourceResolver>(null);
-    private @Nullable Job mJob;
     private @Nullable Image mThumbnail;
     private @Nullable String mDisplayName;
     private int mWidth;
@@ -184,6 +172,15 @@ public class RenderPreview implements IJobChangeListener {
     /** Whether in the current layout, this preview is visible */
     private boolean mVisible;
 
+    /**
+     * Incremented each time the preview is scheduled for rendering or cancelled, such
+     * that the result of an obsolete render can be dropped. Read from the render workers.
+     */
+    private volatile int mRenderRequest;
+
+    /** Time it took to render the current thumbnail, in ms, or -1 */
+    private long mRenderTime = -1;
+
     /** Whether the configuration has changed and needs to be refreshed the next time
      * this preview made visible. This corresponds to the change flags in
      * {@link ConfigurationClient}. */
@@ -422,11 +419,7 @@ public class RenderPreview implements IJobChangeListener {
      */
     public void dispose() {
         disposeThumbnail();
-
-        if (mJob != null) {
-            mJob.cancel();
-            mJob = null;
-        }
+        mManager.cancelRender(this);
     }
 
     /** Disposes the thumbnail rendering. */
@@ -483,32 +476,91 @@ public class RenderPreview implements IJobChangeListener {
     }
 
     /**
-     * Request a new render after the given delay
+     * Makes any render of this preview in progress obsolete. Called by
+     * {@link RenderPreviewScheduler} when the preview is scheduled or cancelled.
+     */
+    void newRenderRequest() {
+        mRenderRequest++;
+    }
+
+    /**
+     * Returns the current render request, which can be called from any thread
+     *
+     * @return the render request
+     */
+    int getRenderRequest() {
+        return mRenderRequest;
+    }
+
+    /**
+     * Sets the time it took to render the current thumbnail
      *
-     * @param delay the delay to wait before starting the render job
+     * @param renderTime the time in milliseconds
      */
-    public void render(long delay) {
-        Job job = mJob;
-        if (job != null) {
-            job.cancel();
+    void setRenderTime(long renderTime) {
+        mRenderTime = renderTime;
+    }
+
+    /**
+     * Returns the time it took to render the current thumbnail, including the time to
+     * scale it, or -1 if not known
+     *
+     * @return the time in milliseconds, or -1
+     */
+    public long getRenderTime() {
+        return mRenderTime;
+    }
+
+    /**
+     * An image rendered for a preview, from which a thumbnail can be created on any
+     * thread
+     */
+    static final class RenderedImage {
+        private final @NonNull BufferedImage mImage;
+        private final int mWidth;
+        private final boolean mDrawShadows;
+        private final @Nullable String mKey;
+        private final boolean mPersistent;
+
+        private RenderedImage(@NonNull BufferedImage image, int width, boolean drawShadows,
+                @Nullable String key, boolean persistent) {
+            mImage = image;
+            mWidth = width;
+            mDrawShadows = drawShadows;
+            mKey = key;
+            mPersistent = persistent;
         }
-        if (RENDER_ASYNC) {
-            job = new AsyncRenderJob();
-        } else {
-            job = new RenderJob();
+
+        /**
+         * Scales the image into a thumbnail, and adds it to the {@link RenderPreviewCache}
+         *
+         * @return the thumbnail
+         */
+        @NonNull
+        BufferedImage createThumbnail() {
+            BufferedImage thumbnail = scaleThumbnail(mImage, mWidth, mDrawShadows);
+            if (mKey != null) {
+                RenderPreviewCache.getInstance().put(mKey, thumbnail, mPersistent);
+            }
+            return thumbnail;
         }
-        job.schedule(delay);
-        job.addJobChangeListener(this);
-        mJob = job;
     }
 
-    /** Render immediately */
-    private void renderSync() {
+    /**
+     * Renders this preview with layoutlib. Must be called on the UI thread.
+     *
+     * @return the rendered image, to create the thumbnail from with
+     *     {@link #setThumbnail(BufferedImage)}, or null if the preview was already
+     *     updated with a cached thumbnail or an error, or could not be rendered
+     */
+    @Nullable
+    RenderedImage renderImage() {
         GraphicalEditorPart editor = mCanvas.getEditorDelegate().getGraphicalEditor();
-        if (editor.getReadyLayoutLib(false /*displayError*/) == null) {
+        LayoutLibrary layoutLib = editor.getReadyLayoutLib(false /*displayError*/);
+        if (layoutLib == null) {
             // Don't attempt to render when there is no ready layout library: most likely
             // the targets are loading/reloading.
-            return;
+            return null;
         }
 
         disposeThumbnail();
@@ -516,6 +568,17 @@ public class RenderPreview implements IJobChangeListener {
         Configuration configuration =
                 mAlternateInput != null && mAlternateConfiguration != null
                 ? mAlternateConfiguration : mConfiguration;
+
+        String key = getCacheKey(editor, layoutLib, configuration);
+        if (key != null) {
+            BufferedImage thumbnail = RenderPreviewCache.getInstance().get(key);
+            if (thumbnail != null) {
+                mError = null;
+                setThumbnail(thumbnail);
+                return null;
+            }
+        }
+
         ResourceResolver resolver = getResourceResolver(configuration);
         RenderService renderService = RenderService.create(editor, configuration, resolver);
 
@@ -548,7 +611,7 @@ public class RenderPreview implements IJobChangeListener {
             if (document == null) {
                 mError = "No document";
                 createErrorThumbnail();
-                return;
+                return null;
             }
             model.loadFromXmlNode(document);
             renderService.setModel(model);
@@ -557,9 +620,15 @@ public class RenderPreview implements IJobChangeListener {
         }
         RenderLogger log = editor.createRenderLogger(getDisplayName());
         renderService.setLog(log);
+        ProjectCallback projectCallback = renderService.getProjectCallback();
+        int viewLoadCount = projectCallback.getViewLoadCount();
         RenderSession session = renderService.createRenderSession();
         Result render = session.render(1000);
 
+        // Thumbnails rendered with custom views depend on the compiled code of the
+        // project, which is not part of the key, so they are not kept across sessions
+        boolean persistent = projectCallback.getViewLoadCount() == viewLoadCount;
+
         if (DUMP_RENDER_DIAGNOSTICS) {
             if (log.hasProblems() || !render.isSuccess()) {
                 AdtPlugin.log(IStatus.ERROR, "Found problems rendering preview "
@@ -584,18 +653,83 @@ public class RenderPreview implements IJobChangeListener {
 
         if (render.getStatus() == Status.ERROR_TIMEOUT) {
             // TODO: Special handling? schedule update again later
-            return;
+            return null;
         }
         if (render.isSuccess()) {
             BufferedImage image = session.getImage();
             if (image != null) {
-                createThumbnail(image);
+                ImageOverlay imageOverlay = mCanvas.getImageOverlay();
+                boolean drawShadows = imageOverlay == null || imageOverlay.getShowDropShadow();
+                return new RenderedImage(image, getWidth(), drawShadows, key, persistent);
             }
         }
 
         if (mError != null) {
             createErrorThumbnail();
         }
+
+        return null;
+    }
+
+    /**
+     * Returns the key of the thumbnail of this preview in the {@link RenderPreviewCache},
+     * or null if it cannot be computed.
+     *
+     * @param editor the editor of the layout
+     * @param layoutLib the layout library rendering the preview
+     * @param configuration the configuration rendered
+     * @return the key, or null
+     */
+    @Nullable
+    private String getCacheKey(
+            @NonNull GraphicalEditorPart editor,
+            @NonNull LayoutLibrary layoutLib,
+            @NonNull Configuration configuration) {
+        IFile file = mAlternateInput != null ? mAlternateInput : editor.getEditedFile();
+        IAndroidTarget target = editor.getRenderingTarget();
+        if (file == null || target == null) {
+            return null;
+        }
+
+        StringBuilder sb = new StringBuilder(1024);
+        sb.append(file.getFullPath().toString()).append('\n');
+        // Alternate inputs are rendered from their saved contents, which are part of
+        // the resource stamp below. The edited layout may not be saved yet.
+        if (mAlternateInput == null) {
+            IStructuredDocument document =
+                    mCanvas.getEditorDelegate().getEditor().getStructuredDocument();
+            if (document == null) {
+                return null;
+            }
+            sb.append(document.get()).append('\n');
+        }
+        if (mIncludedWithin != null) {
+            sb.append(mIncludedWithin.getFile().getFullPath().toString()).append('\n');
+        }
+
+        // the platform and layoutlib can be updated in place, keeping the same hash string
+        sb.append(target.hashString()).append(':').append(target.getRevision()).append('\n');
+        sb.append(layoutLib.getApiLevel()).append(':').append(layoutLib.getRevision());
+        sb.append('\n');
+        sb.append(configuration.toPersistentString()).append('\n');
+        sb.append(configuration.getFullConfig().getFolderName(ResourceFolderType.LAYOUT));
+        sb.append('\n');
+        Locale locale = configuration.getLocale();
+        if (locale != null) {
+            sb.append(locale.toString());
+        }
+        sb.append('\n');
+        sb.append(configuration.getTheme()).append('\n');
+
+        ImageOverlay imageOverlay = mCanvas.getImageOverlay();
+        boolean drawShadows = imageOverlay == null || imageOverlay.getShowDropShadow();
+        sb.append(getWidth()).append('x').append(getHeight());
+        sb.append(drawShadows ? " shadow" : "").append('\n'); //$NON-NLS-1$
+
+        RenderPreviewCache cache = RenderPreviewCache.getInstance();
+        sb.append(cache.getResourceStamp(file.getProject()));
+
+        return RenderPreviewCache.getKey(sb.toString());
     }
 
     private ResourceResolver getResourceResolver(Configuration configuration) {
@@ -658,19 +792,29 @@ public class RenderPreview implements IJobChangeListener {
     }
 
     /**
-     * Sets the new image of the preview and generates a thumbnail
+     * Sets the thumbnail of the preview
      *
-     * @param image the full size image
+     * @param thumbnail the thumbnail image, as returned by {@link #scaleThumbnail}
      */
-    void createThumbnail(BufferedImage image) {
-        if (image == null) {
-            mThumbnail = null;
-            return;
-        }
+    void setThumbnail(@NonNull BufferedImage thumbnail) {
+        disposeThumbnail();
+        mThumbnail = SwtUtils.convertToSwt(mCanvas.getDisplay(), thumbnail,
+                true /* transferAlpha */, -1);
+    }
 
-        ImageOverlay imageOverlay = mCanvas.getImageOverlay();
-        boolean drawShadows = imageOverlay == null || imageOverlay.getShowDropShadow();
-        double scale = getWidth() / (double) image.getWidth();
+    /**
+     * Generates a thumbnail from the full size image of a preview. This can be called
+     * from any thread.
+     *
+     * @param image the full size image
+     * @param width the width of the thumbnail
+     * @param drawShadows whether to draw a drop shadow around the thumbnail
+     * @return the thumbnail image
+     */
+    @NonNull
+    static BufferedImage scaleThumbnail(@NonNull BufferedImage image, int width,
+            boolean drawShadows) {
+        double scale = width / (double) image.getWidth();
         int shadowSize;
         if (LARGE_SHADOWS) {
             shadowSize = drawShadows ? SHADOW_SIZE : 0;
@@ -697,8 +841,7 @@ public class RenderPreview implements IJobChangeListener {
             }
         }
 
-        mThumbnail = SwtUtils.convertToSwt(mCanvas.getDisplay(), image,
-                true /* transferAlpha */, -1);
+        return image;
     }
 
     void createErrorThumbnail() {
@@ -790,7 +933,7 @@ public class RenderPreview implements IJobChangeListener {
                     mScale = 1.0;
                 }
 
-                render(0);
+                mManager.scheduleRender(this);
                 mManager.layout(true);
                 mCanvas.redraw();
                 return true;
@@ -802,7 +945,7 @@ public class RenderPreview implements IJobChangeListener {
                 if (Math.abs(mScale-1.0) < 0.0001) {
                     mScale = 1.0;
                 }
-                render(0);
+                mManager.scheduleRender(this);
 
                 mManager.layout(true);
                 mCanvas.redraw();
@@ -930,6 +1073,16 @@ public class RenderPreview implements IJobChangeListener {
 
             gc.drawImage(EDIT_ICON, left, y);
             left += EDIT_ICON_WIDTH;
+
+            if (mRenderTime >= 0) {
+                String renderTime = String.format("%1$d ms", mRenderTime);
+                Point extent = gc.textExtent(renderTime);
+                int timeLeft = x + width - extent.x - 2;
+                if (timeLeft > left) {
+                    gc.setForeground(gc.getDevice().getSystemColor(SWT.COLOR_DARK_GRAY));
+                    gc.drawText(renderTime, timeLeft, y, true);
+                }
+            }
         }
     }
 
@@ -1187,92 +1340,6 @@ public class RenderPreview implements IJobChangeListener {
         return mConfiguration;
     }
 
-    // ---- Implements IJobChangeListener ----
-
-    @Override
-    public void aboutToRun(IJobChangeEvent event) {
-    }
-
-    @Override
-    public void awake(IJobChangeEvent event) {
-    }
-
-    @Override
-    public void done(IJobChangeEvent event) {
-        mJob = null;
-    }
-
-    @Override
-    public void running(IJobChangeEvent event) {
-    }
-
-    @Override
-    public void scheduled(IJobChangeEvent event) {
-    }
-
-    @Override
-    public void sleeping(IJobChangeEvent event) {
-    }
-
-    // ---- Delayed Rendering ----
-
-    private final class RenderJob extends UIJob {
-        public RenderJob() {
-            super("RenderPreview");
-            setSystem(true);
-            setUser(false);
-        }
-
-        @Override
-        public IStatus runInUIThread(IProgressMonitor monitor) {
-            mJob = null;
-            if (!mCanvas.isDisposed()) {
-                renderSync();
-                mCanvas.redraw();
-                return org.eclipse.core.runtime.Status.OK_STATUS;
-            }
-
-            return org.eclipse.core.runtime.Status.CANCEL_STATUS;
-        }
-
-        @Override
-        public Display getDisplay() {
-            if (mCanvas.isDisposed()) {
-                return null;
-            }
-            return mCanvas.getDisplay();
-        }
-    }
-
-    private final class AsyncRenderJob extends Job {
-        public AsyncRenderJob() {
-            super("RenderPreview");
-            setSystem(true);
-            setUser(false);
-        }
-
-        @Override
-        protected IStatus run(IProgressMonitor monitor) {
-            mJob = null;
-
-            if (mCanvas.isDisposed()) {
-                return org.eclipse.core.runtime.Status.CANCEL_STATUS;
-            }
-
-            renderSync();
-
-            // Update display
-            mCanvas.getDisplay().asyncExec(new Runnable() {
-                @Override
-                public void run() {
-                    mCanvas.redraw();
-                }
-            });
-
-            return org.eclipse.core.runtime.Status.OK_STATUS;
-        }
-    }
-
     /**
      * Sets the input file to use for rendering. If not set, this will just be
      * the same file as the configuration chooser. This is used to render other
@@ -0,0 +1,367 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/org/documents/epl-v10.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ide.eclipse.adt.internal.editors.layout.gle2;
+
+import static com.android.SdkConstants.DOT_PNG;
+import static com.android.SdkConstants.FD_RES;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ide.eclipse.adt.AdtPlugin;
+import com.android.ide.eclipse.adt.internal.sdk.ProjectState;
+import com.android.ide.eclipse.adt.internal.sdk.Sdk;
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import org.eclipse.core.resources.IFolder;
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.IResourceProxy;
+import org.eclipse.core.resources.IResourceProxyVisitor;
+import org.eclipse.core.runtime.CoreException;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Cache of the thumbnails rendered for the layout previews, shared by all the layout
+ * editors.
+ * <p/>
+ * Thumbnails are keyed by everything that affects the rendering: the contents of the
+ * layout, the configuration of the preview, the platform and layoutlib versions, the size
+ * of the thumbnail and the revision of the project resources (see
+ * {@link #getResourceStamp(IProject)}). The most recently used ones are kept in memory.
+ * Thumbnails rendered without custom views are also written as PNG files in the plugin
+ * state location so that previews show up immediately when a layout is opened again,
+ * including in a later session. The disk store can be turned off with the
+ * {@code adt.preview.diskcache} system property.
+ * <p/>
+ * Thumbnails rendered with custom views depend on the compiled code of the project, which
+ * is not part of the key. They are only served until the resource revision of
+ * {@link RenderPreviewManager} changes, which happens on code changes too, and are never
+ * written to disk.
+ */
+final class RenderPreviewCache {
+    private static final String CACHE_FOLDER = "render-preview-cache"; //$NON-NLS-1$
+
+    /** Maximum number of bytes of thumbnail pixels kept in memory */
+    private static final long MAX_MEMORY_SIZE = 32L * 1024 * 1024;
+
+    /**
+     * Suffix of the thumbnail files, recording that they were rendered without custom
+     * views. Files without it are never read, and are eventually trimmed.
+     */
+    private static final String DISK_SUFFIX = "-static" + DOT_PNG; //$NON-NLS-1$
+
+    /** Maximum number of thumbnails kept on disk */
+    private static final int MAX_DISK_ENTRIES = 1000;
+
+    /** Number of thumbnails written to disk between two trims of the disk store */
+    private static final int TRIM_INTERVAL = 50;
+
+    private static final boolean DISK_CACHE_ENABLED =
+            !"false".equals(System.getProperty("adt.preview.diskcache")); //$NON-NLS-1$ //$NON-NLS-2$
+
+    private static RenderPreviewCache sInstance;
+
+    /** Thumbnails in least recently used order */
+    private final LinkedHashMap<String, Entry> mImages =
+            new LinkedHashMap<String, Entry>(64, 0.75f, true);
+    private long mMemorySize;
+
+    /** Resource stamps of the projects, and the resource revision they were computed for */
+    private final Map<IProject, ResourceStamp> mResourceStamps =
+            new HashMap<IProject, ResourceStamp>();
+
+    private final File mFolder;
+    private int mWriteCount;
+
+    /** Writes the thumbnails to disk off the UI thread */
+    private final ExecutorService mWriter;
+
+    private static final class Entry {
+        final BufferedImage image;
+        /** Whether the thumbnail was rendered without custom views */
+        final boolean persistent;
+        /** The resource revision the thumbnail was rendered at */
+        final int revision;
+
+        Entry(BufferedImage image, boolean persistent, int revision) {
+            this.image = image;
+            this.persistent = persistent;
+            this.revision = revision;
+        }
+    }
+
+    private static final class ResourceStamp {
+        final int revision;
+        final String stamp;
+
+        ResourceStamp(int revision, String stamp) {
+            this.revision = revision;
+            this.stamp = stamp;
+        }
+    }
+
+    /** Returns the shared cache */
+    @NonNull
+    static synchronized RenderPreviewCache getInstance() {
+        if (sInstance == null) {
+            File folder = null;
+            if (DISK_CACHE_ENABLED) {
+                folder = AdtPlugin.getDefault().getStateLocation().append(CACHE_FOLDER).toFile();
+            }
+            sInstance = new RenderPreviewCache(folder);
+        }
+
+        return sInstance;
+    }
+
+    private RenderPreviewCache(@Nullable File folder) {
+        mFolder = folder;
+        if (folder != null) {
+            mWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Preview Cache Writer"); //$NON-NLS-1$
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        } else {
+            mWriter = null;
+        }
+    }
+
+    /**
+     * Returns the key of a thumbnail, computed from a description of everything that
+     * affects its rendering.
+     *
+     * @param description the description of the rendering
+     * @return the key
+     */
+    @NonNull
+    static String getKey(@NonNull String description) {
+        return Hashing.sha1().hashString(description, Charsets.UTF_8).toString();
+    }
+
+    /**
+     * Returns the thumbnail with the given key, or null if it is not cached. The
+     * returned image is shared and must not be modified.
+     *
+     * @param key the key returned by {@link #getKey(String)}
+     * @return the thumbnail, or null
+     */
+    @Nullable
+    BufferedImage get(@NonNull String key) {
+        synchronized (mImages) {
+            Entry entry = mImages.get(key);
+            if (entry != null) {
+                if (entry.persistent
+                        || entry.revision == RenderPreviewManager.getResourceRevision()) {
+                    return entry.image;
+                }
+
+                // the custom views may have changed since
+                mImages.remove(key);
+                mMemorySize -= getSize(entry.image);
+            }
+        }
+
+        if (mFolder == null) {
+            return null;
+        }
+
+        File file = new File(mFolder, key + DISK_SUFFIX);
+        if (!file.isFile()) {
+            return null;
+        }
+
+        try {
+            BufferedImage image = ImageIO.read(file);
+            if (image != null) {
+                // mark the entry as recently used
+                file.setLastModified(System.currentTimeMillis());
+                addToMemory(key, new Entry(image, true, 0));
+            }
+            return image;
+        } catch (IOException e) {
+            // corrupted entry: the preview will just be rendered again
+            file.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Adds a thumbnail to the cache. The image must not be modified afterwards.
+     *
+     * @param key the key returned by {@link #getKey(String)}
+     * @param image the thumbnail
+     * @param persistent whether the thumbnail was rendered without loading any custom
+     *     views, in which case the key describes everything that affects the rendering
+     *     across sessions and the thumbnail can also be stored on disk
+     */
+    void put(@NonNull final String key, @NonNull final BufferedImage image,
+            boolean persistent) {
+        addToMemory(key, new Entry(image, persistent,
+                RenderPreviewManager.getResourceRevision()));
+
+        if (mWriter != null && persistent) {
+            mWriter.execute(new Runnable() {
+                @Override
+                public void run() {
+                    write(key, image);
+                }
+            });
+        }
+    }
+
+    private void addToMemory(@NonNull String key, @NonNull Entry entry) {
+        synchronized (mImages) {
+            Entry old = mImages.put(key, entry);
+            if (old != null) {
+                mMemorySize -= getSize(old.image);
+            }
+            mMemorySize += getSize(entry.image);
+
+            Iterator<Entry> iterator = mImages.values().iterator();
+            while (mMemorySize > MAX_MEMORY_SIZE && iterator.hasNext()) {
+                mMemorySize -= getSize(iterator.next().image);
+                iterator.remove();
+            }
+        }
+    }
+
+    private static long getSize(@NonNull BufferedImage image) {
+        return 4L * image.getWidth() * image.getHeight();
+    }
+
+    private void write(@NonNull String key, @NonNull BufferedImage image) {
+        if (!mFolder.isDirectory() && !mFolder.mkdirs()) {
+            return;
+        }
+
+        File file = new File(mFolder, key + DISK_SUFFIX);
+        try {
+            // write to a temporary file first such that readers never see a partial file
+            File temp = File.createTempFile(key, null, mFolder);
+            if (ImageIO.write(image, "PNG", temp) && temp.renameTo(file)) { //$NON-NLS-1$
+                if (++mWriteCount % TRIM_INTERVAL == 0) {
+                    trim();
+                }
+            } else {
+                temp.delete();
+            }
+        } catch (IOException e) {
+            AdtPlugin.log(e, "Failed writing preview thumbnail %1$s", file);
+        }
+    }
+
+    /** Deletes the least recently used thumbnails until there are MAX_DISK_ENTRIES left */
+    private void trim() {
+        File[] files = mFolder.listFiles();
+        if (files == null || files.length <= MAX_DISK_ENTRIES) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File file1, File file2) {
+                long delta = file1.lastModified() - file2.lastModified();
+                return delta < 0 ? -1 : (delta > 0 ? 1 : 0);
+            }
+        });
+
+        for (int i = 0, n = files.length - MAX_DISK_ENTRIES; i < n; i++) {
+            files[i].delete();
+        }
+    }
+
+    /**
+     * Returns a stamp of the resources a layout of the given project may refer to: the
+     * resource folders of the project and of its libraries. The stamp changes whenever a
+     * resource file is added, removed or edited, and is the same in later sessions if
+     * none were. It is only computed again when the resource revision of
+     * {@link RenderPreviewManager} changes.
+     *
+     * @param project the project
+     * @return the stamp
+     */
+    @NonNull
+    String getResourceStamp(@NonNull IProject project) {
+        int revision = RenderPreviewManager.getResourceRevision();
+        synchronized (mResourceStamps) {
+            ResourceStamp stamp = mResourceStamps.get(project);
+            if (stamp != null && stamp.revision == revision) {
+                return stamp.stamp;
+            }
+        }
+
+        final Hasher hasher = Hashing.sha1().newHasher();
+        addResourceStamps(project, hasher);
+        ProjectState state = Sdk.getProjectState(project);
+        if (state != null) {
+            List<IProject> libraries = state.getFullLibraryProjects();
+            for (IProject library : libraries) {
+                addResourceStamps(library, hasher);
+            }
+        }
+        String stamp = hasher.hash().toString();
+
+        synchronized (mResourceStamps) {
+            mResourceStamps.put(project, new ResourceStamp(revision, stamp));
+        }
+
+        return stamp;
+    }
+
+    private static void addResourceStamps(@NonNull IProject project, @NonNull final Hasher hasher) {
+        IFolder res = project.getFolder(FD_RES);
+        if (!res.exists()) {
+            return;
+        }
+
+        try {
+            res.accept(new IResourceProxyVisitor() {
+                @Override
+                public boolean visit(IResourceProxy proxy) throws CoreException {
+                    if (proxy.getType() == IResource.FILE) {
+                        hasher.putString(proxy.requestFullPath().toString(), Charsets.UTF_8);
+                        hasher.putLong(proxy.getModificationStamp());
+                    }
+                    return true;
+                }
+            }, IResource.NONE);
+        } catch (CoreException e) {
+            AdtPlugin.log(e, null);
+        }
+    }
+}
@@ -86,7 +86,6 @@ import java.util.Set;
  */
 public class RenderPreviewManager {
     private static double sScale = 1.0;
-    private static final int RENDER_DELAY = 150;
     private static final int PREVIEW_VGAP = 18;
     private static final int PREVIEW_HGAP = 12;
     private static final int MAX_WIDTH = 200;
@@ -96,6 +95,7 @@ public class RenderPreviewManager {
     private @Nullable List<RenderPreview> mPreviews;
     private @Nullable RenderPreviewList mManualList;
     private final @NonNull LayoutCanvas mCanvas;
+    private final @NonNull RenderPreviewScheduler mScheduler;
     private final @NonNull CanvasTransform mVScale;
     private final @NonNull CanvasTransform mHScale;
     private int mPrevCanvasWidth;
@@ -111,6 +111,8 @@ public class RenderPreviewManager {
     private static int mRevision;
     /** Current global revision count */
     private static int sRevision;
+    /** Revision of the project resources, part of the key of the cached thumbnails */
+    private static int sResourceRevision;
     private boolean mNeedLayout;
     private boolean mNeedRender;
     private boolean mNeedZoom;
@@ -123,6 +125,7 @@ public class RenderPreviewManager {
      */
     public RenderPreviewManager(@NonNull LayoutCanvas canvas) {
         mCanvas = canvas;
+        mScheduler = new RenderPreviewScheduler(canvas);
         mHScale = canvas.getHorizontalTransform();
         mVScale = canvas.getVerticalTransform();
     }
@@ -134,6 +137,27 @@ public class RenderPreviewManager {
      */
     public static void bumpRevision() {
         sRevision++;
+        sResourceRevision++;
+    }
+
+    /**
+     * Revise the resource revision counter, without recomputing the set of previews.
+     * This must be called whenever project resources changed, such that previews
+     * are not rendered from cached thumbnails of the previous resources.
+     *
+     * @see RenderPreviewCache#getResourceStamp(IProject)
+     */
+    public static void bumpResourceRevision() {
+        sResourceRevision++;
+    }
+
+    /**
+     * Returns the current resource revision
+     *
+     * @return the resource revision
+     */
+    static int getResourceRevision() {
+        return sResourceRevision;
     }
 
     /**
@@ -242,6 +266,7 @@ public class RenderPreviewManager {
                 preview.dispose();
             }
         }
+        mScheduler.cancelAll();
     }
 
     /**
@@ -331,8 +356,6 @@ public class RenderPreviewManager {
             mCanvas.getVerticalBar().addSelectionListener(mListener);
         }
 
-        beginRenderScheduling();
-
         mLayoutHeight = 0;
 
         if (previewsHaveIdenticalSize() || fixedOrder()) {
@@ -700,7 +723,6 @@ public class RenderPreviewManager {
             addPreview(preview);
 
             layout(true);
-            beginRenderScheduling();
             scheduleRender(preview);
             mCanvas.setFitScale(true /* onlyZoomOut */, false /*allowZoomIn*/);
 
@@ -1164,7 +1186,6 @@ public class RenderPreviewManager {
         // Similar to renderPreviews, but only acts on incomplete previews
         if (hasPreviews()) {
             // Do zoomed images first
-            beginRenderScheduling();
             for (RenderPreview preview : mPreviews) {
                 if (preview.getScale() > 1.2) {
                     preview.configurationChanged(flags);
@@ -1188,8 +1209,6 @@ public class RenderPreviewManager {
     /** Updates the configuration preview thumbnails */
     public void renderPreviews() {
         if (hasPreviews()) {
-            beginRenderScheduling();
-
             // Process in visual order
             ArrayList<RenderPreview> visualOrder = new ArrayList<RenderPreview>(mPreviews);
             Collections.sort(visualOrder, RenderPreview.VISUAL_ORDER);
@@ -1211,26 +1230,24 @@ public class RenderPreviewManager {
         mNeedRender = false;
     }
 
-    private int mPendingRenderCount;
-
     /**
-     * Reset rendering scheduling. The next render request will be scheduled
-     * after a single delay unit.
+     * Schedule rendering the given preview. Visible previews are rendered first, and
+     * scheduling a preview which is already pending or being rendered replaces the
+     * earlier request.
+     *
+     * @param preview the preview to render
      */
-    public void beginRenderScheduling() {
-        mPendingRenderCount = 0;
+    public void scheduleRender(@NonNull RenderPreview preview) {
+        mScheduler.schedule(preview);
     }
 
     /**
-     * Schedule rendering the given preview. Each successive call will add an additional
-     * delay unit to the schedule from the previous {@link #scheduleRender(RenderPreview)}
-     * call, until {@link #beginRenderScheduling()} is called again.
+     * Cancels any pending render of the given preview
      *
-     * @param preview the preview to render
+     * @param preview the preview
      */
-    public void scheduleRender(@NonNull RenderPreview preview) {
-        mPendingRenderCount++;
-        preview.render(mPendingRenderCount * RENDER_DELAY);
+    void cancelRender(@NonNull RenderPreview preview) {
+        mScheduler.cancel(preview);
     }
 
     /**
@@ -1588,7 +1605,6 @@ public class RenderPreviewManager {
             int selection = bar.getSelection();
             int thumb = bar.getThumb();
             int maxY = selection + thumb;
-            beginRenderScheduling();
             for (RenderPreview preview : mPreviews) {
                 if (!preview.isVisible() && preview.getY() <= maxY) {
                     preview.setVisible(true);
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/org/documents/epl-v10.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ide.eclipse.adt.internal.editors.layout.gle2;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ide.eclipse.adt.AdtPlugin;
+import com.android.ide.eclipse.adt.internal.editors.layout.gle2.RenderPreview.RenderedImage;
+
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.swt.widgets.Display;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Schedules the rendering of the previews of a {@link RenderPreviewManager}.
+ * <p/>
+ * Layoutlib can only render one session at a time, and the previews render the model of
+ * the editor, so the layoutlib part of each render is run on the UI thread, one preview
+ * per event loop iteration such that the editor stays responsive. The rest of the work,
+ * scaling the image into a thumbnail and caching it, is done by a small pool of worker
+ * threads while the next preview is rendered.
+ * <p/>
+ * Pending previews are picked in priority order: visible previews first, then zoomed in
+ * previews, then in visual order. Scheduling a preview again, for example after an edit,
+ * makes any render of it in progress obsolete, and its result is dropped.
+ */
+class RenderPreviewScheduler {
+    /**
+     * Delay before rendering, after the last request made while the scheduler was idle,
+     * such that a quick succession of edits only renders the previews once
+     */
+    private static final int RENDER_DELAY = 150;
+
+    /** Whether to log the render times of the previews */
+    private static final boolean DEBUG = false;
+
+    /** Workers creating the thumbnails, shared by all the editors */
+    private static final ExecutorService sWorkers = Executors.newFixedThreadPool(
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors())),
+            new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Render Preview Worker"); //$NON-NLS-1$
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /** Orders the pending previews by decreasing priority */
+    private static final Comparator<RenderPreview> PRIORITY = new Comparator<RenderPreview>() {
+        @Override
+        public int compare(RenderPreview preview1, RenderPreview preview2) {
+            if (preview1.isVisible() != preview2.isVisible()) {
+                return preview1.isVisible() ? -1 : 1;
+            }
+            boolean zoomed1 = preview1.getScale() > 1.2;
+            boolean zoomed2 = preview2.getScale() > 1.2;
+            if (zoomed1 != zoomed2) {
+                return zoomed1 ? -1 : 1;
+            }
+            return RenderPreview.VISUAL_ORDER.compare(preview1, preview2);
+        }
+    };
+
+    private final @NonNull LayoutCanvas mCanvas;
+    private final List<RenderPreview> mPending = new ArrayList<RenderPreview>();
+    private boolean mRunning;
+
+    private final Runnable mRenderNext = new Runnable() {
+        @Override
+        public void run() {
+            renderNext();
+        }
+    };
+
+    RenderPreviewScheduler(@NonNull LayoutCanvas canvas) {
+        mCanvas = canvas;
+    }
+
+    /**
+     * Schedules rendering the given preview. Must be called on the UI thread.
+     *
+     * @param preview the preview to render
+     */
+    void schedule(@NonNull RenderPreview preview) {
+        preview.newRenderRequest();
+        if (!mPending.contains(preview)) {
+            mPending.add(preview);
+        }
+
+        if (!mRunning && !mCanvas.isDisposed()) {
+            // (re)starts the delay before the first render
+            mCanvas.getDisplay().timerExec(RENDER_DELAY, mRenderNext);
+        }
+    }
+
+    /**
+     * Cancels the pending and in progress renders of the given preview. Must be called on
+     * the UI thread.
+     *
+     * @param preview the preview
+     */
+    void cancel(@NonNull RenderPreview preview) {
+        preview.newRenderRequest();
+        mPending.remove(preview);
+    }
+
+    /** Cancels all the pending renders. Must be called on the UI thread. */
+    void cancelAll() {
+        for (RenderPreview preview : mPending) {
+            preview.newRenderRequest();
+        }
+        mPending.clear();
+    }
+
+    @Nullable
+    private RenderPreview takeNext() {
+        if (mPending.isEmpty()) {
+            return null;
+        }
+
+        RenderPreview next = mPending.get(0);
+        for (int i = 1, n = mPending.size(); i < n; i++) {
+            RenderPreview preview = mPending.get(i);
+            if (PRIORITY.compare(preview, next) < 0) {
+                next = preview;
+            }
+        }
+        mPending.remove(next);
+
+        return next;
+    }
+
+    private void renderNext() {
+        if (mCanvas.isDisposed()) {
+            mPending.clear();
+            mRunning = false;
+            return;
+        }
+
+        final RenderPreview preview = takeNext();
+        if (preview == null) {
+            mRunning = false;
+            return;
+        }
+        mRunning = true;
+
+        final int request = preview.getRenderRequest();
+        long start = System.nanoTime();
+        final RenderedImage rendered = preview.renderImage();
+        final long renderTime = System.nanoTime() - start;
+
+        if (rendered == null) {
+            // rendered from the cache, or failed
+            renderDone(preview, renderTime);
+        } else {
+            final Display display = mCanvas.getDisplay();
+            sWorkers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (preview.getRenderRequest() != request) {
+                        return;
+                    }
+
+                    long start = System.nanoTime();
+                    final BufferedImage thumbnail = rendered.createThumbnail();
+                    final long thumbnailTime = System.nanoTime() - start;
+
+                    if (display.isDisposed()) {
+                        return;
+                    }
+                    display.asyncExec(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (mCanvas.isDisposed() || preview.getRenderRequest() != request) {
+                                // the preview was disposed or scheduled again
+                                return;
+                            }
+                            preview.setThumbnail(thumbnail);
+                            renderDone(preview, renderTime + thumbnailTime);
+                        }
+                    });
+                }
+            });
+        }
+
+        // let the UI thread process other events before rendering the next preview
+        mCanvas.getDisplay().asyncExec(mRenderNext);
+    }
+
+    private void renderDone(@NonNull RenderPreview preview, long nanos) {
+        long millis = nanos / 1000000;
+        preview.setRenderTime(millis);
+        if (DEBUG) {
+            AdtPlugin.log(IStatus.INFO, "Rendered preview %1$s in %2$d ms", //$NON-NLS-1$
+                    preview.getDisplayName(), millis);
+        }
+        mCanvas.redraw();
+    }
+}
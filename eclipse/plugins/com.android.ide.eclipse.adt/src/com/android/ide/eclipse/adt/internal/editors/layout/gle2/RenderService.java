@@ -394,6 +394,15 @@ public class RenderService {
         return this;
     }
 
+    /**
+     * Returns the project callback used to load the custom views of the renderings
+     *
+     * @return the project callback
+     */
+    public ProjectCallback getProjectCallback() {
+        return mProjectCallback;
+    }
+
     /** Initializes any remaining optional fields after all setters have been called */
     private void finishConfiguration() {
         if (mLogger == null) {
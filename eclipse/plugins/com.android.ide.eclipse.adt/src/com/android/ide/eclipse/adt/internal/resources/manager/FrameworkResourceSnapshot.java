@@ -0,0 +1,489 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/org/documents/epl-v10.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ide.eclipse.adt.internal.resources.manager;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ide.common.rendering.api.ResourceValue;
+import com.android.ide.common.resources.FrameworkResources;
+import com.android.ide.common.resources.ResourceFile;
+import com.android.ide.common.resources.ResourceFolder;
+import com.android.ide.common.resources.ResourceItem;
+import com.android.ide.common.resources.ScanningContext;
+import com.android.io.FileWrapper;
+import com.android.io.FolderWrapper;
+import com.android.io.IAbstractResource;
+import com.android.resources.ResourceFolderType;
+import com.android.resources.ResourceType;
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Closeables;
+import com.google.common.io.Files;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Snapshot of the framework resources parsed from the values files of a platform, from
+ * which the framework repository is rebuilt without parsing these files again.
+ * <p/>
+ * Loading the framework resources parses thousands of values files, most of them the
+ * translations of the platform strings. Once the repository was loaded from the platform,
+ * the name, type and value of the resources of each values file are written to a single
+ * file of the plugin state location, keyed by the path of the resource folder and the
+ * revision of the platform. The next time, these values are added back to the repository
+ * directly, and only the other files are read from the platform. The snapshot is written
+ * again whenever the platform no longer matches it: a folder was added, removed or
+ * modified, or one of its values files changed.
+ * <p/>
+ * Only values files which define nothing but simple values are part of the snapshot.
+ * Styles, attributes, arrays and the like are always parsed from the platform.
+ */
+public final class FrameworkResourceSnapshot {
+    /** Version of the snapshot format, to be incremented when it changes */
+    private static final int VERSION = 2;
+
+    private static final String SUFFIX = ".snapshot"; //$NON-NLS-1$
+
+    private FrameworkResourceSnapshot() {
+    }
+
+    /**
+     * Loads the framework resources of a platform, from its snapshot in the cache folder if
+     * it is up to date. Otherwise the resources are loaded from the platform, and the
+     * snapshot is written for the next time.
+     * <p/>
+     * The public resources are not loaded, see
+     * {@link FrameworkResources#loadPublicResources}.
+     *
+     * @param cacheFolder the folder holding the snapshots
+     * @param resFolder the resource folder of the platform
+     * @param revision the revision of the platform
+     * @return the loaded resources
+     */
+    @NonNull
+    public static FrameworkResources load(@NonNull File cacheFolder, @NonNull File resFolder,
+            @NonNull String revision) {
+        String key = Hashing.sha1().newHasher()
+                .putString(resFolder.getAbsolutePath(), Charsets.UTF_8)
+                .putString(revision, Charsets.UTF_8)
+                .hash().toString();
+        File file = new File(cacheFolder, key + SUFFIX);
+
+        if (file.isFile()) {
+            try {
+                List<ParsedFile> files = read(file, resFolder, revision);
+                if (files != null) {
+                    FrameworkResources resources = new SnapshotResources(resFolder, files);
+                    resources.loadResources();
+                    return resources;
+                }
+            } catch (IOException e) {
+                // corrupted snapshot: write it again
+            }
+        }
+
+        FrameworkResources resources = new FrameworkResources(new FolderWrapper(resFolder));
+        resources.loadResources();
+        try {
+            write(file, resFolder, revision, resources);
+        } catch (IOException e) {
+            // the resources are loaded from the platform again next time
+            file.delete();
+        }
+
+        return resources;
+    }
+
+    /**
+     * Writes the snapshot of the resources loaded from a resource folder.
+     * <p/>
+     * The file holds the format version, the path of the resource folder, the revision of
+     * the platform and the timestamp of the resource folder. It is followed by each values
+     * folder with its name and timestamp, and each of its values files with their name,
+     * timestamp, length and resources.
+     */
+    private static void write(@NonNull File file, @NonNull File resFolder,
+            @NonNull String revision, @NonNull FrameworkResources resources)
+            throws IOException {
+        // the values of each values file, and the files which have other than simple values
+        Map<File, Map<ResourceType, Map<String, ResourceValue>>> files =
+                new TreeMap<File, Map<ResourceType, Map<String, ResourceValue>>>();
+        Set<File> parsedFiles = new HashSet<File>();
+
+        for (ResourceType type : ResourceType.values()) {
+            for (ResourceItem item : resources.getResourceItemsOfType(type)) {
+                for (ResourceFile resFile : item.getSourceFileList()) {
+                    String folderName = resFile.getFolder().getFolder().getName();
+                    if (ResourceFolderType.getFolderType(folderName) != ResourceFolderType.VALUES) {
+                        continue;
+                    }
+
+                    File f = new File(resFile.getFile().getOsLocation());
+                    ResourceValue value = resFile.getValue(type, item.getName());
+                    if (value == null || value.getClass() != ResourceValue.class) {
+                        parsedFiles.add(f);
+                        continue;
+                    }
+
+                    Map<ResourceType, Map<String, ResourceValue>> fileValues = files.get(f);
+                    if (fileValues == null) {
+                        fileValues = new EnumMap<ResourceType, Map<String, ResourceValue>>(
+                                ResourceType.class);
+                        files.put(f, fileValues);
+                    }
+                    Map<String, ResourceValue> typeValues = fileValues.get(type);
+                    if (typeValues == null) {
+                        typeValues = new HashMap<String, ResourceValue>();
+                        fileValues.put(type, typeValues);
+                    }
+                    typeValues.put(item.getName(), value);
+                }
+            }
+        }
+        files.keySet().removeAll(parsedFiles);
+
+        Map<File, List<File>> folders = new TreeMap<File, List<File>>();
+        for (File f : files.keySet()) {
+            List<File> folderFiles = folders.get(f.getParentFile());
+            if (folderFiles == null) {
+                folderFiles = new ArrayList<File>();
+                folders.put(f.getParentFile(), folderFiles);
+            }
+            folderFiles.add(f);
+        }
+
+        File folder = file.getParentFile();
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            throw new IOException("Unable to create " + folder); //$NON-NLS-1$
+        }
+
+        // write to a temporary file first such that readers never see a partial snapshot
+        File temp = File.createTempFile(file.getName(), null, folder);
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                out.writeInt(VERSION);
+                out.writeUTF(resFolder.getAbsolutePath());
+                out.writeUTF(revision);
+                out.writeLong(resFolder.lastModified());
+
+                out.writeInt(folders.size());
+                for (Map.Entry<File, List<File>> entry : folders.entrySet()) {
+                    out.writeUTF(entry.getKey().getName());
+                    out.writeLong(entry.getKey().lastModified());
+                    out.writeInt(entry.getValue().size());
+                    for (File f : entry.getValue()) {
+                        out.writeUTF(f.getName());
+                        out.writeLong(f.lastModified());
+                        out.writeLong(f.length());
+                        writeValues(out, files.get(f));
+                    }
+                }
+            } finally {
+                Closeables.close(out, true);
+            }
+
+            // renameTo does not replace an existing file on all platforms
+            file.delete();
+            if (!temp.renameTo(file)) {
+                throw new IOException("Unable to write " + file); //$NON-NLS-1$
+            }
+        } finally {
+            temp.delete();
+        }
+    }
+
+    private static void writeValues(@NonNull DataOutputStream out,
+            @NonNull Map<ResourceType, Map<String, ResourceValue>> values) throws IOException {
+        out.writeInt(values.size());
+        for (Map.Entry<ResourceType, Map<String, ResourceValue>> entry : values.entrySet()) {
+            out.writeUTF(entry.getKey().getName());
+            out.writeInt(entry.getValue().size());
+            for (ResourceValue value : entry.getValue().values()) {
+                out.writeUTF(value.getName());
+                String v = value.getValue();
+                out.writeBoolean(v != null);
+                if (v != null) {
+                    // values can be longer than what writeUTF supports
+                    byte[] bytes = v.getBytes(Charsets.UTF_8);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a snapshot, and returns its values files if it still matches the platform, or
+     * null if it does not.
+     * <p/>
+     * The file is read in one go rather than memory mapped: a mapping cannot be released
+     * explicitly, and on Windows the file could not be replaced until it is garbage
+     * collected, while a stale snapshot is written again right after it is read.
+     */
+    @Nullable
+    private static List<ParsedFile> read(@NonNull File file, @NonNull File resFolder,
+            @NonNull String revision) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(Files.toByteArray(file)));
+        if (in.readInt() != VERSION
+                || !resFolder.getAbsolutePath().equals(in.readUTF())
+                || !revision.equals(in.readUTF())
+                || resFolder.lastModified() != in.readLong()) {
+            return null;
+        }
+
+        List<ParsedFile> files = new ArrayList<ParsedFile>();
+        int folderCount = in.readInt();
+        for (int i = 0; i < folderCount; i++) {
+            File folder = new File(resFolder, in.readUTF());
+            if (folder.lastModified() != in.readLong()) {
+                return null;
+            }
+
+            int fileCount = in.readInt();
+            for (int j = 0; j < fileCount; j++) {
+                File f = new File(folder, in.readUTF());
+                long lastModified = in.readLong();
+                long length = in.readLong();
+                // the values are only valid if the file did not change
+                if (f.lastModified() != lastModified || f.length() != length) {
+                    return null;
+                }
+
+                files.add(new ParsedFile(f, readValues(in)));
+            }
+        }
+
+        if (in.read() != -1) {
+            throw new IOException("Corrupted snapshot " + file); //$NON-NLS-1$
+        }
+
+        return files;
+    }
+
+    @NonNull
+    private static Map<ResourceType, Map<String, ResourceValue>> readValues(
+            @NonNull DataInputStream in) throws IOException {
+        Map<ResourceType, Map<String, ResourceValue>> values =
+                new EnumMap<ResourceType, Map<String, ResourceValue>>(ResourceType.class);
+
+        int typeCount = in.readInt();
+        for (int i = 0; i < typeCount; i++) {
+            ResourceType type = ResourceType.getEnum(in.readUTF());
+            if (type == null) {
+                throw new IOException("Unknown resource type"); //$NON-NLS-1$
+            }
+
+            int valueCount = in.readInt();
+            Map<String, ResourceValue> typeValues = new HashMap<String, ResourceValue>();
+            for (int j = 0; j < valueCount; j++) {
+                String name = in.readUTF();
+                String value = null;
+                if (in.readBoolean()) {
+                    int length = in.readInt();
+                    // the whole snapshot is in memory, so available() is what remains of it
+                    if (length < 0 || length > in.available()) {
+                        throw new IOException("Invalid value length"); //$NON-NLS-1$
+                    }
+                    byte[] bytes = new byte[length];
+                    in.readFully(bytes);
+                    value = new String(bytes, Charsets.UTF_8);
+                }
+                typeValues.put(name, new ResourceValue(type, name, value, true));
+            }
+            values.put(type, typeValues);
+        }
+
+        return values;
+    }
+
+    /** A values file of the platform, with the resources parsed from it */
+    private static final class ParsedFile {
+        private final File mFile;
+        private final Map<ResourceType, Map<String, ResourceValue>> mValues;
+
+        ParsedFile(@NonNull File file,
+                @NonNull Map<ResourceType, Map<String, ResourceValue>> values) {
+            mFile = file;
+            mValues = values;
+        }
+    }
+
+    /**
+     * Framework resources which are loaded from the platform, except for the values files
+     * of the snapshot, whose resources are added directly.
+     */
+    private static final class SnapshotResources extends FrameworkResources {
+        private final List<ParsedFile> mFiles;
+
+        SnapshotResources(@NonNull File resFolder, @NonNull List<ParsedFile> files) {
+            super(new PlatformFolder(resFolder, getFiles(files)));
+            mFiles = files;
+        }
+
+        @NonNull
+        private static Set<File> getFiles(@NonNull List<ParsedFile> files) {
+            Set<File> set = new HashSet<File>();
+            for (ParsedFile file : files) {
+                set.add(file.mFile);
+            }
+            return set;
+        }
+
+        @Override
+        public synchronized void loadResources() {
+            super.loadResources();
+
+            for (ParsedFile parsedFile : mFiles) {
+                ResourceFolder folder =
+                        processFolder(new FolderWrapper(parsedFile.mFile.getParentFile()));
+                if (folder == null) {
+                    continue;
+                }
+
+                // The file is only referenced by its items: the resources of a folder are
+                // looked up through the items, and the framework folders are never updated.
+                ValuesFile file = new ValuesFile(parsedFile, folder);
+                for (Map.Entry<ResourceType, Map<String, ResourceValue>> entry :
+                        parsedFile.mValues.entrySet()) {
+                    for (String name : entry.getValue().keySet()) {
+                        ResourceItem item = getResourceItem(entry.getKey(), name);
+                        if (item instanceof SnapshotItem) {
+                            ((SnapshotItem) item).addFile(file);
+                        }
+                    }
+                }
+            }
+        }
+
+        @Override
+        @NonNull
+        protected ResourceItem createResourceItem(@NonNull String name) {
+            return new SnapshotItem(name);
+        }
+    }
+
+    /**
+     * A framework resource item, to which the values files of the snapshot can be added.
+     * The item type of {@link FrameworkResources} is not visible outside of sdk-common, so
+     * its behavior is repeated here.
+     */
+    private static final class SnapshotItem extends ResourceItem {
+        SnapshotItem(@NonNull String name) {
+            super(name);
+        }
+
+        void addFile(@NonNull ResourceFile file) {
+            add(file);
+        }
+
+        @Override
+        public boolean isEditableDirectly() {
+            // framework resources are never edited
+            return false;
+        }
+    }
+
+    /** A values file of the snapshot, which holds the resources parsed from it */
+    private static final class ValuesFile extends ResourceFile {
+        private final Map<ResourceType, Map<String, ResourceValue>> mValues;
+
+        ValuesFile(@NonNull ParsedFile file, @NonNull ResourceFolder folder) {
+            super(new FileWrapper(file.mFile), folder);
+            mValues = file.mValues;
+        }
+
+        @Override
+        protected void load(ScanningContext context) {
+            // the values are already known
+        }
+
+        @Override
+        protected void update(ScanningContext context) {
+            // framework resources are not updated
+        }
+
+        @Override
+        protected void dispose(ScanningContext context) {
+            // nothing to release
+        }
+
+        @Override
+        public Collection<ResourceType> getResourceTypes() {
+            return mValues.keySet();
+        }
+
+        @Override
+        public boolean hasResources(ResourceType type) {
+            return mValues.containsKey(type);
+        }
+
+        @Override
+        public ResourceValue getValue(ResourceType type, String name) {
+            Map<String, ResourceValue> values = mValues.get(type);
+            return values != null ? values.get(name) : null;
+        }
+    }
+
+    /** A folder of the platform, which does not list the values files of the snapshot */
+    private static final class PlatformFolder extends FolderWrapper {
+        private static final long serialVersionUID = 1L;
+
+        private final Set<File> mExcluded;
+
+        PlatformFolder(@NonNull File folder, @NonNull Set<File> excluded) {
+            super(folder.getPath());
+            mExcluded = excluded;
+        }
+
+        @Override
+        public IAbstractResource[] listMembers() {
+            File[] files = listFiles();
+            if (files == null) {
+                return new IAbstractResource[0];
+            }
+
+            List<IAbstractResource> members = new ArrayList<IAbstractResource>(files.length);
+            for (File f : files) {
+                if (f.isDirectory()) {
+                    members.add(new PlatformFolder(f, mExcluded));
+                } else if (f.isFile() && !mExcluded.contains(f)) {
+                    members.add(new FileWrapper(f));
+                }
+            }
+
+            return members.toArray(new IAbstractResource[members.size()]);
+        }
+    }
+}
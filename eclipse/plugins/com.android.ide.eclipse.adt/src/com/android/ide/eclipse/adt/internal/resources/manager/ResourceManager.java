@@ -49,6 +49,7 @@ import org.eclipse.core.runtime.IPath;
 import org.eclipse.core.runtime.IStatus;
 import org.eclipse.core.runtime.QualifiedName;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -76,6 +77,9 @@ public final class ResourceManager {
 
     private final static ResourceManager sThis = new ResourceManager();
 
+    /** Folder of the plugin state location holding the framework resource snapshots */
+    private final static String FRAMEWORK_SNAPSHOT_FOLDER = "framework-resources"; //$NON-NLS-1$
+
     /**
      * Map associating project resource with project objects.
      * <p/><b>All accesses must be inside a synchronized(mMap) block</b>, and do as a little as
@@ -483,6 +487,11 @@ public final class ResourceManager {
 
     /**
      * Loads and returns the resources for a given {@link IAndroidTarget}
+     * <p/>
+     * The resources are loaded from a {@link FrameworkResourceSnapshot} of the resource
+     * folder of the target kept in the plugin state location, unless it cannot be
+     * written, in which case they are loaded from the target itself.
+     *
      * @param androidTarget the target from which to load the framework resources
      */
     public ResourceRepository loadFrameworkResources(IAndroidTarget androidTarget) {
@@ -490,9 +499,11 @@ public final class ResourceManager {
 
         FolderWrapper frameworkRes = new FolderWrapper(osResourcesPath);
         if (frameworkRes.exists()) {
-            FrameworkResources resources = new FrameworkResources(frameworkRes);
-
-            resources.loadResources();
+            File cacheFolder = AdtPlugin.getDefault().getStateLocation()
+                    .append(FRAMEWORK_SNAPSHOT_FOLDER).toFile();
+            String revision = androidTarget.hashString() + ':' + androidTarget.getRevision();
+            FrameworkResources resources =
+                    FrameworkResourceSnapshot.load(cacheFolder, frameworkRes, revision);
             resources.loadPublicResources(AdtPlugin.getDefault());
             return resources;
         }
@@ -17,23 +17,34 @@
 package com.android.ide.eclipse.adt.internal.sdk;
 
 import com.android.SdkConstants;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.Closeables;
 
 import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.SubMonitor;
 
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
+import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
+import java.util.zip.ZipFile;
 
 import javax.management.InvalidAttributeValueException;
 
 /**
  * Custom class loader able to load a class from the SDK jar file.
+ * <p/>
+ * The jar file is opened as a {@link ZipFile} on first use, such that classes are read
+ * directly through its central directory rather than by scanning the archive, and stays
+ * open until {@link #close()} is called. Classes loaded after that open the jar file only
+ * for the duration of the call, so that it is not kept open (and locked, on Windows) once
+ * the loader has been closed.
+ * <p/>
+ * All reads of the jar file are done while holding the lock of the loader, such that
+ * {@link #close()} cannot close it while entries are being read.
  */
 public class AndroidJarLoader extends ClassLoader implements IAndroidClassLoader {
 
@@ -107,6 +118,11 @@ public class AndroidJarLoader extends ClassLoader implements IAndroidClassLoader
 
     private String mOsFrameworkLocation;
 
+    /** The framework jar file, or null if it is not open */
+    private ZipFile mZipFile;
+    /** Whether {@link #close()} has been called */
+    private boolean mClosed;
+
     /** A cache for binary data extracted from the zip */
     private final HashMap<String, byte[]> mEntryCache = new HashMap<String, byte[]>();
     /** A cache for already defined Classes */
@@ -127,6 +143,50 @@ public class AndroidJarLoader extends ClassLoader implements IAndroidClassLoader
         return mOsFrameworkLocation;
     }
 
+    /**
+     * Returns the framework jar file, opening it if needed. Once the loader has been closed,
+     * the jar file is opened again for each call, and must be released with
+     * {@link #releaseZipFile(ZipFile)}. Must be called while holding the lock of the loader.
+     */
+    private ZipFile openZipFile() throws IOException {
+        if (mZipFile != null) {
+            return mZipFile;
+        }
+
+        ZipFile zipFile = new ZipFile(mOsFrameworkLocation);
+        if (!mClosed) {
+            mZipFile = zipFile;
+        }
+        return zipFile;
+    }
+
+    /** Releases a jar file returned by {@link #openZipFile()} */
+    private void releaseZipFile(ZipFile zipFile) {
+        if (zipFile != mZipFile) {
+            try {
+                zipFile.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+
+    /**
+     * Closes the framework jar file. Classes that have not been loaded yet can still be
+     * loaded afterwards, which opens the jar file only for the duration of each call.
+     */
+    public synchronized void close() {
+        mClosed = true;
+        if (mZipFile != null) {
+            try {
+                mZipFile.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+            mZipFile = null;
+        }
+    }
+
     /**
      * Pre-loads all class binary data that belong to the given package by reading the archive
      * once and caching them internally.
@@ -148,45 +208,44 @@ public class AndroidJarLoader extends ClassLoader implements IAndroidClassLoader
      * @throws InvalidAttributeValueException
      * @throws ClassFormatError
      */
-    public void preLoadClasses(String packageFilter, String taskLabel, IProgressMonitor monitor)
+    public synchronized void preLoadClasses(String packageFilter, String taskLabel,
+            IProgressMonitor monitor)
         throws IOException, InvalidAttributeValueException, ClassFormatError {
         // Transform the package name into a zip entry path
         String pathFilter = packageFilter.replaceAll("\\.", "/"); //$NON-NLS-1$ //$NON-NLS-2$
 
         SubMonitor progress = SubMonitor.convert(monitor, taskLabel == null ? "" : taskLabel, 100);
 
-        // create streams to read the intermediary archive
-        FileInputStream fis = new FileInputStream(mOsFrameworkLocation);
-        ZipInputStream zis = new ZipInputStream(fis);
-        ZipEntry entry;
-        while ((entry = zis.getNextEntry()) != null) {
-            // get the name of the entry.
-            String entryPath = entry.getName();
-
-            if (!entryPath.endsWith(SdkConstants.DOT_CLASS)) {
-                // only accept class files
-                continue;
-            }
+        ZipFile zipFile = openZipFile();
+        try {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                // get the name of the entry.
+                ZipEntry entry = entries.nextElement();
+                String entryPath = entry.getName();
 
-            // check if it is part of the package to preload
-            if (pathFilter.length() > 0 && !entryPath.startsWith(pathFilter)) {
-                continue;
-            }
-            String className = entryPathToClassName(entryPath);
+                if (!entryPath.endsWith(SdkConstants.DOT_CLASS)) {
+                    // only accept class files
+                    continue;
+                }
 
-            if (!mEntryCache.containsKey(className)) {
-                long entrySize = entry.getSize();
-                if (entrySize > Integer.MAX_VALUE) {
-                    throw new InvalidAttributeValueException();
+                // check if it is part of the package to preload
+                if (pathFilter.length() > 0 && !entryPath.startsWith(pathFilter)) {
+                    continue;
                 }
-                byte[] data = readZipData(zis, (int)entrySize);
-                mEntryCache.put(className, data);
-            }
+                String className = entryPathToClassName(entryPath);
 
-            // advance 5% of whatever is allocated on the progress bar
-            progress.setWorkRemaining(100);
-            progress.worked(5);
-            progress.subTask(String.format("Preload %1$s", className));
+                if (!mEntryCache.containsKey(className)) {
+                    mEntryCache.put(className, readZipData(zipFile, entry));
+                }
+
+                // advance 5% of whatever is allocated on the progress bar
+                progress.setWorkRemaining(100);
+                progress.worked(5);
+                progress.subTask(String.format("Preload %1$s", className));
+            }
+        } finally {
+            releaseZipFile(zipFile);
         }
     }
 
@@ -206,9 +265,8 @@ public class AndroidJarLoader extends ClassLoader implements IAndroidClassLoader
      * @throws InvalidAttributeValueException
      * @throws ClassFormatError
      */
-    @SuppressWarnings("resource") // Eclipse doesn't understand Closeables.closeQuietly
     @Override
-    public HashMap<String, ArrayList<IClassDescriptor>> findClassesDerivingFrom(
+    public synchronized HashMap<String, ArrayList<IClassDescriptor>> findClassesDerivingFrom(
             String packageFilter,
             String[] superClasses)
             throws IOException, InvalidAttributeValueException, ClassFormatError {
@@ -222,13 +280,12 @@ public class AndroidJarLoader extends ClassLoader implements IAndroidClassLoader
             mClassesFound.put(className, new ArrayList<IClassDescriptor>());
         }
 
-        // create streams to read the intermediary archive
-        FileInputStream fis = new FileInputStream(mOsFrameworkLocation);
-        ZipInputStream zis = new ZipInputStream(fis);
+        ZipFile zipFile = openZipFile();
         try {
-            ZipEntry entry;
-            while ((entry = zis.getNextEntry()) != null) {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
                 // get the name of the entry and convert to a class binary name
+                ZipEntry entry = entries.nextElement();
                 String entryPath = entry.getName();
                 if (!entryPath.endsWith(SdkConstants.DOT_CLASS)) {
                     // only accept class files
@@ -245,11 +302,7 @@ public class AndroidJarLoader extends ClassLoader implements IAndroidClassLoader
                     byte[] data = mEntryCache.get(className);
                     if (data == null) {
                         // Get the class and cache it
-                        long entrySize = entry.getSize();
-                        if (entrySize > Integer.MAX_VALUE) {
-                            throw new InvalidAttributeValueException();
-                        }
-                        data = readZipData(zis, (int)entrySize);
+                        data = readZipData(zipFile, entry);
                     }
                     try {
                         loaded_class = defineAndCacheClass(className, data);
@@ -274,7 +327,7 @@ public class AndroidJarLoader extends ClassLoader implements IAndroidClassLoader
                 }
             }
         } finally {
-            Closeables.closeQuietly(zis);
+            releaseZipFile(zipFile);
         }
 
         return mClassesFound;
@@ -347,7 +400,7 @@ public class AndroidJarLoader extends ClassLoader implements IAndroidClassLoader
      * Loads a class data from its binary name.
      * <p/>
      * This uses the class binary data that has been preloaded earlier by the preLoadClasses()
-     * method if possible.
+     * method if possible, and otherwise reads it directly from its entry in the jar file.
      *
      * @param className the binary name
      * @return an array of bytes representing the class data or null if not found
@@ -366,80 +419,48 @@ public class AndroidJarLoader extends ClassLoader implements IAndroidClassLoader
         // Make a path out of it.
         String entryName = className.replaceAll("\\.", "/") + SdkConstants.DOT_CLASS; //$NON-NLS-1$ //$NON-NLS-2$
 
-       // create streams to read the intermediary archive
-        FileInputStream fis = new FileInputStream(mOsFrameworkLocation);
-        ZipInputStream zis = new ZipInputStream(fis);
+        ZipFile zipFile = openZipFile();
         try {
-            // loop on the entries of the intermediary package and put them in the final package.
-            ZipEntry entry;
-
-            while ((entry = zis.getNextEntry()) != null) {
-                // get the name of the entry.
-                String currEntryName = entry.getName();
-
-                if (currEntryName.equals(entryName)) {
-                    long entrySize = entry.getSize();
-                    if (entrySize > Integer.MAX_VALUE) {
-                        throw new InvalidAttributeValueException();
-                    }
-
-                    data = readZipData(zis, (int)entrySize);
-                    return data;
-                }
+            ZipEntry entry = zipFile.getEntry(entryName);
+            if (entry == null) {
+                return null;
             }
 
-            return null;
+            return readZipData(zipFile, entry);
         } finally {
-            zis.close();
+            releaseZipFile(zipFile);
         }
     }
 
     /**
-     * Reads data for the <em>current</em> entry from the zip input stream.
+     * Reads the data of an entry of the zip file.
      *
-     * @param zis The Zip input stream
-     * @param entrySize The entry size. -1 if unknown.
-     * @return The new data for the <em>current</em> entry.
-     * @throws IOException If ZipInputStream.read() fails.
+     * @param zipFile The zip file
+     * @param entry The entry to read
+     * @return The data of the entry.
+     * @throws IOException If the entry cannot be read.
+     * @throws InvalidAttributeValueException If the entry is too large.
      */
-    private byte[] readZipData(ZipInputStream zis, int entrySize) throws IOException {
-        int block_size = 1024;
-        int data_size = entrySize < 1 ? block_size : entrySize;
-        int offset = 0;
-        byte[] data = new byte[data_size];
-
-        while(zis.available() != 0) {
-            int count = zis.read(data, offset, data_size - offset);
-            if (count < 0) {  // read data is done
-                break;
-            }
-            offset += count;
-
-            if (entrySize >= 1 && offset >= entrySize) {  // we know the size and we're done
-                break;
-            }
-
-            // if we don't know the entry size and we're not done reading,
-            // expand the data buffer some more.
-            if (offset >= data_size) {
-                byte[] temp = new byte[data_size + block_size];
-                System.arraycopy(data, 0, temp, 0, data_size);
-                data_size += block_size;
-                data = temp;
-                block_size *= 2;
-            }
+    @SuppressWarnings("resource") // Eclipse doesn't understand Closeables.closeQuietly
+    private byte[] readZipData(ZipFile zipFile, ZipEntry entry)
+            throws IOException, InvalidAttributeValueException {
+        long entrySize = entry.getSize();
+        if (entrySize > Integer.MAX_VALUE) {
+            throw new InvalidAttributeValueException();
         }
 
-        if (offset < data_size) {
-            // buffer was allocated too large, trim it
-            byte[] temp = new byte[offset];
-            if (offset > 0) {
-                System.arraycopy(data, 0, temp, 0, offset);
+        InputStream stream = zipFile.getInputStream(entry);
+        try {
+            if (entrySize < 0) {
+                return ByteStreams.toByteArray(stream);
             }
-            data = temp;
-        }
 
-        return data;
+            byte[] data = new byte[(int) entrySize];
+            ByteStreams.readFully(stream, data);
+            return data;
+        } finally {
+            Closeables.closeQuietly(stream);
+        }
     }
 
     /**
@@ -84,6 +84,7 @@ public final class AndroidTargetParser {
      * @return True if the SDK path was valid and parsing has been attempted.
      */
     public IStatus run(IProgressMonitor monitor) {
+        AndroidJarLoader classLoader = null;
         try {
             SubMonitor progress = SubMonitor.convert(monitor,
                     String.format("Parsing SDK %1$s", mAndroidTarget.getName()),
@@ -93,7 +94,7 @@ public final class AndroidTargetParser {
 
             // parse the rest of the data.
 
-            AndroidJarLoader classLoader =
+            classLoader =
                 new AndroidJarLoader(mAndroidTarget.getPath(IAndroidTarget.ANDROID_JAR));
 
             preload(classLoader, progress.newChild(40, SubMonitor.SUPPRESS_NONE));
@@ -301,6 +302,12 @@ public final class AndroidTargetParser {
             AdtPlugin.logAndPrintError(e, TAG, "SDK parser failed"); //$NON-NLS-1$
             AdtPlugin.printToConsole("SDK parser failed", e.getMessage());
             return new Status(IStatus.ERROR, AdtPlugin.PLUGIN_ID, "SDK parser failed", e);
+        } finally {
+            if (classLoader != null) {
+                // the classes collected above may still load more classes later, which
+                // opens the jar again
+                classLoader.close();
+            }
         }
     }
 
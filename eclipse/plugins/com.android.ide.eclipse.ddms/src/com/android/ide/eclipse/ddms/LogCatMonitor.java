@@ -18,6 +18,7 @@ package com.android.ide.eclipse.ddms;
 import com.android.ddmlib.AndroidDebugBridge;
 import com.android.ddmlib.AndroidDebugBridge.IDeviceChangeListener;
 import com.android.ddmlib.IDevice;
+import com.android.ddmlib.Log;
 import com.android.ddmlib.Log.LogLevel;
 import com.android.ddmlib.logcat.LogCatMessage;
 import com.android.ddmuilib.logcat.ILogCatBufferChangeListener;
@@ -41,6 +42,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * LogCatMonitor helps in monitoring the logcat output from a set of devices.
@@ -51,12 +53,13 @@ public class LogCatMonitor {
     public static final String AUTO_MONITOR_PREFKEY = "ddms.logcat.automonitor"; //$NON-NLS-1$
     public static final String AUTO_MONITOR_LOGLEVEL = "ddms.logcat.auotmonitor.level"; //$NON-NLS-1$
     private static final String AUTO_MONITOR_PROMPT_SHOWN = "ddms.logcat.automonitor.userprompt"; //$NON-NLS-1$
+    private static final String LOG_TAG = "LogCatMonitor"; //$NON-NLS-1$
 
     private IPreferenceStore mPrefStore;
     private Map<String, DeviceData> mMonitoredDevices;
     private IDebuggerConnector[] mConnectors;
 
-    private int mMinMessagePriority;
+    private volatile int mMinMessagePriority;
 
     /**
      * Flag that controls when the logcat stream is checked. This flag is set when the user
@@ -116,10 +119,12 @@ public class LogCatMonitor {
             return;
         }
 
-        data.receiver.removeMessageReceivedEventListener(data.bufferChangeListener);
+        data.receiver.removeMessageReceivedEventListener(data);
+        Log.d(LOG_TAG, String.format("Stopped monitoring %1$s: %2$s", //$NON-NLS-1$
+                deviceSerial, data.getStatistics()));
     }
 
-    public void monitorDevice(final IDevice device) {
+    public void monitorDevice(IDevice device) {
         if (!mPrefStore.getBoolean(AUTO_MONITOR_PREFKEY)) {
             // do not monitor device if auto monitoring is off
             return;
@@ -133,19 +138,13 @@ public class LogCatMonitor {
         }
 
         LogCatReceiver r = LogCatReceiverFactory.INSTANCE.newReceiver(device, mPrefStore);
-        ILogCatBufferChangeListener l = new ILogCatBufferChangeListener() {
-            @Override
-            public void bufferChanged(List<LogCatMessage> addedMessages,
-                    List<LogCatMessage> deletedMessages) {
-                checkMessages(addedMessages, device);
-            }
-        };
-        r.addMessageReceivedEventListener(l);
+        DeviceData data = new DeviceData(device, r);
+        r.addMessageReceivedEventListener(data);
 
-        mMonitoredDevices.put(device.getSerialNumber(), new DeviceData(r, l));
+        mMonitoredDevices.put(device.getSerialNumber(), data);
     }
 
-    private void checkMessages(List<LogCatMessage> receivedMessages, IDevice device) {
+    private void checkMessages(List<LogCatMessage> receivedMessages, DeviceData data) {
         if (!mMonitorEnabled.get()) {
             return;
         }
@@ -153,9 +152,15 @@ public class LogCatMonitor {
         // check the received list of messages to see if any of them are
         // significant enough to be seen by the user. If so, activate the logcat view
         // to display those messages
+        BatchMatcher matcher = new BatchMatcher();
+        int scanned = 0;
         for (LogCatMessage m : receivedMessages) {
-            if (isImportantMessage(m)) {
-                focusLogCatView(device, m.getAppName());
+            scanned++;
+            if (matcher.isImportantMessage(m)) {
+                data.matchedCount.incrementAndGet();
+                Log.d(LOG_TAG, String.format("Showing logcat for %1$s: %2$s", //$NON-NLS-1$
+                        m.getAppName(), data.getStatistics()));
+                focusLogCatView(data.device, m.getAppName());
 
                 // now that logcat view is active, no need to check messages until the next
                 // time user launches an application.
@@ -163,25 +168,49 @@ public class LogCatMonitor {
                 break;
             }
         }
+
+        data.scannedCount.addAndGet(scanned);
     }
 
     /**
-     * Check whether a message is "important". Currently, we assume that a message is important if
-     * it is of severity level error or higher, and it belongs to an app currently in the workspace.
+     * Checks whether the messages of a single buffer change are "important". Currently, we
+     * assume that a message is important if it is of the minimum severity level or higher,
+     * and it belongs to an app currently in the workspace.
+     *
+     * The minimum level is read once for the whole batch, so that most messages are rejected
+     * by a single comparison. The debugger connectors are asked about each app name once per
+     * batch; they cache the workspace apps themselves.
      */
-    private boolean isImportantMessage(LogCatMessage m) {
-        if (m.getLogLevel().getPriority() < mMinMessagePriority) {
-            return false;
-        }
+    private class BatchMatcher {
+        private final int mMinPriority = mMinMessagePriority;
+        private Map<String, Boolean> mWorkspaceApps;
 
-        String app = m.getAppName();
-        for (IDebuggerConnector c : mConnectors) {
-            if (c.isWorkspaceApp(app)) {
-                return true;
+        public boolean isImportantMessage(LogCatMessage m) {
+            if (m.getLogLevel().getPriority() < mMinPriority) {
+                return false;
+            }
+
+            String app = m.getAppName();
+            if (mWorkspaceApps == null) {
+                mWorkspaceApps = new HashMap<String, Boolean>();
+            } else {
+                Boolean known = mWorkspaceApps.get(app);
+                if (known != null) {
+                    return known.booleanValue();
+                }
+            }
+
+            boolean workspaceApp = false;
+            for (IDebuggerConnector c : mConnectors) {
+                if (c.isWorkspaceApp(app)) {
+                    workspaceApp = true;
+                    break;
+                }
             }
-        }
 
-        return false;
+            mWorkspaceApps.put(app, Boolean.valueOf(workspaceApp));
+            return workspaceApp;
+        }
     }
 
     private void focusLogCatView(final IDevice device, final String appName) {
@@ -265,13 +294,30 @@ public class LogCatMonitor {
         });
     }
 
-    private static class DeviceData {
+    private class DeviceData implements ILogCatBufferChangeListener {
+        public final IDevice device;
         public final LogCatReceiver receiver;
-        public final ILogCatBufferChangeListener bufferChangeListener;
 
-        public DeviceData(LogCatReceiver r, ILogCatBufferChangeListener l) {
+        /** Number of messages checked by {@link LogCatMonitor#checkMessages}. */
+        public final AtomicLong scannedCount = new AtomicLong();
+
+        /** Number of messages that caused the logcat view to be displayed. */
+        public final AtomicLong matchedCount = new AtomicLong();
+
+        public DeviceData(IDevice d, LogCatReceiver r) {
+            device = d;
             receiver = r;
-            bufferChangeListener = l;
+        }
+
+        @Override
+        public void bufferChanged(List<LogCatMessage> addedMessages,
+                List<LogCatMessage> deletedMessages) {
+            checkMessages(addedMessages, this);
+        }
+
+        public String getStatistics() {
+            return String.format("%1$d messages scanned, %2$d matched", //$NON-NLS-1$
+                    scannedCount.get(), matchedCount.get());
         }
     }
 }
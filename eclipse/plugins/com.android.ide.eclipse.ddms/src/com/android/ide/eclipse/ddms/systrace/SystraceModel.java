@@ -0,0 +1,705 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ide.eclipse.ddms.systrace;
+
+import com.google.common.base.Charsets;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An indexed model of the events of an ftrace text trace, as captured by atrace.
+ *
+ * The model contains the scheduling slices of each CPU (from sched_switch events), the
+ * trace sections of each thread (from B| and E| trace markers), and the counters (from C|
+ * trace markers). All events are stored in primitive arrays indexed from 0 to the
+ * corresponding count, and all times are in nanoseconds.
+ *
+ * A model is created with a {@link Builder}, which is fed the trace text either from a
+ * {@link Reader} or as it is received from the device.
+ */
+public class SystraceModel {
+    // Scheduling slices, ordered by end time
+    private final int mSliceCount;
+    private final int[] mSliceCpus;
+    private final int[] mSliceTids;
+    private final long[] mSliceStarts;
+    private final long[] mSliceEnds;
+
+    // Indices of the slices ordered by thread and then by time, and the range of each
+    // thread in that order
+    private final int[] mSlicesByThread;
+    private final Map<Integer, int[]> mThreadSliceRanges;
+
+    // Trace sections, ordered by end time
+    private final int mSectionCount;
+    private final int[] mSectionTids;
+    private final int[] mSectionPids;
+    private final int[] mSectionNames;
+    private final int[] mSectionDepths;
+    private final long[] mSectionStarts;
+    private final long[] mSectionEnds;
+
+    // Counter values, in trace order
+    private final int mCounterCount;
+    private final int[] mCounterPids;
+    private final int[] mCounterNames;
+    private final long[] mCounterTimes;
+    private final long[] mCounterValues;
+
+    private final String[] mNames;
+    private final Map<Integer, String> mThreadNames;
+    private final Map<Integer, Integer> mThreadPids;
+    private final long mStartTime;
+    private final long mEndTime;
+
+    private SystraceModel(Builder b) {
+        mSliceCount = b.mSliceCount;
+        mSliceCpus = Arrays.copyOf(b.mSliceCpus, mSliceCount);
+        mSliceTids = Arrays.copyOf(b.mSliceTids, mSliceCount);
+        mSliceStarts = Arrays.copyOf(b.mSliceStarts, mSliceCount);
+        mSliceEnds = Arrays.copyOf(b.mSliceEnds, mSliceCount);
+
+        mSectionCount = b.mSectionCount;
+        mSectionTids = Arrays.copyOf(b.mSectionTids, mSectionCount);
+        mSectionPids = Arrays.copyOf(b.mSectionPids, mSectionCount);
+        mSectionNames = Arrays.copyOf(b.mSectionNames, mSectionCount);
+        mSectionDepths = Arrays.copyOf(b.mSectionDepths, mSectionCount);
+        mSectionStarts = Arrays.copyOf(b.mSectionStarts, mSectionCount);
+        mSectionEnds = Arrays.copyOf(b.mSectionEnds, mSectionCount);
+
+        mCounterCount = b.mCounterCount;
+        mCounterPids = Arrays.copyOf(b.mCounterPids, mCounterCount);
+        mCounterNames = Arrays.copyOf(b.mCounterNames, mCounterCount);
+        mCounterTimes = Arrays.copyOf(b.mCounterTimes, mCounterCount);
+        mCounterValues = Arrays.copyOf(b.mCounterValues, mCounterCount);
+
+        mNames = b.mNames.toArray(new String[b.mNames.size()]);
+        mThreadNames = b.mThreadNames;
+        mThreadPids = b.mThreadPids;
+        mStartTime = b.mStartTime;
+        mEndTime = b.mEndTime;
+
+        // The slices of a thread never overlap and are added when they end, so sorting
+        // them by thread and then by index also orders them by time.
+        long[] keys = new long[mSliceCount];
+        for (int i = 0; i < mSliceCount; i++) {
+            keys[i] = ((long) mSliceTids[i] << 32) | i;
+        }
+        Arrays.sort(keys);
+
+        mSlicesByThread = new int[mSliceCount];
+        mThreadSliceRanges = new HashMap<Integer, int[]>();
+        int from = 0;
+        for (int i = 0; i < mSliceCount; i++) {
+            mSlicesByThread[i] = (int) keys[i];
+            int tid = (int) (keys[i] >>> 32);
+            if (i == mSliceCount - 1 || (int) (keys[i + 1] >>> 32) != tid) {
+                mThreadSliceRanges.put(Integer.valueOf(tid), new int[] { from, i + 1 });
+                from = i + 1;
+            }
+        }
+    }
+
+    /** Returns the time of the first event of the trace. */
+    public long getStartTime() {
+        return mStartTime;
+    }
+
+    /** Returns the time of the last event of the trace. */
+    public long getEndTime() {
+        return mEndTime;
+    }
+
+    /** Returns the name of the given thread, or null if it is unknown. */
+    public String getThreadName(int tid) {
+        return mThreadNames.get(Integer.valueOf(tid));
+    }
+
+    /** Returns the id of the process of the given thread, or -1 if it is unknown. */
+    public int getProcessId(int tid) {
+        Integer pid = mThreadPids.get(Integer.valueOf(tid));
+        return pid == null ? -1 : pid.intValue();
+    }
+
+    public int getSliceCount() {
+        return mSliceCount;
+    }
+
+    public int getSliceCpu(int index) {
+        return mSliceCpus[index];
+    }
+
+    public int getSliceTid(int index) {
+        return mSliceTids[index];
+    }
+
+    public long getSliceStart(int index) {
+        return mSliceStarts[index];
+    }
+
+    public long getSliceEnd(int index) {
+        return mSliceEnds[index];
+    }
+
+    public int getSectionCount() {
+        return mSectionCount;
+    }
+
+    public int getSectionTid(int index) {
+        return mSectionTids[index];
+    }
+
+    public int getSectionPid(int index) {
+        return mSectionPids[index];
+    }
+
+    public String getSectionName(int index) {
+        return mNames[mSectionNames[index]];
+    }
+
+    /** Returns the number of sections enclosing the given section in its thread. */
+    public int getSectionDepth(int index) {
+        return mSectionDepths[index];
+    }
+
+    public long getSectionStart(int index) {
+        return mSectionStarts[index];
+    }
+
+    public long getSectionEnd(int index) {
+        return mSectionEnds[index];
+    }
+
+    public long getSectionDuration(int index) {
+        return mSectionEnds[index] - mSectionStarts[index];
+    }
+
+    public int getCounterCount() {
+        return mCounterCount;
+    }
+
+    public int getCounterPid(int index) {
+        return mCounterPids[index];
+    }
+
+    public String getCounterName(int index) {
+        return mNames[mCounterNames[index]];
+    }
+
+    public long getCounterTime(int index) {
+        return mCounterTimes[index];
+    }
+
+    public long getCounterValue(int index) {
+        return mCounterValues[index];
+    }
+
+    /**
+     * Returns the longest trace sections of a process.
+     * @param pid id of the process, or -1 for all processes
+     * @param count maximum number of sections to return
+     * @return the indices of the sections, from the longest to the shortest
+     */
+    public int[] getLongestSections(int pid, int count) {
+        int[] result = new int[Math.min(count, mSectionCount)];
+        int size = 0;
+
+        for (int i = 0; i < mSectionCount; i++) {
+            if (pid != -1 && mSectionPids[i] != pid) {
+                continue;
+            }
+
+            long duration = getSectionDuration(i);
+            if (size == result.length) {
+                if (size == 0 || duration <= getSectionDuration(result[size - 1])) {
+                    continue;
+                }
+                size--;
+            }
+
+            // insert the section in the sorted result
+            int j = size;
+            while (j > 0 && getSectionDuration(result[j - 1]) < duration) {
+                result[j] = result[j - 1];
+                j--;
+            }
+            result[j] = i;
+            size++;
+        }
+
+        return size == result.length ? result : Arrays.copyOf(result, size);
+    }
+
+    /**
+     * Returns the time the given thread was running on any CPU within a time window.
+     */
+    public long getCpuTime(int tid, long start, long end) {
+        int[] range = mThreadSliceRanges.get(Integer.valueOf(tid));
+        if (range == null || end <= start) {
+            return 0;
+        }
+
+        // find the first slice that ends after the start of the window
+        int low = range[0];
+        int high = range[1];
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mSliceEnds[mSlicesByThread[mid]] <= start) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        long total = 0;
+        for (int i = low; i < range[1]; i++) {
+            int slice = mSlicesByThread[i];
+            if (mSliceStarts[slice] >= end) {
+                break;
+            }
+            total += Math.min(end, mSliceEnds[slice]) - Math.max(start, mSliceStarts[slice]);
+        }
+        return total;
+    }
+
+    /**
+     * Returns the fraction of a time window during which the given thread was running,
+     * between 0 and the number of CPUs.
+     */
+    public double getCpuUtilization(int tid, long start, long end) {
+        if (end <= start) {
+            return 0;
+        }
+        return (double) getCpuTime(tid, start, end) / (end - start);
+    }
+
+    /** Returns the ids of all the threads that were scheduled during the trace. */
+    public int[] getScheduledThreads() {
+        int[] tids = new int[mThreadSliceRanges.size()];
+        int i = 0;
+        for (Integer tid : mThreadSliceRanges.keySet()) {
+            tids[i++] = tid.intValue();
+        }
+        Arrays.sort(tids);
+        return tids;
+    }
+
+    /**
+     * Returns the threads that used the most CPU time within a time window. Threads
+     * that did not run in the window are not included.
+     * @param count maximum number of threads to return
+     * @return the ids of the threads, from the busiest to the least busy
+     */
+    public int[] getBusiestThreads(long start, long end, int count) {
+        int[] tids = getScheduledThreads();
+
+        // sort by decreasing CPU time, and then by thread id
+        final long[] cpuTimes = new long[tids.length];
+        Integer[] order = new Integer[tids.length];
+        for (int i = 0; i < tids.length; i++) {
+            cpuTimes[i] = getCpuTime(tids[i], start, end);
+            order[i] = Integer.valueOf(i);
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer i1, Integer i2) {
+                long t1 = cpuTimes[i1.intValue()];
+                long t2 = cpuTimes[i2.intValue()];
+                return t1 > t2 ? -1 : (t1 < t2 ? 1 : i1.compareTo(i2));
+            }
+        });
+
+        int size = 0;
+        int[] result = new int[Math.min(count, tids.length)];
+        while (size < result.length && cpuTimes[order[size].intValue()] > 0) {
+            result[size] = tids[order[size].intValue()];
+            size++;
+        }
+        return size == result.length ? result : Arrays.copyOf(result, size);
+    }
+
+    /**
+     * Builds a {@link SystraceModel} from the lines of an ftrace text trace.
+     */
+    public static class Builder {
+        // task-pid (tgid) [cpu] flags timestamp: event: arguments
+        private static final Pattern LINE_PATTERN = Pattern.compile(
+                "^\\s*(.+)-(\\d+)\\s+(?:\\(\\s*(\\d+|-+)\\)\\s+)?\\[(\\d+)\\]\\s+" //$NON-NLS-1$
+                + "(?:\\S{4,5}\\s+)?(\\d+)\\.(\\d+):\\s+([^:]+):\\s*(.*)$"); //$NON-NLS-1$
+
+        private static final int INITIAL_CAPACITY = 1024;
+
+        private final Matcher mMatcher = LINE_PATTERN.matcher(""); //$NON-NLS-1$
+
+        private int mSliceCount;
+        private int[] mSliceCpus = new int[INITIAL_CAPACITY];
+        private int[] mSliceTids = new int[INITIAL_CAPACITY];
+        private long[] mSliceStarts = new long[INITIAL_CAPACITY];
+        private long[] mSliceEnds = new long[INITIAL_CAPACITY];
+
+        private int mSectionCount;
+        private int[] mSectionTids = new int[INITIAL_CAPACITY];
+        private int[] mSectionPids = new int[INITIAL_CAPACITY];
+        private int[] mSectionNames = new int[INITIAL_CAPACITY];
+        private int[] mSectionDepths = new int[INITIAL_CAPACITY];
+        private long[] mSectionStarts = new long[INITIAL_CAPACITY];
+        private long[] mSectionEnds = new long[INITIAL_CAPACITY];
+
+        private int mCounterCount;
+        private int[] mCounterPids = new int[INITIAL_CAPACITY];
+        private int[] mCounterNames = new int[INITIAL_CAPACITY];
+        private long[] mCounterTimes = new long[INITIAL_CAPACITY];
+        private long[] mCounterValues = new long[INITIAL_CAPACITY];
+
+        private final List<String> mNames = new ArrayList<String>();
+        private final Map<String, Integer> mNameIndices = new HashMap<String, Integer>();
+        private final Map<Integer, String> mThreadNames = new HashMap<Integer, String>();
+        private final Map<Integer, Integer> mThreadPids = new HashMap<Integer, Integer>();
+
+        // Thread running on each CPU, and since when
+        private int[] mCpuTids = new int[0];
+        private long[] mCpuSwitchTimes = new long[0];
+
+        // Open sections of each thread, as indices of sections that have no end yet
+        private final Map<Integer, OpenSections> mOpenSections =
+                new HashMap<Integer, OpenSections>();
+
+        private long mStartTime = -1;
+        private long mEndTime;
+
+        // Bytes of the current line, when the trace is fed as bytes
+        private byte[] mLine = new byte[256];
+        private int mLineLength;
+
+        private static class OpenSections {
+            int[] names = new int[8];
+            int[] pids = new int[8];
+            long[] starts = new long[8];
+            int size;
+        }
+
+        /** Parses all the lines read from the given reader. */
+        public Builder parse(Reader reader) throws IOException {
+            BufferedReader in = reader instanceof BufferedReader ?
+                    (BufferedReader) reader : new BufferedReader(reader);
+            String line;
+            while ((line = in.readLine()) != null) {
+                addLine(line);
+            }
+            return this;
+        }
+
+        /**
+         * Parses the next chunk of a trace encoded in UTF-8. Lines can be split across
+         * chunks.
+         */
+        public void write(byte[] data, int offset, int length) {
+            final int end = offset + length;
+            for (int i = offset; i < end; i++) {
+                byte b = data[i];
+                if (b == '\n') {
+                    addLine(new String(mLine, 0, mLineLength, Charsets.UTF_8));
+                    mLineLength = 0;
+                } else {
+                    if (mLineLength == mLine.length) {
+                        mLine = Arrays.copyOf(mLine, mLine.length * 2);
+                    }
+                    mLine[mLineLength++] = b;
+                }
+            }
+        }
+
+        /** Parses a single line of the trace. Lines that are not events are ignored. */
+        public void addLine(String line) {
+            if (line.length() == 0 || line.charAt(0) == '#') {
+                return;
+            }
+
+            Matcher m = mMatcher.reset(line);
+            if (!m.matches()) {
+                return;
+            }
+
+            String task = m.group(1);
+            int tid = Integer.parseInt(m.group(2));
+            String tgid = m.group(3);
+            int cpu = Integer.parseInt(m.group(4));
+            long time = parseTime(m.group(5), m.group(6));
+            String event = m.group(7);
+            String args = m.group(8);
+
+            if (mStartTime < 0) {
+                mStartTime = time;
+            }
+            mEndTime = Math.max(mEndTime, time);
+
+            Integer key = Integer.valueOf(tid);
+            if (!mThreadNames.containsKey(key)) {
+                mThreadNames.put(key, task);
+            }
+            if (tgid != null && tgid.charAt(0) != '-') {
+                mThreadPids.put(key, Integer.valueOf(tgid));
+            }
+
+            if ("sched_switch".equals(event)) { //$NON-NLS-1$
+                parseSchedSwitch(cpu, time, args);
+            } else if ("tracing_mark_write".equals(event)) { //$NON-NLS-1$
+                parseTraceMarker(tid, time, args);
+            }
+        }
+
+        private static long parseTime(String seconds, String fraction) {
+            long ns = Long.parseLong(fraction);
+            for (int i = fraction.length(); i < 9; i++) {
+                ns *= 10;
+            }
+            return Long.parseLong(seconds) * 1000000000L + ns;
+        }
+
+        private void parseSchedSwitch(int cpu, long time, String args) {
+            int nextPid = getIntArgument(args, "next_pid="); //$NON-NLS-1$
+            if (nextPid < 0) {
+                return;
+            }
+
+            if (cpu >= mCpuTids.length) {
+                int oldLength = mCpuTids.length;
+                mCpuTids = Arrays.copyOf(mCpuTids, cpu + 1);
+                mCpuSwitchTimes = Arrays.copyOf(mCpuSwitchTimes, cpu + 1);
+                Arrays.fill(mCpuTids, oldLength, cpu + 1, -1);
+            }
+
+            int prevPid = mCpuTids[cpu];
+            if (prevPid < 0) {
+                // first switch seen on this CPU, the previous thread ran since the start
+                prevPid = getIntArgument(args, "prev_pid="); //$NON-NLS-1$
+                mCpuSwitchTimes[cpu] = mStartTime;
+            }
+            if (prevPid > 0) {
+                addSlice(cpu, prevPid, mCpuSwitchTimes[cpu], time);
+            }
+
+            int commIndex = args.indexOf("next_comm="); //$NON-NLS-1$
+            int commEnd = args.indexOf(" next_pid=", commIndex); //$NON-NLS-1$
+            if (commIndex >= 0 && commEnd > commIndex) {
+                mThreadNames.put(Integer.valueOf(nextPid),
+                        args.substring(commIndex + "next_comm=".length(), commEnd)); //$NON-NLS-1$
+            }
+
+            mCpuTids[cpu] = nextPid;
+            mCpuSwitchTimes[cpu] = time;
+        }
+
+        private static int getIntArgument(String args, String name) {
+            int index = args.indexOf(name);
+            if (index < 0) {
+                return -1;
+            }
+
+            int value = 0;
+            boolean found = false;
+            for (int i = index + name.length(); i < args.length(); i++) {
+                char c = args.charAt(i);
+                if (c < '0' || c > '9') {
+                    break;
+                }
+                value = value * 10 + (c - '0');
+                found = true;
+            }
+            return found ? value : -1;
+        }
+
+        private void parseTraceMarker(int tid, long time, String args) {
+            if (args.length() == 0) {
+                return;
+            }
+
+            char type = args.charAt(0);
+            if (type == 'B') {
+                // B|pid|name
+                int nameIndex = args.indexOf('|', 2);
+                if (nameIndex < 0) {
+                    return;
+                }
+                int pid = parseInt(args, 2, nameIndex);
+                beginSection(tid, pid, getNameIndex(args.substring(nameIndex + 1)), time);
+            } else if (type == 'E') {
+                endSection(tid, time);
+            } else if (type == 'C') {
+                // C|pid|name|value
+                int nameIndex = args.indexOf('|', 2);
+                int valueIndex = nameIndex < 0 ? -1 : args.lastIndexOf('|');
+                if (valueIndex <= nameIndex) {
+                    return;
+                }
+                int pid = parseInt(args, 2, nameIndex);
+                try {
+                    long value = Long.parseLong(args.substring(valueIndex + 1).trim());
+                    addCounter(pid, getNameIndex(args.substring(nameIndex + 1, valueIndex)),
+                            time, value);
+                } catch (NumberFormatException e) {
+                    // not a counter we can use
+                }
+            }
+        }
+
+        private static int parseInt(String s, int start, int end) {
+            int value = 0;
+            for (int i = start; i < end; i++) {
+                char c = s.charAt(i);
+                if (c < '0' || c > '9') {
+                    return -1;
+                }
+                value = value * 10 + (c - '0');
+            }
+            return value;
+        }
+
+        private int getNameIndex(String name) {
+            Integer index = mNameIndices.get(name);
+            if (index == null) {
+                index = Integer.valueOf(mNames.size());
+                mNames.add(name);
+                mNameIndices.put(name, index);
+            }
+            return index.intValue();
+        }
+
+        private void beginSection(int tid, int pid, int name, long time) {
+            Integer key = Integer.valueOf(tid);
+            OpenSections open = mOpenSections.get(key);
+            if (open == null) {
+                open = new OpenSections();
+                mOpenSections.put(key, open);
+            }
+            if (pid > 0 && !mThreadPids.containsKey(key)) {
+                mThreadPids.put(key, Integer.valueOf(pid));
+            }
+
+            if (open.size == open.names.length) {
+                open.names = Arrays.copyOf(open.names, open.size * 2);
+                open.pids = Arrays.copyOf(open.pids, open.size * 2);
+                open.starts = Arrays.copyOf(open.starts, open.size * 2);
+            }
+            open.names[open.size] = name;
+            open.pids[open.size] = pid;
+            open.starts[open.size] = time;
+            open.size++;
+        }
+
+        private void endSection(int tid, long time) {
+            OpenSections open = mOpenSections.get(Integer.valueOf(tid));
+            if (open == null || open.size == 0) {
+                // the section started before the trace
+                return;
+            }
+
+            open.size--;
+            addSection(tid, open.pids[open.size], open.names[open.size], open.size,
+                    open.starts[open.size], time);
+        }
+
+        private void addSlice(int cpu, int tid, long start, long end) {
+            if (mSliceCount == mSliceTids.length) {
+                int capacity = mSliceCount * 2;
+                mSliceCpus = Arrays.copyOf(mSliceCpus, capacity);
+                mSliceTids = Arrays.copyOf(mSliceTids, capacity);
+                mSliceStarts = Arrays.copyOf(mSliceStarts, capacity);
+                mSliceEnds = Arrays.copyOf(mSliceEnds, capacity);
+            }
+            mSliceCpus[mSliceCount] = cpu;
+            mSliceTids[mSliceCount] = tid;
+            mSliceStarts[mSliceCount] = start;
+            mSliceEnds[mSliceCount] = end;
+            mSliceCount++;
+        }
+
+        private void addSection(int tid, int pid, int name, int depth, long start, long end) {
+            if (mSectionCount == mSectionTids.length) {
+                int capacity = mSectionCount * 2;
+                mSectionTids = Arrays.copyOf(mSectionTids, capacity);
+                mSectionPids = Arrays.copyOf(mSectionPids, capacity);
+                mSectionNames = Arrays.copyOf(mSectionNames, capacity);
+                mSectionDepths = Arrays.copyOf(mSectionDepths, capacity);
+                mSectionStarts = Arrays.copyOf(mSectionStarts, capacity);
+                mSectionEnds = Arrays.copyOf(mSectionEnds, capacity);
+            }
+            mSectionTids[mSectionCount] = tid;
+            mSectionPids[mSectionCount] = pid;
+            mSectionNames[mSectionCount] = name;
+            mSectionDepths[mSectionCount] = depth;
+            mSectionStarts[mSectionCount] = start;
+            mSectionEnds[mSectionCount] = end;
+            mSectionCount++;
+        }
+
+        private void addCounter(int pid, int name, long time, long value) {
+            if (mCounterCount == mCounterPids.length) {
+                int capacity = mCounterCount * 2;
+                mCounterPids = Arrays.copyOf(mCounterPids, capacity);
+                mCounterNames = Arrays.copyOf(mCounterNames, capacity);
+                mCounterTimes = Arrays.copyOf(mCounterTimes, capacity);
+                mCounterValues = Arrays.copyOf(mCounterValues, capacity);
+            }
+            mCounterPids[mCounterCount] = pid;
+            mCounterNames[mCounterCount] = name;
+            mCounterTimes[mCounterCount] = time;
+            mCounterValues[mCounterCount] = value;
+            mCounterCount++;
+        }
+
+        /**
+         * Creates the model. The threads still running and the sections still open at the
+         * end of the trace are ended at the time of the last event.
+         */
+        public SystraceModel build() {
+            if (mLineLength > 0) {
+                addLine(new String(mLine, 0, mLineLength, Charsets.UTF_8));
+                mLineLength = 0;
+            }
+
+            for (int cpu = 0; cpu < mCpuTids.length; cpu++) {
+                if (mCpuTids[cpu] > 0) {
+                    addSlice(cpu, mCpuTids[cpu], mCpuSwitchTimes[cpu], mEndTime);
+                    mCpuTids[cpu] = -1;
+                }
+            }
+
+            for (Map.Entry<Integer, OpenSections> e : mOpenSections.entrySet()) {
+                while (e.getValue().size > 0) {
+                    endSection(e.getKey().intValue(), mEndTime);
+                }
+            }
+
+            if (mStartTime < 0) {
+                mStartTime = 0;
+            }
+
+            return new SystraceModel(this);
+        }
+    }
+}
@@ -19,118 +19,228 @@ package com.android.ide.eclipse.ddms.systrace;
 import com.google.common.base.Charsets;
 import com.google.common.io.Files;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.zip.DataFormatException;
 import java.util.zip.Inflater;
 
-/** {@link SystraceOutputParser} receives the output of atrace command run on the device,
- * parses it and generates html based on the trace */
+/**
+ * {@link SystraceOutputParser} receives the output of atrace command run on the device,
+ * parses it and generates html based on the trace.
+ *
+ * The output is processed as it is received: the \r\n line endings added by the shell are
+ * replaced, the trace is located and decompressed, and its lines are escaped and written
+ * straight to the html output, using buffers of a fixed size.
+ */
 public class SystraceOutputParser {
-    private static final String TRACE_START = "TRACE:\n"; //$NON-NLS-1$
+    private static final byte[] TRACE_START =
+            "TRACE:\n".getBytes(Charsets.US_ASCII); //$NON-NLS-1$
+
+    /** Each line of the trace should end with the characters \n\ followed by a newline. */
+    private static final byte[] ESCAPED_NEWLINE =
+            "\\n\\\n".getBytes(Charsets.US_ASCII); //$NON-NLS-1$
+
+    /** Maximum amount of output searched for the trace start marker. */
+    private static final int MAX_HEADER_LENGTH = 1024;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
 
     private final boolean mUncompress;
     private final String mJs;
     private final String mCss;
     private final String mHtmlPrefix;
     private final String mHtmlSuffix;
+    private final OutputStream mOut;
 
-    private byte[] mAtraceOutput;
-    private int mAtraceLength;
-    private int mSystraceIndex = -1;
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private final byte[] mInflateBuffer = new byte[BUFFER_SIZE];
+    private final ByteArrayOutputStream mHeader = new ByteArrayOutputStream();
+    private Inflater mInflater;
+    private SystraceModel.Builder mModelBuilder;
+    private boolean mPendingCr;
+    private boolean mTraceStarted;
 
     /**
      * Constructs a atrace output parser.
      * @param compressedStream Is the input stream compressed using zlib?
      * @param systraceJs systrace javascript content
      * @param systraceCss systrace css content
+     * @param html stream the html is written to
      */
     public SystraceOutputParser(boolean compressedStream, String systraceJs, String systraceCss,
-            String htmlPrefix, String htmlSuffix) {
+            String htmlPrefix, String htmlSuffix, OutputStream html) {
         mUncompress = compressedStream;
         mJs = systraceJs;
         mCss = systraceCss;
         mHtmlPrefix = htmlPrefix;
         mHtmlSuffix = htmlSuffix;
+        mOut = html;
+    }
+
+    /**
+     * Sets a builder that receives the text of the trace as it is parsed, so that a
+     * {@link SystraceModel} of the trace can be created along with the html.
+     */
+    public void setModelBuilder(SystraceModel.Builder builder) {
+        mModelBuilder = builder;
     }
 
     /**
-     * Parses the atrace output for systrace content.
-     * @param atraceOutput output bytes from atrace
+     * Parses the next chunk of output from atrace.
+     * @param data output bytes from atrace
      */
-    public void parse(byte[] atraceOutput) {
-        mAtraceOutput = atraceOutput;
-        mAtraceLength = atraceOutput.length;
+    public void write(byte[] data, int offset, int length) throws IOException {
+        final int end = offset + length;
+        while (offset < end) {
+            // replace \r\n with \n, a trailing \r is kept until the next byte is known
+            int n = 0;
+            while (offset < end && n < mBuffer.length - 1) {
+                byte b = data[offset++];
+                if (mPendingCr) {
+                    mPendingCr = false;
+                    if (b == '\n') {
+                        mBuffer[n++] = '\n';
+                        continue;
+                    }
+                    mBuffer[n++] = '\r';
+                }
+
+                if (b == '\r') {
+                    mPendingCr = true;
+                } else {
+                    mBuffer[n++] = b;
+                }
+            }
+
+            processOutput(mBuffer, 0, n);
+        }
+    }
 
-        removeCrLf();
+    /**
+     * Completes the html once all the output from atrace was parsed. The output stream
+     * is not closed.
+     */
+    public void finish() throws IOException {
+        if (mPendingCr) {
+            mPendingCr = false;
+            mBuffer[0] = '\r';
+            processOutput(mBuffer, 0, 1);
+        }
 
-        // locate the trace start marker within the first hundred bytes
-        String header = new String(mAtraceOutput, 0, Math.min(100, mAtraceLength));
-        mSystraceIndex = locateSystraceData(header);
+        if (!mTraceStarted) {
+            throw new IOException("Unable to find trace start marker 'TRACE:':\n"
+                    + mHeader.toString());
+        }
 
-        if (mSystraceIndex < 0) {
-            throw new RuntimeException("Unable to find trace start marker 'TRACE:':\n" + header);
+        if (mInflater != null) {
+            mInflater.end();
+            mInflater = null;
         }
+
+        mOut.write(mHtmlSuffix.getBytes(Charsets.UTF_8));
+        mOut.flush();
     }
 
-    /** Replaces \r\n with \n in {@link #mAtraceOutput}. */
-    private void removeCrLf() {
-        int dst = 0;
-        for (int src = 0; src < mAtraceLength - 1; src++, dst++) {
-            byte copy;
-            if (mAtraceOutput[src] == '\r' && mAtraceOutput[src + 1] == '\n') {
-                copy = '\n';
-                src++;
-            } else {
-                copy = mAtraceOutput[src];
+    private void processOutput(byte[] data, int offset, int length) throws IOException {
+        if (!mTraceStarted) {
+            int start = locateSystraceData(data, offset, length);
+            if (start < 0) {
+                return;
             }
-            mAtraceOutput[dst] = copy;
+
+            length -= start - offset;
+            offset = start;
         }
 
-        mAtraceLength = dst;
+        if (mUncompress) {
+            inflate(data, offset, length);
+        } else {
+            writeEscaped(data, offset, length);
+        }
     }
 
-    private int locateSystraceData(String header) {
-        int index = header.indexOf(TRACE_START);
+    /**
+     * Accumulates the output until the trace start marker is found, and then writes the
+     * html header.
+     * @return the index of the first byte of trace data in the given array, or -1 if the
+     *         marker was not found yet
+     */
+    private int locateSystraceData(byte[] data, int offset, int length) throws IOException {
+        int previous = mHeader.size();
+        mHeader.write(data, offset, length);
+
+        byte[] header = mHeader.toByteArray();
+        int index = indexOf(header, TRACE_START);
         if (index < 0) {
+            if (header.length > MAX_HEADER_LENGTH) {
+                throw new IOException("Unable to find trace start marker 'TRACE:':\n"
+                        + new String(header, 0, Math.min(100, header.length)));
+            }
             return -1;
-        } else {
-            return index + TRACE_START.length();
         }
+
+        mTraceStarted = true;
+        mHeader.reset();
+
+        String prefix = String.format(mHtmlPrefix, mCss, mJs, "");
+        mOut.write(prefix.getBytes(Charsets.UTF_8));
+
+        return offset + index + TRACE_START.length - previous;
     }
 
-    public String getSystraceHtml() {
-        if (mSystraceIndex < 0) {
-            return "";
+    private static int indexOf(byte[] data, byte[] pattern) {
+        outer:
+        for (int i = 0; i <= data.length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
         }
+        return -1;
+    }
 
-        String trace = "";
-        if (mUncompress) {
-            Inflater decompressor = new Inflater();
-            decompressor.setInput(mAtraceOutput, mSystraceIndex, mAtraceLength - mSystraceIndex);
-
-            byte[] buf = new byte[4096];
-            int n;
-            StringBuilder sb = new StringBuilder(1000);
-            try {
-                while ((n = decompressor.inflate(buf)) > 0) {
-                    sb.append(new String(buf, 0, n));
+    private void inflate(byte[] data, int offset, int length) throws IOException {
+        if (mInflater == null) {
+            mInflater = new Inflater();
+        }
+        if (mInflater.finished()) {
+            return;
+        }
+
+        mInflater.setInput(data, offset, length);
+        try {
+            // the input must be fully consumed, since its buffer is reused
+            while (!mInflater.finished() && !mInflater.needsInput()) {
+                int n = mInflater.inflate(mInflateBuffer);
+                if (n == 0 && mInflater.needsDictionary()) {
+                    throw new IOException("Unexpected dictionary in compressed trace");
                 }
-            } catch (DataFormatException e) {
-                throw new RuntimeException(e);
+                writeEscaped(mInflateBuffer, 0, n);
             }
-            decompressor.end();
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        }
+    }
 
-            trace = sb.toString();
-        } else {
-            trace = new String(mAtraceOutput, mSystraceIndex, mAtraceLength - mSystraceIndex);
+    private void writeEscaped(byte[] data, int offset, int length) throws IOException {
+        if (mModelBuilder != null) {
+            mModelBuilder.write(data, offset, length);
         }
 
-        // each line should end with the characters \n\ followed by a newline
-        String html_out = trace.replaceAll("\n", "\\\\n\\\\\n");
-        String header = String.format(mHtmlPrefix, mCss, mJs, "");
-        String footer = mHtmlSuffix;
-        return header + html_out + footer;
+        int start = offset;
+        final int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            if (data[i] == '\n') {
+                mOut.write(data, start, i - start);
+                mOut.write(ESCAPED_NEWLINE);
+                start = i + 1;
+            }
+        }
+        mOut.write(data, start, end - start);
     }
 
     public static String getJs(File assetsFolder) {
@@ -18,23 +18,27 @@ package com.android.ide.eclipse.ddms.systrace;
 
 import com.android.ddmlib.IDevice;
 import com.android.ddmlib.IShellOutputReceiver;
-import com.google.common.primitives.Bytes;
 
+import java.io.IOException;
+
+/**
+ * Runs atrace on a device, and passes its output to a {@link SystraceOutputParser} as it
+ * is received.
+ */
 public class SystraceTask implements Runnable {
     private final IDevice mDevice;
     private final String mOptions;
+    private final SystraceOutputParser mParser;
 
     private volatile boolean mCancel;
 
     private final Object mLock = new Object();
     private String errorMessage;
-    private boolean mTraceComplete;
-    private byte[] mBuffer = new byte[1024];
-    private int mDataLength = 0;
 
-    public SystraceTask(IDevice device, String options) {
+    public SystraceTask(IDevice device, String options, SystraceOutputParser parser) {
         mDevice = device;
         mOptions = options;
+        mParser = parser;
     }
 
     @Override
@@ -42,9 +46,7 @@ public class SystraceTask implements Runnable {
         try {
             mDevice.executeShellCommand("atrace " + mOptions, new Receiver(), 0);
         } catch (Exception e) {
-            synchronized (mLock) {
-                errorMessage = "Unexpected error while running atrace on device: " + e;
-            }
+            setError("Unexpected error while running atrace on device: " + e);
         }
     }
 
@@ -58,39 +60,31 @@ public class SystraceTask implements Runnable {
         }
     }
 
-    public byte[] getAtraceOutput() {
+    private void setError(String message) {
         synchronized (mLock) {
-            return mTraceComplete ? mBuffer : null;
+            if (errorMessage == null) {
+                errorMessage = message;
+            }
         }
     }
 
     private class Receiver implements IShellOutputReceiver {
         @Override
         public void addOutput(byte[] data, int offset, int length) {
-            synchronized (mLock) {
-                if (mDataLength + length > mBuffer.length) {
-                    mBuffer = Bytes.ensureCapacity(mBuffer, mDataLength + length + 1, 1024);
-                }
+            if (mCancel) {
+                return;
+            }
 
-                for (int i = 0; i < length; i++) {
-                    mBuffer[mDataLength + i] = data[offset + i];
-                }
-                mDataLength += length;
+            try {
+                mParser.write(data, offset, length);
+            } catch (IOException e) {
+                setError("Unexpected error while saving trace: " + e.getMessage());
+                mCancel = true;
             }
         }
 
         @Override
         public void flush() {
-            synchronized (mLock) {
-                // trim mBuffer to its final size
-                byte[] copy = new byte[mDataLength];
-                for (int i = 0; i < mDataLength; i++) {
-                    copy[i] = mBuffer[i];
-                }
-                mBuffer = copy;
-
-                mTraceComplete = true;
-            }
         }
 
         @Override
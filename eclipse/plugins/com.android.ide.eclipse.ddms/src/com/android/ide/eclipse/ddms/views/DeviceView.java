@@ -46,6 +46,7 @@ import com.android.ide.eclipse.ddms.preferences.PreferenceInitializer;
 import com.android.ide.eclipse.ddms.systrace.ISystraceOptions;
 import com.android.ide.eclipse.ddms.systrace.ISystraceOptionsDialog;
 import com.android.ide.eclipse.ddms.systrace.SystraceOptionsDialogV1;
+import com.android.ide.eclipse.ddms.systrace.SystraceModel;
 import com.android.ide.eclipse.ddms.systrace.SystraceOptionsDialogV2;
 import com.android.ide.eclipse.ddms.systrace.SystraceOutputParser;
 import com.android.ide.eclipse.ddms.systrace.SystraceTask;
@@ -53,7 +54,7 @@ import com.android.ide.eclipse.ddms.systrace.SystraceVersionDetector;
 import com.android.uiautomator.UiAutomatorHelper;
 import com.android.uiautomator.UiAutomatorHelper.UiAutomatorException;
 import com.android.uiautomator.UiAutomatorHelper.UiAutomatorResult;
-import com.google.common.io.Files;
+import com.google.common.io.Closeables;
 
 import org.eclipse.core.filesystem.EFS;
 import org.eclipse.core.filesystem.IFileStore;
@@ -87,8 +88,11 @@ import org.eclipse.ui.WorkbenchException;
 import org.eclipse.ui.ide.IDE;
 import org.eclipse.ui.part.ViewPart;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.List;
@@ -101,6 +105,9 @@ public class DeviceView extends ViewPart implements IUiSelectionListener, IClien
 
     public static final String ID = "com.android.ide.eclipse.ddms.views.DeviceView"; //$NON-NLS-1$
 
+    /** Number of sections and threads listed in the summary of a system trace */
+    private static final int SYSTRACE_SUMMARY_SIZE = 10;
+
     private static DeviceView sThis;
 
     private Shell mParentShell;
@@ -633,6 +640,8 @@ public class DeviceView extends ViewPart implements IUiSelectionListener, IClien
         }
 
         // obtain the output of "adb shell atrace <trace-options>" and generate the html file
+        final File traceFile = new File(dlg.getTraceFilePath());
+        final SystraceModel[] model = new SystraceModel[1];
         ProgressMonitorDialog d = new ProgressMonitorDialog(parentShell);
         try {
             d.run(true, true, new IRunnableWithProgress() {
@@ -644,43 +653,56 @@ public class DeviceView extends ViewPart implements IUiSelectionListener, IClien
                     monitor.setTaskName("Collecting Trace Information");
                     final String atraceOptions = options.getOptions()
                                                 + (COMPRESS_DATA ? " -z" : "");
-                    SystraceTask task = new SystraceTask(device, atraceOptions);
-                    Thread t = new Thread(task, "Systrace Output Receiver");
-                    t.start();
-
-                    // check if the user has cancelled tracing every so often
-                    while (true) {
-                        t.join(1000);
 
-                        if (t.isAlive()) {
-                            if (monitor.isCanceled()) {
-                                task.cancel();
-                                return;
+                    // the trace is written to the html file as it is received, and
+                    // indexed at the same time for the summary shown once it is complete
+                    OutputStream out = null;
+                    boolean success = false;
+                    try {
+                        out = new BufferedOutputStream(new FileOutputStream(traceFile));
+                        SystraceOutputParser parser = new SystraceOutputParser(
+                                COMPRESS_DATA,
+                                SystraceOutputParser.getJs(systraceAssets),
+                                SystraceOutputParser.getCss(systraceAssets),
+                                SystraceOutputParser.getHtmlPrefix(systraceAssets),
+                                SystraceOutputParser.getHtmlSuffix(systraceAssets),
+                                out);
+                        SystraceModel.Builder modelBuilder = new SystraceModel.Builder();
+                        parser.setModelBuilder(modelBuilder);
+
+                        SystraceTask task = new SystraceTask(device, atraceOptions, parser);
+                        Thread t = new Thread(task, "Systrace Output Receiver");
+                        t.start();
+
+                        // check if the user has cancelled tracing every so often
+                        while (true) {
+                            t.join(1000);
+
+                            if (t.isAlive()) {
+                                if (monitor.isCanceled()) {
+                                    task.cancel();
+                                    return;
+                                }
+                            } else {
+                                break;
                             }
-                        } else {
-                            break;
                         }
-                    }
-
-                    if (task.getError() != null) {
-                        throw new RuntimeException(task.getError());
-                    }
-
-                    monitor.setTaskName("Saving trace information");
-                    SystraceOutputParser parser = new SystraceOutputParser(
-                            COMPRESS_DATA,
-                            SystraceOutputParser.getJs(systraceAssets),
-                            SystraceOutputParser.getCss(systraceAssets),
-                            SystraceOutputParser.getHtmlPrefix(systraceAssets),
-                            SystraceOutputParser.getHtmlSuffix(systraceAssets));
 
-                    parser.parse(task.getAtraceOutput());
+                        if (task.getError() != null) {
+                            throw new RuntimeException(task.getError());
+                        }
 
-                    String html = parser.getSystraceHtml();
-                    try {
-                        Files.write(html.getBytes(), new File(dlg.getTraceFilePath()));
+                        monitor.setTaskName("Saving trace information");
+                        parser.finish();
+                        model[0] = modelBuilder.build();
+                        success = true;
                     } catch (IOException e) {
                         throw new InvocationTargetException(e);
+                    } finally {
+                        Closeables.closeQuietly(out);
+                        if (!success) {
+                            traceFile.delete();
+                        }
                     }
                 }
             });
@@ -693,6 +715,46 @@ public class DeviceView extends ViewPart implements IUiSelectionListener, IClien
                             e.getCause()));
         } catch (InterruptedException ignore) {
         }
+
+        if (model[0] != null) {
+            MessageDialog.openInformation(parentShell, "Systrace",
+                    getSystraceSummary(model[0], traceFile));
+        }
+    }
+
+    /**
+     * Returns a summary of a system trace: the longest trace sections, and the threads
+     * that used the most CPU time.
+     */
+    private static String getSystraceSummary(SystraceModel model, File traceFile) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Trace saved to %1$s", traceFile.getPath()));
+
+        int[] sections = model.getLongestSections(-1, SYSTRACE_SUMMARY_SIZE);
+        if (sections.length > 0) {
+            sb.append("\n\nLongest sections:");
+            for (int section : sections) {
+                int tid = model.getSectionTid(section);
+                sb.append(String.format("\n%1$10.3f ms  %2$s (%3$s %4$d)", //$NON-NLS-1$
+                        model.getSectionDuration(section) / 1e6,
+                        model.getSectionName(section),
+                        model.getThreadName(tid), tid));
+            }
+        }
+
+        long start = model.getStartTime();
+        long end = model.getEndTime();
+        int[] threads = model.getBusiestThreads(start, end, SYSTRACE_SUMMARY_SIZE);
+        if (threads.length > 0) {
+            sb.append("\n\nCPU utilization:");
+            for (int tid : threads) {
+                sb.append(String.format("\n%1$9.1f %%  %2$s (%3$d)", //$NON-NLS-1$
+                        100 * model.getCpuUtilization(tid, start, end),
+                        model.getThreadName(tid), tid));
+            }
+        }
+
+        return sb.toString();
     }
 
     @Override
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ide.eclipse.gltrace;
+
+import static org.junit.Assert.*;
+
+import com.android.ide.eclipse.gltrace.GLProtoBuf.GLMessage;
+import com.android.ide.eclipse.gltrace.GLProtoBuf.GLMessage.DataType;
+import com.android.ide.eclipse.gltrace.GLProtoBuf.GLMessage.DataType.Type;
+import com.android.ide.eclipse.gltrace.GLProtoBuf.GLMessage.FrameBuffer;
+import com.android.ide.eclipse.gltrace.GLProtoBuf.GLMessage.Function;
+import com.android.ide.eclipse.gltrace.model.GLCall;
+import com.google.protobuf.ByteString;
+
+import org.eclipse.core.runtime.NullProgressMonitor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+public class TraceFileIndexTest {
+    private File mTraceFile;
+    private File mIndexFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mTraceFile = File.createTempFile("trace", ".gltrace"); //$NON-NLS-1$ //$NON-NLS-2$
+        mIndexFile = TraceFileIndex.getIndexFile(mTraceFile.getPath());
+    }
+
+    @After
+    public void tearDown() {
+        mTraceFile.delete();
+        mIndexFile.delete();
+    }
+
+    private static GLMessage createMessage(Function function, int context, long startTime,
+            int duration) {
+        DataType arg = DataType.newBuilder()
+                .setIsArray(false)
+                .setType(Type.INT)
+                .addIntValue(-1)
+                .build();
+        return GLMessage.newBuilder()
+                .setFunction(function)
+                .setContextId(context)
+                .setStartTime(startTime)
+                .setDuration(duration)
+                .setThreadtime(duration / 2)
+                .addArgs(arg)
+                .build();
+    }
+
+    private void writeTrace(GLMessage... messages) throws IOException {
+        writeTrace(false, messages);
+    }
+
+    private void writeTrace(boolean append, GLMessage... messages) throws IOException {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(mTraceFile, append));
+        try {
+            for (GLMessage msg : messages) {
+                byte[] b = msg.toByteArray();
+                out.writeInt(b.length);
+                out.write(b);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private TraceFileInfo getTraceFileInfo() {
+        return new TraceFileInfo(mTraceFile.getPath(), mTraceFile.length(),
+                mTraceFile.lastModified());
+    }
+
+    private TraceFileIndex buildIndex() throws Exception {
+        MappedTraceFile file = new MappedTraceFile(mTraceFile.getPath());
+        try {
+            return TraceFileIndex.build(file, new NullProgressMonitor());
+        } finally {
+            file.close();
+        }
+    }
+
+    @Test
+    public void testHeaderFields() throws Exception {
+        GLMessage swap = createMessage(Function.eglSwapBuffers, 1, 200, 40).toBuilder()
+                .setFb(FrameBuffer.newBuilder()
+                        .setWidth(1)
+                        .setHeight(1)
+                        .addContents(ByteString.copyFrom(new byte[] { 1, 2, 3, 4 })))
+                .build();
+        writeTrace(createMessage(Function.glClear, 1, 100, -5), swap);
+
+        TraceFileIndex index = buildIndex();
+        assertEquals(2, index.getCallCount());
+
+        assertEquals(0, index.getOffset(0));
+        assertEquals(Function.glClear, index.getFunction(0));
+        assertEquals(100, index.getStartTime(0));
+        assertEquals(-5, index.getWallDuration(0));
+        assertFalse(index.hasFb(0));
+
+        assertEquals(4 + index.getLength(0), index.getOffset(1));
+        assertEquals(Function.eglSwapBuffers, index.getFunction(1));
+        assertEquals(1, index.getContextId(1));
+        assertEquals(20, index.getThreadDuration(1));
+        assertTrue(index.hasFb(1));
+
+        assertEquals(100, index.getMinStartTime());
+    }
+
+    @Test
+    public void testSortByStartTimeWithMultipleContexts() throws Exception {
+        writeTrace(createMessage(Function.glClear, 1, 300, 1),
+                createMessage(Function.glFlush, 2, 100, 1),
+                createMessage(Function.glFinish, 1, 200, 1));
+
+        TraceFileIndex index = buildIndex();
+        assertEquals(Arrays.asList(Integer.valueOf(1), Integer.valueOf(2)),
+                index.getContextIds());
+        assertEquals(Function.glFlush, index.getFunction(0));
+        assertEquals(Function.glFinish, index.getFunction(1));
+        assertEquals(Function.glClear, index.getFunction(2));
+        assertEquals(0, index.getOffset(2));
+    }
+
+    @Test
+    public void testAppend() throws Exception {
+        writeTrace(createMessage(Function.glClear, 1, 300, 1));
+
+        MappedTraceFile file = new MappedTraceFile(mTraceFile.getPath());
+        try {
+            TraceFileIndex index = TraceFileIndex.build(file, new NullProgressMonitor());
+            assertEquals(300, index.getMinStartTime());
+            assertEquals(Arrays.asList(Integer.valueOf(1)), index.getContextIds());
+
+            List<GLCall> calls = new IndexedGLCallList(index, file);
+            assertEquals(0, calls.get(0).getStartTime());
+
+            // the calls of another context may arrive late
+            writeTrace(true, createMessage(Function.glFlush, 2, 100, 1),
+                    createMessage(Function.eglSwapBuffers, 1, 400, 1));
+            assertTrue(file.refresh());
+            assertEquals(2, index.append(file));
+
+            assertEquals(3, index.getCallCount());
+            assertEquals(Function.glFlush, index.getFunction(1));
+            assertEquals(100, index.getMinStartTime());
+            assertEquals(Arrays.asList(Integer.valueOf(1), Integer.valueOf(2)),
+                    index.getContextIds());
+
+            // start times are relative to the earliest call
+            assertEquals(3, calls.size());
+            assertEquals(200, calls.get(0).getStartTime());
+            assertEquals(0, calls.get(1).getStartTime());
+            assertEquals(300, calls.get(2).getStartTime());
+        } finally {
+            file.close();
+        }
+    }
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        writeTrace(createMessage(Function.glClear, 1, 100, 3),
+                createMessage(Function.eglSwapBuffers, 1, 200, 4));
+
+        TraceFileIndex index = buildIndex();
+        index.save(mIndexFile, getTraceFileInfo());
+
+        TraceFileIndex loaded = TraceFileIndex.load(mIndexFile, getTraceFileInfo());
+        assertNotNull(loaded);
+        assertEquals(index.getCallCount(), loaded.getCallCount());
+        for (int i = 0; i < index.getCallCount(); i++) {
+            assertEquals(index.getOffset(i), loaded.getOffset(i));
+            assertEquals(index.getLength(i), loaded.getLength(i));
+            assertEquals(index.getFunction(i), loaded.getFunction(i));
+            assertEquals(index.getStartTime(i), loaded.getStartTime(i));
+            assertEquals(index.getWallDuration(i), loaded.getWallDuration(i));
+        }
+
+        // an index for a different version of the trace file must not be used
+        TraceFileInfo modified = new TraceFileInfo(mTraceFile.getPath(),
+                mTraceFile.length() + 1, mTraceFile.lastModified());
+        assertNull(TraceFileIndex.load(mIndexFile, modified));
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ide.eclipse.gltrace.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.android.ide.eclipse.gltrace.GLProtoBuf.GLMessage.Function;
+import com.android.ide.eclipse.gltrace.model.TraceStatistics.FrameStats;
+import com.android.ide.eclipse.gltrace.model.TraceStatistics.FunctionStats;
+import com.android.ide.eclipse.gltrace.state.GLState;
+import com.android.ide.eclipse.gltrace.state.GLStateType;
+import com.android.ide.eclipse.gltrace.state.transforms.IStateTransform;
+import com.android.ide.eclipse.gltrace.state.transforms.ListElementAddTransform;
+import com.android.ide.eclipse.gltrace.state.transforms.PropertyChangeTransform;
+import com.android.ide.eclipse.gltrace.state.transforms.TextureUnitPropertyAccessor;
+
+import org.eclipse.core.runtime.NullProgressMonitor;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class TraceStatisticsTest {
+    private static GLCall createCall(List<GLCall> calls, Function function, int duration) {
+        GLCall c = new GLCall(calls.size(), 0, 0, function.toString(), function, false, 0,
+                duration, duration / 2);
+        calls.add(c);
+        return c;
+    }
+
+    private static TraceStatistics computeStatistics() throws InterruptedException {
+        List<GLCall> calls = new ArrayList<GLCall>();
+
+        // frame 0: 20 glDrawArrays taking 1..20 ns
+        for (int i = 1; i <= 20; i++) {
+            createCall(calls, Function.glDrawArrays, i);
+        }
+        createCall(calls, Function.eglSwapBuffers, 100);
+
+        // frame 1: a single glDrawElements
+        createCall(calls, Function.glDrawElements, 10);
+        createCall(calls, Function.eglSwapBuffers, 200);
+
+        List<GLFrame> frames = Arrays.asList(
+                new GLFrame(0, 0, 21),
+                new GLFrame(1, 21, 23));
+        return TraceStatistics.compute(frames, calls, new NullProgressMonitor());
+    }
+
+    private static FunctionStats getStats(TraceStatistics stats, Function f) {
+        for (FunctionStats s : stats.getFunctionStats()) {
+            if (s.getFunction() == f) {
+                return s;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void testFunctionStats() throws InterruptedException {
+        TraceStatistics stats = computeStatistics();
+        assertEquals(3, stats.getFunctionStats().size());
+
+        FunctionStats draw = getStats(stats, Function.glDrawArrays);
+        assertEquals(20, draw.getCount());
+        assertEquals(210, draw.getTotalWallDuration());
+        assertEquals(10.5, draw.getMeanWallDuration(), 1e-9);
+        assertEquals(19, draw.getP95WallDuration());
+        assertEquals(9, draw.getP95ThreadDuration());
+        assertEquals(0, draw.getRedundantCount());
+
+        FunctionStats swap = getStats(stats, Function.eglSwapBuffers);
+        assertEquals(2, swap.getCount());
+        assertEquals(300, swap.getTotalWallDuration());
+        assertEquals(200, swap.getP95WallDuration());
+    }
+
+    @Test
+    public void testFrameStats() throws InterruptedException {
+        TraceStatistics stats = computeStatistics();
+        List<FrameStats> frames = stats.getFrameStats();
+        assertEquals(2, frames.size());
+
+        assertEquals(21, frames.get(0).getCallCount());
+        assertEquals(20, frames.get(0).getDrawCallCount());
+        assertEquals(310, frames.get(0).getWallDuration());
+
+        assertEquals(2, frames.get(1).getCallCount());
+        assertEquals(1, frames.get(1).getDrawCallCount());
+        assertEquals(0, frames.get(1).getStateChangeCount());
+        assertEquals(210, frames.get(1).getWallDuration());
+    }
+
+    private static void bindTexture(List<GLCall> calls, int texture) {
+        IStateTransform transform = new PropertyChangeTransform(
+                new TextureUnitPropertyAccessor(0, GLStateType.TEXTURE_BINDING_2D),
+                Integer.valueOf(texture), null);
+        createCall(calls, Function.glBindTexture, 1).setStateTransformations(
+                Collections.singletonList(transform));
+    }
+
+    @Test
+    public void testRedundantCalls() throws InterruptedException {
+        List<GLCall> calls = new ArrayList<GLCall>();
+        createCall(calls, Function.eglCreateContext, 1).setStateTransformations(
+                Collections.<IStateTransform>singletonList(
+                        new ListElementAddTransform(null, GLState.createDefaultES2State())));
+
+        // the second call binds the texture that is already bound
+        bindTexture(calls, 5);
+        bindTexture(calls, 5);
+        bindTexture(calls, 6);
+        createCall(calls, Function.eglSwapBuffers, 1);
+
+        List<GLFrame> frames = Collections.singletonList(new GLFrame(0, 0, calls.size()));
+
+        // the statistics apply copies of the transformations, so they can be computed again
+        for (int i = 0; i < 2; i++) {
+            TraceStatistics stats = TraceStatistics.compute(frames, calls,
+                    new NullProgressMonitor());
+
+            FunctionStats bind = getStats(stats, Function.glBindTexture);
+            assertEquals(3, bind.getCount());
+            assertEquals(1, bind.getRedundantCount());
+            assertEquals(0, getStats(stats, Function.eglCreateContext).getRedundantCount());
+
+            FrameStats frame = stats.getFrameStats().get(0);
+            assertEquals(4, frame.getStateChangeCount());
+            assertEquals(1, frame.getRedundantCallCount());
+        }
+    }
+
+    @Test
+    public void testExport() throws Exception {
+        TraceStatistics stats = computeStatistics();
+
+        StringBuilder csv = new StringBuilder();
+        stats.writeFrameStatsCsv(csv);
+        String[] lines = csv.toString().split("\n");
+        assertEquals(3, lines.length);
+        assertEquals("1,2,1,0,0,210,105", lines[2]);
+
+        StringBuilder json = new StringBuilder();
+        stats.writeJson(json);
+        assertTrue(json.toString().contains(
+                "{\"function\": \"glDrawElements\", \"count\": 1, \"redundant\": 0, "));
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ide.eclipse.gltrace.state;
+
+import static org.junit.Assert.*;
+
+import com.android.ide.eclipse.gltrace.state.transforms.GLPropertyAccessor;
+import com.android.ide.eclipse.gltrace.state.transforms.IStateTransform;
+import com.android.ide.eclipse.gltrace.state.transforms.ListElementAddTransform;
+import com.android.ide.eclipse.gltrace.state.transforms.PropertyChangeTransform;
+import com.android.ide.eclipse.gltrace.state.transforms.SparseArrayElementAddTransform;
+import com.android.ide.eclipse.gltrace.state.transforms.SparseArrayElementRemoveTransform;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+public class StateCheckpointsTest {
+    private static final int CALL_COUNT = 2000;
+
+    private IGLProperty mState;
+    private ImmutableGLProperty mVersion;
+
+    private void apply(IStateTransform transform) {
+        transform.apply(mState);
+        IGLProperty changed = transform.getChangedProperty(mState);
+        if (changed != null) {
+            mVersion = mVersion.update(changed);
+        }
+    }
+
+    private static IStateTransform createTransform(Random r) {
+        int texture = r.nextInt(20);
+        switch (r.nextInt(5)) {
+            case 0:
+                return new PropertyChangeTransform(
+                        GLPropertyAccessor.makeAccessor(0, GLStateType.RASTERIZATION_STATE,
+                                GLStateType.LINE_WIDTH),
+                        Float.valueOf(r.nextInt(4)), null);
+            case 1:
+                return new SparseArrayElementAddTransform(
+                        GLPropertyAccessor.makeAccessor(0, GLStateType.TEXTURE_STATE,
+                                GLStateType.TEXTURES),
+                        texture);
+            case 2:
+                return new SparseArrayElementRemoveTransform(
+                        GLPropertyAccessor.makeAccessor(0, GLStateType.TEXTURE_STATE,
+                                GLStateType.TEXTURES),
+                        texture);
+            case 3:
+                return new PropertyChangeTransform(
+                        GLPropertyAccessor.makeAccessor(0, GLStateType.TEXTURE_STATE,
+                                GLStateType.TEXTURES, texture,
+                                GLStateType.TEXTURE_MIN_FILTER),
+                        Integer.valueOf(r.nextInt(9)), null);
+            default:
+                // mipmap levels are created when they are accessed
+                return new PropertyChangeTransform(
+                        GLPropertyAccessor.makeAccessor(0, GLStateType.TEXTURE_STATE,
+                                GLStateType.TEXTURES, texture,
+                                GLStateType.TEXTURE_MIPMAPS, Integer.valueOf(r.nextInt(6)),
+                                GLStateType.TEXTURE_WIDTH),
+                        Integer.valueOf(r.nextInt(9)), null);
+        }
+    }
+
+    @Test
+    public void testIncrementalUpdate() {
+        mState = GLState.createDefaultState();
+        mVersion = ImmutableGLProperty.of(mState);
+        apply(new ListElementAddTransform(null, GLState.createDefaultES2State()));
+
+        Random r = new Random(1);
+        for (int i = 0; i < CALL_COUNT; i++) {
+            try {
+                apply(createTransform(r));
+            } catch (RuntimeException e) {
+                // the transform refers to a texture that is not present
+                mVersion = ImmutableGLProperty.sync(mVersion, mState);
+            }
+
+            assertTrue(ImmutableGLProperty.diff(mVersion, ImmutableGLProperty.of(mState))
+                    .isEmpty());
+        }
+    }
+
+    @Test
+    public void testRestore() {
+        mState = GLState.createDefaultState();
+        mVersion = ImmutableGLProperty.of(mState);
+        apply(new ListElementAddTransform(null, GLState.createDefaultES2State()));
+
+        IGLProperty root = mState;
+        IGLProperty rasterization = ImmutableGLProperty.resolve(mState, new Object[] {
+                Integer.valueOf(0), GLStateType.RASTERIZATION_STATE
+        });
+        ImmutableGLProperty[] versions = new ImmutableGLProperty[CALL_COUNT];
+        Random r = new Random(1);
+        for (int i = 0; i < CALL_COUNT; i++) {
+            try {
+                apply(createTransform(r));
+            } catch (RuntimeException e) {
+                mVersion = ImmutableGLProperty.sync(mVersion, mState);
+            }
+            versions[i] = mVersion;
+        }
+
+        for (int i = 0; i < 50; i++) {
+            ImmutableGLProperty target = versions[r.nextInt(CALL_COUNT)];
+            ImmutableGLProperty.restore(mState, mVersion, target);
+            mVersion = target;
+            assertTrue(ImmutableGLProperty.diff(mVersion, ImmutableGLProperty.of(mState))
+                    .isEmpty());
+
+            // the unchanged nodes are kept, and the state can still be updated incrementally
+            assertSame(rasterization, ImmutableGLProperty.resolve(mState, new Object[] {
+                    Integer.valueOf(0), GLStateType.RASTERIZATION_STATE
+            }));
+            try {
+                apply(createTransform(r));
+            } catch (RuntimeException e) {
+                mVersion = ImmutableGLProperty.sync(mVersion, mState);
+            }
+            assertTrue(ImmutableGLProperty.diff(mVersion, ImmutableGLProperty.of(mState))
+                    .isEmpty());
+        }
+        assertSame(root, mState);
+    }
+
+    @Test
+    public void testThin() {
+        mState = GLState.createDefaultState();
+        mVersion = ImmutableGLProperty.of(mState);
+        apply(new ListElementAddTransform(null, GLState.createDefaultES2State()));
+
+        long budget = 100000;
+        StateCheckpoints checkpoints = new StateCheckpoints(10, budget);
+        Random r = new Random(1);
+        for (int i = 0; i < CALL_COUNT; i++) {
+            try {
+                apply(createTransform(r));
+            } catch (RuntimeException e) {
+                mVersion = ImmutableGLProperty.sync(mVersion, mState);
+            }
+            checkpoints.update(i, mVersion);
+        }
+
+        assertTrue(checkpoints.getInterval() > 10);
+        assertTrue(checkpoints.getSize() <= budget);
+
+        // the size is that of the nodes not shared with the preceding remaining checkpoint
+        long size = 0;
+        int count = 0;
+        ImmutableGLProperty previous = null;
+        for (int i = 0; i < CALL_COUNT; i++) {
+            ImmutableGLProperty snapshot = checkpoints.getSnapshot(i);
+            if (snapshot != null) {
+                size += snapshot.estimateSize(previous);
+                previous = snapshot;
+                count++;
+            }
+        }
+        assertEquals(size, checkpoints.getSize());
+        assertEquals(count, checkpoints.getCount());
+    }
+}
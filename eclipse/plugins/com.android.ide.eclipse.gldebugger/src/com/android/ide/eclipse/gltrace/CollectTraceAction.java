@@ -38,6 +38,7 @@ import org.eclipse.jface.window.Window;
 import org.eclipse.swt.widgets.Display;
 import org.eclipse.swt.widgets.Shell;
 import org.eclipse.ui.IEditorInput;
+import org.eclipse.ui.IEditorPart;
 import org.eclipse.ui.IEditorReference;
 import org.eclipse.ui.IURIEditorInput;
 import org.eclipse.ui.IWorkbench;
@@ -149,21 +150,25 @@ public class CollectTraceAction implements IWorkbenchWindowActionDelegate {
         openInEditor(shell, traceOptions.traceDestination);
     }
 
-    public static void openInEditor(Shell shell, String traceFilePath) {
+    /**
+     * Open the given trace file in the trace viewer.
+     * @return the viewer showing the trace, or null if it could not be opened
+     */
+    public static GLFunctionTraceViewer openInEditor(Shell shell, String traceFilePath) {
         final IFileStore fileStore = EFS.getLocalFileSystem().getStore(new Path(traceFilePath));
         if (!fileStore.fetchInfo().exists()) {
-            return;
+            return null;
         }
 
         final IWorkbench workbench = PlatformUI.getWorkbench();
         IWorkbenchWindow window = workbench.getActiveWorkbenchWindow();
         if (window == null) {
-            return;
+            return null;
         }
 
         IWorkbenchPage page = window.getActivePage();
         if (page == null) {
-            return;
+            return null;
         }
 
         try {
@@ -178,13 +183,16 @@ public class CollectTraceAction implements IWorkbenchWindowActionDelegate {
         }
 
         // open the editor (if not open), or bring it to foreground if it is already open
+        IEditorPart editor;
         try {
-            IDE.openEditorOnFileStore(page, fileStore);
+            editor = IDE.openEditorOnFileStore(page, fileStore);
         } catch (PartInitException e) {
             GlTracePlugin.getDefault().logMessage(
                     "Unexpected error while opening gltrace file in editor: " + e);
-            return;
+            return null;
         }
+
+        return editor instanceof GLFunctionTraceViewer ? (GLFunctionTraceViewer) editor : null;
     }
 
     /**
@@ -264,6 +272,12 @@ public class CollectTraceAction implements IWorkbenchWindowActionDelegate {
         TraceFileWriter traceFileWriter = new TraceFileWriter(fos, traceDataStream);
         traceFileWriter.start();
 
+        // show the calls in the trace viewer as they are being received
+        GLFunctionTraceViewer viewer = openInEditor(shell, traceOptions.traceDestination);
+        if (viewer != null) {
+            viewer.followCapture(traceFileWriter);
+        }
+
         GLTraceCollectorDialog dlg = new GLTraceCollectorDialog(shell,
                 traceFileWriter,
                 traceCommandWriter,
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ide.eclipse.gltrace;
+
+import com.android.ide.eclipse.gltrace.GLProtoBuf.GLMessage;
+import com.android.ide.eclipse.gltrace.format.GLAPISpec;
+import com.android.ide.eclipse.gltrace.format.GLMessageFormatter;
+import com.android.ide.eclipse.gltrace.model.GLCall;
+import com.android.ide.eclipse.gltrace.state.transforms.StateTransformFactory;
+
+import java.util.AbstractList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * A read only list of {@link GLCall}s backed by a {@link TraceFileIndex} and the memory
+ * mapped trace file. The list grows along with the index if records are appended to it.
+ * Start times are relative to the earliest call in the index; if appended records move
+ * that earlier, calls are created again with the new start times when next accessed.
+ *
+ * The metadata of all calls is held in the primitive arrays of the index. {@link GLCall}
+ * objects are only created when they are accessed, a block of {@link #BLOCK_SIZE} calls
+ * at a time, and only from the values in the index. The most recently used blocks are
+ * kept in memory; code that needs to hold on to a call beyond that should keep a reference
+ * to it. The protobuf message of a call is parsed to format the call and to create its
+ * state transformations only when those details of the call are first needed.
+ */
+public class IndexedGLCallList extends AbstractList<GLCall> implements RandomAccess,
+        GLCall.IDetailsLoader {
+    private static final GLMessageFormatter sGLMessageFormatter =
+            new GLMessageFormatter(GLAPISpec.getSpecs());
+
+    /** Number of calls that are materialized together. */
+    private static final int BLOCK_SIZE = 1024;
+
+    /** Maximum number of blocks of materialized calls kept in memory. */
+    private static final int MAX_CACHED_BLOCKS = 64;
+
+    private final TraceFileIndex mIndex;
+    private final MappedTraceFile mFile;
+    private long mMinStartTime;
+
+    private final Map<Integer, GLCall[]> mBlocks =
+            new LinkedHashMap<Integer, GLCall[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, GLCall[]> eldest) {
+            return size() > MAX_CACHED_BLOCKS;
+        }
+    };
+
+    public IndexedGLCallList(TraceFileIndex index, MappedTraceFile file) {
+        mIndex = index;
+        mFile = file;
+        mMinStartTime = index.getMinStartTime();
+    }
+
+    @Override
+    public int size() {
+        return mIndex.getCallCount();
+    }
+
+    @Override
+    public GLCall get(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+        }
+
+        Integer key = Integer.valueOf(index / BLOCK_SIZE);
+        GLCall[] block;
+        synchronized (mBlocks) {
+            long minStartTime = mIndex.getMinStartTime();
+            if (minStartTime != mMinStartTime) {
+                // the calls created so far are relative to a later start time
+                mBlocks.clear();
+                mMinStartTime = minStartTime;
+            }
+
+            block = mBlocks.get(key);
+            if (block == null || block.length <= index % BLOCK_SIZE) {
+                // the last block may have been created before more calls were appended
+                block = createBlock(key.intValue());
+                mBlocks.put(key, block);
+            }
+        }
+
+        return block[index % BLOCK_SIZE];
+    }
+
+    /** Create all the calls in a block, without their details. */
+    private GLCall[] createBlock(int blockIndex) {
+        int start = blockIndex * BLOCK_SIZE;
+        int end = Math.min(start + BLOCK_SIZE, size());
+
+        GLCall[] block = new GLCall[end - start];
+        for (int i = start; i < end; i++) {
+            block[i - start] = new GLCall(i,
+                    mIndex.getStartTime(i) - mMinStartTime,
+                    mIndex.getOffset(i),
+                    mIndex.getFunction(i),
+                    mIndex.hasFb(i),
+                    mIndex.getContextId(i),
+                    mIndex.getWallDuration(i),
+                    mIndex.getThreadDuration(i),
+                    this);
+        }
+        return block;
+    }
+
+    @Override
+    public void loadDetails(GLCall c) {
+        GLMessage msg = null;
+        try {
+            msg = mFile.getMessageAtOffset(c.getOffsetInTraceFile());
+        } catch (Exception e) {
+            GlTracePlugin.getDefault().logMessage("Error while reading call " + c.getIndex()
+                    + ": " + e.getMessage());
+        }
+
+        if (msg == null) {
+            // fall back to what is known from the index
+            c.setDisplayString(String.format("%s()", c.getFunction().toString())); //$NON-NLS-1$
+            c.setStateTransformationCreationError("Unable to read call from trace file.");
+            return;
+        }
+
+        setDetails(c, msg);
+    }
+
+    /** Set the details of the call from its message. */
+    private static void setDetails(GLCall c, GLMessage msg) {
+        String formattedMsg;
+        try {
+            formattedMsg = sGLMessageFormatter.formatGLMessage(msg);
+        } catch (Exception e) {
+            formattedMsg = String.format("%s()", msg.getFunction().toString()); //$NON-NLS-1$
+        }
+        c.setDisplayString(formattedMsg);
+
+        addProperties(c, msg);
+
+        try {
+            c.setStateTransformations(StateTransformFactory.getTransformsFor(msg));
+        } catch (Exception e) {
+            c.setStateTransformationCreationError(e.getMessage());
+            GlTracePlugin.getDefault().logMessage("Error while creating transformations for "
+                                                        + c.toString() + ":");
+            GlTracePlugin.getDefault().logMessage(e.getMessage());
+        }
+    }
+
+    /** Save important values from the {@link GLMessage} in the {@link GLCall} as properties. */
+    private static void addProperties(GLCall c, GLMessage msg) {
+        switch (msg.getFunction()) {
+        case glPushGroupMarkerEXT:
+            // void PushGroupMarkerEXT(sizei length, const char *marker);
+            // save the marker name
+            c.addProperty(GLCall.PROPERTY_MARKERNAME,
+                    msg.getArgs(1).getCharValue(0).toStringUtf8());
+            break;
+        case glVertexAttribPointerData:
+            // void glVertexAttribPointerData(GLuint indx, GLint size, GLenum type,
+            //         GLboolean normalized, GLsizei stride, const GLvoid* ptr,
+            //         int minIndex, int maxIndex)
+            c.addProperty(GLCall.PROPERTY_VERTEX_ATTRIB_POINTER_SIZE,
+                    Integer.valueOf(msg.getArgs(1).getIntValue(0)));
+            c.addProperty(GLCall.PROPERTY_VERTEX_ATTRIB_POINTER_TYPE,
+                    GLEnum.valueOf(msg.getArgs(2).getIntValue(0)));
+            c.addProperty(GLCall.PROPERTY_VERTEX_ATTRIB_POINTER_DATA,
+                    msg.getArgs(5).getRawBytes(0).toByteArray());
+            break;
+        default:
+            break;
+        }
+    }
+}
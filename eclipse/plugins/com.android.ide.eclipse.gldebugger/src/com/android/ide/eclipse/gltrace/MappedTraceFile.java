@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ide.eclipse.gltrace;
+
+import com.android.ide.eclipse.gltrace.GLProtoBuf.GLMessage;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * A read only, memory mapped view of a trace file.
+ *
+ * A trace file is a sequence of records, each of which is a 4 byte big endian length followed
+ * by a protobuf encoded {@link GLMessage}. Trace files can be larger than what a single
+ * {@link MappedByteBuffer} can address, so the file is mapped in windows of
+ * {@link #WINDOW_SIZE} bytes. Each window additionally overlaps into the next one by the
+ * maximum record size, so that a record starting inside a window can always be read
+ * from that window alone. Windows are only mapped when first accessed.
+ *
+ * The file may still be growing while it is being read (e.g. while a trace is being
+ * captured). {@link #refresh()} picks up the new length, after which records appended
+ * since the file was opened become readable.
+ */
+public class MappedTraceFile {
+    /** Number of bytes addressed by each mapped window (not counting the overlap). */
+    private static final long WINDOW_SIZE = 1L << 30;
+
+    /** Overlap between consecutive windows: the size of the largest possible record. */
+    private static final long WINDOW_OVERLAP = 4 + TraceFileReader.MAX_PROTOBUF_SIZE;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private volatile long mLength;
+    private MappedByteBuffer[] mWindows;
+
+    public MappedTraceFile(String path) throws IOException {
+        mFile = new RandomAccessFile(path, "r"); //$NON-NLS-1$
+        mChannel = mFile.getChannel();
+        mLength = mChannel.size();
+        mWindows = new MappedByteBuffer[getWindowCount(mLength)];
+    }
+
+    private static int getWindowCount(long length) {
+        return (int) ((length + WINDOW_SIZE - 1) / WINDOW_SIZE);
+    }
+
+    /** Returns the length of the trace file as of the last {@link #refresh()}. */
+    public long length() {
+        return mLength;
+    }
+
+    /**
+     * Update the length of the file, in case data was appended to it since it was opened.
+     * @return true if the file has grown
+     */
+    public boolean refresh() throws IOException {
+        long length = mChannel.size();
+        if (length <= mLength) {
+            return false;
+        }
+
+        synchronized (this) {
+            // windows that were mapped up to the previous end of file are too short now
+            for (int i = 0; i < mWindows.length; i++) {
+                if (i * WINDOW_SIZE + WINDOW_SIZE + WINDOW_OVERLAP > mLength) {
+                    mWindows[i] = null;
+                }
+            }
+
+            int windowCount = getWindowCount(length);
+            if (windowCount > mWindows.length) {
+                MappedByteBuffer[] windows = new MappedByteBuffer[windowCount];
+                System.arraycopy(mWindows, 0, windows, 0, mWindows.length);
+                mWindows = windows;
+            }
+
+            mLength = length;
+        }
+        return true;
+    }
+
+    /**
+     * Returns a buffer positioned at the given offset, whose limit is the end of the
+     * window containing the offset. The returned buffer is private to the caller.
+     */
+    ByteBuffer getBuffer(long offset) throws IOException {
+        int index = (int) (offset / WINDOW_SIZE);
+        MappedByteBuffer window;
+        synchronized (this) {
+            window = mWindows[index];
+            if (window == null) {
+                long start = index * WINDOW_SIZE;
+                long size = Math.min(mLength - start, WINDOW_SIZE + WINDOW_OVERLAP);
+                window = mChannel.map(MapMode.READ_ONLY, start, size);
+                mWindows[index] = window;
+            }
+        }
+
+        ByteBuffer b = window.duplicate();
+        b.position((int) (offset - index * WINDOW_SIZE));
+        return b;
+    }
+
+    /**
+     * Returns the length of the protobuf message in the record at the given offset, or -1 if
+     * there is no complete record at that offset.
+     * @throws InvalidProtocolBufferException if the record length is not sane
+     */
+    public int getMessageLength(long offset) throws IOException {
+        if (offset + 4 > mLength) {
+            return -1;
+        }
+
+        int len = getBuffer(offset).getInt();
+        if (len < 0 || len > TraceFileReader.MAX_PROTOBUF_SIZE) {
+            String msg = String.format(
+                    "Unexpectedly large (%d bytes) protocol buffer message encountered.",
+                    len);
+            throw new InvalidProtocolBufferException(msg);
+        }
+
+        if (offset + 4 + len > mLength) {
+            // truncated record at the end of the file
+            return -1;
+        }
+
+        return len;
+    }
+
+    /**
+     * Returns a read only buffer spanning exactly the protobuf message of the record at
+     * the given offset. No data is copied.
+     */
+    public ByteBuffer getMessageBuffer(long offset, int len) throws IOException {
+        ByteBuffer b = getBuffer(offset + 4);
+        b.limit(b.position() + len);
+        return b.slice();
+    }
+
+    /**
+     * Parse the protobuf message in the record at the given offset.
+     * @return the message, or null if there is no complete record at the offset
+     */
+    public GLMessage getMessageAtOffset(long offset) throws IOException {
+        int len = getMessageLength(offset);
+        if (len < 0) {
+            return null;
+        }
+
+        byte[] b = new byte[len];
+        getMessageBuffer(offset, len).get(b);
+        return GLMessage.parseFrom(b);
+    }
+
+    /** Closes the underlying file. Mapped windows stay valid until garbage collected. */
+    public void close() {
+        try {
+            mFile.close();
+        } catch (IOException e) {
+            // ignore exception while closing file
+        }
+    }
+}
@@ -26,7 +26,35 @@ import org.liblzf.CLZF;
 
 /** Utilities to deal with protobuf encoded {@link GLMessage}. */
 public class ProtoBufUtils {
-    private static ImageData getImageData(GLMessage glMsg) {
+    /**
+     * Buffer that framebuffer contents are decompressed into before being copied to the
+     * image. It is reused across calls, since framebuffers are decoded one after another
+     * and are usually of the same size.
+     */
+    private static final ThreadLocal<byte[]> sDecompressBuffer = new ThreadLocal<byte[]>();
+
+    private static byte[] getDecompressBuffer(int size) {
+        byte[] buffer = sDecompressBuffer.get();
+        if (buffer == null || buffer.length < size) {
+            buffer = new byte[size];
+            sDecompressBuffer.set(buffer);
+        }
+        return buffer;
+    }
+
+    /**
+     * Obtains the image data stored in the provided protocol buffer message, or null if the
+     * message does not have a valid framebuffer.
+     *
+     * The framebuffer is stored bottom up as RGBA pixels. It is decompressed into a reusable
+     * buffer, from which the rows are copied into the image data in reverse order, while the
+     * alpha channel is split out into the image's alpha data in the same pass.
+     */
+    public static ImageData getImageData(GLMessage glMsg) {
+        if (!glMsg.hasFb()) {
+            return null;
+        }
+
         int width = glMsg.getFb().getWidth();
         int height = glMsg.getFb().getHeight();
 
@@ -34,12 +62,27 @@ public class ProtoBufUtils {
             return null;
         }
 
+        int rowSize = width * 4;
+        int imageSize = rowSize * height;
+
         byte[] compressed = glMsg.getFb().getContents(0).toByteArray();
-        byte[] uncompressed = new byte[width * height * 4];
+        byte[] uncompressed = getDecompressBuffer(imageSize);
 
-        int size = CLZF.lzf_decompress(compressed, compressed.length,
-                                uncompressed, uncompressed.length);
-        assert size == width * height * 4 : "Unexpected image size after decompression.";
+        int size = CLZF.lzf_decompress(compressed, compressed.length, uncompressed, imageSize);
+        assert size == imageSize : "Unexpected image size after decompression.";
+
+        byte[] pixels = new byte[imageSize];
+        byte[] alpha = new byte[width * height];
+        for (int y = 0; y < height; y++) {
+            int src = (height - 1 - y) * rowSize;
+            int dst = y * rowSize;
+            System.arraycopy(uncompressed, src, pixels, dst, rowSize);
+
+            int a = y * width;
+            for (int x = 3; x < rowSize; x += 4) {
+                alpha[a++] = uncompressed[src + x];
+            }
+        }
 
         int redMask   = 0xff000000;
         int greenMask = 0x00ff0000;
@@ -51,23 +94,13 @@ public class ProtoBufUtils {
                 32,         // depth
                 palette,
                 1,          // scan line padding
-                uncompressed);
-        byte[] alpha = new byte[width*height];
-        for (int i = 0; i < width * height; i++) {
-            alpha[i] = uncompressed[i * 4 + 3];
-        }
+                pixels);
         imageData.alphaData = alpha;
-
-        imageData = imageData.scaledTo(imageData.width, -imageData.height);
         return imageData;
     }
 
     /** Obtains the image stored in provided protocol buffer message. */
     public static Image getImage(Display display, GLMessage glMsg) {
-        if (!glMsg.hasFb()) {
-            return null;
-        }
-
         ImageData imageData = null;
         try {
             imageData = getImageData(glMsg);
@@ -0,0 +1,563 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ide.eclipse.gltrace;
+
+import com.android.ide.eclipse.gltrace.GLProtoBuf.GLMessage;
+import com.android.ide.eclipse.gltrace.GLProtoBuf.GLMessage.Function;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * A compact index over all the records in a trace file.
+ *
+ * For every GL call, the index stores the offset of its record in the trace file along with
+ * the few fields of the {@link GLMessage} that are needed to lay out the trace (function,
+ * context, timing and whether a framebuffer is attached). All values are held in primitive
+ * arrays, and the index can be saved to and restored from a side file next to the trace,
+ * so that reopening a trace does not require parsing it again.
+ *
+ * Entries are ordered by the time the call was invoked, which may differ from the order
+ * in the trace file if the application used multiple contexts. Entries for records appended
+ * to the trace file after the index was built are added in file order by
+ * {@link #append(MappedTraceFile)}.
+ */
+public class TraceFileIndex {
+    /** Extension of the side file holding the index for a trace file. */
+    public static final String INDEX_FILE_EXTENSION = ".idx"; //$NON-NLS-1$
+
+    private static final int INDEX_MAGIC = 0x474c5449; // "GLTI"
+    private static final int INDEX_VERSION = 1;
+
+    /** Size of the index file header: magic, version, trace size & time stamp, count. */
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 4;
+
+    /** Size of a single entry in the index file. */
+    private static final int ENTRY_SIZE = 8 + 4 + 4 + 4 + 8 + 4 + 4 + 1;
+
+    private static final int FLAG_HAS_FB = 1;
+
+    /** Initial capacity of an index being built, grown as records are found. */
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /** Minimum number of records whose headers are decoded by a single task. */
+    private static final int DECODE_RANGE_SIZE = 16 * 1024;
+
+    // protobuf wire types
+    private static final int WIRETYPE_VARINT = 0;
+    private static final int WIRETYPE_FIXED64 = 1;
+    private static final int WIRETYPE_LENGTH_DELIMITED = 2;
+    private static final int WIRETYPE_FIXED32 = 5;
+
+    /** Number of entries, only updated once the entries themselves have been filled in. */
+    private volatile int mCount;
+
+    /** Offset in the trace file just past the last indexed record. */
+    private long mEndOffset;
+
+    /** Earliest start time of the indexed calls, updated as entries are added. */
+    private long mMinStartTime = Long.MAX_VALUE;
+
+    /** Distinct context ids of the indexed calls, updated as entries are added. */
+    private final Set<Integer> mDistinctContextIds = new TreeSet<Integer>();
+
+    private long[] mOffsets;
+    private int[] mLengths;
+    private int[] mFunctions;
+    private int[] mContextIds;
+    private long[] mStartTimes;
+    private int[] mWallDurations;
+    private int[] mThreadDurations;
+    private byte[] mFlags;
+
+    private TraceFileIndex(int capacity) {
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        mOffsets = new long[capacity];
+        mLengths = new int[capacity];
+        mFunctions = new int[capacity];
+        mContextIds = new int[capacity];
+        mStartTimes = new long[capacity];
+        mWallDurations = new int[capacity];
+        mThreadDurations = new int[capacity];
+        mFlags = new byte[capacity];
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= mOffsets.length) {
+            return;
+        }
+
+        // grow geometrically so that the arrays are copied O(log n) times
+        int newCapacity = (int) Math.min(Math.max(capacity, 2L * mOffsets.length),
+                Integer.MAX_VALUE - 8);
+        mOffsets = Arrays.copyOf(mOffsets, newCapacity);
+        mLengths = Arrays.copyOf(mLengths, newCapacity);
+        mFunctions = Arrays.copyOf(mFunctions, newCapacity);
+        mContextIds = Arrays.copyOf(mContextIds, newCapacity);
+        mStartTimes = Arrays.copyOf(mStartTimes, newCapacity);
+        mWallDurations = Arrays.copyOf(mWallDurations, newCapacity);
+        mThreadDurations = Arrays.copyOf(mThreadDurations, newCapacity);
+        mFlags = Arrays.copyOf(mFlags, newCapacity);
+    }
+
+    /** Returns the side file used to store the index of the given trace file. */
+    public static File getIndexFile(String tracePath) {
+        return new File(tracePath + INDEX_FILE_EXTENSION);
+    }
+
+    /**
+     * Scan all the records in the given trace file and build an index over them.
+     *
+     * Record boundaries are found with a sequential scan over the length prefixes. The header
+     * fields of the messages are then decoded directly from the mapped file, with ranges of
+     * records decoded concurrently on the {@link TraceParserPool}.
+     * @param file trace file to index
+     * @param monitor progress monitor, 100 units of work are reported
+     */
+    public static TraceFileIndex build(final MappedTraceFile file, IProgressMonitor monitor)
+            throws IOException, InterruptedException {
+        long fileLength = file.length();
+
+        // start small: the arrays grow as records are found, and are trimmed once the
+        // scan is done, so that the index never reserves memory for records that do not
+        // exist
+        final TraceFileIndex index = new TraceFileIndex(INITIAL_CAPACITY);
+
+        // record boundaries account for the first 50% of the work
+        long offset = 0;
+        int percentParsed = 0;
+        int len;
+        while ((len = file.getMessageLength(offset)) >= 0) {
+            index.addRecord(offset, len);
+            offset += 4 + len;
+
+            if (monitor.isCanceled()) {
+                throw new InterruptedException();
+            }
+
+            if (fileLength > 0) {
+                int percentParsedNow = (int) ((offset * 50) / fileLength);
+                monitor.worked(percentParsedNow - percentParsed);
+                percentParsed = percentParsedNow;
+            }
+        }
+
+        index.mEndOffset = offset;
+        index.trimToSize();
+
+        try {
+            TraceParserPool.forEachRange(0, index.mCount, DECODE_RANGE_SIZE,
+                    new TraceParserPool.RangeTask() {
+                @Override
+                public void run(int start, int end) throws IOException {
+                    for (int i = start; i < end; i++) {
+                        index.decodeHeader(i, file.getMessageBuffer(index.mOffsets[i],
+                                index.mLengths[i]));
+                    }
+                }
+            });
+        } catch (IOException e) {
+            throw e;
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e.toString());
+        }
+        monitor.worked(100 - percentParsed);
+
+        index.updateSummary(0, index.mCount);
+        if (index.getContextIds().size() > 1) {
+            // if there are multiple contexts, then the calls may arrive at the
+            // host out of order. So we sort based on the invocation time.
+            index.sortByStartTime();
+        }
+
+        return index;
+    }
+
+    /**
+     * Add entries for the complete records that were appended to the trace file since this
+     * index was built or last appended to. The trace file should have been
+     * {@link MappedTraceFile#refresh() refreshed} to pick up the new records.
+     * @return the number of entries that were added
+     */
+    public synchronized int append(MappedTraceFile file) throws IOException {
+        int count = mCount;
+        long offset = mEndOffset;
+        int len;
+        while ((len = file.getMessageLength(offset)) >= 0) {
+            ensureCapacity(count + 1);
+            mOffsets[count] = offset;
+            mLengths[count] = len;
+            decodeHeader(count, file.getMessageBuffer(offset, len));
+            offset += 4 + len;
+            count++;
+        }
+
+        int added = count - mCount;
+        updateSummary(mCount, count);
+        mEndOffset = offset;
+        mCount = count;
+        return added;
+    }
+
+    /** Account for entries [start, end) in the minimum start time and the context ids. */
+    private void updateSummary(int start, int end) {
+        int last = 0;
+        for (int i = start; i < end; i++) {
+            if (mStartTimes[i] < mMinStartTime) {
+                mMinStartTime = mStartTimes[i];
+            }
+
+            int id = mContextIds[i];
+            if (i == start || id != last) {
+                mDistinctContextIds.add(Integer.valueOf(id));
+                last = id;
+            }
+        }
+    }
+
+    /** Add an entry for the record at the given offset. Its header is decoded later. */
+    private void addRecord(long offset, int len) {
+        ensureCapacity(mCount + 1);
+        mOffsets[mCount] = offset;
+        mLengths[mCount] = len;
+        mCount++;
+    }
+
+    /** Decode the header fields for entry i from the buffer holding its message. */
+    private void decodeHeader(int i, ByteBuffer msg) throws InvalidProtocolBufferException {
+        mFunctions[i] = Function.invalid.getNumber();
+        mContextIds[i] = 0;
+        mStartTimes[i] = 0;
+        mWallDurations[i] = 0;
+        mThreadDurations[i] = 0;
+        mFlags[i] = 0;
+
+        while (msg.hasRemaining()) {
+            int tag = (int) readVarint(msg);
+            int wireType = tag & 0x7;
+
+            switch (tag >>> 3) {
+                case GLMessage.CONTEXT_ID_FIELD_NUMBER:
+                    mContextIds[i] = (int) readVarint(msg);
+                    break;
+                case GLMessage.START_TIME_FIELD_NUMBER:
+                    mStartTimes[i] = readVarint(msg);
+                    break;
+                case GLMessage.DURATION_FIELD_NUMBER:
+                    mWallDurations[i] = (int) readVarint(msg);
+                    break;
+                case GLMessage.FUNCTION_FIELD_NUMBER:
+                    mFunctions[i] = (int) readVarint(msg);
+                    break;
+                case GLMessage.THREADTIME_FIELD_NUMBER:
+                    mThreadDurations[i] = (int) readVarint(msg);
+                    break;
+                case GLMessage.FB_FIELD_NUMBER:
+                    mFlags[i] |= FLAG_HAS_FB;
+                    skipField(msg, wireType);
+                    break;
+                default:
+                    skipField(msg, wireType);
+                    break;
+            }
+        }
+    }
+
+    private static long readVarint(ByteBuffer b) throws InvalidProtocolBufferException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (!b.hasRemaining()) {
+                throw new InvalidProtocolBufferException("Truncated protocol buffer message.");
+            }
+
+            byte v = b.get();
+            result |= (long) (v & 0x7f) << shift;
+            if ((v & 0x80) == 0) {
+                return result;
+            }
+        }
+
+        throw new InvalidProtocolBufferException("Malformed varint in protocol buffer message.");
+    }
+
+    private static void skipField(ByteBuffer b, int wireType)
+            throws InvalidProtocolBufferException {
+        int skip;
+        switch (wireType) {
+            case WIRETYPE_VARINT:
+                readVarint(b);
+                return;
+            case WIRETYPE_FIXED64:
+                skip = 8;
+                break;
+            case WIRETYPE_LENGTH_DELIMITED:
+                skip = (int) readVarint(b);
+                break;
+            case WIRETYPE_FIXED32:
+                skip = 4;
+                break;
+            default:
+                throw new InvalidProtocolBufferException(
+                        "Unsupported wire type in protocol buffer message: " + wireType);
+        }
+
+        if (skip < 0 || skip > b.remaining()) {
+            throw new InvalidProtocolBufferException("Truncated protocol buffer message.");
+        }
+        b.position(b.position() + skip);
+    }
+
+    private void trimToSize() {
+        if (mCount == mOffsets.length) {
+            return;
+        }
+
+        mOffsets = Arrays.copyOf(mOffsets, mCount);
+        mLengths = Arrays.copyOf(mLengths, mCount);
+        mFunctions = Arrays.copyOf(mFunctions, mCount);
+        mContextIds = Arrays.copyOf(mContextIds, mCount);
+        mStartTimes = Arrays.copyOf(mStartTimes, mCount);
+        mWallDurations = Arrays.copyOf(mWallDurations, mCount);
+        mThreadDurations = Arrays.copyOf(mThreadDurations, mCount);
+        mFlags = Arrays.copyOf(mFlags, mCount);
+    }
+
+    /** Stable sort of all entries by their start time. */
+    void sortByStartTime() {
+        Integer[] order = new Integer[mCount];
+        for (int i = 0; i < mCount; i++) {
+            order[i] = Integer.valueOf(i);
+        }
+
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer i1, Integer i2) {
+                long t1 = mStartTimes[i1.intValue()];
+                long t2 = mStartTimes[i2.intValue()];
+                return t1 < t2 ? -1 : (t1 == t2 ? 0 : 1);
+            }
+        });
+
+        long[] offsets = mOffsets;
+        int[] lengths = mLengths;
+        int[] functions = mFunctions;
+        int[] contextIds = mContextIds;
+        long[] startTimes = mStartTimes;
+        int[] wallDurations = mWallDurations;
+        int[] threadDurations = mThreadDurations;
+        byte[] flags = mFlags;
+
+        allocate(mCount);
+        for (int i = 0; i < mCount; i++) {
+            int from = order[i].intValue();
+            mOffsets[i] = offsets[from];
+            mLengths[i] = lengths[from];
+            mFunctions[i] = functions[from];
+            mContextIds[i] = contextIds[from];
+            mStartTimes[i] = startTimes[from];
+            mWallDurations[i] = wallDurations[from];
+            mThreadDurations[i] = threadDurations[from];
+            mFlags[i] = flags[from];
+        }
+    }
+
+    /**
+     * Write this index to the given file. The trace file information is recorded so that
+     * a stale index can be detected by {@link #load(File, TraceFileInfo)}.
+     */
+    public void save(File indexFile, TraceFileInfo traceInfo) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(indexFile), 64 * 1024));
+        try {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(INDEX_VERSION);
+            out.writeLong(traceInfo.getSize());
+            out.writeLong(traceInfo.getLastModificationTime());
+            out.writeInt(mCount);
+
+            for (int i = 0; i < mCount; i++) {
+                out.writeLong(mOffsets[i]);
+            }
+            for (int i = 0; i < mCount; i++) {
+                out.writeInt(mLengths[i]);
+            }
+            for (int i = 0; i < mCount; i++) {
+                out.writeInt(mFunctions[i]);
+            }
+            for (int i = 0; i < mCount; i++) {
+                out.writeInt(mContextIds[i]);
+            }
+            for (int i = 0; i < mCount; i++) {
+                out.writeLong(mStartTimes[i]);
+            }
+            for (int i = 0; i < mCount; i++) {
+                out.writeInt(mWallDurations[i]);
+            }
+            for (int i = 0; i < mCount; i++) {
+                out.writeInt(mThreadDurations[i]);
+            }
+            out.write(mFlags, 0, mCount);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Read an index previously written by {@link #save(File, TraceFileInfo)}.
+     * @return the index, or null if the index file does not exist, is corrupt, or was
+     *         created for a different version of the trace file.
+     */
+    public static TraceFileIndex load(File indexFile, TraceFileInfo traceInfo) {
+        if (!indexFile.isFile() || indexFile.length() < HEADER_SIZE) {
+            return null;
+        }
+
+        RandomAccessFile f = null;
+        try {
+            f = new RandomAccessFile(indexFile, "r"); //$NON-NLS-1$
+            FileChannel channel = f.getChannel();
+            ByteBuffer b = channel.map(MapMode.READ_ONLY, 0, channel.size());
+
+            if (b.getInt() != INDEX_MAGIC
+                    || b.getInt() != INDEX_VERSION
+                    || b.getLong() != traceInfo.getSize()
+                    || b.getLong() != traceInfo.getLastModificationTime()) {
+                return null;
+            }
+
+            int count = b.getInt();
+            if (count < 0 || (long) count * ENTRY_SIZE != b.remaining()) {
+                return null;
+            }
+
+            TraceFileIndex index = new TraceFileIndex(count);
+
+            b.asLongBuffer().get(index.mOffsets);
+            b.position(b.position() + count * 8);
+            b.asIntBuffer().get(index.mLengths);
+            b.position(b.position() + count * 4);
+            b.asIntBuffer().get(index.mFunctions);
+            b.position(b.position() + count * 4);
+            b.asIntBuffer().get(index.mContextIds);
+            b.position(b.position() + count * 4);
+            b.asLongBuffer().get(index.mStartTimes);
+            b.position(b.position() + count * 8);
+            b.asIntBuffer().get(index.mWallDurations);
+            b.position(b.position() + count * 4);
+            b.asIntBuffer().get(index.mThreadDurations);
+            b.position(b.position() + count * 4);
+            b.get(index.mFlags);
+
+            for (int i = 0; i < count; i++) {
+                index.mEndOffset = Math.max(index.mEndOffset,
+                        index.mOffsets[i] + 4 + index.mLengths[i]);
+            }
+            index.updateSummary(0, count);
+            index.mCount = count;
+
+            return index;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (f != null) {
+                try {
+                    f.close();
+                } catch (IOException e) {
+                    // ignore exception while closing file
+                }
+            }
+        }
+    }
+
+    /** Returns the number of calls in the trace. */
+    public int getCallCount() {
+        return mCount;
+    }
+
+    /** Returns the offset in the trace file of the record for the given call. */
+    public long getOffset(int i) {
+        return mOffsets[i];
+    }
+
+    /** Returns the length of the protobuf message for the given call. */
+    public int getLength(int i) {
+        return mLengths[i];
+    }
+
+    public Function getFunction(int i) {
+        Function f = Function.valueOf(mFunctions[i]);
+        return f != null ? f : Function.invalid;
+    }
+
+    public int getContextId(int i) {
+        return mContextIds[i];
+    }
+
+    /** Returns the time on the device when the given call was invoked. */
+    public long getStartTime(int i) {
+        return mStartTimes[i];
+    }
+
+    public int getWallDuration(int i) {
+        return mWallDurations[i];
+    }
+
+    public int getThreadDuration(int i) {
+        return mThreadDurations[i];
+    }
+
+    public boolean hasFb(int i) {
+        return (mFlags[i] & FLAG_HAS_FB) != 0;
+    }
+
+    /**
+     * Returns the earliest start time across all calls in the trace. It may decrease when
+     * entries are {@link #append(MappedTraceFile) appended}.
+     */
+    public synchronized long getMinStartTime() {
+        return mCount > 0 ? mMinStartTime : 0;
+    }
+
+    /**
+     * Returns the sorted list of distinct context ids used in the trace. Contexts may be
+     * added when entries are {@link #append(MappedTraceFile) appended}.
+     */
+    public synchronized List<Integer> getContextIds() {
+        return new ArrayList<Integer>(mDistinctContextIds);
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ide.eclipse.gltrace;
+
+import com.android.ide.eclipse.gltrace.model.GLTrace;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Follows a trace file that is still being written to, e.g. while a trace is being captured
+ * by a {@link TraceFileWriter}, and extends the {@link GLTrace} with the calls and frames
+ * that are appended to the file.
+ *
+ * Calls are added in the order they appear in the file. If the application uses multiple
+ * contexts, the calls are only sorted by their invocation time when the trace file is
+ * parsed again. Contexts that first appear in the appended calls are added to the trace.
+ */
+public class TraceFileTail {
+    private final GLTrace mTrace;
+    private final MappedTraceFile mFile;
+    private final TraceFileIndex mIndex;
+
+    TraceFileTail(GLTrace trace, MappedTraceFile file, TraceFileIndex index) {
+        mTrace = trace;
+        mFile = file;
+        mIndex = index;
+    }
+
+    /**
+     * Add all the complete records that were appended to the trace file since the last
+     * update to the trace. This should be called from the UI thread, since it updates
+     * the lists of frames and contexts of the trace.
+     * @return the number of calls that were added
+     */
+    public int update() throws IOException {
+        if (!mFile.refresh()) {
+            return 0;
+        }
+
+        int added = mIndex.append(mFile);
+        if (added > 0) {
+            TraceFileParserTask.updateFrames(mIndex, mTrace.getFrames());
+            if (mIndex.getContextIds().size() != mTrace.getContexts().size()) {
+                mTrace.setContexts(mIndex.getContextIds());
+            }
+        }
+
+        String path = mTrace.getTraceFileInfo().getPath();
+        File f = new File(path);
+        mTrace.setTraceFileInfo(new TraceFileInfo(path, f.length(), f.lastModified()));
+
+        return added;
+    }
+}
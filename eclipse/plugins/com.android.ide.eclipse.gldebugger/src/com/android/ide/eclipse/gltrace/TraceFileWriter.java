@@ -51,6 +51,11 @@ public class TraceFileWriter {
         mReceiverThread.start();
     }
 
+    /** Returns whether trace data is still being received and written to the trace file. */
+    public boolean isRunning() {
+        return mReceiverThread != null && mReceiverThread.isAlive();
+    }
+
     public void stopTracing() {
         // close socket to stop the receiver thread
         try {
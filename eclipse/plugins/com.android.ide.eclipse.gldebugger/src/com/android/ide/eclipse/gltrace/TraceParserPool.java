@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ide.eclipse.gltrace;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A shared pool of worker threads used to decode trace records in parallel.
+ *
+ * Records in a trace file are independent of each other once their boundaries are known,
+ * so decoding a range of records can be split into sub ranges that are processed
+ * concurrently, with each worker writing to its own slots of the result.
+ */
+public class TraceParserPool {
+    /** Work performed on a range of records. */
+    public interface RangeTask {
+        /** Process records from start (inclusive) to end (exclusive). */
+        void run(int start, int end) throws Exception;
+    }
+
+    private static final int THREAD_COUNT = Runtime.getRuntime().availableProcessors();
+
+    private static ExecutorService sExecutor;
+
+    private static class WorkerThread extends Thread {
+        public WorkerThread(Runnable r, String name) {
+            super(r, name);
+            setDaemon(true);
+        }
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (sExecutor == null) {
+            final AtomicInteger threadCount = new AtomicInteger();
+            sExecutor = Executors.newFixedThreadPool(THREAD_COUNT, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new WorkerThread(r,
+                            "GL Trace Parser " + threadCount.incrementAndGet()); //$NON-NLS-1$
+                }
+            });
+        }
+
+        return sExecutor;
+    }
+
+    /** Returns the number of threads used to process records. */
+    public static int getThreadCount() {
+        return THREAD_COUNT;
+    }
+
+    /**
+     * Split the range [start, end) into sub ranges of at least minRangeSize records, and
+     * run the task on all of them concurrently. Returns once all the sub ranges have been
+     * processed. If called from one of the pool threads, the task is run on the entire
+     * range in the calling thread.
+     * @throws Exception the first exception thrown by the task on any sub range
+     */
+    public static void forEachRange(int start, int end, int minRangeSize, final RangeTask task)
+            throws Exception {
+        int count = end - start;
+        int ranges = Math.min(THREAD_COUNT, count / Math.max(1, minRangeSize));
+        if (ranges <= 1 || Thread.currentThread() instanceof WorkerThread) {
+            if (count > 0) {
+                task.run(start, end);
+            }
+            return;
+        }
+
+        int rangeSize = (count + ranges - 1) / ranges;
+        List<Callable<Void>> callables = new ArrayList<Callable<Void>>(ranges);
+        for (int s = start; s < end; s += rangeSize) {
+            final int rangeStart = s;
+            final int rangeEnd = Math.min(s + rangeSize, end);
+            callables.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    task.run(rangeStart, rangeEnd);
+                    return null;
+                }
+            });
+        }
+
+        List<Future<Void>> futures = getExecutor().invokeAll(callables);
+        for (Future<Void> f : futures) {
+            try {
+                f.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Exception) {
+                    throw (Exception) cause;
+                }
+                throw e;
+            }
+        }
+    }
+}
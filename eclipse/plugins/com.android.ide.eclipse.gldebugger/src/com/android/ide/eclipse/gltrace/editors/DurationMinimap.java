@@ -97,7 +97,7 @@ public class DurationMinimap extends Canvas {
     private int mMouseY;
 
     // helper object used to position various items on screen
-    private final PositionHelper mPositionHelper;
+    private PositionHelper mPositionHelper;
 
     public DurationMinimap(Composite parent, GLTrace trace) {
         super(parent, SWT.NO_BACKGROUND);
@@ -107,11 +107,7 @@ public class DurationMinimap extends Canvas {
         initializeColors();
         initializeFonts();
 
-        mPositionHelper = new PositionHelper(
-                mFontHeight,
-                mContextCount,
-                mFontWidth * MAX_DURATION_LENGTH_SCALE, /* max display length for call. */
-                CALL_DURATION_CLAMP                     /* max duration */);
+        mPositionHelper = createPositionHelper();
 
         addPaintListener(new PaintListener() {
             @Override
@@ -161,6 +157,8 @@ public class DurationMinimap extends Canvas {
     }
 
     public void setInput(GLTrace trace) {
+        int contextCount = mContextCount;
+
         if (trace != null) {
             mCalls = trace.getGLCalls();
             mContextCount = trace.getContexts().size();
@@ -168,6 +166,22 @@ public class DurationMinimap extends Canvas {
             mCalls = null;
             mContextCount = 1;
         }
+
+        if (mPositionHelper != null && mContextCount != contextCount) {
+            // the contexts of a trace that is being captured are found as calls arrive
+            mPositionHelper = createPositionHelper();
+            mPositionHelper.updateCallDensity(mEndCallIndex - mStartCallIndex,
+                    getClientArea().height);
+            redraw();
+        }
+    }
+
+    private PositionHelper createPositionHelper() {
+        return new PositionHelper(
+                mFontHeight,
+                mContextCount,
+                mFontWidth * MAX_DURATION_LENGTH_SCALE, /* max display length for call. */
+                CALL_DURATION_CLAMP                     /* max duration */);
     }
 
     @Override
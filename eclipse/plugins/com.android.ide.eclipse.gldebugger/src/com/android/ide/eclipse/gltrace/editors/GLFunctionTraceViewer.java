@@ -22,11 +22,14 @@ import com.android.ide.eclipse.gltrace.GLProtoBuf.GLMessage.Function;
 import com.android.ide.eclipse.gltrace.GlTracePlugin;
 import com.android.ide.eclipse.gltrace.SwtUtils;
 import com.android.ide.eclipse.gltrace.TraceFileParserTask;
+import com.android.ide.eclipse.gltrace.TraceFileTail;
+import com.android.ide.eclipse.gltrace.TraceFileWriter;
 import com.android.ide.eclipse.gltrace.editors.DurationMinimap.ICallSelectionListener;
 import com.android.ide.eclipse.gltrace.editors.GLCallGroups.GLCallNode;
 import com.android.ide.eclipse.gltrace.model.GLCall;
 import com.android.ide.eclipse.gltrace.model.GLFrame;
 import com.android.ide.eclipse.gltrace.model.GLTrace;
+import com.android.ide.eclipse.gltrace.model.TraceStatistics;
 import com.android.ide.eclipse.gltrace.views.FrameSummaryViewPage;
 import com.android.ide.eclipse.gltrace.views.detail.DetailsPage;
 import com.google.common.base.Charsets;
@@ -40,6 +43,7 @@ import org.eclipse.jface.action.Action;
 import org.eclipse.jface.dialogs.ErrorDialog;
 import org.eclipse.jface.dialogs.MessageDialog;
 import org.eclipse.jface.dialogs.ProgressMonitorDialog;
+import org.eclipse.jface.operation.IRunnableWithProgress;
 import org.eclipse.jface.resource.ImageDescriptor;
 import org.eclipse.jface.viewers.CellLabelProvider;
 import org.eclipse.jface.viewers.ColumnLabelProvider;
@@ -94,9 +98,11 @@ import org.eclipse.ui.part.EditorPart;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.Writer;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -116,6 +122,10 @@ public class GLFunctionTraceViewer extends EditorPart implements ISelectionProvi
     private Spinner mFrameSelectionSpinner;
 
     private GLTrace mTrace;
+    private TraceFileTail mTraceTail;
+
+    /** Interval at which the trace file is checked for new calls while it is captured. */
+    private static final int CAPTURE_REFRESH_INTERVAL_MS = 500;
 
     private TreeViewer mFrameTreeViewer;
     private List<GLCallNode> mTreeViewerNodes;
@@ -164,6 +174,7 @@ public class GLFunctionTraceViewer extends EditorPart implements ISelectionProvi
     private ToolItem mExpandAllToolItem;
     private ToolItem mCollapseAllToolItem;
     private ToolItem mSaveAsToolItem;
+    private ToolItem mExportStatsToolItem;
 
     public GLFunctionTraceViewer() {
         mGldrawTextColor = Display.getDefault().getSystemColor(SWT.COLOR_BLUE);
@@ -194,6 +205,16 @@ public class GLFunctionTraceViewer extends EditorPart implements ISelectionProvi
         setPartName(f.getName());
     }
 
+    @Override
+    public void dispose() {
+        if (mTrace != null) {
+            mTrace.dispose();
+            mTrace = null;
+        }
+
+        super.dispose();
+    }
+
     @Override
     public boolean isDirty() {
         return false;
@@ -261,7 +282,11 @@ public class GLFunctionTraceViewer extends EditorPart implements ISelectionProvi
             return;
         }
 
+        if (mTrace != null) {
+            mTrace.dispose();
+        }
         mTrace = parser.getTrace();
+        mTraceTail = parser.getTail();
         mShowContextSwitcher = (mTrace == null) ? false : mTrace.getContexts().size() > 1;
         if (mStateViewPage != null) {
             mStateViewPage.setInput(mTrace);
@@ -294,6 +319,62 @@ public class GLFunctionTraceViewer extends EditorPart implements ISelectionProvi
         selectFrame(1);
     }
 
+    /**
+     * Extend the displayed trace with the calls that are written to the trace file, for as
+     * long as the given writer is receiving trace data. If the last frame was selected, the
+     * selection follows the frames as they are added.
+     */
+    public void followCapture(final TraceFileWriter writer) {
+        final Display display = Display.getDefault();
+        display.timerExec(CAPTURE_REFRESH_INTERVAL_MS, new Runnable() {
+            @Override
+            public void run() {
+                if (mFrameSelectionScale == null || mFrameSelectionScale.isDisposed()) {
+                    return;
+                }
+
+                // check before updating, so that the final records are picked up
+                boolean capturing = writer.isRunning();
+                updateFromTraceFile();
+                if (capturing) {
+                    display.timerExec(CAPTURE_REFRESH_INTERVAL_MS, this);
+                }
+            }
+        });
+    }
+
+    private void updateFromTraceFile() {
+        if (mTrace == null || mTraceTail == null) {
+            return;
+        }
+
+        int frameCount = mTrace.getFrames().size();
+        int contextCount = mTrace.getContexts().size();
+        int added;
+        try {
+            added = mTraceTail.update();
+        } catch (IOException e) {
+            GlTracePlugin.getDefault().logMessage(
+                    "Unexpected error while reading trace file: " + e.getMessage());
+            return;
+        }
+
+        if (added == 0) {
+            return;
+        }
+
+        if (mTrace.getContexts().size() != contextCount) {
+            updateContexts();
+        }
+
+        boolean followLastFrame = mCurrentFrame >= frameCount - 1;
+        int newFrameCount = mTrace.getFrames().size();
+        setFrameCount(newFrameCount);
+        if (followLastFrame) {
+            selectFrame(newFrameCount);
+        }
+    }
+
     private void createFrameSelectionControls(Composite parent) {
         Composite c = new Composite(parent, SWT.NONE);
         c.setLayout(new GridLayout(3, false));
@@ -431,6 +512,56 @@ public class GLFunctionTraceViewer extends EditorPart implements ISelectionProvi
         mFrameTreeViewer.expandAll();
     }
 
+    private void createContextSwitcher(Composite c) {
+        mContextSwitchCombo = new Combo(c, SWT.BORDER | SWT.READ_ONLY);
+
+        // Setup the combo such that "All Contexts" is the first item,
+        // and then we have an item for each context.
+        mContextSwitchCombo.add("All Contexts");
+        mContextSwitchCombo.select(0);
+        for (int i = 0; i < mTrace.getContexts().size(); i++) {
+            mContextSwitchCombo.add("Context " + i);
+        }
+
+        mContextSwitchCombo.addSelectionListener(new SelectionAdapter() {
+            @Override
+            public void widgetSelected(SelectionEvent e) {
+                selectContext(mContextSwitchCombo.getSelectionIndex() - 1);
+            }
+        });
+    }
+
+    /**
+     * Show the contexts that were found in the calls appended to a trace that is being
+     * captured: the context switcher is added once there is more than one context.
+     */
+    private void updateContexts() {
+        if (mDurationMinimap != null) {
+            mDurationMinimap.setInput(mTrace);
+            mDurationMinimap.getParent().layout();
+        }
+
+        int contextCount = mTrace.getContexts().size();
+        if (contextCount <= 1) {
+            return;
+        }
+
+        if (mContextSwitchCombo == null) {
+            Composite c = mFilterText.getParent();
+            ((GridLayout) c.getLayout()).numColumns++;
+            mShowContextSwitcher = true;
+            createContextSwitcher(c);
+            mContextSwitchCombo.moveBelow(mFilterText);
+            c.layout();
+            selectContext(-1);
+        } else {
+            // the first item is "All Contexts"
+            for (int i = mContextSwitchCombo.getItemCount() - 1; i < contextCount; i++) {
+                mContextSwitchCombo.add("Context " + i);
+            }
+        }
+    }
+
     private void createOptionsBar(Composite parent) {
         int numColumns = mShowContextSwitcher ? 4 : 3;
 
@@ -453,23 +584,8 @@ public class GLFunctionTraceViewer extends EditorPart implements ISelectionProvi
         });
 
         if (mShowContextSwitcher) {
-            mContextSwitchCombo = new Combo(c, SWT.BORDER | SWT.READ_ONLY);
-
-            // Setup the combo such that "All Contexts" is the first item,
-            // and then we have an item for each context.
-            mContextSwitchCombo.add("All Contexts");
-            mContextSwitchCombo.select(0);
+            createContextSwitcher(c);
             mCurrentlyDisplayedContext = -1; // showing all contexts
-            for (int i = 0; i < mTrace.getContexts().size(); i++) {
-                mContextSwitchCombo.add("Context " + i);
-            }
-
-            mContextSwitchCombo.addSelectionListener(new SelectionAdapter() {
-                @Override
-                public void widgetSelected(SelectionEvent e) {
-                    selectContext(mContextSwitchCombo.getSelectionIndex() - 1);
-                }
-            });
         } else {
             mCurrentlyDisplayedContext = 0;
         }
@@ -498,6 +614,12 @@ public class GLFunctionTraceViewer extends EditorPart implements ISelectionProvi
                 PlatformUI.getWorkbench().getSharedImages().getImage(
                         ISharedImages.IMG_ETOOL_SAVEAS_EDIT));
 
+        mExportStatsToolItem = new ToolItem(toolBar, SWT.PUSH);
+        mExportStatsToolItem.setToolTipText("Export Performance Statistics for All Frames");
+        mExportStatsToolItem.setImage(
+                PlatformUI.getWorkbench().getSharedImages().getImage(
+                        ISharedImages.IMG_ETOOL_SAVEALL_EDIT));
+
         SelectionListener toolbarSelectionListener = new SelectionAdapter() {
             @Override
             public void widgetSelected(SelectionEvent e) {
@@ -507,12 +629,15 @@ public class GLFunctionTraceViewer extends EditorPart implements ISelectionProvi
                     setTreeItemsExpanded(true);
                 } else if (e.getSource() == mSaveAsToolItem) {
                     exportTrace();
+                } else if (e.getSource() == mExportStatsToolItem) {
+                    exportStatistics();
                 }
             }
         };
         mExpandAllToolItem.addSelectionListener(toolbarSelectionListener);
         mCollapseAllToolItem.addSelectionListener(toolbarSelectionListener);
         mSaveAsToolItem.addSelectionListener(toolbarSelectionListener);
+        mExportStatsToolItem.addSelectionListener(toolbarSelectionListener);
     }
 
     private void updateAppliedFilters() {
@@ -905,6 +1030,100 @@ public class GLFunctionTraceViewer extends EditorPart implements ISelectionProvi
         }
     }
 
+    /**
+     * Compute the performance statistics over all frames, and save them either as JSON, or
+     * as CSV. In the latter case, the per frame statistics are saved in a second file next
+     * to the selected one.
+     */
+    private void exportStatistics() {
+        if (mTrace == null || mFrameTreeViewer == null
+                || mFrameTreeViewer.getTree().isDisposed()) {
+            return;
+        }
+
+        Shell shell = mFrameTreeViewer.getTree().getShell();
+        FileDialog fd = new FileDialog(shell, SWT.SAVE);
+        fd.setFilterExtensions(new String[] { "*.csv", "*.json" });
+        if (sLastExportedToFolder != null) {
+            fd.setFilterPath(sLastExportedToFolder);
+        }
+
+        String path = fd.open();
+        if (path == null) {
+            return;
+        }
+
+        final GLTrace trace = mTrace;
+        final TraceStatistics[] stats = new TraceStatistics[1];
+        ProgressMonitorDialog dlg = new ProgressMonitorDialog(shell);
+        try {
+            dlg.run(true, true, new IRunnableWithProgress() {
+                @Override
+                public void run(IProgressMonitor monitor) throws InterruptedException {
+                    monitor.beginTask("Computing OpenGL Performance Statistics",
+                            trace.getFrames().size());
+                    try {
+                        stats[0] = TraceStatistics.compute(trace, monitor);
+                    } finally {
+                        monitor.done();
+                    }
+                }
+            });
+        } catch (InvocationTargetException e) {
+            ErrorDialog.openError(shell,
+                    "Export performance statistics.",
+                    "Unexpected error computing performance statistics.",
+                    new Status(Status.ERROR, GlTracePlugin.PLUGIN_ID,
+                            e.getCause().toString()));
+            return;
+        } catch (InterruptedException e) {
+            // operation canceled by user
+            return;
+        }
+
+        File f = new File(path);
+        sLastExportedToFolder = f.getParent();
+        try {
+            exportStatisticsTo(stats[0], f);
+        } catch (IOException e) {
+            ErrorDialog.openError(shell,
+                    "Export performance statistics.",
+                    "Unexpected error exporting performance statistics.",
+                    new Status(Status.ERROR, GlTracePlugin.PLUGIN_ID, e.toString()));
+        }
+    }
+
+    private void exportStatisticsTo(TraceStatistics stats, File f) throws IOException {
+        String name = f.getName();
+        if (name.toLowerCase(Locale.US).endsWith(".json")) { //$NON-NLS-1$
+            Writer w = Files.newWriter(f, Charsets.UTF_8);
+            try {
+                stats.writeJson(w);
+            } finally {
+                w.close();
+            }
+            return;
+        }
+
+        String baseName = name.toLowerCase(Locale.US).endsWith(".csv") ? //$NON-NLS-1$
+                name.substring(0, name.length() - 4) : name;
+        File framesFile = new File(f.getParentFile(), baseName + "-frames.csv"); //$NON-NLS-1$
+
+        Writer w = Files.newWriter(f, Charsets.UTF_8);
+        try {
+            stats.writeFunctionStatsCsv(w);
+        } finally {
+            w.close();
+        }
+
+        w = Files.newWriter(framesFile, Charsets.UTF_8);
+        try {
+            stats.writeFrameStatsCsv(w);
+        } finally {
+            w.close();
+        }
+    }
+
     private void exportFrameTo(File f) throws IOException {
         String glCalls = serializeGlCalls(mTrace.getGLCalls(), mCallStartIndex, mCallEndIndex);
         Files.write(glCalls, f, Charsets.UTF_8);
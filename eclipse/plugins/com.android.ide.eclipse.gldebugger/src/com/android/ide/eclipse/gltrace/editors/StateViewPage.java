@@ -22,6 +22,8 @@ import com.android.ide.eclipse.gltrace.model.GLCall;
 import com.android.ide.eclipse.gltrace.model.GLTrace;
 import com.android.ide.eclipse.gltrace.state.GLState;
 import com.android.ide.eclipse.gltrace.state.IGLProperty;
+import com.android.ide.eclipse.gltrace.state.ImmutableGLProperty;
+import com.android.ide.eclipse.gltrace.state.StateCheckpoints;
 import com.android.ide.eclipse.gltrace.state.StatePrettyPrinter;
 import com.android.ide.eclipse.gltrace.state.transforms.IStateTransform;
 import com.google.common.base.Charsets;
@@ -60,6 +62,7 @@ import org.eclipse.ui.part.Page;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
@@ -81,6 +84,12 @@ public class StateViewPage extends Page implements ISelectionListener, ISelectio
     private IGLProperty mState;
     private int mCurrentStateIndex;
 
+    /** Persistent version of {@link #mState}, updated along with it. */
+    private ImmutableGLProperty mStateVersion;
+
+    /** Snapshots of the OpenGL state used to quickly move to an arbitrary call. */
+    private final StateCheckpoints mCheckpoints = new StateCheckpoints();
+
     private String[] TREE_PROPERTIES = { "Name", "Value" };
     private TreeViewer mTreeViewer;
     private StateLabelProvider mLabelProvider;
@@ -98,7 +107,14 @@ public class StateViewPage extends Page implements ISelectionListener, ISelectio
         }
 
         mState = GLState.createDefaultState();
+        mStateVersion = ImmutableGLProperty.of(mState);
         mCurrentStateIndex = -1;
+        try {
+            sGlStateLock.acquire();
+            mCheckpoints.clear();
+        } finally {
+            sGlStateLock.release();
+        }
 
         if (mTreeViewer != null) {
             mTreeViewer.setInput(mState);
@@ -268,28 +284,41 @@ public class StateViewPage extends Page implements ISelectionListener, ISelectio
 
     /**
      * Update GL state from GL call at fromIndex to the call at toIndex.
-     * If fromIndex < toIndex, the GL state will be updated by applying all the transformations
-     * corresponding to calls from (fromIndex + 1) to toIndex (inclusive).
-     * If fromIndex > toIndex, the GL state will be updated by reverting all the calls from
-     * fromIndex (inclusive) to (toIndex + 1).
+     * If fromIndex < toIndex and there is no checkpoint in between, the GL state will be
+     * updated by applying all the transformations corresponding to calls from
+     * (fromIndex + 1) to toIndex (inclusive). Otherwise, the GL state is restored from the
+     * closest checkpoint before toIndex, and only the calls after that checkpoint are applied.
      * @return GL state properties that changed as a result of this update.
      */
     private Set<IGLProperty> updateState(int fromIndex, int toIndex) {
         assert fromIndex >= -1 && fromIndex < mGLCalls.size();
         assert toIndex >= 0 && toIndex < mGLCalls.size();
 
-        if (fromIndex < toIndex) {
-            return applyTransformations(fromIndex, toIndex);
-        } else if (fromIndex > toIndex) {
-            return revertTransformations(fromIndex, toIndex);
-        } else {
+        if (fromIndex == toIndex) {
             return Collections.emptySet();
         }
+
+        int checkpoint = mCheckpoints.getCheckpointAtOrBefore(toIndex);
+        if (fromIndex < toIndex && checkpoint <= fromIndex) {
+            return applyTransformations(fromIndex, toIndex, true);
+        }
+
+        return restoreState(checkpoint, fromIndex, toIndex);
     }
 
-    private Set<IGLProperty> applyTransformations(int fromIndex, int toIndex) {
-        int setSizeHint = 3 * (toIndex - fromIndex) + 10;
-        Set<IGLProperty> changedProperties = new HashSet<IGLProperty>(setSizeHint);
+    /**
+     * Apply the transformations for calls from (fromIndex + 1) to toIndex (inclusive),
+     * recording checkpoints along the way.
+     * @param collectChanges whether the changed properties should be computed
+     * @return GL state properties that changed, if collectChanges is set
+     */
+    private Set<IGLProperty> applyTransformations(int fromIndex, int toIndex,
+            boolean collectChanges) {
+        Set<IGLProperty> changedProperties = Collections.emptySet();
+        if (collectChanges) {
+            int setSizeHint = 3 * (toIndex - fromIndex) + 10;
+            changedProperties = new HashSet<IGLProperty>(setSizeHint);
+        }
 
         for (int i = fromIndex + 1; i <= toIndex; i++) {
             GLCall call = mGLCalls.get(i);
@@ -298,35 +327,65 @@ public class StateViewPage extends Page implements ISelectionListener, ISelectio
                     f.apply(mState);
                     IGLProperty changedProperty = f.getChangedProperty(mState);
                     if (changedProperty != null) {
-                        changedProperties.addAll(getHierarchy(changedProperty));
+                        mStateVersion = mStateVersion.update(changedProperty);
+                        if (collectChanges) {
+                            changedProperties.addAll(getHierarchy(changedProperty));
+                        }
                     }
                 } catch (Exception e) {
                     GlTracePlugin.getDefault().logMessage("Error applying transformations for "
                             + call);
                     GlTracePlugin.getDefault().logMessage(e.toString());
+
+                    // the transform may have been partially applied
+                    mStateVersion = ImmutableGLProperty.sync(mStateVersion, mState);
                 }
             }
+
+            mCheckpoints.update(i, mStateVersion);
         }
 
         return changedProperties;
     }
 
-    private Set<IGLProperty> revertTransformations(int fromIndex, int toIndex) {
-        int setSizeHint = 3 * (fromIndex - toIndex) + 10;
-        Set<IGLProperty> changedProperties = new HashSet<IGLProperty>(setSizeHint);
-
-        for (int i = fromIndex; i > toIndex; i--) {
-            List<IStateTransform> transforms = mGLCalls.get(i).getStateTransformations();
-            // When reverting transformations, iterate from the last to first so that the reversals
-            // are performed in the correct sequence.
-            for (int j = transforms.size() - 1; j >= 0; j--) {
-                IStateTransform f = transforms.get(j);
-                f.revert(mState);
-
-                IGLProperty changedProperty = f.getChangedProperty(mState);
-                if (changedProperty != null) {
-                    changedProperties.addAll(getHierarchy(changedProperty));
-                }
+    /**
+     * Restore the GL state as of call toIndex from the given checkpoint (or from the default
+     * state if the checkpoint is -1), by applying the calls after the checkpoint.
+     * Calls are materialized lazily by the trace, so the transformations that were
+     * applied to reach fromIndex may no longer be around to be reverted. The changed
+     * properties are instead obtained by comparing snapshots of the state before and
+     * after the update.
+     */
+    private Set<IGLProperty> restoreState(int checkpoint, int fromIndex, int toIndex) {
+        ImmutableGLProperty before = mStateVersion;
+
+        ImmutableGLProperty snapshot = checkpoint >= 0 ? mCheckpoints.getSnapshot(checkpoint)
+                : null;
+        if (snapshot == null) {
+            snapshot = ImmutableGLProperty.sync(before, GLState.createDefaultState());
+            checkpoint = -1;
+        }
+
+        // the state is restored in place, so that the tree viewer keeps its expanded
+        // and selected properties
+        ImmutableGLProperty.restore(mState, before, snapshot);
+        mStateVersion = snapshot;
+
+        applyTransformations(checkpoint, toIndex, false);
+
+        ImmutableGLProperty after = mStateVersion;
+        List<Object[]> changedPaths = ImmutableGLProperty.diff(before, after);
+        Set<IGLProperty> changedProperties = new HashSet<IGLProperty>(3 * changedPaths.size());
+        for (Object[] path : changedPaths) {
+            // properties that were removed are highlighted through their closest ancestor
+            IGLProperty changedProperty = null;
+            for (int len = path.length; changedProperty == null && len >= 0; len--) {
+                changedProperty = ImmutableGLProperty.resolve(mState,
+                        Arrays.copyOf(path, len));
+            }
+
+            if (changedProperty != null) {
+                changedProperties.addAll(getHierarchy(changedProperty));
             }
         }
 
@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ide.eclipse.gltrace.model;
+
+import com.android.ide.eclipse.gltrace.GLProtoBuf.GLMessage;
+import com.android.ide.eclipse.gltrace.GlTracePlugin;
+import com.android.ide.eclipse.gltrace.MappedTraceFile;
+import com.android.ide.eclipse.gltrace.ProtoBufUtils;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.swt.graphics.ImageData;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A cache of decoded framebuffer images, keyed by the offset of their message in the
+ * trace file.
+ *
+ * The most recently used images are kept until their total size exceeds the cache size.
+ * Images of calls that are likely to be viewed next can be decoded ahead of time by a
+ * background job, so that moving between frames does not have to wait for decompression.
+ *
+ * The cached {@link ImageData} objects are shared and must not be modified by callers.
+ */
+public class FramebufferImageCache {
+    /** Default upper bound on the memory used by the cached images. */
+    public static final long DEFAULT_CACHE_SIZE = 64 * 1024 * 1024;
+
+    private final MappedTraceFile mTraceFile;
+    private final long mMaxSize;
+
+    private final Map<Long, ImageData> mImages =
+            new LinkedHashMap<Long, ImageData>(16, 0.75f, true);
+    private long mSize;
+
+    private final PrefetchJob mPrefetchJob = new PrefetchJob();
+
+    public FramebufferImageCache(MappedTraceFile traceFile, long maxSize) {
+        mTraceFile = traceFile;
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Returns the framebuffer image of the message at the given offset, decoding it if it
+     * is not in the cache.
+     * @return the image, or null if the message could not be read or has no framebuffer
+     */
+    public ImageData get(long offset) {
+        Long key = Long.valueOf(offset);
+        synchronized (mImages) {
+            ImageData imageData = mImages.get(key);
+            if (imageData != null) {
+                return imageData;
+            }
+        }
+
+        ImageData imageData = decode(offset);
+        if (imageData != null) {
+            put(key, imageData);
+        }
+        return imageData;
+    }
+
+    /** Returns whether the image for the message at the given offset is in the cache. */
+    public boolean contains(long offset) {
+        synchronized (mImages) {
+            return mImages.containsKey(Long.valueOf(offset));
+        }
+    }
+
+    private ImageData decode(long offset) {
+        try {
+            GLMessage msg = mTraceFile.getMessageAtOffset(offset);
+            return msg == null ? null : ProtoBufUtils.getImageData(msg);
+        } catch (Exception e) {
+            GlTracePlugin.getDefault().logMessage(
+                    "Unexpected error while retrieving framebuffer image: " + e);
+            return null;
+        }
+    }
+
+    private void put(Long key, ImageData imageData) {
+        long size = getSize(imageData);
+        if (size > mMaxSize) {
+            return;
+        }
+
+        synchronized (mImages) {
+            ImageData previous = mImages.put(key, imageData);
+            if (previous != null) {
+                mSize -= getSize(previous);
+            }
+            mSize += size;
+
+            Iterator<ImageData> it = mImages.values().iterator();
+            while (mSize > mMaxSize && it.hasNext()) {
+                mSize -= getSize(it.next());
+                it.remove();
+            }
+        }
+    }
+
+    private static long getSize(ImageData imageData) {
+        long size = imageData.data.length;
+        if (imageData.alphaData != null) {
+            size += imageData.alphaData.length;
+        }
+        return size;
+    }
+
+    /**
+     * Decode the framebuffers of the given calls in the background. The calls are
+     * considered in order, and at most maxImages framebuffers are decoded. A new request
+     * replaces any request that has not been completed yet.
+     * @param calls list of calls in the trace
+     * @param callIndices indices of the candidate calls, in order of priority
+     */
+    public void prefetch(List<GLCall> calls, int[] callIndices, int maxImages) {
+        mPrefetchJob.setRequest(new PrefetchRequest(calls, callIndices, maxImages));
+    }
+
+    /** Cancel any pending prefetch and release all the cached images. */
+    public void dispose() {
+        mPrefetchJob.setRequest(null);
+        mPrefetchJob.cancel();
+
+        synchronized (mImages) {
+            mImages.clear();
+            mSize = 0;
+        }
+    }
+
+    private static class PrefetchRequest {
+        final List<GLCall> calls;
+        final int[] callIndices;
+        final int maxImages;
+
+        PrefetchRequest(List<GLCall> calls, int[] callIndices, int maxImages) {
+            this.calls = calls;
+            this.callIndices = callIndices;
+            this.maxImages = maxImages;
+        }
+    }
+
+    private class PrefetchJob extends Job {
+        private PrefetchRequest mRequest;
+
+        public PrefetchJob() {
+            super("Prefetch Framebuffer Images");
+            setSystem(true);
+            setPriority(Job.DECORATE);
+        }
+
+        public synchronized void setRequest(PrefetchRequest request) {
+            mRequest = request;
+            if (request != null) {
+                schedule();
+            }
+        }
+
+        private synchronized boolean isCurrent(PrefetchRequest request) {
+            return mRequest == request;
+        }
+
+        private synchronized PrefetchRequest getRequest() {
+            return mRequest;
+        }
+
+        @Override
+        protected IStatus run(IProgressMonitor monitor) {
+            PrefetchRequest request = getRequest();
+            if (request == null) {
+                return Status.OK_STATUS;
+            }
+
+            int decoded = 0;
+            for (int i = 0; i < request.callIndices.length && decoded < request.maxImages; i++) {
+                // stop as soon as a newer request comes in, it will reschedule this job
+                if (monitor.isCanceled() || !isCurrent(request)) {
+                    return Status.CANCEL_STATUS;
+                }
+
+                int callIndex = request.callIndices[i];
+                if (callIndex < 0 || callIndex >= request.calls.size()) {
+                    continue;
+                }
+
+                GLCall call = request.calls.get(callIndex);
+                if (!call.hasFb()) {
+                    continue;
+                }
+
+                decoded++;
+                if (!contains(call.getOffsetInTraceFile())) {
+                    get(call.getOffsetInTraceFile());
+                }
+            }
+
+            return Status.OK_STATUS;
+        }
+    }
+}
@@ -32,8 +32,23 @@ import java.util.List;
  * into the trace file corresponding to original protocol buffer message. If full image data
  * is required, the protocol buffer message can be recreated by reading the trace at the
  * specified offset.
+ *
+ * A GLCall may also be created with just the values that are needed to lay out the trace
+ * (function, context, timing etc.). Its details, i.e. the formatted string, the properties
+ * and the state transformations, are then obtained from an {@link IDetailsLoader} the first
+ * time they are accessed.
  */
 public class GLCall {
+    /** Provides the details of a call that are only created when they are needed. */
+    public interface IDetailsLoader {
+        /**
+         * Set the display string, properties and state transformations of the given call,
+         * using {@link GLCall#setDisplayString(String)}, {@link GLCall#addProperty(int, Object)}
+         * and {@link GLCall#setStateTransformations(List)}.
+         */
+        void loadDetails(GLCall call);
+    }
+
     /** Marker name provided by a {@link Function#glPushGroupMarkerEXT} call. */
     public static final int PROPERTY_MARKERNAME = 0;
 
@@ -59,7 +74,7 @@ public class GLCall {
     private final boolean mHasFb;
 
     /** Full string representation of this call. */
-    private final String mDisplayString;
+    private String mDisplayString;
 
     /** The actual GL Function called. */
     private final Function mFunction;
@@ -82,6 +97,9 @@ public class GLCall {
     /** List of properties associated to this call. */
     private SparseArray<Object> mProperties;
 
+    /** Loader for the details of this call, null once they have been loaded. */
+    private IDetailsLoader mDetailsLoader;
+
     public GLCall(int index, long startTime, long traceFileOffset, String displayString,
             Function function, boolean hasFb, int contextId,
             int wallTime, int threadTime) {
@@ -96,6 +114,26 @@ public class GLCall {
         mThreadDuration = threadTime;
     }
 
+    /**
+     * Construct a call whose details are only loaded from the given loader when they
+     * are accessed.
+     */
+    public GLCall(int index, long startTime, long traceFileOffset, Function function,
+            boolean hasFb, int contextId, int wallTime, int threadTime,
+            IDetailsLoader detailsLoader) {
+        this(index, startTime, traceFileOffset, null, function, hasFb, contextId,
+                wallTime, threadTime);
+        mDetailsLoader = detailsLoader;
+    }
+
+    private synchronized void loadDetails() {
+        if (mDetailsLoader != null) {
+            IDetailsLoader loader = mDetailsLoader;
+            mDetailsLoader = null;
+            loader.loadDetails(this);
+        }
+    }
+
     public int getIndex() {
         return mIndex;
     }
@@ -140,20 +178,28 @@ public class GLCall {
         mStateTransformationCreationErrorMessage = errorMessage;
     }
 
+    public void setDisplayString(String displayString) {
+        mDisplayString = displayString;
+    }
+
     public boolean hasErrors() {
+        loadDetails();
         return mStateTransformationCreationErrorMessage != null;
     }
 
     public String getError() {
+        loadDetails();
         return mStateTransformationCreationErrorMessage;
     }
 
     public List<IStateTransform> getStateTransformations() {
+        loadDetails();
         return mStateTransforms;
     }
 
     @Override
     public String toString() {
+        loadDetails();
         return mDisplayString;
     }
 
@@ -174,6 +220,7 @@ public class GLCall {
      * is associated with this {@link GLCall}.
      */
     public Object getProperty(int propertyName) {
+        loadDetails();
         if (mProperties == null) {
             return null;
         }
@@ -16,27 +16,30 @@
 
 package com.android.ide.eclipse.gltrace.model;
 
-import com.android.ide.eclipse.gltrace.GLProtoBuf.GLMessage;
-import com.android.ide.eclipse.gltrace.ProtoBufUtils;
+import com.android.ide.eclipse.gltrace.MappedTraceFile;
 import com.android.ide.eclipse.gltrace.TraceFileInfo;
-import com.android.ide.eclipse.gltrace.TraceFileReader;
 
 import org.eclipse.swt.graphics.Image;
+import org.eclipse.swt.graphics.ImageData;
 import org.eclipse.swt.widgets.Display;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.util.Collections;
 import java.util.List;
 
 /** GLTrace is the in memory model of a OpenGL trace file. */
 public class GLTrace {
-    private static final TraceFileReader sTraceFileReader = new TraceFileReader();
+    /** Number of images of neighbouring calls or frames that are decoded ahead of time. */
+    private static final int PREFETCH_IMAGE_COUNT = 4;
+
+    /** Number of calls on either side of a call that are searched for images to prefetch. */
+    private static final int PREFETCH_CALL_RANGE = 256;
 
     /** Information regarding the trace file. */
-    private final TraceFileInfo mTraceFileInfo;
+    private volatile TraceFileInfo mTraceFileInfo;
+
+    /** The memory mapped trace file. */
+    private final MappedTraceFile mTraceFile;
 
     /** List of frames in the trace. */
     private final List<GLFrame> mGLFrames;
@@ -45,14 +48,32 @@ public class GLTrace {
     private final List<GLCall> mGLCalls;
 
     /** List of context ids used by the application. */
-    private List<Integer> mContextIds;
+    private volatile List<Integer> mContextIds;
+
+    /** Decoded framebuffer images. */
+    private final FramebufferImageCache mImageCache;
 
-    public GLTrace(TraceFileInfo traceFileInfo, List<GLFrame> glFrames, List<GLCall> glCalls,
-            List<Integer> contextIds) {
+    public GLTrace(TraceFileInfo traceFileInfo, MappedTraceFile traceFile, List<GLFrame> glFrames,
+            List<GLCall> glCalls, List<Integer> contextIds) {
         mTraceFileInfo = traceFileInfo;
+        mTraceFile = traceFile;
         mGLFrames = glFrames;
         mGLCalls = glCalls;
         mContextIds = contextIds;
+        mImageCache = new FramebufferImageCache(traceFile,
+                FramebufferImageCache.DEFAULT_CACHE_SIZE);
+    }
+
+    public TraceFileInfo getTraceFileInfo() {
+        return mTraceFileInfo;
+    }
+
+    /**
+     * Update the information regarding the trace file after records have been appended
+     * to it and added to this trace.
+     */
+    public void setTraceFileInfo(TraceFileInfo traceFileInfo) {
+        mTraceFileInfo = traceFileInfo;
     }
 
     public List<GLFrame> getFrames() {
@@ -85,27 +106,39 @@ public class GLTrace {
             return null;
         }
 
-        RandomAccessFile file;
-        try {
-            file = new RandomAccessFile(mTraceFileInfo.getPath(), "r"); //$NON-NLS-1$
-        } catch (FileNotFoundException e1) {
+        ImageData imageData = mImageCache.get(c.getOffsetInTraceFile());
+        if (imageData == null) {
             return null;
         }
 
-        GLMessage m = null;
-        try {
-            m = sTraceFileReader.getMessageAtOffset(file, c.getOffsetInTraceFile());
-        } catch (Exception e) {
-            return null;
-        } finally {
-            try {
-                file.close();
-            } catch (IOException e) {
-                // ignore exception while closing file
-            }
+        return new Image(Display.getCurrent(), imageData);
+    }
+
+    /**
+     * Decode in the background the framebuffer images of the calls closest to the given
+     * call, so that they are readily available if the user moves to one of them.
+     */
+    public void prefetchImages(int callIndex) {
+        int[] indices = new int[2 * PREFETCH_CALL_RANGE];
+        for (int i = 0; i < PREFETCH_CALL_RANGE; i++) {
+            indices[2 * i] = callIndex + i + 1;
+            indices[2 * i + 1] = callIndex - i - 1;
         }
+        mImageCache.prefetch(mGLCalls, indices, PREFETCH_IMAGE_COUNT);
+    }
 
-        return ProtoBufUtils.getImage(Display.getCurrent(), m);
+    /**
+     * Decode in the background the framebuffer images at the end of the frames closest
+     * to the given frame.
+     */
+    public void prefetchFrameImages(int frameIndex) {
+        int[] indices = new int[PREFETCH_IMAGE_COUNT];
+        for (int i = 0; i < PREFETCH_IMAGE_COUNT; i++) {
+            int frame = frameIndex + (i % 2 == 0 ? i / 2 + 1 : -(i / 2 + 1));
+            indices[i] = frame >= 0 && frame < mGLFrames.size() ?
+                    mGLFrames.get(frame).getEndIndex() - 1 : -1;
+        }
+        mImageCache.prefetch(mGLCalls, indices, PREFETCH_IMAGE_COUNT);
     }
 
     private boolean isTraceFileModified() {
@@ -117,4 +150,18 @@ public class GLTrace {
     public List<Integer> getContexts() {
         return mContextIds;
     }
+
+    /**
+     * Update the list of context ids after calls from new contexts have been appended to
+     * this trace.
+     */
+    public void setContexts(List<Integer> contextIds) {
+        mContextIds = contextIds;
+    }
+
+    /** Release the trace file backing this trace. */
+    public void dispose() {
+        mImageCache.dispose();
+        mTraceFile.close();
+    }
 }
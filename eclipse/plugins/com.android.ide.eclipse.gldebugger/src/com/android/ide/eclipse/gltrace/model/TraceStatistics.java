@@ -0,0 +1,397 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ide.eclipse.gltrace.model;
+
+import com.android.ide.eclipse.gltrace.GLProtoBuf.GLMessage.Function;
+import com.android.ide.eclipse.gltrace.state.GLState;
+import com.android.ide.eclipse.gltrace.state.IGLProperty;
+import com.android.ide.eclipse.gltrace.state.transforms.IStateTransform;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Performance statistics computed over all the frames of a {@link GLTrace}.
+ *
+ * For each OpenGL function, the number of calls, the total, mean and 95th percentile of
+ * their wall clock and thread durations, and the number of redundant calls are computed.
+ * For each frame, the number of calls, draw calls, state changing calls and redundant calls
+ * are computed along with the total wall clock and thread durations.
+ *
+ * A call is a state change if it has state transformations. It is redundant if applying
+ * its transformations to the GL state did not change the value of any property, e.g. when
+ * binding the texture that is already bound. This is checked by applying copies of the
+ * transformations to a private GL state, so that the statistics can be computed in the
+ * background while the transformations of the calls are applied by the state view.
+ *
+ * The statistics can be written out as CSV or JSON, so that they can be compared across
+ * traces of different builds of an application.
+ */
+public class TraceStatistics {
+    /** Statistics for all the calls to a single OpenGL function. */
+    public static class FunctionStats {
+        private final Function mFunction;
+        private int mCount;
+        private int mRedundantCount;
+        private long mTotalWallDuration;
+        private long mTotalThreadDuration;
+        private int[] mWallDurations = new int[16];
+        private int[] mThreadDurations = new int[16];
+        private int mP95WallDuration;
+        private int mP95ThreadDuration;
+
+        FunctionStats(Function function) {
+            mFunction = function;
+        }
+
+        private void add(GLCall c, boolean redundant) {
+            if (mCount == mWallDurations.length) {
+                mWallDurations = Arrays.copyOf(mWallDurations, mCount * 2);
+                mThreadDurations = Arrays.copyOf(mThreadDurations, mCount * 2);
+            }
+
+            mWallDurations[mCount] = c.getWallDuration();
+            mThreadDurations[mCount] = c.getThreadDuration();
+            mTotalWallDuration += c.getWallDuration();
+            mTotalThreadDuration += c.getThreadDuration();
+            mCount++;
+
+            if (redundant) {
+                mRedundantCount++;
+            }
+        }
+
+        /** Compute the percentiles and release the individual durations. */
+        private void finish() {
+            mP95WallDuration = percentile(mWallDurations, mCount, 95);
+            mP95ThreadDuration = percentile(mThreadDurations, mCount, 95);
+            mWallDurations = null;
+            mThreadDurations = null;
+        }
+
+        public Function getFunction() {
+            return mFunction;
+        }
+
+        public int getCount() {
+            return mCount;
+        }
+
+        public int getRedundantCount() {
+            return mRedundantCount;
+        }
+
+        public long getTotalWallDuration() {
+            return mTotalWallDuration;
+        }
+
+        public long getTotalThreadDuration() {
+            return mTotalThreadDuration;
+        }
+
+        public double getMeanWallDuration() {
+            return mCount == 0 ? 0 : (double) mTotalWallDuration / mCount;
+        }
+
+        public double getMeanThreadDuration() {
+            return mCount == 0 ? 0 : (double) mTotalThreadDuration / mCount;
+        }
+
+        public int getP95WallDuration() {
+            return mP95WallDuration;
+        }
+
+        public int getP95ThreadDuration() {
+            return mP95ThreadDuration;
+        }
+    }
+
+    /** Statistics for all the calls in a single frame. */
+    public static class FrameStats {
+        private final int mFrameIndex;
+        private int mCallCount;
+        private int mDrawCallCount;
+        private int mStateChangeCount;
+        private int mRedundantCallCount;
+        private long mWallDuration;
+        private long mThreadDuration;
+
+        FrameStats(int frameIndex) {
+            mFrameIndex = frameIndex;
+        }
+
+        public int getFrameIndex() {
+            return mFrameIndex;
+        }
+
+        public int getCallCount() {
+            return mCallCount;
+        }
+
+        public int getDrawCallCount() {
+            return mDrawCallCount;
+        }
+
+        public int getStateChangeCount() {
+            return mStateChangeCount;
+        }
+
+        public int getRedundantCallCount() {
+            return mRedundantCallCount;
+        }
+
+        public long getWallDuration() {
+            return mWallDuration;
+        }
+
+        public long getThreadDuration() {
+            return mThreadDuration;
+        }
+    }
+
+    private final List<FunctionStats> mFunctionStats;
+    private final List<FrameStats> mFrameStats;
+
+    private TraceStatistics(List<FunctionStats> functionStats, List<FrameStats> frameStats) {
+        mFunctionStats = functionStats;
+        mFrameStats = frameStats;
+    }
+
+    /** Returns the statistics for each function called in the trace, in function order. */
+    public List<FunctionStats> getFunctionStats() {
+        return mFunctionStats;
+    }
+
+    /** Returns the statistics for each frame in the trace. */
+    public List<FrameStats> getFrameStats() {
+        return mFrameStats;
+    }
+
+    /** Returns whether the given function issues a draw call. */
+    public static boolean isDrawCall(Function function) {
+        return function == Function.glDrawArrays || function == Function.glDrawElements;
+    }
+
+    /** Compute the statistics over all the frames of the given trace. */
+    public static TraceStatistics compute(GLTrace trace, IProgressMonitor monitor)
+            throws InterruptedException {
+        return compute(trace.getFrames(), trace.getGLCalls(), monitor);
+    }
+
+    /**
+     * Compute the statistics over the given frames.
+     * @param frames frames to analyze, in order
+     * @param calls all the calls in the trace
+     * @param monitor progress monitor, one unit of work is reported per frame
+     * @throws InterruptedException if the monitor was canceled
+     */
+    public static TraceStatistics compute(List<GLFrame> frames, List<GLCall> calls,
+            IProgressMonitor monitor) throws InterruptedException {
+        Map<Function, FunctionStats> functionStats =
+                new EnumMap<Function, FunctionStats>(Function.class);
+        List<FrameStats> frameStats = new ArrayList<FrameStats>(frames.size());
+        IGLProperty state = GLState.createDefaultState();
+
+        for (GLFrame frame : frames) {
+            if (monitor.isCanceled()) {
+                throw new InterruptedException();
+            }
+
+            FrameStats fs = new FrameStats(frame.getIndex());
+            for (int i = frame.getStartIndex(); i < frame.getEndIndex(); i++) {
+                GLCall c = calls.get(i);
+
+                List<IStateTransform> transforms = c.getStateTransformations();
+                boolean redundant = !transforms.isEmpty() && !applyTransforms(transforms, state);
+
+                fs.mCallCount++;
+                fs.mWallDuration += c.getWallDuration();
+                fs.mThreadDuration += c.getThreadDuration();
+                if (isDrawCall(c.getFunction())) {
+                    fs.mDrawCallCount++;
+                }
+                if (!transforms.isEmpty()) {
+                    fs.mStateChangeCount++;
+                }
+                if (redundant) {
+                    fs.mRedundantCallCount++;
+                }
+
+                FunctionStats stats = functionStats.get(c.getFunction());
+                if (stats == null) {
+                    stats = new FunctionStats(c.getFunction());
+                    functionStats.put(c.getFunction(), stats);
+                }
+                stats.add(c, redundant);
+            }
+
+            frameStats.add(fs);
+            monitor.worked(1);
+        }
+
+        for (FunctionStats stats : functionStats.values()) {
+            stats.finish();
+        }
+
+        return new TraceStatistics(
+                Collections.unmodifiableList(new ArrayList<FunctionStats>(functionStats.values())),
+                Collections.unmodifiableList(frameStats));
+    }
+
+    /**
+     * Apply copies of the given transformations to the state.
+     * @return true if any property of the state may have been modified
+     */
+    private static boolean applyTransforms(List<IStateTransform> transforms, IGLProperty state) {
+        boolean changed = false;
+
+        for (IStateTransform transform : transforms) {
+            IStateTransform t = transform.copy();
+            try {
+                // only atomic properties can be compared before and after the transformation
+                IGLProperty p = t.getChangedProperty(state);
+                Object before = null;
+                if (p == null || p.isComposite()) {
+                    changed = true;
+                } else {
+                    before = p.getValue();
+                }
+
+                t.apply(state);
+
+                if (p != null && !p.isComposite() && !valueEquals(before, p.getValue())) {
+                    changed = true;
+                }
+            } catch (Exception e) {
+                // errors are reported when the state is displayed, here such transformations
+                // are just not considered redundant
+                changed = true;
+            }
+        }
+
+        return changed;
+    }
+
+    private static boolean valueEquals(Object v1, Object v2) {
+        if (v1 == v2) {
+            return true;
+        }
+        if (v1 == null || v2 == null || v1 instanceof byte[]) {
+            return false;
+        }
+        return v1.equals(v2);
+    }
+
+    /** Returns the given percentile of the first count values, using the nearest rank. */
+    static int percentile(int[] values, int count, int percentile) {
+        if (count == 0) {
+            return 0;
+        }
+
+        int[] sorted = Arrays.copyOf(values, count);
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(percentile / 100.0 * count);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    /** Write the per function statistics in CSV format, with a header row. */
+    public void writeFunctionStatsCsv(Appendable out) throws IOException {
+        out.append("function,count,redundant,total_wall_ns,mean_wall_ns,p95_wall_ns," //$NON-NLS-1$
+                + "total_thread_ns,mean_thread_ns,p95_thread_ns\n"); //$NON-NLS-1$
+        for (FunctionStats s : mFunctionStats) {
+            out.append(String.format(Locale.US,
+                    "%s,%d,%d,%d,%.1f,%d,%d,%.1f,%d\n", //$NON-NLS-1$
+                    s.getFunction().toString(),
+                    s.getCount(),
+                    s.getRedundantCount(),
+                    s.getTotalWallDuration(),
+                    s.getMeanWallDuration(),
+                    s.getP95WallDuration(),
+                    s.getTotalThreadDuration(),
+                    s.getMeanThreadDuration(),
+                    s.getP95ThreadDuration()));
+        }
+    }
+
+    /** Write the per frame statistics in CSV format, with a header row. */
+    public void writeFrameStatsCsv(Appendable out) throws IOException {
+        out.append("frame,calls,draw_calls,state_changes,redundant_calls," //$NON-NLS-1$
+                + "wall_ns,thread_ns\n"); //$NON-NLS-1$
+        for (FrameStats s : mFrameStats) {
+            out.append(String.format(Locale.US,
+                    "%d,%d,%d,%d,%d,%d,%d\n", //$NON-NLS-1$
+                    s.getFrameIndex(),
+                    s.getCallCount(),
+                    s.getDrawCallCount(),
+                    s.getStateChangeCount(),
+                    s.getRedundantCallCount(),
+                    s.getWallDuration(),
+                    s.getThreadDuration()));
+        }
+    }
+
+    /**
+     * Write both the per function and per frame statistics as a single JSON object with
+     * "functions" and "frames" arrays.
+     */
+    public void writeJson(Appendable out) throws IOException {
+        out.append("{\n  \"functions\": [");   //$NON-NLS-1$
+        for (int i = 0; i < mFunctionStats.size(); i++) {
+            FunctionStats s = mFunctionStats.get(i);
+            out.append(i == 0 ? "\n" : ",\n");  //$NON-NLS-1$ //$NON-NLS-2$
+            out.append(String.format(Locale.US,
+                    "    {\"function\": \"%s\", \"count\": %d, \"redundant\": %d, " //$NON-NLS-1$
+                    + "\"totalWallNs\": %d, \"meanWallNs\": %.1f, \"p95WallNs\": %d, " //$NON-NLS-1$
+                    + "\"totalThreadNs\": %d, \"meanThreadNs\": %.1f, " //$NON-NLS-1$
+                    + "\"p95ThreadNs\": %d}", //$NON-NLS-1$
+                    s.getFunction().toString(),
+                    s.getCount(),
+                    s.getRedundantCount(),
+                    s.getTotalWallDuration(),
+                    s.getMeanWallDuration(),
+                    s.getP95WallDuration(),
+                    s.getTotalThreadDuration(),
+                    s.getMeanThreadDuration(),
+                    s.getP95ThreadDuration()));
+        }
+        out.append("\n  ],\n  \"frames\": [");   //$NON-NLS-1$
+        for (int i = 0; i < mFrameStats.size(); i++) {
+            FrameStats s = mFrameStats.get(i);
+            out.append(i == 0 ? "\n" : ",\n");  //$NON-NLS-1$ //$NON-NLS-2$
+            out.append(String.format(Locale.US,
+                    "    {\"frame\": %d, \"calls\": %d, \"drawCalls\": %d, " //$NON-NLS-1$
+                    + "\"stateChanges\": %d, \"redundantCalls\": %d, " //$NON-NLS-1$
+                    + "\"wallNs\": %d, \"threadNs\": %d}", //$NON-NLS-1$
+                    s.getFrameIndex(),
+                    s.getCallCount(),
+                    s.getDrawCallCount(),
+                    s.getStateChangeCount(),
+                    s.getRedundantCallCount(),
+                    s.getWallDuration(),
+                    s.getThreadDuration()));
+        }
+        out.append("\n  ]\n}\n");   //$NON-NLS-1$
+    }
+}
@@ -47,6 +47,12 @@ public class GLCompositeProperty implements IGLProperty {
         return mPropertiesMap.get(name);
     }
 
+    /** Replaces the property of the same type as the given property. */
+    void setProperty(IGLProperty property) {
+        mPropertiesMap.put(property.getType(), property);
+        property.setParent(this);
+    }
+
     @Override
     public GLCompositeProperty clone() {
         IGLProperty []props = new IGLProperty[mPropertiesMap.size()];
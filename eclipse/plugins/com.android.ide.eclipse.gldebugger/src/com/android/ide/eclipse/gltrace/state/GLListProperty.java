@@ -47,15 +47,20 @@ public class GLListProperty implements IGLProperty {
         }
     }
 
-    private GLListProperty(GLStateType type, List<IGLProperty> props) {
+    GLListProperty(GLStateType type, IGLProperty template, List<IGLProperty> props) {
         mList = props;
         mType = type;
+        mTemplate = template;
 
         for (IGLProperty p : mList) {
             p.setParent(this);
         }
     }
 
+    IGLProperty getTemplate() {
+        return mTemplate;
+    }
+
     public List<IGLProperty> getList() {
         return mList;
     }
@@ -94,7 +99,7 @@ public class GLListProperty implements IGLProperty {
             props.add(p.clone());
         }
 
-        return new GLListProperty(getType(), props);
+        return new GLListProperty(getType(), mTemplate, props);
     }
 
     @Override
@@ -47,12 +47,29 @@ public class GLSparseArrayProperty implements IGLProperty {
         mSparseArray = new SparseArray<IGLProperty>(20);
     }
 
-    private GLSparseArrayProperty(GLStateType type, IGLProperty defaultValue,
+    GLSparseArrayProperty(GLStateType type, IGLProperty defaultValue,
             boolean createOnAccess, SparseArray<IGLProperty> contents) {
         mType = type;
         mDefaultValue = defaultValue;
         mCreateOnAccess = createOnAccess;
         mSparseArray = contents;
+
+        for (int i = 0; i < mSparseArray.size(); i++) {
+            mSparseArray.valueAt(i).setParent(this);
+        }
+    }
+
+    IGLProperty getDefaultValue() {
+        return mDefaultValue;
+    }
+
+    boolean isCreateOnAccess() {
+        return mCreateOnAccess;
+    }
+
+    /** Returns the underlying array. Unlike {@link #getProperty(int)}, never creates items. */
+    SparseArray<IGLProperty> getSparseArray() {
+        return mSparseArray;
     }
 
     public List<IGLProperty> getValues() {
@@ -124,7 +141,7 @@ public class GLSparseArrayProperty implements IGLProperty {
         SparseArray<IGLProperty> copy = new SparseArray<IGLProperty>(mSparseArray.size());
         for (int i = 0; i < mSparseArray.size(); i++) {
             int key = mSparseArray.keyAt(i);
-            IGLProperty value = mSparseArray.get(key);
+            IGLProperty value = mSparseArray.valueAt(i).clone();
             copy.put(key, value);
         }
 
@@ -0,0 +1,669 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ide.eclipse.gltrace.state;
+
+import com.android.utils.SparseArray;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An immutable, persistent version of an {@link IGLProperty} tree.
+ *
+ * Nodes are never modified once created. Updating a node returns a new node, and only the
+ * nodes on the path from the root to the updated node are copied: all other subtrees are
+ * shared with the previous version. This makes it cheap to keep many versions of the
+ * GL state around, and to compute the differences between two versions since identical
+ * subtrees can be skipped by a reference comparison.
+ *
+ * Immutable trees are created from the mutable {@link IGLProperty} tree on which state
+ * transforms are applied, using {@link #sync(ImmutableGLProperty, IGLProperty)} which reuses
+ * the unchanged nodes of a previous version, and are then kept up to date one transform at
+ * a time with {@link #update(IGLProperty)}. They can be turned back into a mutable tree
+ * with {@link #toMutable()}, or copied into an existing one with
+ * {@link #restore(IGLProperty, ImmutableGLProperty, ImmutableGLProperty)}.
+ *
+ * Children are addressed by a key: a {@link GLStateType} for composite properties, and an
+ * {@link Integer} index or key for list and sparse array properties.
+ */
+public final class ImmutableGLProperty {
+    private enum Kind {
+        ATOMIC, COMPOSITE, LIST, SPARSE_ARRAY
+    }
+
+    private static final Object[] NO_KEYS = new Object[0];
+    private static final ImmutableGLProperty[] NO_CHILDREN = new ImmutableGLProperty[0];
+
+    private final Kind mKind;
+    private final GLStateType mType;
+
+    /**
+     * For atomic properties, a private copy of the mutable property holding the value.
+     * For lists, the template for new elements, and for sparse arrays, the default value.
+     */
+    private final IGLProperty mPrototype;
+
+    /** Whether sparse array items are created on access. */
+    private final boolean mCreateOnAccess;
+
+    private final Object[] mKeys;
+    private final ImmutableGLProperty[] mChildren;
+
+    private ImmutableGLProperty(Kind kind, GLStateType type, IGLProperty prototype,
+            boolean createOnAccess, Object[] keys, ImmutableGLProperty[] children) {
+        mKind = kind;
+        mType = type;
+        mPrototype = prototype;
+        mCreateOnAccess = createOnAccess;
+        mKeys = keys;
+        mChildren = children;
+    }
+
+    /** Create an immutable copy of the given property tree. */
+    public static ImmutableGLProperty of(IGLProperty property) {
+        return sync(null, property);
+    }
+
+    /**
+     * Create an immutable copy of the given property tree, reusing the nodes of the given
+     * previous version wherever the values have not changed.
+     * @param base a previous version of the tree, may be null
+     * @param property the current mutable tree
+     * @return base itself if nothing changed, otherwise a new version sharing all
+     *         unchanged subtrees with base
+     */
+    public static ImmutableGLProperty sync(ImmutableGLProperty base, IGLProperty property) {
+        Kind kind = getKind(property);
+        if (base != null && (base.mKind != kind || base.mType != property.getType())) {
+            base = null;
+        }
+
+        if (kind == Kind.ATOMIC) {
+            if (base != null && valueEquals(base.getValue(), property.getValue())) {
+                return base;
+            }
+            return new ImmutableGLProperty(kind, property.getType(), detach(property), false,
+                    NO_KEYS, NO_CHILDREN);
+        }
+
+        Object[] keys;
+        IGLProperty[] mutableChildren;
+        IGLProperty prototype = null;
+        boolean createOnAccess = false;
+
+        if (kind == Kind.COMPOSITE) {
+            GLCompositeProperty composite = (GLCompositeProperty) property;
+            mutableChildren = composite.getProperties().toArray(new IGLProperty[0]);
+            keys = new Object[mutableChildren.length];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = mutableChildren[i].getType();
+            }
+        } else if (kind == Kind.LIST) {
+            GLListProperty list = (GLListProperty) property;
+            mutableChildren = list.getList().toArray(new IGLProperty[0]);
+            keys = new Object[mutableChildren.length];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = Integer.valueOf(i);
+            }
+            prototype = base != null ? base.mPrototype : detach(list.getTemplate());
+        } else {
+            GLSparseArrayProperty array = (GLSparseArrayProperty) property;
+            SparseArray<IGLProperty> contents = array.getSparseArray();
+            mutableChildren = new IGLProperty[contents.size()];
+            keys = new Object[contents.size()];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = Integer.valueOf(contents.keyAt(i));
+                mutableChildren[i] = contents.valueAt(i);
+            }
+            prototype = base != null ? base.mPrototype : detach(array.getDefaultValue());
+            createOnAccess = array.isCreateOnAccess();
+        }
+
+        boolean sameKeys = base != null && Arrays.equals(keys, base.mKeys);
+        boolean changed = !sameKeys;
+
+        ImmutableGLProperty[] children = new ImmutableGLProperty[mutableChildren.length];
+        for (int i = 0; i < children.length; i++) {
+            ImmutableGLProperty baseChild = null;
+            if (sameKeys) {
+                baseChild = base.mChildren[i];
+            } else if (base != null) {
+                baseChild = base.get(keys[i]);
+            }
+
+            children[i] = sync(baseChild, mutableChildren[i]);
+            changed |= children[i] != baseChild;
+        }
+
+        if (!changed) {
+            return base;
+        }
+
+        if (sameKeys) {
+            keys = base.mKeys;
+        }
+
+        return new ImmutableGLProperty(kind, property.getType(), prototype, createOnAccess,
+                keys, children);
+    }
+
+    /** Returns a private copy of the given property that is not attached to any tree. */
+    private static IGLProperty detach(IGLProperty property) {
+        if (property == null) {
+            return null;
+        }
+
+        IGLProperty copy = property.clone();
+        copy.setParent(null);
+        return copy;
+    }
+
+    private static Kind getKind(IGLProperty property) {
+        if (property instanceof GLCompositeProperty) {
+            return Kind.COMPOSITE;
+        } else if (property instanceof GLListProperty) {
+            return Kind.LIST;
+        } else if (property instanceof GLSparseArrayProperty) {
+            return Kind.SPARSE_ARRAY;
+        } else {
+            return Kind.ATOMIC;
+        }
+    }
+
+    private static boolean valueEquals(Object v1, Object v2) {
+        if (v1 == v2) {
+            return true;
+        }
+
+        // Arrays (e.g. buffer data) are always replaced rather than modified in place,
+        // so a different array is treated as a different value without comparing contents.
+        if (v1 == null || v2 == null || v1 instanceof byte[]) {
+            return false;
+        }
+
+        return v1.equals(v2);
+    }
+
+    public GLStateType getType() {
+        return mType;
+    }
+
+    public boolean isComposite() {
+        return mKind != Kind.ATOMIC;
+    }
+
+    /** Returns the value of an atomic property. */
+    public Object getValue() {
+        if (mKind != Kind.ATOMIC) {
+            throw new UnsupportedOperationException(
+                    "Values cannot be obtained for composite properties."); //$NON-NLS-1$
+        }
+        return mPrototype.getValue();
+    }
+
+    /** Returns the number of children of this property. */
+    public int getChildCount() {
+        return mChildren.length;
+    }
+
+    /** Returns the key of the i-th child. */
+    public Object getKey(int i) {
+        return mKeys[i];
+    }
+
+    /** Returns the i-th child. */
+    public ImmutableGLProperty getChild(int i) {
+        return mChildren[i];
+    }
+
+    private int indexOfKey(Object key) {
+        for (int i = 0; i < mKeys.length; i++) {
+            if (mKeys[i].equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** Returns the child with the given key, or null if there is no such child. */
+    public ImmutableGLProperty get(Object key) {
+        int i = indexOfKey(key);
+        return i < 0 ? null : mChildren[i];
+    }
+
+    /** Returns the descendant at the given path of keys, or null if there is none. */
+    public ImmutableGLProperty getIn(Object... path) {
+        ImmutableGLProperty p = this;
+        for (int i = 0; i < path.length && p != null; i++) {
+            p = p.get(path[i]);
+        }
+        return p;
+    }
+
+    /** Returns a new version of this atomic property with the given value. */
+    public ImmutableGLProperty withValue(Object value) {
+        if (mKind != Kind.ATOMIC) {
+            throw new UnsupportedOperationException(
+                    "Values cannot be set for composite properties."); //$NON-NLS-1$
+        }
+
+        if (valueEquals(getValue(), value)) {
+            return this;
+        }
+
+        IGLProperty p = detach(mPrototype);
+        p.setValue(value);
+        return new ImmutableGLProperty(mKind, mType, p, false, NO_KEYS, NO_CHILDREN);
+    }
+
+    /**
+     * Returns a new version of this property where the child with the given key is
+     * replaced, or added if not present. A null child removes the existing child.
+     */
+    public ImmutableGLProperty with(Object key, ImmutableGLProperty child) {
+        int i = indexOfKey(key);
+        if (i >= 0 && mChildren[i] == child) {
+            return this;
+        }
+
+        Object[] keys;
+        ImmutableGLProperty[] children;
+        if (child == null) {
+            if (i < 0) {
+                return this;
+            }
+
+            keys = new Object[mKeys.length - 1];
+            children = new ImmutableGLProperty[mChildren.length - 1];
+            System.arraycopy(mKeys, 0, keys, 0, i);
+            System.arraycopy(mKeys, i + 1, keys, i, keys.length - i);
+            System.arraycopy(mChildren, 0, children, 0, i);
+            System.arraycopy(mChildren, i + 1, children, i, children.length - i);
+        } else if (i >= 0) {
+            keys = mKeys;
+            children = mChildren.clone();
+            children[i] = child;
+        } else {
+            // keep integer keys sorted, as they are in a sparse array
+            int pos = mKeys.length;
+            if (key instanceof Integer) {
+                int k = ((Integer) key).intValue();
+                while (pos > 0 && ((Integer) mKeys[pos - 1]).intValue() > k) {
+                    pos--;
+                }
+            }
+
+            keys = new Object[mKeys.length + 1];
+            children = new ImmutableGLProperty[mChildren.length + 1];
+            System.arraycopy(mKeys, 0, keys, 0, pos);
+            System.arraycopy(mKeys, pos, keys, pos + 1, mKeys.length - pos);
+            System.arraycopy(mChildren, 0, children, 0, pos);
+            System.arraycopy(mChildren, pos, children, pos + 1, mChildren.length - pos);
+            keys[pos] = key;
+            children[pos] = child;
+        }
+
+        return new ImmutableGLProperty(mKind, mType, mPrototype, mCreateOnAccess, keys,
+                children);
+    }
+
+    /**
+     * Returns a new version of this tree in which the descendant at the given path is
+     * replaced. Only the nodes along the path are copied.
+     */
+    public ImmutableGLProperty setIn(ImmutableGLProperty value, Object... path) {
+        return setIn(value, path, 0);
+    }
+
+    private ImmutableGLProperty setIn(ImmutableGLProperty value, Object[] path, int depth) {
+        if (depth == path.length) {
+            return value;
+        }
+
+        ImmutableGLProperty child = get(path[depth]);
+        if (child == null && depth < path.length - 1) {
+            throw new IllegalArgumentException("No such property: " + path[depth]);
+        }
+
+        ImmutableGLProperty newChild = depth == path.length - 1 ? value
+                : child.setIn(value, path, depth + 1);
+        return with(path[depth], newChild);
+    }
+
+    /**
+     * Returns a new version of this tree that includes the change made by a single state
+     * transform to the mutable tree. Only the nodes on the path to the changed property are
+     * copied, so the cost is independent of the size of the rest of the tree.
+     *
+     * Changes to lists and sparse arrays are assumed to be additions or removals of elements:
+     * the elements present in both versions are shared with this version.
+     * @param changed the property reported by
+     *          {@link com.android.ide.eclipse.gltrace.state.transforms.IStateTransform#getChangedProperty(IGLProperty)},
+     *          in a mutable tree that matched this version before the transform was applied
+     */
+    public ImmutableGLProperty update(IGLProperty changed) {
+        List<IGLProperty> nodes = new ArrayList<IGLProperty>();
+        for (IGLProperty p = changed; p != null; p = p.getParent()) {
+            nodes.add(p);
+        }
+
+        IGLProperty root = nodes.get(nodes.size() - 1);
+        Object[] path = new Object[nodes.size() - 1];
+        for (int i = 0; i < path.length; i++) {
+            IGLProperty child = nodes.get(nodes.size() - 2 - i);
+            path[i] = keyOf(child.getParent(), child);
+            if (path[i] == null) {
+                // not reachable from the root, cannot locate the change
+                return sync(this, root);
+            }
+        }
+
+        // Accessing an item of a sparse array may create it: the closest missing ancestor
+        // is then added as a whole.
+        ImmutableGLProperty current = this;
+        for (int depth = 0; depth < path.length; depth++) {
+            ImmutableGLProperty child = current.get(path[depth]);
+            if (child == null) {
+                return setIn(of(nodes.get(nodes.size() - 2 - depth)),
+                        Arrays.copyOf(path, depth + 1));
+            }
+            current = child;
+        }
+
+        return setIn(updateNode(current, changed), path);
+    }
+
+    private static ImmutableGLProperty updateNode(ImmutableGLProperty node,
+            IGLProperty property) {
+        Kind kind = getKind(property);
+        if (node.mKind != kind || node.mType != property.getType()) {
+            return of(property);
+        }
+
+        if (kind == Kind.ATOMIC) {
+            return node.withValue(property.getValue());
+        } else if (kind == Kind.COMPOSITE) {
+            return sync(node, property);
+        }
+
+        IGLProperty[] mutableChildren;
+        Object[] keys;
+        if (kind == Kind.LIST) {
+            mutableChildren = ((GLListProperty) property).getList().toArray(new IGLProperty[0]);
+            keys = new Object[mutableChildren.length];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = Integer.valueOf(i);
+            }
+        } else {
+            SparseArray<IGLProperty> contents = ((GLSparseArrayProperty) property).getSparseArray();
+            mutableChildren = new IGLProperty[contents.size()];
+            keys = new Object[contents.size()];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = Integer.valueOf(contents.keyAt(i));
+                mutableChildren[i] = contents.valueAt(i);
+            }
+        }
+
+        if (Arrays.equals(keys, node.mKeys)) {
+            return node;
+        }
+
+        ImmutableGLProperty[] children = new ImmutableGLProperty[keys.length];
+        for (int i = 0; i < children.length; i++) {
+            ImmutableGLProperty existing = node.get(keys[i]);
+            children[i] = existing != null ? existing : of(mutableChildren[i]);
+        }
+
+        return new ImmutableGLProperty(kind, node.mType, node.mPrototype, node.mCreateOnAccess,
+                keys, children);
+    }
+
+    /** Returns the key of a child in its mutable parent, or null if it cannot be found. */
+    private static Object keyOf(IGLProperty parent, IGLProperty child) {
+        if (parent instanceof GLCompositeProperty) {
+            return child.getType();
+        } else if (parent instanceof GLListProperty) {
+            List<IGLProperty> list = ((GLListProperty) parent).getList();
+            for (int i = 0; i < list.size(); i++) {
+                if (list.get(i) == child) {
+                    return Integer.valueOf(i);
+                }
+            }
+        } else if (parent instanceof GLSparseArrayProperty) {
+            SparseArray<IGLProperty> contents = ((GLSparseArrayProperty) parent).getSparseArray();
+            int index = contents.indexOfValue(child);
+            if (index >= 0) {
+                return Integer.valueOf(contents.keyAt(index));
+            }
+        }
+        return null;
+    }
+
+    /** Create a new mutable tree with the same contents as this tree. */
+    public IGLProperty toMutable() {
+        switch (mKind) {
+            case ATOMIC:
+                return mPrototype.clone();
+            case COMPOSITE: {
+                IGLProperty[] props = new IGLProperty[mChildren.length];
+                for (int i = 0; i < props.length; i++) {
+                    props[i] = mChildren[i].toMutable();
+                }
+                return new GLCompositeProperty(mType, props);
+            }
+            case LIST: {
+                List<IGLProperty> props = new ArrayList<IGLProperty>(mChildren.length);
+                for (ImmutableGLProperty c : mChildren) {
+                    props.add(c.toMutable());
+                }
+                return new GLListProperty(mType, mPrototype, props);
+            }
+            case SPARSE_ARRAY:
+            default: {
+                SparseArray<IGLProperty> contents =
+                        new SparseArray<IGLProperty>(mChildren.length);
+                for (int i = 0; i < mChildren.length; i++) {
+                    contents.put(((Integer) mKeys[i]).intValue(), mChildren[i].toMutable());
+                }
+                return new GLSparseArrayProperty(mType, mPrototype, mCreateOnAccess, contents);
+            }
+        }
+    }
+
+    /**
+     * Modify a mutable tree in place so that it matches another version. Only the
+     * properties that differ are touched: all other mutable nodes are kept, so that views
+     * of the tree keep their expanded and selected elements.
+     * @param property the mutable tree, which must match the version {@code current}
+     * @param current the version matching the mutable tree
+     * @param target the version to restore
+     */
+    public static void restore(IGLProperty property, ImmutableGLProperty current,
+            ImmutableGLProperty target) {
+        if (current == target) {
+            return;
+        }
+
+        if (target.mKind != getKind(property) || target.mType != property.getType()) {
+            throw new IllegalArgumentException("Cannot restore " + target.mType //$NON-NLS-1$
+                    + " into " + property.getType()); //$NON-NLS-1$
+        }
+
+        if (target.mKind == Kind.ATOMIC) {
+            if (current == null || !valueEquals(current.getValue(), target.getValue())) {
+                property.setValue(target.getValue());
+            }
+            return;
+        }
+
+        if (target.mKind == Kind.COMPOSITE) {
+            GLCompositeProperty composite = (GLCompositeProperty) property;
+            for (int i = 0; i < target.mKeys.length; i++) {
+                GLStateType key = (GLStateType) target.mKeys[i];
+                IGLProperty child = composite.getProperty(key);
+                if (canRestore(child, target.mChildren[i])) {
+                    restore(child, current != null ? current.get(key) : null,
+                            target.mChildren[i]);
+                } else {
+                    composite.setProperty(target.mChildren[i].toMutable());
+                }
+            }
+        } else if (target.mKind == Kind.LIST) {
+            GLListProperty list = (GLListProperty) property;
+            List<IGLProperty> elements = list.getList();
+            while (elements.size() > target.mChildren.length) {
+                elements.remove(elements.size() - 1);
+            }
+            for (int i = 0; i < target.mChildren.length; i++) {
+                IGLProperty child = i < elements.size() ? elements.get(i) : null;
+                if (canRestore(child, target.mChildren[i])) {
+                    restore(child, current != null ? current.get(target.mKeys[i]) : null,
+                            target.mChildren[i]);
+                } else {
+                    list.set(i, target.mChildren[i].toMutable());
+                }
+            }
+        } else {
+            GLSparseArrayProperty array = (GLSparseArrayProperty) property;
+            SparseArray<IGLProperty> contents = array.getSparseArray();
+            for (int i = contents.size() - 1; i >= 0; i--) {
+                int key = contents.keyAt(i);
+                if (target.indexOfKey(Integer.valueOf(key)) < 0) {
+                    array.delete(key);
+                }
+            }
+            for (int i = 0; i < target.mChildren.length; i++) {
+                int key = ((Integer) target.mKeys[i]).intValue();
+                IGLProperty child = contents.get(key);
+                if (canRestore(child, target.mChildren[i])) {
+                    restore(child, current != null ? current.get(target.mKeys[i]) : null,
+                            target.mChildren[i]);
+                } else {
+                    array.put(key, target.mChildren[i].toMutable());
+                }
+            }
+        }
+    }
+
+    private static boolean canRestore(IGLProperty property, ImmutableGLProperty target) {
+        return property != null && getKind(property) == target.mKind
+                && property.getType() == target.mType;
+    }
+
+    /**
+     * Compute the differences between two versions of a tree.
+     * @return the paths (as arrays of keys from the root) of all the properties that were
+     *         added, removed or whose value changed between the two versions. For added or
+     *         removed subtrees, only the root of the subtree is reported.
+     */
+    public static List<Object[]> diff(ImmutableGLProperty from, ImmutableGLProperty to) {
+        List<Object[]> paths = new ArrayList<Object[]>();
+        diff(from, to, new ArrayList<Object>(), paths);
+        return paths;
+    }
+
+    private static void diff(ImmutableGLProperty from, ImmutableGLProperty to,
+            List<Object> path, List<Object[]> paths) {
+        if (from == to) {
+            return;
+        }
+
+        if (from == null || to == null || from.mKind != to.mKind || from.mType != to.mType) {
+            paths.add(path.toArray());
+            return;
+        }
+
+        if (from.mKind == Kind.ATOMIC) {
+            if (!valueEquals(from.getValue(), to.getValue())) {
+                paths.add(path.toArray());
+            }
+            return;
+        }
+
+        for (int i = 0; i < from.mKeys.length; i++) {
+            path.add(from.mKeys[i]);
+            diff(from.mChildren[i], to.get(from.mKeys[i]), path, paths);
+            path.remove(path.size() - 1);
+        }
+
+        for (int i = 0; i < to.mKeys.length; i++) {
+            if (from.indexOfKey(to.mKeys[i]) < 0) {
+                path.add(to.mKeys[i]);
+                paths.add(path.toArray());
+                path.remove(path.size() - 1);
+            }
+        }
+    }
+
+    /**
+     * Returns a rough estimate of the memory used by the nodes of this tree that are
+     * not shared with the given base version.
+     * @param base a version of this tree whose nodes are not counted, may be null
+     */
+    public long estimateSize(ImmutableGLProperty base) {
+        if (this == base) {
+            return 0;
+        }
+
+        long size = 48 + 8 * mChildren.length;
+        if (mKind == Kind.ATOMIC) {
+            Object value = getValue();
+            if (value instanceof byte[]) {
+                size += ((byte[]) value).length;
+            } else if (value instanceof String) {
+                size += 2 * ((String) value).length();
+            }
+            return size;
+        }
+
+        boolean sameKeys = base != null && base.mKeys == mKeys;
+        for (int i = 0; i < mChildren.length; i++) {
+            ImmutableGLProperty baseChild = null;
+            if (sameKeys) {
+                baseChild = base.mChildren[i];
+            } else if (base != null) {
+                baseChild = base.get(mKeys[i]);
+            }
+            size += mChildren[i].estimateSize(baseChild);
+        }
+        return size;
+    }
+
+    /**
+     * Find the property at the given path in a mutable tree.
+     * @return the property, or null if there is no property at that path
+     */
+    public static IGLProperty resolve(IGLProperty root, Object[] path) {
+        IGLProperty p = root;
+        for (int i = 0; i < path.length && p != null; i++) {
+            Object key = path[i];
+            if (p instanceof GLCompositeProperty && key instanceof GLStateType) {
+                p = ((GLCompositeProperty) p).getProperty((GLStateType) key);
+            } else if (p instanceof GLListProperty && key instanceof Integer) {
+                GLListProperty list = (GLListProperty) p;
+                int index = ((Integer) key).intValue();
+                p = index < list.size() ? list.get(index) : null;
+            } else if (p instanceof GLSparseArrayProperty && key instanceof Integer) {
+                p = ((GLSparseArrayProperty) p).getSparseArray().get(((Integer) key).intValue());
+            } else {
+                p = null;
+            }
+        }
+        return p;
+    }
+}
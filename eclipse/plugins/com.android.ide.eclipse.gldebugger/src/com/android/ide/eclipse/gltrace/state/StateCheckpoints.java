@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ide.eclipse.gltrace.state;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A set of snapshots of the GL state taken at regular call intervals.
+ *
+ * Computing the state as of a particular call requires applying the state transforms of all
+ * the calls before it. With checkpoints, the state can instead be restored from the closest
+ * preceding snapshot, and only the calls after that snapshot need to be applied.
+ *
+ * Snapshots are taken every {@link #getInterval()} calls, as {@link ImmutableGLProperty}
+ * trees that share all unchanged subtrees with the preceding snapshot. When the estimated
+ * size of all snapshots exceeds the memory budget, every other snapshot is dropped and the
+ * interval is doubled, so that the checkpoints always remain evenly spread across the trace.
+ */
+public class StateCheckpoints {
+    /** Default number of calls between checkpoints. */
+    public static final int DEFAULT_INTERVAL = 500;
+
+    /** Default upper bound on the estimated memory used by all checkpoints. */
+    public static final long DEFAULT_MEMORY_BUDGET = 64 * 1024 * 1024;
+
+    private static class Checkpoint {
+        final ImmutableGLProperty state;
+
+        /** Estimated size of the nodes not shared with the preceding checkpoint. */
+        long size;
+
+        Checkpoint(ImmutableGLProperty state, long size) {
+            this.state = state;
+            this.size = size;
+        }
+    }
+
+    private final int mInitialInterval;
+    private final long mMemoryBudget;
+    private final TreeMap<Integer, Checkpoint> mCheckpoints = new TreeMap<Integer, Checkpoint>();
+
+    private int mInterval;
+    private long mSize;
+
+    public StateCheckpoints() {
+        this(DEFAULT_INTERVAL, DEFAULT_MEMORY_BUDGET);
+    }
+
+    /**
+     * Construct an empty set of checkpoints.
+     * @param interval number of calls between two checkpoints
+     * @param memoryBudget upper bound in bytes on the estimated size of all checkpoints
+     */
+    public StateCheckpoints(int interval, long memoryBudget) {
+        mInitialInterval = Math.max(1, interval);
+        mInterval = mInitialInterval;
+        mMemoryBudget = memoryBudget;
+    }
+
+    /** Returns the current number of calls between two checkpoints. */
+    public int getInterval() {
+        return mInterval;
+    }
+
+    /** Returns the estimated size in bytes of all the checkpoints. */
+    public long getSize() {
+        return mSize;
+    }
+
+    /** Returns the number of checkpoints. */
+    public int getCount() {
+        return mCheckpoints.size();
+    }
+
+    /** Remove all checkpoints. */
+    public void clear() {
+        mCheckpoints.clear();
+        mSize = 0;
+        mInterval = mInitialInterval;
+    }
+
+    /**
+     * Record a snapshot of the given state if a checkpoint is due at the given call
+     * and is not present yet.
+     * @param callIndex index of the last call applied to the state
+     * @param state the state as of that call. It is stored as is, so it should be a version
+     *          derived from the preceding snapshots with {@link ImmutableGLProperty#update}
+     *          for the checkpoints to share their unchanged subtrees.
+     */
+    public void update(int callIndex, ImmutableGLProperty state) {
+        if (callIndex < 0 || (callIndex + 1) % mInterval != 0) {
+            return;
+        }
+
+        Integer key = Integer.valueOf(callIndex);
+        if (mCheckpoints.containsKey(key)) {
+            return;
+        }
+
+        Map.Entry<Integer, Checkpoint> previous = mCheckpoints.lowerEntry(key);
+        ImmutableGLProperty base = previous != null ? previous.getValue().state : null;
+        long size = state.estimateSize(base);
+        mCheckpoints.put(key, new Checkpoint(state, size));
+        mSize += size;
+
+        // the next checkpoint now shares its nodes with this one rather than the previous one
+        Map.Entry<Integer, Checkpoint> next = mCheckpoints.higherEntry(key);
+        if (next != null) {
+            Checkpoint c = next.getValue();
+            mSize -= c.size;
+            c.size = c.state.estimateSize(state);
+            mSize += c.size;
+        }
+
+        while (mSize > mMemoryBudget && mCheckpoints.size() > 1) {
+            thin();
+        }
+    }
+
+    /**
+     * Double the interval and drop the checkpoints that are not on the new interval.
+     * The nodes of a dropped checkpoint that are also used by the following one are not
+     * freed, so the size of each remaining checkpoint is measured again against its
+     * new predecessor.
+     */
+    private void thin() {
+        mInterval *= 2;
+        mSize = 0;
+
+        ImmutableGLProperty previous = null;
+        Iterator<Map.Entry<Integer, Checkpoint>> it = mCheckpoints.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, Checkpoint> e = it.next();
+            if ((e.getKey().intValue() + 1) % mInterval != 0) {
+                it.remove();
+                continue;
+            }
+
+            Checkpoint c = e.getValue();
+            c.size = c.state.estimateSize(previous);
+            mSize += c.size;
+            previous = c.state;
+        }
+    }
+
+    /**
+     * Returns the index of the closest checkpoint at or before the given call, or -1
+     * if there is no such checkpoint.
+     */
+    public int getCheckpointAtOrBefore(int callIndex) {
+        Integer key = mCheckpoints.floorKey(Integer.valueOf(callIndex));
+        return key == null ? -1 : key.intValue();
+    }
+
+    /** Returns the snapshot of the state at the given checkpoint, or null if there is none. */
+    public ImmutableGLProperty getSnapshot(int checkpointIndex) {
+        Checkpoint c = mCheckpoints.get(Integer.valueOf(checkpointIndex));
+        return c == null ? null : c.state;
+    }
+}
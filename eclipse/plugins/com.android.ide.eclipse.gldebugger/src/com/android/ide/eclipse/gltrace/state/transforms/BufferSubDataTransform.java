@@ -73,4 +73,9 @@ public class BufferSubDataTransform implements IStateTransform {
     public IGLProperty getChangedProperty(IGLProperty state) {
         return mAccessor.getProperty(state);
     }
+
+    @Override
+    public IStateTransform copy() {
+        return new BufferSubDataTransform(mAccessor, mOffset, mSubData);
+    }
 }
@@ -31,4 +31,11 @@ public interface IStateTransform {
 
     /** Obtain the property that will be affected by this transformation. */
     IGLProperty getChangedProperty(IGLProperty currentState);
+
+    /**
+     * Obtain a new transformation with the same effect as this one. Transformations keep
+     * track of what they changed when they are applied, so a copy must be used to apply
+     * them on a different state from another thread.
+     */
+    IStateTransform copy();
 }
@@ -55,7 +55,9 @@ public class PropertyChangeTransform implements IStateTransform {
     public void apply(IGLProperty state) {
         IGLProperty property = mAccessor.getProperty(state);
 
-        assert mOldValue == null : "Transform cannot be applied multiple times";
+        // A transform may be applied again on a state rebuilt from scratch, in which case
+        // the value saved from a previous application is no longer relevant.
+        mOldValue = null;
         if (mPredicate != null) {
             // if predicate is not null, then first check if the current value
             // passes the predicate function.
@@ -100,4 +102,9 @@ public class PropertyChangeTransform implements IStateTransform {
 
         return mAccessor.getProperty(state);
     }
+
+    @Override
+    public IStateTransform copy() {
+        return new PropertyChangeTransform(mAccessor, mNewValue, mPredicate);
+    }
 }
@@ -61,6 +61,11 @@ public class SparseArrayElementAddTransform implements IStateTransform {
         return getArray(currentState);
     }
 
+    @Override
+    public IStateTransform copy() {
+        return new SparseArrayElementAddTransform(mAccessor, mKey);
+    }
+
     private GLSparseArrayProperty getArray(IGLProperty state) {
         IGLProperty p = state;
 
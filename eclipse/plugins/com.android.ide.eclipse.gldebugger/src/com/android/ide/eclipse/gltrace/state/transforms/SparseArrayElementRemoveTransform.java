@@ -23,9 +23,13 @@ import com.android.ide.eclipse.gltrace.state.IGLProperty;
  * element from a sparse array.
  */
 public class SparseArrayElementRemoveTransform implements IStateTransform {
+    private final IGLPropertyAccessor mAccessor;
+    private final int mKey;
     private final SparseArrayElementAddTransform mAddTransform;
 
     public SparseArrayElementRemoveTransform(IGLPropertyAccessor accessor, int key) {
+        mAccessor = accessor;
+        mKey = key;
         mAddTransform = new SparseArrayElementAddTransform(accessor, key);
     }
 
@@ -46,4 +50,8 @@ public class SparseArrayElementRemoveTransform implements IStateTransform {
         return mAddTransform.getChangedProperty(currentState);
     }
 
+    @Override
+    public IStateTransform copy() {
+        return new SparseArrayElementRemoveTransform(mAccessor, mKey);
+    }
 }
@@ -36,7 +36,26 @@ import java.util.List;
 public class StateTransformFactory {
     private static final String TEXTURE_DATA_FILE_PREFIX = "tex";   //$NON-NLS-1$
     private static final String TEXTURE_DATA_FILE_SUFFIX = ".dat";  //$NON-NLS-1$
-    private static EnumSet<GLEnum> sTexParameterPnameValues;
+    /**
+     * Valid values for the pname argument of glTexParameter. This is initialized eagerly
+     * since transforms may be created concurrently from multiple threads.
+     */
+    private static final EnumSet<GLEnum> sTexParameterPnameValues = EnumSet.of(
+            GLEnum.GL_TEXTURE_BASE_LEVEL,
+            GLEnum.GL_TEXTURE_COMPARE_FUNC,
+            GLEnum.GL_TEXTURE_COMPARE_MODE,
+            GLEnum.GL_TEXTURE_MIN_FILTER,
+            GLEnum.GL_TEXTURE_MAG_FILTER,
+            GLEnum.GL_TEXTURE_MIN_LOD,
+            GLEnum.GL_TEXTURE_MAX_LOD,
+            GLEnum.GL_TEXTURE_MAX_LEVEL,
+            GLEnum.GL_TEXTURE_SWIZZLE_R,
+            GLEnum.GL_TEXTURE_SWIZZLE_G,
+            GLEnum.GL_TEXTURE_SWIZZLE_B,
+            GLEnum.GL_TEXTURE_SWIZZLE_A,
+            GLEnum.GL_TEXTURE_WRAP_S,
+            GLEnum.GL_TEXTURE_WRAP_T,
+            GLEnum.GL_TEXTURE_WRAP_R);
 
     /** Construct a list of transformations to be applied for the provided OpenGL call. */
     public static List<IStateTransform> getTransformsFor(GLMessage msg) {
@@ -1083,27 +1102,6 @@ public class StateTransformFactory {
         GLEnum pname = GLEnum.valueOf(msg.getArgs(1).getIntValue(0));
         GLEnum pvalue = GLEnum.valueOf(msg.getArgs(2).getIntValue(0));
 
-        if (sTexParameterPnameValues == null) {
-            GLEnum[] pnameValues = new GLEnum[] {
-                    GLEnum.GL_TEXTURE_BASE_LEVEL,
-                    GLEnum.GL_TEXTURE_COMPARE_FUNC,
-                    GLEnum.GL_TEXTURE_COMPARE_MODE,
-                    GLEnum.GL_TEXTURE_MIN_FILTER,
-                    GLEnum.GL_TEXTURE_MAG_FILTER,
-                    GLEnum.GL_TEXTURE_MIN_LOD,
-                    GLEnum.GL_TEXTURE_MAX_LOD,
-                    GLEnum.GL_TEXTURE_MAX_LEVEL,
-                    GLEnum.GL_TEXTURE_SWIZZLE_R,
-                    GLEnum.GL_TEXTURE_SWIZZLE_G,
-                    GLEnum.GL_TEXTURE_SWIZZLE_B,
-                    GLEnum.GL_TEXTURE_SWIZZLE_A,
-                    GLEnum.GL_TEXTURE_WRAP_S,
-                    GLEnum.GL_TEXTURE_WRAP_T,
-                    GLEnum.GL_TEXTURE_WRAP_R
-            };
-            sTexParameterPnameValues = EnumSet.copyOf(Arrays.asList(pnameValues));
-        }
-
         if (!sTexParameterPnameValues.contains(pname)) {
             throw new IllegalArgumentException(
                     String.format("Unsupported parameter (%s) for glTexParameter()", pname));
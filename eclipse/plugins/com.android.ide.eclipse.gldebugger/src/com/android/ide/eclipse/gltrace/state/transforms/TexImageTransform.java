@@ -78,7 +78,7 @@ public class TexImageTransform implements IStateTransform {
 
     @Override
     public void apply(IGLProperty currentState) {
-        assert mOldValue == null : "Transform cannot be applied multiple times"; //$NON-NLS-1$
+        mOldValue = null;
 
         IGLProperty property = mAccessor.getProperty(currentState);
         if (!(property instanceof GLStringProperty)) {
@@ -123,6 +123,12 @@ public class TexImageTransform implements IStateTransform {
         return mAccessor.getProperty(state);
     }
 
+    @Override
+    public IStateTransform copy() {
+        return new TexImageTransform(mAccessor, mTextureDataFile, mFormat, mType,
+                mxOffset, myOffset, mWidth, mHeight);
+    }
+
     /**
      * Creates a texture of provided width and height. If the texture data file is provided,
      * then the texture is initialized with the contents of that file, otherwise an empty
@@ -307,6 +307,7 @@ public class FrameSummaryViewPage extends Page {
         if (lastCallIndex >= 0 && lastCallIndex < mTrace.getGLCalls().size()) {
             GLCall call = mTrace.getGLCalls().get(lastCallIndex);
             final Image image = mTrace.getImage(call);
+            mTrace.prefetchFrameImages(frame);
             Display.getDefault().asyncExec(new Runnable() {
                 @Override
                 public void run() {
@@ -72,6 +72,7 @@ public class GlDrawCallDetailProvider implements ICallDetailProvider {
     @Override
     public void updateControl(GLTrace trace, GLCall call) {
         mImageCanvas.setImage(trace.getImage(call));
+        trace.prefetchImages(call.getIndex());
         mImageCanvas.setFitToCanvas(true);
     }
 
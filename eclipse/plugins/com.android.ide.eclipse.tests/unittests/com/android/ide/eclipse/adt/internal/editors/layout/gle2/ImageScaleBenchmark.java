@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/org/documents/epl-v10.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ide.eclipse.adt.internal.editors.layout.gle2;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+
+/**
+ * Compares the time taken by {@link ImageUtils#scaleByAreaAveraging} and
+ * {@link ImageUtils#scaleByHalving} to create preview thumbnails of full HD renderings.
+ * This is not a test; run it as a Java application.
+ */
+public class ImageScaleBenchmark {
+    private static final int WARMUP_ITERATIONS = 20;
+    private static final int ITERATIONS = 50;
+
+    /** Scales of the thumbnails, as used by the layout previews */
+    private static final double[] SCALES = new double[] { 0.4, 0.2, 0.1 };
+
+    public static void main(String[] args) {
+        BufferedImage portrait = createImage(1080, 1920);
+        BufferedImage landscape = createImage(1920, 1080);
+
+        for (double scale : SCALES) {
+            run("1080x1920", portrait, scale);
+            run("1920x1080", landscape, scale);
+        }
+    }
+
+    private static BufferedImage createImage(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics g = image.getGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, width, height);
+        g.setColor(Color.DARK_GRAY);
+        for (int y = 0; y < height; y += 48) {
+            g.drawString("The quick brown fox jumps over the lazy dog", 16, y + 32); //$NON-NLS-1$
+            g.drawLine(0, y + 47, width, y + 47);
+        }
+        g.dispose();
+
+        return image;
+    }
+
+    private static void run(String name, BufferedImage image, double scale) {
+        long areaAveraging = time(image, scale, true);
+        long halving = time(image, scale, false);
+        System.out.println(String.format(
+                "%1$s at %2$.2f: area averaging %3$.2f ms, halving %4$.2f ms", //$NON-NLS-1$
+                name, scale, areaAveraging / 1e6, halving / 1e6));
+    }
+
+    /** Returns the average time in nanoseconds taken to scale the image */
+    private static long time(BufferedImage image, double scale, boolean areaAveraging) {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            scale(image, scale, areaAveraging);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            scale(image, scale, areaAveraging);
+        }
+
+        return (System.nanoTime() - start) / ITERATIONS;
+    }
+
+    private static BufferedImage scale(BufferedImage image, double scale,
+            boolean areaAveraging) {
+        if (areaAveraging) {
+            return ImageUtils.scaleByAreaAveraging(image, scale, scale, 0, 0);
+        } else {
+            return ImageUtils.scaleByHalving(image, scale, scale, 0, 0);
+        }
+    }
+}
@@ -357,6 +357,122 @@ public class ImageUtilsTest extends TestCase {
 
     }
 
+    public void testScaleByAreaAveraging() throws Exception {
+        int[] types = new int[] {
+            BufferedImage.TYPE_INT_ARGB,
+            BufferedImage.TYPE_INT_ARGB_PRE,
+            BufferedImage.TYPE_INT_RGB,
+            BufferedImage.TYPE_3BYTE_BGR
+        };
+        for (int type : types) {
+            // Large enough to be scaled by several threads
+            BufferedImage image = new BufferedImage(1080, 1920, type);
+            Graphics g = image.getGraphics();
+            g.setColor(new Color(0xFF00FF00, true));
+            g.fillRect(0, 0, image.getWidth(), image.getHeight());
+            // Edges that don't line up with the 10x10 boxes of the scaled pixels
+            g.setColor(new Color(0xFFFF0000, true));
+            g.fillRect(203, 407, 401, 795);
+            g.setColor(new Color(0x800000FF, true));
+            g.fillRect(0, 1600, 1080, 320);
+            g.dispose();
+
+            BufferedImage scaled = ImageUtils.scaleByAreaAveraging(image, 0.1, 0.1, 5, 7);
+            BufferedImage expected = ImageUtils.scaleByHalving(image, 0.1, 0.1, 5, 7);
+            assertEquals(type, scaled.getType());
+            assertEquals(expected.getWidth(), scaled.getWidth());
+            assertEquals(expected.getHeight(), scaled.getHeight());
+            assertEquals(113, scaled.getWidth());
+            assertEquals(199, scaled.getHeight());
+
+            assertEquals(expected.getRGB(5, 5), scaled.getRGB(5, 5));
+            assertEquals(expected.getRGB(40, 80), scaled.getRGB(40, 80));
+            assertEquals(expected.getRGB(50, 180), scaled.getRGB(50, 180));
+            assertEquals(0xFF00FF00, scaled.getRGB(5, 5));
+            assertEquals(0xFFFF0000, scaled.getRGB(40, 80));
+            assertEquals(expected.getRGB(110, 195), scaled.getRGB(110, 195));
+
+            // Every pixel matches a box filter computed in double precision, up to the
+            // rounding of the single precision sums
+            int destWidth = 108;
+            int destHeight = 192;
+            int[] reference = scaleByBoxFilter(image, destWidth, destHeight);
+            for (int y = 0; y < destHeight; y++) {
+                for (int x = 0; x < destWidth; x++) {
+                    int pixel1 = reference[y * destWidth + x];
+                    int pixel2 = scaled.getRGB(x, y);
+                    for (int shift = 0; shift < 32; shift += 8) {
+                        int delta = ((pixel1 >>> shift) & 0xFF) - ((pixel2 >>> shift) & 0xFF);
+                        assertTrue(Math.abs(delta) <= 1);
+                    }
+                }
+            }
+        }
+
+        // Uneven ratio
+        BufferedImage image = new BufferedImage(100, 100, BufferedImage.TYPE_INT_ARGB);
+        Graphics g = image.getGraphics();
+        g.setColor(new Color(0xFFFF0000, true));
+        g.fillRect(0, 0, 50, 100);
+        g.dispose();
+        BufferedImage scaled = ImageUtils.scaleByAreaAveraging(image, 0.33, 0.33, 0, 0);
+        assertEquals(33, scaled.getWidth());
+        assertEquals(33, scaled.getHeight());
+        assertEquals(0xFFFF0000, scaled.getRGB(0, 0));
+        assertEquals(0x00000000, scaled.getRGB(32, 32));
+        assertEquals(0x80FF0000, scaled.getRGB(16, 16));
+    }
+
+    /**
+     * Reference implementation of {@link ImageUtils#scaleByAreaAveraging}: averages the
+     * premultiplied source pixels covered by each destination pixel, weighted by their
+     * coverage.
+     */
+    private static int[] scaleByBoxFilter(BufferedImage image, int destWidth, int destHeight) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] source = image.getRGB(0, 0, width, height, null, 0, width);
+        double xRatio = width / (double) destWidth;
+        double yRatio = height / (double) destHeight;
+
+        int[] result = new int[destWidth * destHeight];
+        for (int dy = 0; dy < destHeight; dy++) {
+            double y0 = dy * yRatio;
+            double y1 = (dy + 1) * yRatio;
+            for (int dx = 0; dx < destWidth; dx++) {
+                double x0 = dx * xRatio;
+                double x1 = (dx + 1) * xRatio;
+                double a = 0, r = 0, g = 0, b = 0;
+                for (int sy = (int) y0; sy < y1; sy++) {
+                    double yCoverage = Math.min(sy + 1, y1) - Math.max(sy, y0);
+                    for (int sx = (int) x0; sx < x1; sx++) {
+                        double coverage = yCoverage * (Math.min(sx + 1, x1) - Math.max(sx, x0));
+                        int argb = source[sy * width + sx];
+                        double alpha = argb >>> 24;
+                        a += coverage * alpha;
+                        r += coverage * ((argb >> 16) & 0xFF) * alpha / 255;
+                        g += coverage * ((argb >> 8) & 0xFF) * alpha / 255;
+                        b += coverage * (argb & 0xFF) * alpha / 255;
+                    }
+                }
+
+                double area = xRatio * yRatio;
+                a /= area;
+                int alpha = (int) Math.round(a);
+                if (alpha == 0) {
+                    continue;
+                }
+                double factor = 255 / (a * area);
+                result[dy * destWidth + dx] = alpha << 24
+                        | (int) Math.round(r * factor) << 16
+                        | (int) Math.round(g * factor) << 8
+                        | (int) Math.round(b * factor);
+            }
+        }
+
+        return result;
+    }
+
     public void testCreateColoredImage() throws Exception {
         BufferedImage image = ImageUtils.createColoredImage(120, 110, new RGB(0xFE, 0xFD, 0xFC));
         assertEquals(120, image.getWidth());
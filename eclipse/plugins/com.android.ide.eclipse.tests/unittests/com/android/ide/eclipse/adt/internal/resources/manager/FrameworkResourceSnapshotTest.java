@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/org/documents/epl-v10.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ide.eclipse.adt.internal.resources.manager;
+
+import com.android.ide.common.rendering.api.ResourceValue;
+import com.android.ide.common.rendering.api.StyleResourceValue;
+import com.android.ide.common.resources.FrameworkResources;
+import com.android.ide.common.resources.ResourceFile;
+import com.android.ide.common.resources.ResourceItem;
+import com.android.resources.ResourceType;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public class FrameworkResourceSnapshotTest extends TestCase {
+    private File mTempDir;
+    private File mCache;
+    private File mRes;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTempDir = Files.createTempDir();
+        mCache = new File(mTempDir, "cache");
+        mRes = new File(mTempDir, "res");
+
+        write("values/strings.xml", "<resources><string name=\"ok\">OK</string></resources>");
+        write("values/styles.xml", "<resources><style name=\"Theme\">"
+                + "<item name=\"colorForeground\">#fff</item></style></resources>");
+        write("values-fr/strings.xml", "<resources><string name=\"ok\">D'accord</string></resources>");
+        write("layout/simple_list_item_1.xml", "<TextView />");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll(mTempDir);
+        super.tearDown();
+    }
+
+    public void testSnapshot() throws Exception {
+        checkResources(FrameworkResourceSnapshot.load(mCache, mRes, "1"), "OK");
+        assertEquals(1, mCache.list().length);
+
+        // rebuilt from the snapshot
+        checkResources(FrameworkResourceSnapshot.load(mCache, mRes, "1"), "OK");
+        assertEquals(1, mCache.list().length);
+
+        // another revision of the platform has its own snapshot
+        checkResources(FrameworkResourceSnapshot.load(mCache, mRes, "2"), "OK");
+        assertEquals(2, mCache.list().length);
+    }
+
+    public void testValuesFromSnapshot() throws Exception {
+        FrameworkResourceSnapshot.load(mCache, mRes, "1");
+
+        // the file is not parsed again as long as its timestamp and length are unchanged
+        File strings = new File(mRes, "values/strings.xml");
+        long lastModified = strings.lastModified();
+        write("values/strings.xml", "<resources><string name=\"ok\">KO</string></resources>");
+        strings.setLastModified(lastModified);
+
+        checkResources(FrameworkResourceSnapshot.load(mCache, mRes, "1"), "OK");
+    }
+
+    public void testStale() throws Exception {
+        FrameworkResourceSnapshot.load(mCache, mRes, "1");
+
+        File strings = new File(mRes, "values/strings.xml");
+        write("values/strings.xml", "<resources><string name=\"ok\">Okay</string></resources>");
+        strings.setLastModified(strings.lastModified() + 2000);
+
+        checkResources(FrameworkResourceSnapshot.load(mCache, mRes, "1"), "Okay");
+        checkResources(FrameworkResourceSnapshot.load(mCache, mRes, "1"), "Okay");
+    }
+
+    public void testCorrupted() throws Exception {
+        FrameworkResourceSnapshot.load(mCache, mRes, "1");
+        File[] files = mCache.listFiles();
+        assertEquals(1, files.length);
+        Files.write(new byte[] { 0, 0, 0, 2, 1, 2, 3 }, files[0]);
+
+        checkResources(FrameworkResourceSnapshot.load(mCache, mRes, "1"), "OK");
+        checkResources(FrameworkResourceSnapshot.load(mCache, mRes, "1"), "OK");
+    }
+
+    private void checkResources(FrameworkResources resources, String ok) throws Exception {
+        ResourceItem item = findItem(resources, ResourceType.STRING, "ok");
+        // framework resources cannot be edited, whether they come from the snapshot or not
+        assertFalse(item.isEditableDirectly());
+        List<ResourceFile> files = item.getSourceFileList();
+        assertEquals(2, files.size());
+        for (ResourceFile file : files) {
+            String folder = file.getFolder().getFolder().getName();
+            ResourceValue value = file.getValue(ResourceType.STRING, "ok");
+            if (folder.equals("values")) {
+                assertEquals(ok, value.getValue());
+            } else {
+                assertEquals("values-fr", folder);
+                assertEquals("D'accord", value.getValue());
+            }
+            assertEquals(new File(mRes, folder + "/strings.xml").getPath(),
+                    file.getFile().getOsLocation());
+        }
+
+        // styles are parsed from the platform
+        item = findItem(resources, ResourceType.STYLE, "Theme");
+        assertFalse(item.isEditableDirectly());
+        files = item.getSourceFileList();
+        assertEquals(1, files.size());
+        assertTrue(files.get(0).getValue(ResourceType.STYLE, "Theme")
+                instanceof StyleResourceValue);
+
+        assertNotNull(findItem(resources, ResourceType.LAYOUT, "simple_list_item_1"));
+    }
+
+    private static ResourceItem findItem(FrameworkResources resources, ResourceType type,
+            String name) {
+        for (ResourceItem item : resources.getResourceItemsOfType(type)) {
+            if (name.equals(item.getName())) {
+                return item;
+            }
+        }
+
+        fail("Missing " + type.getName() + "/" + name);
+        return null;
+    }
+
+    private void write(String path, String contents) throws Exception {
+        File file = new File(mRes, path);
+        file.getParentFile().mkdirs();
+        Files.write(contents, file, Charsets.UTF_8);
+    }
+
+    private static void deleteAll(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                deleteAll(f);
+            }
+        }
+        file.delete();
+    }
+}
@@ -25,6 +25,7 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.zip.ZipFile;
 
 import junit.framework.TestCase;
 
@@ -47,6 +48,7 @@ public class AndroidJarLoaderTest extends TestCase {
 
     @Override
     public void tearDown() throws Exception {
+        mFrameworkClassLoader.close();
         mFrameworkClassLoader = null;
         System.gc();
     }
@@ -83,6 +85,20 @@ public class AndroidJarLoaderTest extends TestCase {
         assertEquals(2, map.size());
     }
     
+    /** Finds a class after closing the loader. The JAR is opened again. */
+    public final void testFindClass_afterClose() throws Exception {
+        _findClass(mFrameworkClassLoader, "jar.example.Class1");  //$NON-NLS-1$
+        mFrameworkClassLoader.close();
+        Class<?> c = _findClass(mFrameworkClassLoader, "jar.example.Class2");  //$NON-NLS-1$
+        assertEquals("jar.example.Class2", c.getName());              //$NON-NLS-1$
+        assertEquals(2, getPrivateClassCache().size());
+
+        // the jar file was only opened for the duration of the call
+        assertNull(getPrivateZipFile());
+        mFrameworkClassLoader.preLoadClasses("jar.example.", null, null); //$NON-NLS-1$
+        assertNull(getPrivateZipFile());
+    }
+
     /** call the protected method findClass */
     private Class<?> _findClass(AndroidJarLoader jarLoader, String name) throws Exception {
         Method findClassMethod = AndroidJarLoader.class.getDeclaredMethod(
@@ -163,4 +179,13 @@ public class AndroidJarLoaderTest extends TestCase {
         field.setAccessible(true);
         return (HashMap<String, byte[]>) field.get(mFrameworkClassLoader);
     }
+
+    /** Retrieves the private mFrameworkClassLoader.mZipFile field using reflection. */
+    private ZipFile getPrivateZipFile()
+            throws SecurityException, NoSuchFieldException,
+                IllegalArgumentException, IllegalAccessException {
+        Field field = AndroidJarLoader.class.getDeclaredField("mZipFile");  //$NON-NLS-1$
+        field.setAccessible(true);
+        return (ZipFile) field.get(mFrameworkClassLoader);
+    }
 }
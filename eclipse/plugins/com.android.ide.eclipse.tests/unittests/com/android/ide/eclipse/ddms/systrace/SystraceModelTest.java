@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/org/documents/epl-v10.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ide.eclipse.ddms.systrace;
+
+import com.google.common.base.Charsets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public class SystraceModelTest extends TestCase {
+    private static final long MS = 1000000L;
+    private static final long T0 = 100000 * MS;
+
+    // Lines with a tgid column, as written by recent versions of atrace, and lines
+    // without one (the RenderThread), as written by older versions
+    private static final String TRACE =
+            "# tracer: nop\n" +
+            "#\n" +
+            "#           TASK-PID    TGID   CPU#  ||||    TIMESTAMP  FUNCTION\n" +
+            "#              | |        |      |   ||||       |         |\n" +
+            "          <idle>-0     (-----) [000] d..3  100.000000: sched_switch: " +
+                "prev_comm=swapper/0 prev_pid=0 prev_prio=120 prev_state=R ==> " +
+                "next_comm=main next_pid=1000 next_prio=120\n" +
+            "            main-1000  ( 1000) [000] ...1  100.001000: tracing_mark_write: " +
+                "B|1000|draw\n" +
+            "            main-1000  ( 1000) [000] ...1  100.002000: tracing_mark_write: " +
+                "B|1000|measure\n" +
+            "          <idle>-0     [001] d..3  100.002000: sched_switch: " +
+                "prev_comm=swapper/1 prev_pid=0 prev_prio=120 prev_state=R ==> " +
+                "next_comm=RenderThread next_pid=1010 next_prio=120\n" +
+            "    RenderThread-1010  [001] ...1  100.003000: tracing_mark_write: " +
+                "B|1000|dessiné\n" +
+            "            main-1000  ( 1000) [000] ...1  100.004000: tracing_mark_write: E\n" +
+            "            main-1000  ( 1000) [000] ...1  100.005000: tracing_mark_write: " +
+                "C|1000|frames|3\n" +
+            "    RenderThread-1010  [001] ...1  100.005000: tracing_mark_write: E\n" +
+            "    RenderThread-1010  [001] d..3  100.006000: sched_switch: " +
+                "prev_comm=RenderThread prev_pid=1010 prev_prio=120 prev_state=S ==> " +
+                "next_comm=swapper/1 next_pid=0 next_prio=120\n" +
+            "            main-1000  ( 1000) [000] ...1  100.008000: tracing_mark_write: E\n" +
+            "            main-1000  ( 1000) [000] d..3  100.010000: sched_switch: " +
+                "prev_comm=main prev_pid=1000 prev_prio=120 prev_state=S ==> " +
+                "next_comm=swapper/0 next_pid=0 next_prio=120\n";
+
+    public void testParseReader() throws Exception {
+        SystraceModel model = new SystraceModel.Builder()
+                .parse(new StringReader(TRACE)).build();
+        checkModel(model);
+    }
+
+    public void testWriteChunks() throws Exception {
+        byte[] data = TRACE.getBytes(Charsets.UTF_8);
+
+        // lines, and the two bytes of the accented character, are split across chunks
+        for (int chunkSize = 1; chunkSize < 8; chunkSize++) {
+            SystraceModel.Builder builder = new SystraceModel.Builder();
+            for (int offset = 0; offset < data.length; offset += chunkSize) {
+                builder.write(data, offset, Math.min(chunkSize, data.length - offset));
+            }
+            checkModel(builder.build());
+        }
+    }
+
+    public void testOutputParser() throws Exception {
+        // the shell output has \r\n line endings, and a header before the trace
+        String output = ("capturing trace... done\nTRACE:\n" + TRACE).replace("\n", "\r\n");
+        byte[] data = output.getBytes(Charsets.UTF_8);
+
+        ByteArrayOutputStream html = new ByteArrayOutputStream();
+        SystraceOutputParser parser = new SystraceOutputParser(false, "", "", "%1$s%2$s%3$s",
+                "", html);
+        SystraceModel.Builder builder = new SystraceModel.Builder();
+        parser.setModelBuilder(builder);
+        for (int offset = 0; offset < data.length; offset += 5) {
+            parser.write(data, offset, Math.min(5, data.length - offset));
+        }
+        parser.finish();
+
+        checkModel(builder.build());
+    }
+
+    private static void checkModel(SystraceModel model) {
+        assertEquals(T0, model.getStartTime());
+        assertEquals(T0 + 10 * MS, model.getEndTime());
+
+        // sched_switch
+        assertEquals(2, model.getSliceCount());
+        assertEquals("main", model.getThreadName(1000));
+        assertEquals("RenderThread", model.getThreadName(1010));
+        assertEquals(1000, model.getProcessId(1000));
+        // no tgid column, the process is known from the trace markers
+        assertEquals(1000, model.getProcessId(1010));
+        assertTrue(Arrays.equals(new int[] { 1000, 1010 },
+                model.getScheduledThreads()));
+
+        assertEquals(10 * MS, model.getCpuTime(1000, T0, T0 + 10 * MS));
+        assertEquals(5 * MS, model.getCpuTime(1000, T0 + 5 * MS, T0 + 20 * MS));
+        assertEquals(4 * MS, model.getCpuTime(1010, T0, T0 + 10 * MS));
+        assertEquals(1 * MS, model.getCpuTime(1010, T0 + 5 * MS, T0 + 7 * MS));
+        assertEquals(0, model.getCpuTime(1010, T0 + 6 * MS, T0 + 10 * MS));
+        assertEquals(0, model.getCpuTime(0, T0, T0 + 10 * MS));
+        assertEquals(0.4, model.getCpuUtilization(1010, T0, T0 + 10 * MS), 1e-9);
+        assertTrue(Arrays.equals(new int[] { 1000, 1010 },
+                model.getBusiestThreads(T0, T0 + 10 * MS, 5)));
+        // same CPU time, ordered by thread id
+        assertTrue(Arrays.equals(new int[] { 1000, 1010 },
+                model.getBusiestThreads(T0 + 2 * MS, T0 + 3 * MS, 2)));
+        assertTrue(Arrays.equals(new int[] { 1000 },
+                model.getBusiestThreads(T0 + 6 * MS, T0 + 7 * MS, 2)));
+
+        // nested B/E
+        assertEquals(3, model.getSectionCount());
+        int[] longest = model.getLongestSections(1000, 3);
+        assertEquals(3, longest.length);
+        assertEquals("draw", model.getSectionName(longest[0]));
+        assertEquals(0, model.getSectionDepth(longest[0]));
+        assertEquals(7 * MS, model.getSectionDuration(longest[0]));
+        assertEquals(T0 + 1 * MS, model.getSectionStart(longest[0]));
+        assertEquals("measure", model.getSectionName(longest[1]));
+        assertEquals(1, model.getSectionDepth(longest[1]));
+        assertEquals(2 * MS, model.getSectionDuration(longest[1]));
+        assertEquals(1000, model.getSectionTid(longest[1]));
+        assertEquals("dessiné", model.getSectionName(longest[2]));
+        assertEquals(0, model.getSectionDepth(longest[2]));
+        assertEquals(1010, model.getSectionTid(longest[2]));
+        assertEquals(1000, model.getSectionPid(longest[2]));
+
+        longest = model.getLongestSections(-1, 1);
+        assertEquals(1, longest.length);
+        assertEquals("draw", model.getSectionName(longest[0]));
+        assertEquals(0, model.getLongestSections(999, 3).length);
+
+        // C counters
+        assertEquals(1, model.getCounterCount());
+        assertEquals("frames", model.getCounterName(0));
+        assertEquals(1000, model.getCounterPid(0));
+        assertEquals(T0 + 5 * MS, model.getCounterTime(0));
+        assertEquals(3, model.getCounterValue(0));
+    }
+}
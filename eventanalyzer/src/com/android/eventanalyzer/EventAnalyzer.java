@@ -38,10 +38,21 @@ import java.io.FileWriter;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Connects to a device using ddmlib and analyze its event log.
@@ -51,16 +62,24 @@ public class EventAnalyzer implements ILogListener {
     private final static int TAG_ACTIVITY_LAUNCH_TIME = 30009;
     private final static char DATA_SEPARATOR = ',';
 
+    /**
+     * Size of the header of an entry in a binary event log: length and header size (or padding)
+     * as 16 bit values, followed by pid, tid, sec and nsec as 32 bit values. Newer logs may
+     * have a larger header, whose size is then given by the second field.
+     */
+    private final static int ENTRY_HEADER_SIZE = 20;
+
     private final static String CVS_EXT = ".csv";
     private final static String TAG_FILE_EXT = ".tag"; //$NON-NLS-1$
 
     private EventLogParser mParser;
-    private TreeMap<String, ArrayList<Long>> mLaunchMap = new TreeMap<String, ArrayList<Long>>();
+    private TreeMap<String, LaunchTimes> mLaunchMap = new TreeMap<String, LaunchTimes>();
 
     String mInputTextFile = null;
     String mInputBinaryFile = null;
     String mInputDevice = null;
     String mInputFolder = null;
+    boolean mBinaryFolder = false;
     String mAlternateTagFile = null;
     String mOutputFile = null;
 
@@ -109,6 +128,15 @@ public class EventAnalyzer implements ILogListener {
                 }
 
                 mInputFolder = args[index++];
+            } else if ("-Fb".equals(argument)) {
+                checkInputValidity("-Fb");
+
+                if (index == args.length) {
+                    printUsageAndQuit();
+                }
+
+                mInputFolder = args[index++];
+                mBinaryFolder = true;
             } else if ("-t".equals(argument)) {
                 if (index == args.length) {
                     printUsageAndQuit();
@@ -150,9 +178,9 @@ public class EventAnalyzer implements ILogListener {
 
         try {
             if (mInputBinaryFile != null) {
-                parseBinaryLogFile();
+                parseBinaryLogFile(mInputBinaryFile, createParser(mInputBinaryFile), mLaunchMap);
             } else if (mInputTextFile != null) {
-                parseTextLogFile(mInputTextFile);
+                parseTextLogFile(mInputTextFile, createParser(mInputTextFile), mLaunchMap);
             } else if (mInputFolder != null) {
                 parseFolder(mInputFolder);
             } else if (mInputDevice != null) {
@@ -167,17 +195,18 @@ public class EventAnalyzer implements ILogListener {
     }
 
     /**
-     * Parses a binary event log file located at {@link #mInputBinaryFile}.
-     * @throws IOException
+     * Creates a parser initialized with the event tags associated with a log file, or with
+     * {@link #mAlternateTagFile} if there are none.
+     * @param logFile the path of the log file.
      */
-    private void parseBinaryLogFile() throws IOException {
-        mParser = new EventLogParser();
+    private EventLogParser createParser(String logFile) {
+        EventLogParser parser = new EventLogParser();
 
-        String tagFile = mInputBinaryFile + TAG_FILE_EXT;
-        if (mParser.init(tagFile) == false) {
+        String tagFile = logFile + TAG_FILE_EXT;
+        if (parser.init(tagFile) == false) {
             // if we have an alternate location
             if (mAlternateTagFile != null) {
-                if (mParser.init(mAlternateTagFile) == false) {
+                if (parser.init(mAlternateTagFile) == false) {
                     printAndExit("Failed to get event tags from " + mAlternateTagFile,
                             false /* terminate*/);
                 }
@@ -186,46 +215,88 @@ public class EventAnalyzer implements ILogListener {
             }
         }
 
-        LogReceiver receiver = new LogReceiver(this);
-
-        byte[] buffer = new byte[256];
-
-        FileInputStream fis = new FileInputStream(mInputBinaryFile);
-
-        int count;
-        while ((count = fis.read(buffer)) != -1) {
-            receiver.parseNewData(buffer, 0, count);
-        }
+        return parser;
     }
 
     /**
-     * Parse a text Log file.
+     * Parses a binary event log file.
+     * The file is memory-mapped and its entries are read in place. Only the payload of the
+     * launch time events is copied and handed to the parser, all the other events are skipped
+     * based on the tag at the start of their payload.
      * @param filePath the location of the file.
+     * @param parser the parser initialized with the event tags of the file.
+     * @param launchMap the map receiving the launch times found in the file.
      * @throws IOException
      */
-    private void parseTextLogFile(String filePath) throws IOException {
-        mParser = new EventLogParser();
+    private static void parseBinaryLogFile(String filePath, EventLogParser parser,
+            Map<String, LaunchTimes> launchMap) throws IOException {
+        FileInputStream fis = new FileInputStream(filePath);
+        try {
+            FileChannel channel = fis.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(filePath + " is too large");
+            }
 
-        String tagFile = filePath + TAG_FILE_EXT;
-        if (mParser.init(tagFile) == false) {
-            // if we have an alternate location
-            if (mAlternateTagFile != null) {
-                if (mParser.init(mAlternateTagFile) == false) {
-                    printAndExit("Failed to get event tags from " + mAlternateTagFile,
-                            false /* terminate*/);
+            MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+            while (buffer.remaining() >= ENTRY_HEADER_SIZE) {
+                int start = buffer.position();
+                int length = buffer.getShort() & 0xFFFF;
+                int headerSize = buffer.getShort() & 0xFFFF;
+                if (headerSize < ENTRY_HEADER_SIZE) {
+                    // older logs have padding instead of the header size
+                    headerSize = ENTRY_HEADER_SIZE;
+                }
+
+                int payload = start + headerSize;
+                if (payload + length > buffer.limit()) {
+                    // truncated entry at the end of the file
+                    break;
+                }
+
+                if (length >= 4 && buffer.getInt(payload) == TAG_ACTIVITY_LAUNCH_TIME) {
+                    LogEntry entry = new LogEntry();
+                    entry.len = length;
+                    entry.pid = buffer.getInt();
+                    entry.tid = buffer.getInt();
+                    entry.sec = buffer.getInt();
+                    entry.nsec = buffer.getInt();
+                    entry.data = new byte[length];
+
+                    buffer.position(payload);
+                    buffer.get(entry.data);
+
+                    processEvent(parser.parse(entry), launchMap);
+                } else {
+                    buffer.position(payload + length);
                 }
-            } else {
-                printAndExit("Failed to get event tags from " + tagFile, false /* terminate*/);
             }
+        } finally {
+            fis.close();
         }
+    }
 
+    /**
+     * Parse a text Log file.
+     * @param filePath the location of the file.
+     * @param parser the parser initialized with the event tags of the file.
+     * @param launchMap the map receiving the launch times found in the file.
+     * @throws IOException
+     */
+    private static void parseTextLogFile(String filePath, EventLogParser parser,
+            Map<String, LaunchTimes> launchMap) throws IOException {
         // read the lines from the file and process them.
         BufferedReader reader = new BufferedReader(
                 new InputStreamReader(new FileInputStream(filePath)));
 
-        String line;
-        while ((line = reader.readLine()) != null) {
-            processEvent(mParser.parse(line));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                processEvent(parser.parse(line), launchMap);
+            }
+        } finally {
+            reader.close();
         }
     }
 
@@ -273,9 +344,55 @@ public class EventAnalyzer implements ILogListener {
 
     /**
      * Parses the log files located in the folder, and its sub-folders.
+     * The files are parsed in parallel, each into its own map, and the results are merged in
+     * the order the files were listed.
      * @param folderPath the path to the folder.
+     * @throws InterruptedException
+     */
+    private void parseFolder(String folderPath) throws InterruptedException {
+        List<File> files = new ArrayList<File>();
+        listFiles(folderPath, files);
+
+        int threads = Math.max(1, Math.min(files.size(),
+                Runtime.getRuntime().availableProcessors()));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Map<String, LaunchTimes>>> results =
+                    new ArrayList<Future<Map<String, LaunchTimes>>>(files.size());
+
+            for (final File file : files) {
+                results.add(executor.submit(new Callable<Map<String, LaunchTimes>>() {
+                    public Map<String, LaunchTimes> call() throws Exception {
+                        String path = file.getAbsolutePath();
+                        EventLogParser parser = createParser(path);
+
+                        Map<String, LaunchTimes> launchMap = new TreeMap<String, LaunchTimes>();
+                        if (mBinaryFolder) {
+                            parseBinaryLogFile(path, parser, launchMap);
+                        } else {
+                            parseTextLogFile(path, parser, launchMap);
+                        }
+                        return launchMap;
+                    }
+                }));
+            }
+
+            for (Future<Map<String, LaunchTimes>> result : results) {
+                try {
+                    mergeLaunchTimes(result.get());
+                } catch (ExecutionException e) {
+                    // ignore this file.
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Adds the log files located in the folder, and its sub-folders, to a list.
      */
-    private void parseFolder(String folderPath) {
+    private static void listFiles(String folderPath, List<File> list) {
         File f = new File(folderPath);
         if (f.isDirectory() == false) {
             printAndExit(String.format("%1$s is not a valid folder", folderPath),
@@ -290,15 +407,22 @@ public class EventAnalyzer implements ILogListener {
         });
 
         for (String file : files) {
-            try {
-                f = new File(folderPath + File.separator + file);
-                if (f.isDirectory()) {
-                    parseFolder(f.getAbsolutePath());
-                } else {
-                    parseTextLogFile(f.getAbsolutePath());
-                }
-            } catch (IOException e) {
-                // ignore this file.
+            f = new File(folderPath + File.separator + file);
+            if (f.isDirectory()) {
+                listFiles(f.getAbsolutePath(), list);
+            } else {
+                list.add(f);
+            }
+        }
+    }
+
+    private void mergeLaunchTimes(Map<String, LaunchTimes> launchMap) {
+        for (Entry<String, LaunchTimes> entry : launchMap.entrySet()) {
+            LaunchTimes times = mLaunchMap.get(entry.getKey());
+            if (times == null) {
+                mLaunchMap.put(entry.getKey(), entry.getValue());
+            } else {
+                times.addAll(entry.getValue());
             }
         }
     }
@@ -349,10 +473,10 @@ public class EventAnalyzer implements ILogListener {
 
                 for (String activity : activities) {
                     // get the activity list.
-                    ArrayList<Long> list = mLaunchMap.get(activity);
+                    LaunchTimes list = mLaunchMap.get(activity);
                     if (index < list.size()) {
                         moreValues = true;
-                        builder.append(list.get(index).longValue()).append(DATA_SEPARATOR);
+                        builder.append(list.get(index)).append(DATA_SEPARATOR);
                     } else {
                         builder.append(DATA_SEPARATOR);
                     }
@@ -367,30 +491,36 @@ public class EventAnalyzer implements ILogListener {
             }
 
             // write per-activity stats.
+            builder.setLength(0);
+            builder.append("activity").append(DATA_SEPARATOR);
+            builder.append("min").append(DATA_SEPARATOR);
+            builder.append("max").append(DATA_SEPARATOR);
+            builder.append("p50").append(DATA_SEPARATOR);
+            builder.append("average").append(DATA_SEPARATOR);
+            builder.append("p90").append(DATA_SEPARATOR);
+            builder.append("p99").append(DATA_SEPARATOR);
+            writer.write(builder.append('\n').toString());
+
             for (String activity : activities) {
                 builder.setLength(0);
                 builder.append(activity).append(DATA_SEPARATOR);
 
                 // get the activity list.
-                ArrayList<Long> list = mLaunchMap.get(activity);
-
-                // sort the list
-                Collections.sort(list);
+                LaunchTimes list = mLaunchMap.get(activity);
 
                 // write min/max
-                builder.append(list.get(0).longValue()).append(DATA_SEPARATOR);
-                builder.append(list.get(list.size()-1).longValue()).append(DATA_SEPARATOR);
+                builder.append(list.getMin()).append(DATA_SEPARATOR);
+                builder.append(list.getMax()).append(DATA_SEPARATOR);
 
                 // write median value
-                builder.append(list.get(list.size()/2).longValue()).append(DATA_SEPARATOR);
+                builder.append(list.getPercentile(50)).append(DATA_SEPARATOR);
 
-                // compute and write average
-                long total = 0; // despite being encoded on a long, the values are low enough that
-                                // a Long should be enough to compute the total
-                for (Long value : list) {
-                    total += value.longValue();
-                }
-                builder.append(total / list.size()).append(DATA_SEPARATOR);
+                // write average
+                builder.append(list.getAverage()).append(DATA_SEPARATOR);
+
+                // write the upper percentiles
+                builder.append(list.getPercentile(90)).append(DATA_SEPARATOR);
+                builder.append(list.getPercentile(99)).append(DATA_SEPARATOR);
 
                 // finally write the data.
                 writer.write(builder.append('\n').toString());
@@ -414,10 +544,10 @@ public class EventAnalyzer implements ILogListener {
      */
     public void newEntry(LogEntry entry) {
         // parse and process the entry data.
-        processEvent(mParser.parse(entry));
+        processEvent(mParser.parse(entry), mLaunchMap);
     }
 
-    private void processEvent(EventContainer event) {
+    private static void processEvent(EventContainer event, Map<String, LaunchTimes> launchMap) {
         if (event != null && event.mTag == TAG_ACTIVITY_LAUNCH_TIME) {
             // get the activity name
             try {
@@ -426,7 +556,7 @@ public class EventAnalyzer implements ILogListener {
                 // get the launch time
                 Object value = event.getValue(1);
                 if (value instanceof Long) {
-                    addLaunchTime(name, (Long)value);
+                    addLaunchTime(launchMap, name, ((Long)value).longValue());
                 }
 
             } catch (InvalidTypeException e) {
@@ -436,12 +566,13 @@ public class EventAnalyzer implements ILogListener {
         }
     }
 
-    private void addLaunchTime(String name, Long value) {
-        ArrayList<Long> list = mLaunchMap.get(name);
+    private static void addLaunchTime(Map<String, LaunchTimes> launchMap, String name,
+            long value) {
+        LaunchTimes list = launchMap.get(name);
 
         if (list == null) {
-            list = new ArrayList<Long>();
-            mLaunchMap.put(name, list);
+            list = new LaunchTimes();
+            launchMap.put(name, list);
         }
 
         list.add(value);
@@ -469,6 +600,7 @@ public class EventAnalyzer implements ILogListener {
         System.out.println("   -fb <file>    The path to a binary event log, gathered by dumpeventlog");
         System.out.println("   -ft <file>    The path to a text event log, gathered by adb logcat -b events");
         System.out.println("   -F <folder>   The path to a folder containing multiple text log files.");
+        System.out.println("   -Fb <folder>  The path to a folder containing multiple binary log files.");
         System.out.println("   -s <serial>   The serial number of the Device to grab the event log from.");
         System.out.println("Options:");
         System.out.println("   -t <file>     The path to tag file to use in case the one associated with");
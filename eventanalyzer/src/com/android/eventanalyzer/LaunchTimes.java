@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.eventanalyzer;
+
+import java.util.Arrays;
+
+/**
+ * The launch times of an activity, stored in a growable array of primitive longs.
+ */
+final class LaunchTimes {
+    private long[] mValues = new long[16];
+    private int mSize;
+    private boolean mSorted = true;
+
+    void add(long value) {
+        ensureCapacity(mSize + 1);
+        mValues[mSize++] = value;
+        mSorted = false;
+    }
+
+    void addAll(LaunchTimes other) {
+        ensureCapacity(mSize + other.mSize);
+        System.arraycopy(other.mValues, 0, mValues, mSize, other.mSize);
+        mSize += other.mSize;
+        mSorted = false;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the value at the given index, in the order the values were added until
+     * {@link #sort()} is called.
+     */
+    long get(int index) {
+        return mValues[index];
+    }
+
+    void sort() {
+        if (!mSorted) {
+            Arrays.sort(mValues, 0, mSize);
+            mSorted = true;
+        }
+    }
+
+    /**
+     * Returns the given percentile of the values, using the nearest-rank method.
+     * @param percent the percentile, between 1 and 100
+     */
+    long getPercentile(int percent) {
+        sort();
+        int rank = (int) Math.ceil(percent / 100.0 * mSize);
+        return mValues[Math.max(rank, 1) - 1];
+    }
+
+    long getMin() {
+        sort();
+        return mValues[0];
+    }
+
+    long getMax() {
+        sort();
+        return mValues[mSize - 1];
+    }
+
+    long getAverage() {
+        long total = 0;
+        for (int i = 0; i < mSize; i++) {
+            total += mValues[i];
+        }
+        return total / mSize;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > mValues.length) {
+            mValues = Arrays.copyOf(mValues, Math.max(capacity, mValues.length * 2));
+        }
+    }
+}
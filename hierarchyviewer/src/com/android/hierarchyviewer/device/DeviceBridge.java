@@ -40,6 +40,11 @@ public class DeviceBridge {
     public static void initDebugBridge() {
         if (bridge == null) {
             AndroidDebugBridge.init(false /* debugger support */);
+            ViewServerConnection.setTimeouts(
+                    getIntProperty("hierarchyviewer.connectTimeout",
+                            ViewServerConnection.DEFAULT_CONNECT_TIMEOUT),
+                    getIntProperty("hierarchyviewer.readTimeout",
+                            ViewServerConnection.DEFAULT_READ_TIMEOUT));
         }
         if (bridge == null || !bridge.isConnected()) {
             String adbLocation = System.getProperty("hierarchyviewer.adb");
@@ -53,6 +58,18 @@ public class DeviceBridge {
         }
     }
 
+    private static int getIntProperty(String name, int defaultValue) {
+        String value = System.getProperty(name);
+        if (value != null && value.length() != 0) {
+            try {
+                return Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                System.err.println("Ignoring invalid " + name + ": " + value);
+            }
+        }
+        return defaultValue;
+    }
+
     public static void startListenForDevices(AndroidDebugBridge.IDeviceChangeListener listener) {
         AndroidDebugBridge.addDeviceChangeListener(listener);
     }
@@ -112,6 +129,7 @@ public class DeviceBridge {
 
     public static boolean stopViewServer(IDevice device) {
         initDebugBridge();
+        ViewServerConnection.closeIdleConnections(device);
         final boolean[] result = new boolean[1];
         try {
             if (device.isOnline()) {
@@ -162,6 +180,7 @@ public class DeviceBridge {
     }
 
     public static void removeDeviceForward(IDevice device) {
+        ViewServerConnection.closeIdleConnections(device);
         synchronized (devicePortMap) {
             final Integer localPort = devicePortMap.get(device);
             if (localPort != null) {
@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.hierarchyviewer.device;
+
+import com.android.ddmlib.IDevice;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A connection to the view server of a device, through its forwarded local port.
+ *
+ * The view server answers a single command per connection and then closes it. To avoid
+ * paying the connection setup through adb for every command of a burst, e.g. while
+ * profiling, a spare connection is opened in the background when commands are sent to a
+ * device in quick succession, and handed out by {@link #open(IDevice)}. It holds a thread
+ * of the view server, so it is closed if it is not used within a few seconds, or when the
+ * device is disconnected. Several commands can be pipelined with
+ * {@link #sendCommands(IDevice, String[])}, which sends all of them before any response
+ * is read.
+ */
+public class ViewServerConnection {
+    public static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+    public static final int DEFAULT_READ_TIMEOUT = 30000;
+
+    /** Number of spare connections kept open for each device. */
+    private static final int MAX_IDLE_CONNECTIONS = 1;
+
+    /** Idle connections older than this are closed, in case adb dropped them. */
+    private static final long MAX_IDLE_TIME = 5000;
+
+    /** A command sent within this time of the previous one to the same device is a burst. */
+    private static final long BURST_INTERVAL = 1000;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private static int readTimeout = DEFAULT_READ_TIMEOUT;
+
+    private static final HashMap<IDevice, LinkedList<ViewServerConnection>> idleConnections =
+            new HashMap<IDevice, LinkedList<ViewServerConnection>>();
+
+    /** Time at which a connection to each device was last handed out. */
+    private static final HashMap<IDevice, Long> lastOpenTimes = new HashMap<IDevice, Long>();
+
+    private static final ScheduledExecutorService connector =
+            Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "ViewServer Connector");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private final IDevice device;
+    private final Socket socket;
+    private final InputStream in;
+    private final BufferedWriter out;
+    private final long connectTime;
+    private BufferedReader reader;
+
+    private ViewServerConnection(IDevice device, Socket socket) throws IOException {
+        this.device = device;
+        this.socket = socket;
+        in = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+        out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+        connectTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Sets the timeouts used for new connections, in milliseconds. A timeout of 0 waits
+     * forever.
+     * @param connect timeout to establish a connection
+     * @param read timeout of each read from a connection
+     */
+    public static synchronized void setTimeouts(int connect, int read) {
+        connectTimeout = connect;
+        readTimeout = read;
+    }
+
+    public static synchronized int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public static synchronized int getReadTimeout() {
+        return readTimeout;
+    }
+
+    /**
+     * Returns a connection to the view server of the given device, reusing a spare one
+     * if possible. The connection must be closed once the response to its command was read.
+     */
+    public static ViewServerConnection open(IDevice device) throws IOException {
+        ViewServerConnection connection = openConnection(device);
+        if (markOpened(device)) {
+            // more commands are likely to follow
+            addIdleConnection(device);
+        }
+        return connection;
+    }
+
+    /**
+     * Sends each command on its own connection, without waiting for any response. The
+     * responses can then be read from the returned connections, which must all be closed.
+     */
+    public static ViewServerConnection[] sendCommands(IDevice device, String[] commands)
+            throws IOException {
+        ViewServerConnection[] connections = new ViewServerConnection[commands.length];
+        try {
+            for (int i = 0; i < commands.length; i++) {
+                connections[i] = openConnection(device);
+                connections[i].sendCommand(commands[i]);
+            }
+        } catch (IOException e) {
+            for (ViewServerConnection connection : connections) {
+                if (connection != null) {
+                    connection.close();
+                }
+            }
+            throw e;
+        }
+        markOpened(device);
+        return connections;
+    }
+
+    private static ViewServerConnection openConnection(IDevice device) throws IOException {
+        ViewServerConnection connection = takeIdleConnection(device);
+        if (connection == null) {
+            connection = connect(device);
+        }
+        connection.socket.setSoTimeout(getReadTimeout());
+        return connection;
+    }
+
+    /**
+     * Records that a connection to the given device is handed out, and returns whether
+     * the previous one was handed out shortly before.
+     */
+    private static boolean markOpened(IDevice device) {
+        long now = System.currentTimeMillis();
+        synchronized (idleConnections) {
+            Long last = lastOpenTimes.put(device, Long.valueOf(now));
+            return last != null && now - last.longValue() < BURST_INTERVAL;
+        }
+    }
+
+    /** Closes all the idle connections to the given device. */
+    public static void closeIdleConnections(IDevice device) {
+        List<ViewServerConnection> connections;
+        synchronized (idleConnections) {
+            connections = idleConnections.remove(device);
+            lastOpenTimes.remove(device);
+        }
+
+        if (connections != null) {
+            for (ViewServerConnection connection : connections) {
+                connection.closeSocket();
+            }
+        }
+    }
+
+    private static ViewServerConnection connect(IDevice device) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress("127.0.0.1",
+                    DeviceBridge.getDeviceLocalPort(device)), getConnectTimeout());
+            return new ViewServerConnection(device, socket);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private static ViewServerConnection takeIdleConnection(IDevice device) {
+        while (true) {
+            ViewServerConnection connection;
+            synchronized (idleConnections) {
+                LinkedList<ViewServerConnection> connections = idleConnections.get(device);
+                if (connections == null || connections.isEmpty()) {
+                    return null;
+                }
+                connection = connections.removeFirst();
+            }
+
+            if (connection.isIdle()) {
+                return connection;
+            }
+            connection.closeSocket();
+        }
+    }
+
+    /**
+     * Opens a new idle connection to the given device in the background. It is closed
+     * if it is still unused after {@link #MAX_IDLE_TIME}.
+     */
+    private static void addIdleConnection(final IDevice device) {
+        connector.execute(new Runnable() {
+            public void run() {
+                synchronized (idleConnections) {
+                    LinkedList<ViewServerConnection> connections = idleConnections.get(device);
+                    if (connections != null && connections.size() >= MAX_IDLE_CONNECTIONS) {
+                        return;
+                    }
+                }
+
+                final ViewServerConnection connection;
+                try {
+                    connection = connect(device);
+                } catch (IOException e) {
+                    // The server is not running, the next command will connect again
+                    return;
+                }
+
+                synchronized (idleConnections) {
+                    LinkedList<ViewServerConnection> connections = idleConnections.get(device);
+                    if (connections == null) {
+                        connections = new LinkedList<ViewServerConnection>();
+                        idleConnections.put(device, connections);
+                    }
+                    if (connections.size() < MAX_IDLE_CONNECTIONS) {
+                        connections.add(connection);
+                        connector.schedule(new Runnable() {
+                            public void run() {
+                                removeIdleConnection(connection);
+                            }
+                        }, MAX_IDLE_TIME, TimeUnit.MILLISECONDS);
+                        return;
+                    }
+                }
+                connection.closeSocket();
+            }
+        });
+    }
+
+    /** Closes an idle connection that was not used in time. */
+    private static void removeIdleConnection(ViewServerConnection connection) {
+        synchronized (idleConnections) {
+            LinkedList<ViewServerConnection> connections =
+                    idleConnections.get(connection.device);
+            if (connections == null || !connections.remove(connection)) {
+                // it was used or closed already
+                return;
+            }
+            if (connections.isEmpty()) {
+                idleConnections.remove(connection.device);
+            }
+        }
+        connection.closeSocket();
+    }
+
+    /**
+     * Checks whether an unused connection can still be used. The server never writes
+     * anything before it receives a command, so any data or end of stream means the
+     * connection was dropped.
+     */
+    private boolean isIdle() {
+        if (System.currentTimeMillis() - connectTime > MAX_IDLE_TIME) {
+            return false;
+        }
+
+        try {
+            socket.setSoTimeout(1);
+            in.read();
+            return false;
+        } catch (SocketTimeoutException e) {
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public void sendCommand(String command) throws IOException {
+        out.write(command);
+        out.newLine();
+        out.flush();
+    }
+
+    public InputStream getInputStream() {
+        return in;
+    }
+
+    public BufferedReader getReader() throws IOException {
+        if (reader == null) {
+            reader = new BufferedReader(new InputStreamReader(in, "utf-8"), BUFFER_SIZE);
+        }
+        return reader;
+    }
+
+    /** Closes this connection. */
+    public void close() {
+        closeSocket();
+    }
+
+    private void closeSocket() {
+        try {
+            socket.close();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+}
@@ -18,48 +18,38 @@ package com.android.hierarchyviewer.scene;
 
 import com.android.ddmlib.IDevice;
 import com.android.hierarchyviewer.device.Window;
-import com.android.hierarchyviewer.device.DeviceBridge;
+import com.android.hierarchyviewer.device.ViewServerConnection;
 import com.android.hierarchyviewer.ui.util.PsdFile;
 
-import java.awt.Graphics2D;
 import java.awt.Image;
 import java.awt.Point;
 import java.awt.image.BufferedImage;
-import java.io.BufferedInputStream;
-import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.net.InetSocketAddress;
-import java.net.Socket;
 import javax.imageio.ImageIO;
 
 public class CaptureLoader {
+    /** Maximum number of captures requested before their images are read. */
+    private static final int MAX_PIPELINED_CAPTURES = 8;
+
     public static boolean saveLayers(IDevice device, Window window, File file) {
-        Socket socket = null;
-        DataInputStream in = null;
-        BufferedWriter out = null;
+        ViewServerConnection connection = null;
+        PsdFile psd = null;
         boolean result = false;
 
         try {
-            socket = new Socket();
-            socket.connect(new InetSocketAddress("127.0.0.1",
-                    DeviceBridge.getDeviceLocalPort(device)));
-
-            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            connection = ViewServerConnection.open(device);
+            connection.sendCommand("CAPTURE_LAYERS " + window.encode());
 
-            out.write("CAPTURE_LAYERS " + window.encode());
-            out.newLine();
-            out.flush();
+            DataInputStream in = new DataInputStream(connection.getInputStream());
 
             int width = in.readInt();
             int height = in.readInt();
 
-            PsdFile psd = new PsdFile(width, height);
+            psd = new PsdFile(width, height);
 
             while (readLayer(in, psd)) {
             }
@@ -70,18 +60,11 @@ public class CaptureLoader {
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
-            try {
-                if (out != null) {
-                    out.close();
-                }
-                if (in != null) {
-                    in.close();
-                }
-                if (socket != null) {
-                    socket.close();
-                }
-            } catch (IOException ex) {
-                ex.printStackTrace();
+            if (connection != null) {
+                connection.close();
+            }
+            if (psd != null) {
+                psd.dispose();
             }
         }
 
@@ -102,20 +85,11 @@ public class CaptureLoader {
             int dataSize = in.readInt();
 
             byte[] data = new byte[dataSize];
-            int read = 0;
-            while (read < dataSize) {
-                read += in.read(data, read, dataSize - read);
-            }
-
-            ByteArrayInputStream arrayIn = new ByteArrayInputStream(data);
-            BufferedImage chunk = ImageIO.read(arrayIn);
+            in.readFully(data);
 
-            // Ensure the image is in the right format
-            BufferedImage image = new BufferedImage(chunk.getWidth(), chunk.getHeight(),
-                    BufferedImage.TYPE_INT_ARGB);
-            Graphics2D g = image.createGraphics();
-            g.drawImage(chunk, null, 0, 0);
-            g.dispose();
+            // The layer is written to the PSD file right away, in whatever format it
+            // was decoded to
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(data));
 
             psd.addLayer(name, image, new Point(x, y), visible);
 
@@ -127,41 +101,59 @@ public class CaptureLoader {
     }
 
     public static Image loadCapture(IDevice device, Window window, String params) {
-        Socket socket = null;
-        BufferedInputStream in = null;
-        BufferedWriter out = null;
+        ViewServerConnection connection = null;
 
         try {
-            socket = new Socket();
-            socket.connect(new InetSocketAddress("127.0.0.1",
-                    DeviceBridge.getDeviceLocalPort(device)));
+            connection = ViewServerConnection.open(device);
+            connection.sendCommand("CAPTURE " + window.encode() + " " + params);
 
-            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-            in = new BufferedInputStream(socket.getInputStream());
-
-            out.write("CAPTURE " + window.encode() + " " + params);
-            out.newLine();
-            out.flush();
-
-            return ImageIO.read(in);
+            return ImageIO.read(connection.getInputStream());
         } catch (IOException e) {
             // Empty
         } finally {
+            if (connection != null) {
+                connection.close();
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Captures several views of a window. The captures are requested together, so that
+     * the device renders them while the previous images are being transferred.
+     * @param params the parameters of each capture, as for {@link #loadCapture}
+     * @return the captured images, in the same order as the parameters; an image is null
+     *         if its capture failed
+     */
+    public static Image[] loadCaptures(IDevice device, Window window, String[] params) {
+        Image[] images = new Image[params.length];
+
+        for (int start = 0; start < params.length; start += MAX_PIPELINED_CAPTURES) {
+            int count = Math.min(MAX_PIPELINED_CAPTURES, params.length - start);
+            String[] commands = new String[count];
+            for (int i = 0; i < count; i++) {
+                commands[i] = "CAPTURE " + window.encode() + " " + params[start + i];
+            }
+
+            ViewServerConnection[] connections;
             try {
-                if (out != null) {
-                    out.close();
-                }
-                if (in != null) {
-                    in.close();
-                }
-                if (socket != null) {
-                    socket.close();
+                connections = ViewServerConnection.sendCommands(device, commands);
+            } catch (IOException e) {
+                break;
+            }
+
+            for (int i = 0; i < count; i++) {
+                try {
+                    images[start + i] = ImageIO.read(connections[i].getInputStream());
+                } catch (IOException e) {
+                    // Empty
+                } finally {
+                    connections[i].close();
                 }
-            } catch (IOException ex) {
-                ex.printStackTrace();
             }
         }
 
-        return null;
+        return images;
     }
 }
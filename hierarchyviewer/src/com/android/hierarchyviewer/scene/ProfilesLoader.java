@@ -19,15 +19,9 @@ package com.android.hierarchyviewer.scene;
 import com.android.ddmlib.IDevice;
 import com.android.hierarchyviewer.HierarchyViewer;
 import com.android.hierarchyviewer.device.Window;
-import com.android.hierarchyviewer.device.DeviceBridge;
+import com.android.hierarchyviewer.device.ViewServerConnection;
 
-import java.net.Socket;
-import java.net.InetSocketAddress;
-import java.io.BufferedWriter;
-import java.io.OutputStreamWriter;
 import java.io.IOException;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
 
 public class ProfilesLoader {
     public static double[] loadProfiles(IDevice device, Window window, String params) {
@@ -35,23 +29,13 @@ public class ProfilesLoader {
             return new double[] { 0.0, 0.0, 0.0 };
         }
         
-        Socket socket = null;
-        BufferedReader in = null;
-        BufferedWriter out = null;
+        ViewServerConnection connection = null;
 
         try {
-            socket = new Socket();
-            socket.connect(new InetSocketAddress("127.0.0.1",
-                    DeviceBridge.getDeviceLocalPort(device)));
+            connection = ViewServerConnection.open(device);
+            connection.sendCommand("PROFILE " + window.encode() + " " + params);
 
-            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-            out.write("PROFILE " + window.encode() + " " + params);
-            out.newLine();
-            out.flush();
-
-            String response = in.readLine();
+            String response = connection.getReader().readLine();
             String[] data = response.split(" ");
 
             double[] profiles = new double[data.length];
@@ -62,18 +46,8 @@ public class ProfilesLoader {
         } catch (IOException e) {
             // Empty
         } finally {
-            try {
-                if (out != null) {
-                    out.close();
-                }
-                if (in != null) {
-                    in.close();
-                }
-                if (socket != null) {
-                    socket.close();
-                }
-            } catch (IOException ex) {
-                ex.printStackTrace();
+            if (connection != null) {
+                connection.close();
             }
         }
 
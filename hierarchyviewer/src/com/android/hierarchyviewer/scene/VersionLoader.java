@@ -18,15 +18,7 @@
 package com.android.hierarchyviewer.scene;
 
 import com.android.ddmlib.IDevice;
-import com.android.hierarchyviewer.device.DeviceBridge;
-
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.net.InetSocketAddress;
-import java.net.Socket;
+import com.android.hierarchyviewer.device.ViewServerConnection;
 
 public class VersionLoader {
     public static int loadServerVersion(IDevice device) {
@@ -38,38 +30,18 @@ public class VersionLoader {
     }
 
     private static int loadVersion(IDevice device, String command) {
-        Socket socket = null;
-        BufferedReader in = null;
-        BufferedWriter out = null;
+        ViewServerConnection connection = null;
 
         try {
-            socket = new Socket();
-            socket.connect(new InetSocketAddress("127.0.0.1",
-                    DeviceBridge.getDeviceLocalPort(device)));
-
-            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-            out.write(command);
-            out.newLine();
-            out.flush();
+            connection = ViewServerConnection.open(device);
+            connection.sendCommand(command);
 
-            return Integer.parseInt(in.readLine());
+            return Integer.parseInt(connection.getReader().readLine());
         } catch (Exception e) {
             // Empty
         } finally {
-            try {
-                if (out != null) {
-                    out.close();
-                }
-                if (in != null) {
-                    in.close();
-                }
-                if (socket != null) {
-                    socket.close();
-                }
-            } catch (IOException ex) {
-                ex.printStackTrace();
+            if (connection != null) {
+                connection.close();
             }
         }
 
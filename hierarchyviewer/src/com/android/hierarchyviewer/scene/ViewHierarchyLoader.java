@@ -17,97 +17,214 @@
 package com.android.hierarchyviewer.scene;
 
 import com.android.ddmlib.IDevice;
-import com.android.hierarchyviewer.device.DeviceBridge;
+import com.android.hierarchyviewer.device.ViewServerConnection;
 import com.android.hierarchyviewer.device.Window;
 
 import org.openide.util.Exceptions;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.net.InetSocketAddress;
-import java.net.Socket;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
 
+/**
+ * Loads the view hierarchy of a window from the view server.
+ *
+ * The hierarchy is first requested with the binary DUMP_BINARY command. The response
+ * starts with {@link #BINARY_DUMP_MAGIC}, followed by one record per view in depth-first
+ * order:
+ * <pre>
+ *   short  depth (-1 marks the end of the dump)
+ *   UTF    class name and hash code of the view, as in the text dump
+ *   short  number of properties
+ *   for each property:
+ *     short  id of the property name; an id that was not used before is followed by
+ *            the name as UTF, and the following properties refer to it by its id
+ *     int    length of the value in bytes, followed by the value encoded in UTF-8
+ * </pre>
+ * Servers that do not know this command close the connection or answer with something
+ * else than the header, in which case the hierarchy is loaded again with the text DUMP
+ * command. The same happens when a property id or length in the dump is invalid. If the
+ * text dump succeeds, the device is not asked for the binary dump anymore. Other I/O
+ * errors don't fall back to the text dump, and the binary dump is tried again the next
+ * time.
+ */
 public class ViewHierarchyLoader {
-    @SuppressWarnings("empty-statement")
+    private static final int BINARY_DUMP_MAGIC = 0x56484231; // "VHB1"
+
+    /** Serial numbers of the devices whose view server only supports the text dump. */
+    private static final Set<String> textOnlyDevices = new HashSet<String>();
+
+    /** Property names seen so far, without their category prefix. */
+    private static final Map<String, String> propertyNames = new HashMap<String, String>();
+
+    private static final Comparator<ViewNode.Property> PROPERTY_COMPARATOR =
+            new Comparator<ViewNode.Property>() {
+        public int compare(ViewNode.Property source, ViewNode.Property destination) {
+            return source.name.compareTo(destination.name);
+        }
+    };
+
     public static ViewHierarchyScene loadScene(IDevice device, Window window) {
-        ViewHierarchyScene scene = new ViewHierarchyScene();
+        System.out.println("==> Starting client");
+
+        ViewHierarchyScene scene = null;
+        if (!isTextOnly(device)) {
+            scene = loadBinaryScene(device, window);
+            if (scene == null) {
+                System.out.println("==> Binary dump rejected, falling back to DUMP");
+                scene = loadTextScene(device, window);
+                if (scene.getRoot() != null) {
+                    // the server is up and answers the text dump, so it was not a dropped
+                    // connection
+                    synchronized (textOnlyDevices) {
+                        textOnlyDevices.add(device.getSerialNumber());
+                    }
+                }
+            }
+        } else {
+            scene = loadTextScene(device, window);
+        }
 
-        // Read the views tree
-        Socket socket = null;
-        BufferedReader in = null;
-        BufferedWriter out = null;
+        System.out.println("==> DONE");
 
-        String line;
+        return scene;
+    }
+
+    private static boolean isTextOnly(IDevice device) {
+        synchronized (textOnlyDevices) {
+            return textOnlyDevices.contains(device.getSerialNumber());
+        }
+    }
+
+    /**
+     * Loads the hierarchy with the binary dump command.
+     * @return the scene, or null if the server closed the connection or answered with
+     *     something else than a valid binary dump
+     */
+    private static ViewHierarchyScene loadBinaryScene(IDevice device, Window window) {
+        ViewServerConnection connection = null;
 
         try {
-            System.out.println("==> Starting client");
+            connection = ViewServerConnection.open(device);
 
-            socket = new Socket();
-            socket.connect(new InetSocketAddress("127.0.0.1",
-                    DeviceBridge.getDeviceLocalPort(device)));
+            System.out.println("==> DUMP_BINARY");
 
-            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "utf-8"));
+            connection.sendCommand("DUMP_BINARY " + window.encode());
 
-            System.out.println("==> DUMP");
+            DataInputStream in = new DataInputStream(connection.getInputStream());
+            int magic;
+            try {
+                magic = in.readInt();
+            } catch (EOFException e) {
+                // older servers close the connection on unknown commands
+                return null;
+            }
+            if (magic != BINARY_DUMP_MAGIC) {
+                return null;
+            }
 
-            out.write("DUMP " + window.encode());
-            out.newLine();
-            out.flush();
+            ViewHierarchyScene scene = new ViewHierarchyScene();
+            SceneBuilder builder = new SceneBuilder(scene);
 
-            Stack<ViewNode> stack = new Stack<ViewNode>();
+            List<String> names = new ArrayList<String>();
+            byte[] buffer = new byte[256];
 
-            boolean setRoot = true;
-            ViewNode lastNode = null;
-            int lastWhitespaceCount = Integer.MAX_VALUE;
+            int depth;
+            while ((depth = in.readShort()) >= 0) {
+                ViewNode node = new ViewNode();
+                node.name = in.readUTF();
 
-            while ((line = in.readLine()) != null) {
-                if ("DONE.".equalsIgnoreCase(line)) {
-                    break;
-                }
+                int count = in.readShort();
+                for (int i = 0; i < count; i++) {
+                    int id = in.readShort();
+                    if (id == names.size()) {
+                        names.add(internPropertyName(in.readUTF()));
+                    } else if (id < 0 || id > names.size()) {
+                        throw new MalformedDumpException("Unknown property id " + id);
+                    }
 
-                int whitespaceCount = countFrontWhitespace(line);
-                if (lastWhitespaceCount < whitespaceCount) {
-                    stack.push(lastNode);
-                } else if (!stack.isEmpty()) {
-                    final int count = lastWhitespaceCount - whitespaceCount;
-                    for (int i = 0; i < count; i++) {
-                        stack.pop();
+                    int length = in.readInt();
+                    if (length < 0) {
+                        throw new MalformedDumpException("Negative property length " + length);
                     }
+                    if (length > buffer.length) {
+                        buffer = new byte[Math.max(length, buffer.length * 2)];
+                    }
+                    in.readFully(buffer, 0, length);
+
+                    ViewNode.Property property = new ViewNode.Property();
+                    property.name = names.get(id);
+                    property.value = new String(buffer, 0, length, "utf-8");
+                    node.properties.add(property);
+                    node.namedProperties.put(property.name, property);
                 }
 
-                lastWhitespaceCount = whitespaceCount;
-                line = line.trim();
-                int index = line.indexOf(' ');
+                finishNode(node);
+                builder.add(node, depth);
+            }
 
-                lastNode = new ViewNode();
-                lastNode.name = line.substring(0, index);
+            updateIndices(scene.getRoot());
 
-                line = line.substring(index + 1);
-                loadProperties(lastNode, line);
+            return scene;
+        } catch (MalformedDumpException ex) {
+            Exceptions.printStackTrace(ex);
+            // the server answers the binary dump, but not in a format that can be read
+            return null;
+        } catch (IOException ex) {
+            Exceptions.printStackTrace(ex);
+            // the server could not be reached, timed out or the dump was cut short; the
+            // text dump would not do any better, and the binary dump is tried again the
+            // next time
+            return new ViewHierarchyScene();
+        } finally {
+            if (connection != null) {
+                connection.close();
+            }
+        }
+    }
 
-                scene.addNode(lastNode);
+    private static ViewHierarchyScene loadTextScene(IDevice device, Window window) {
+        ViewHierarchyScene scene = new ViewHierarchyScene();
 
-                if (setRoot) {
-                    scene.setRoot(lastNode);
-                    setRoot = false;
-                }
+        // Read the views tree
+        ViewServerConnection connection = null;
+
+        String line;
+
+        try {
+            connection = ViewServerConnection.open(device);
+
+            System.out.println("==> DUMP");
+
+            connection.sendCommand("DUMP " + window.encode());
+
+            BufferedReader in = connection.getReader();
+
+            SceneBuilder builder = new SceneBuilder(scene);
 
-                if (!stack.isEmpty()) {
-                    final ViewNode parent = stack.peek();
-                    final String edge = parent.name + lastNode.name;
-                    scene.addEdge(edge);
-                    scene.setEdgeSource(edge, parent);
-                    scene.setEdgeTarget(edge, lastNode);
-                    lastNode.parent = parent;
-                    parent.children.add(lastNode);
+            while ((line = in.readLine()) != null) {
+                if ("DONE.".equalsIgnoreCase(line)) {
+                    break;
                 }
+
+                int start = countFrontWhitespace(line);
+                int index = line.indexOf(' ', start);
+
+                ViewNode node = new ViewNode();
+                node.name = line.substring(start, index);
+                loadProperties(node, line, index + 1);
+
+                builder.add(node, start);
             }
 
             updateIndices(scene.getRoot());
@@ -115,24 +232,67 @@ public class ViewHierarchyLoader {
         } catch (IOException ex) {
             Exceptions.printStackTrace(ex);
         } finally {
-            try {
-                if (out != null) {
-                    out.close();
-                }
-                if (in != null) {
-                    in.close();
-                }
-                socket.close();
-            } catch (IOException ex) {
-                Exceptions.printStackTrace(ex);
+            if (connection != null) {
+                connection.close();
             }
         }
 
-        System.out.println("==> DONE");
-
         return scene;
     }
 
+    /**
+     * Adds the nodes of a depth-first dump to a scene, using their depth to find their parent.
+     */
+    /** Thrown when the binary dump cannot be decoded. */
+    private static class MalformedDumpException extends IOException {
+        MalformedDumpException(String message) {
+            super(message);
+        }
+    }
+
+    private static class SceneBuilder {
+        private final ViewHierarchyScene scene;
+        private final Stack<ViewNode> stack = new Stack<ViewNode>();
+        private ViewNode lastNode;
+        private int lastDepth = Integer.MAX_VALUE;
+        private boolean setRoot = true;
+
+        SceneBuilder(ViewHierarchyScene scene) {
+            this.scene = scene;
+        }
+
+        void add(ViewNode node, int depth) {
+            if (lastDepth < depth) {
+                stack.push(lastNode);
+            } else if (!stack.isEmpty()) {
+                final int count = lastDepth - depth;
+                for (int i = 0; i < count; i++) {
+                    stack.pop();
+                }
+            }
+
+            lastDepth = depth;
+            lastNode = node;
+
+            scene.addNode(node);
+
+            if (setRoot) {
+                scene.setRoot(node);
+                setRoot = false;
+            }
+
+            if (!stack.isEmpty()) {
+                final ViewNode parent = stack.peek();
+                final String edge = parent.name + node.name;
+                scene.addEdge(edge);
+                scene.setEdgeSource(edge, parent);
+                scene.setEdgeTarget(edge, node);
+                node.parent = parent;
+                parent.children.add(node);
+            }
+        }
+    }
+
     private static void updateIndices(ViewNode root) {
         if (root == null) return;
 
@@ -151,39 +311,66 @@ public class ViewHierarchyLoader {
         return count;
     }
 
-    private static void loadProperties(ViewNode node, String data) {
-        int start = 0;
-        boolean stop;
+    /**
+     * Returns the shared instance of the given property name, stripped of its category
+     * prefix, so that all the nodes of all the loaded hierarchies use the same strings.
+     */
+    private static String internPropertyName(String name) {
+        synchronized (propertyNames) {
+            String interned = propertyNames.get(name);
+            if (interned == null) {
+                int colonIndex = name.indexOf(':');
+                interned = colonIndex != -1 ? name.substring(colonIndex + 1) : name;
+                propertyNames.put(name, interned);
+            }
+            return interned;
+        }
+    }
 
-        do {
-            int index = data.indexOf('=', start);
-            ViewNode.Property property = new ViewNode.Property();
-            property.name = data.substring(start, index);
+    /**
+     * Parses the properties of a text dump line, in the form name=length,value separated
+     * by spaces, starting at the given index.
+     */
+    private static void loadProperties(ViewNode node, String data, int start) {
+        final int end = data.length();
 
-            int colonIndex = property.name.indexOf(':');
-            if (colonIndex != -1) {
-                property.name = property.name.substring(colonIndex + 1);
+        while (start < end) {
+            int index = data.indexOf('=', start);
+            String name = internPropertyName(data.substring(start, index));
+
+            int length = 0;
+            int i = index + 1;
+            char c;
+            while ((c = data.charAt(i)) != ',') {
+                length = length * 10 + (c - '0');
+                i++;
             }
 
-            int index2 = data.indexOf(',', index + 1);
-            int length = Integer.parseInt(data.substring(index + 1, index2));
-            start = index2 + 1 + length;
-            property.value = data.substring(index2 + 1, index2 + 1 + length);
+            start = i + 1 + length;
+
+            ViewNode.Property property = new ViewNode.Property();
+            property.name = name;
+            property.value = data.substring(i + 1, start);
 
             node.properties.add(property);
             node.namedProperties.put(property.name, property);
 
-            stop = start >= data.length();
-            if (!stop) {
-                start += 1;
-            }
-        } while (!stop);
+            // skip the separator
+            start++;
+        }
 
-        Collections.sort(node.properties, new Comparator<ViewNode.Property>() {
-            public int compare(ViewNode.Property source, ViewNode.Property destination) {
-                return source.name.compareTo(destination.name);
+        finishNode(node);
+    }
+
+    private static void finishNode(ViewNode node) {
+        // only sort the properties if the server did not already send them in order
+        List<ViewNode.Property> properties = node.properties;
+        for (int i = 1; i < properties.size(); i++) {
+            if (PROPERTY_COMPARATOR.compare(properties.get(i - 1), properties.get(i)) > 0) {
+                Collections.sort(properties, PROPERTY_COMPARATOR);
+                break;
             }
-        });
+        }
 
         node.decode();
     }
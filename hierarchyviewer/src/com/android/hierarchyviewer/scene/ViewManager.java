@@ -18,13 +18,9 @@ package com.android.hierarchyviewer.scene;
 
 import com.android.ddmlib.IDevice;
 import com.android.hierarchyviewer.device.Window;
-import com.android.hierarchyviewer.device.DeviceBridge;
+import com.android.hierarchyviewer.device.ViewServerConnection;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.net.InetSocketAddress;
-import java.net.Socket;
 
 public class ViewManager {
     public static void invalidate(IDevice device, Window window, String params) {
@@ -40,31 +36,16 @@ public class ViewManager {
     }
 
     private static void sendCommand(String command, IDevice device, Window window, String params) {
-        Socket socket = null;
-        BufferedWriter out = null;
+        ViewServerConnection connection = null;
 
         try {
-            socket = new Socket();
-            socket.connect(new InetSocketAddress("127.0.0.1",
-                    DeviceBridge.getDeviceLocalPort(device)));
-
-            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-
-            out.write(command + " " + window.encode() + " " + params);
-            out.newLine();
-            out.flush();
+            connection = ViewServerConnection.open(device);
+            connection.sendCommand(command + " " + window.encode() + " " + params);
         } catch (IOException e) {
             // Empty
         } finally {
-            try {
-                if (out != null) {
-                    out.close();
-                }
-                if (socket != null) {
-                    socket.close();
-                }
-            } catch (IOException ex) {
-                ex.printStackTrace();
+            if (connection != null) {
+                connection.close();
             }
         }
     }
@@ -17,38 +17,25 @@
 package com.android.hierarchyviewer.scene;
 
 import com.android.ddmlib.IDevice;
-import com.android.hierarchyviewer.device.DeviceBridge;
+import com.android.hierarchyviewer.device.ViewServerConnection;
 import com.android.hierarchyviewer.device.Window;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.net.InetSocketAddress;
-import java.net.Socket;
 import java.util.ArrayList;
 
 public class WindowsLoader {
     public static Window[] loadWindows(IDevice device, int protocol, int server) {
-        Socket socket = null;
-        BufferedReader in = null;
-        BufferedWriter out = null;
+        ViewServerConnection connection = null;
         System.out.println("protocol = " + protocol);
         System.out.println("version = " + server);
         try {
             ArrayList<Window> windows = new ArrayList<Window>();
 
-            socket = new Socket();
-            socket.connect(new InetSocketAddress("127.0.0.1",
-                    DeviceBridge.getDeviceLocalPort(device)));
+            connection = ViewServerConnection.open(device);
+            connection.sendCommand("LIST");
 
-            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-            out.write("LIST");
-            out.newLine();
-            out.flush();
+            BufferedReader in = connection.getReader();
 
             String line;
             while ((line = in.readLine()) != null) {
@@ -76,18 +63,8 @@ public class WindowsLoader {
         } catch (IOException e) {
             // Empty
         } finally {
-            try {
-                if (out != null) {
-                    out.close();
-                }
-                if (in != null) {
-                    in.close();
-                }
-                if (socket != null) {
-                    socket.close();
-                }
-            } catch (IOException ex) {
-                ex.printStackTrace();
+            if (connection != null) {
+                connection.close();
             }
         }
 
@@ -28,6 +28,7 @@ import java.awt.event.MouseMotionAdapter;
 import java.awt.event.MouseWheelEvent;
 import java.awt.event.MouseWheelListener;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.File;
 import java.io.IOException;
 import java.util.concurrent.ExecutionException;
@@ -50,13 +51,25 @@ import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 
 class ScreenViewer extends JPanel implements ActionListener {
+    // Screenshots are compared in square tiles of this size to find the regions to repaint
+    private static final int TILE_SIZE = 32;
+
+    // Bounds of the refresh delay in adaptive mode, which doubles every time the screen
+    // did not change
+    private static final int MIN_ADAPTIVE_DELAY = 100;
+    private static final int MAX_ADAPTIVE_DELAY = 2000;
+
     private final Workspace workspace;
     private final IDevice device;
 
     private GetScreenshotTask task;
+    private boolean refreshing;
     private BufferedImage image;
-    private int[] scanline;
-    private volatile boolean isLoading;
+
+    // Last screenshot received and the tiles where it differs from the displayed image;
+    // only accessed by the screenshot task, and by the UI thread once it is done
+    private int[] frame;
+    private boolean[] dirtyTiles;
 
     private BufferedImage overlay;
     private AlphaComposite overlayAlpha = AlphaComposite.getInstance(AlphaComposite.SRC_OVER, 0.3f);
@@ -69,6 +82,9 @@ class ScreenViewer extends JPanel implements ActionListener {
     private int y = 0;
 
     private Timer timer;
+    private int refreshDelay = 5000;
+    private boolean adaptiveRefresh;
+    private int adaptiveDelay = MIN_ADAPTIVE_DELAY;
     private ViewNode node;
 
     private JSlider zoomSlider;
@@ -80,7 +96,7 @@ class ScreenViewer extends JPanel implements ActionListener {
         this.workspace = workspace;
         this.device = device;
 
-        timer = new Timer(5000, this);
+        timer = new Timer(refreshDelay, this);
         timer.setInitialDelay(0);
         timer.setRepeats(true);
 
@@ -148,12 +164,15 @@ class ScreenViewer extends JPanel implements ActionListener {
         buildSlider(panel, "Refresh Rate:", "1s", "40s", 1, 40, 5, 1).addChangeListener(
                 new ChangeListener() {
                     public void stateChanged(ChangeEvent event) {
-                        int rate = ((JSlider) event.getSource()).getValue() * 1000;
-                        timer.setDelay(rate);
-                        timer.setInitialDelay(0);
-                        timer.restart();
+                        refreshDelay = ((JSlider) event.getSource()).getValue() * 1000;
+                        if (!adaptiveRefresh) {
+                            timer.setDelay(refreshDelay);
+                            timer.setInitialDelay(0);
+                            timer.restart();
+                        }
                     }
         });
+        buildRefreshExtraControls(panel);
         zoomSlider = buildSlider(panel, "Zoom:", "2x", "24x", 2, 24, 8, 2);
         zoomSlider.addChangeListener(
                 new ChangeListener() {
@@ -200,6 +219,25 @@ class ScreenViewer extends JPanel implements ActionListener {
                         new Insets(0, 0, 0, 0), 0, 0));
     }
 
+    private void buildRefreshExtraControls(JPanel panel) {
+        JCheckBox adaptive = new JCheckBox("Adaptive");
+        adaptive.setToolTipText("Refresh up to 10 times per second while the screen changes");
+        adaptive.setSelected(false);
+        adaptive.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent event) {
+                adaptiveRefresh = ((JCheckBox) event.getSource()).isSelected();
+                adaptiveDelay = MIN_ADAPTIVE_DELAY;
+                timer.setDelay(adaptiveRefresh ? adaptiveDelay : refreshDelay);
+                timer.setInitialDelay(0);
+                timer.restart();
+            }
+        });
+
+        panel.add(adaptive, new GridBagConstraints(1, y++, 1, 1, 1.0f, 0.0f,
+                    GridBagConstraints.LINE_START, GridBagConstraints.NONE,
+                        new Insets(0, 0, 0, 0), 0, 0));
+    }
+
     public SwingWorker<?, ?> openOverlay() {
         JFileChooser chooser = new JFileChooser();
         chooser.setFileFilter(new PngFileFilter());
@@ -273,10 +311,6 @@ class ScreenViewer extends JPanel implements ActionListener {
 
         @Override
         protected void paintComponent(Graphics g) {
-            if (isLoading) {
-                return;
-            }
-
             g.translate(-left, -top);
 
             if (image != null) {
@@ -564,10 +598,6 @@ class ScreenViewer extends JPanel implements ActionListener {
             g.setColor(Color.BLACK);
             g.fillRect(0, 0, getWidth(), getHeight());
 
-            if (isLoading) {
-                return;
-            }
-
             if (image != null) {
                 g.drawImage(image, 0, 0, null);
                 if (overlay != null) {
@@ -654,56 +684,156 @@ class ScreenViewer extends JPanel implements ActionListener {
     }
 
     public void actionPerformed(ActionEvent event) {
-        if (task != null && !task.isDone()) {
+        // the previous screenshot must have been copied to the image before the next one
+        // is taken, since both use the same frame buffer
+        if (refreshing) {
             return;
         }
-        task = new GetScreenshotTask();
+        refreshing = true;
+        task = new GetScreenshotTask(!adaptiveRefresh);
         task.execute();
     }
 
-    private class GetScreenshotTask extends SwingWorker<Boolean, Void> {
-        private GetScreenshotTask() {
-            workspace.beginTask();
+    /**
+     * Schedules the next refresh in adaptive mode: soon after a change, and less and less
+     * often while the screen stays the same.
+     */
+    private void scheduleNextRefresh(boolean changed) {
+        if (!adaptiveRefresh || !timer.isRunning()) {
+            return;
         }
 
+        adaptiveDelay = changed ? MIN_ADAPTIVE_DELAY :
+                Math.min(MAX_ADAPTIVE_DELAY, adaptiveDelay * 2);
+        timer.setDelay(adaptiveDelay);
+        timer.setInitialDelay(adaptiveDelay);
+        timer.restart();
+    }
+
+    private static int[] getPixels(BufferedImage image) {
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    private class GetScreenshotTask extends SwingWorker<Rectangle, Void> {
+        private final boolean showProgress;
+        private BufferedImage newImage;
+
+        private GetScreenshotTask(boolean showProgress) {
+            this.showProgress = showProgress;
+            if (showProgress) {
+                workspace.beginTask();
+            }
+        }
+
+        /**
+         * Returns the region of the screen that changed since the last screenshot, or null
+         * if nothing changed.
+         */
         @Override
         @WorkerThread
-        protected Boolean doInBackground() throws Exception {
+        protected Rectangle doInBackground() throws Exception {
             RawImage rawImage;
             try {
                 rawImage = device.getScreenshot();
             } catch (IOException ioe) {
-                return false;
+                return null;
             }
 
-            boolean resize = false;
-            isLoading = true;
-            try {
-                if (rawImage != null) {
-                    if (image == null || rawImage.width != image.getWidth() ||
-                            rawImage.height != image.getHeight()) {
-                        image = new BufferedImage(rawImage.width, rawImage.height,
-                                BufferedImage.TYPE_INT_ARGB);
-                        scanline = new int[rawImage.width];
-                        resize = true;
+            if (rawImage == null) {
+                return null;
+            }
+
+            final int width = rawImage.width;
+            final int height = rawImage.height;
+            if (frame == null || frame.length != width * height) {
+                frame = new int[width * height];
+            }
+
+            switch (rawImage.bpp) {
+                case 16:
+                    rawImage16toARGB(rawImage, frame);
+                    break;
+                case 32:
+                    rawImage32toARGB(rawImage, frame);
+                    break;
+                default:
+                    return null;
+            }
+
+            BufferedImage current = image;
+            if (current == null || width != current.getWidth() ||
+                    height != current.getHeight()) {
+                // the new image is not displayed yet, fill it here
+                newImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+                System.arraycopy(frame, 0, getPixels(newImage), 0, frame.length);
+                return new Rectangle(0, 0, width, height);
+            }
+
+            return findChangedTiles(getPixels(current), width, height);
+        }
+
+        private Rectangle findChangedTiles(int[] pixels, int width, int height) {
+            final int tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+            final int tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+            if (dirtyTiles == null || dirtyTiles.length != tilesX * tilesY) {
+                dirtyTiles = new boolean[tilesX * tilesY];
+            }
+
+            Rectangle changed = null;
+            for (int ty = 0; ty < tilesY; ty++) {
+                final int top = ty * TILE_SIZE;
+                final int bottom = Math.min(height, top + TILE_SIZE);
+                for (int tx = 0; tx < tilesX; tx++) {
+                    final int left = tx * TILE_SIZE;
+                    final int right = Math.min(width, left + TILE_SIZE);
+
+                    boolean dirty = false;
+                    for (int y = top; y < bottom && !dirty; y++) {
+                        for (int i = y * width + left, end = y * width + right; i < end; i++) {
+                            if (pixels[i] != frame[i]) {
+                                dirty = true;
+                                break;
+                            }
+                        }
                     }
 
-                    switch (rawImage.bpp) {
-                        case 16:
-                            rawImage16toARGB(rawImage);
-                            break;
-                        case 32:
-                            rawImage32toARGB(rawImage);
-                            break;
+                    dirtyTiles[ty * tilesX + tx] = dirty;
+                    if (dirty) {
+                        Rectangle tile = new Rectangle(left, top, right - left, bottom - top);
+                        if (changed == null) {
+                            changed = tile;
+                        } else {
+                            changed.add(tile);
+                        }
                     }
                 }
-            } finally {
-                isLoading = false;
             }
 
-            return resize;
+            return changed;
         }
-        
+
+        private void copyChangedTiles() {
+            final int width = image.getWidth();
+            final int height = image.getHeight();
+            final int tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+            final int[] pixels = getPixels(image);
+
+            for (int i = 0; i < dirtyTiles.length; i++) {
+                if (!dirtyTiles[i]) {
+                    continue;
+                }
+
+                final int left = (i % tilesX) * TILE_SIZE;
+                final int top = (i / tilesX) * TILE_SIZE;
+                final int length = Math.min(width, left + TILE_SIZE) - left;
+                final int bottom = Math.min(height, top + TILE_SIZE);
+                for (int y = top; y < bottom; y++) {
+                    int offset = y * width + left;
+                    System.arraycopy(frame, offset, pixels, offset, length);
+                }
+            }
+        }
+
         private int getMask(int length) {
             int res = 0;
             for (int i = 0 ; i < length ; i++) {
@@ -713,85 +843,107 @@ class ScreenViewer extends JPanel implements ActionListener {
             return res;
         }
 
-        private void rawImage32toARGB(RawImage rawImage) {
+        private void rawImage32toARGB(RawImage rawImage, int[] pixels) {
             byte[] buffer = rawImage.data;
-            int index = 0;
+            final int count = rawImage.width * rawImage.height;
 
             final int redOffset = rawImage.red_offset;
             final int redLength = rawImage.red_length;
-            final int redMask = getMask(redLength);
             final int greenOffset = rawImage.green_offset;
             final int greenLength = rawImage.green_length;
-            final int greenMask = getMask(greenLength);
             final int blueOffset = rawImage.blue_offset;
             final int blueLength = rawImage.blue_length;
-            final int blueMask = getMask(blueLength);
             final int alphaLength = rawImage.alpha_length;
             final int alphaOffset = rawImage.alpha_offset;
-            final int alphaMask = getMask(alphaLength);
 
-            for (int y = 0 ; y < rawImage.height ; y++) {
-                for (int x = 0 ; x < rawImage.width ; x++) {
-                    int value = buffer[index++] & 0x00FF;
-                    value |= (buffer[index++] & 0x00FF) << 8;
-                    value |= (buffer[index++] & 0x00FF) << 16;
-                    value |= (buffer[index++] & 0x00FF) << 24;
+            // Most devices use RGBA_8888 or RGBX_8888, convert them without unpacking
+            // each channel
+            if (redOffset == 0 && redLength == 8 && greenOffset == 8 && greenLength == 8 &&
+                    blueOffset == 16 && blueLength == 8 &&
+                    (alphaLength == 0 || (alphaOffset == 24 && alphaLength == 8))) {
+                final int alphaIndex = alphaLength == 0 ? -1 : 3;
+                for (int i = 0, index = 0; i < count; i++, index += 4) {
+                    int a = alphaIndex < 0 ? 0xFF : buffer[index + 3] & 0xFF;
+                    pixels[i] = a << 24 |
+                            (buffer[index] & 0xFF) << 16 |
+                            (buffer[index + 1] & 0xFF) << 8 |
+                            (buffer[index + 2] & 0xFF);
+                }
+                return;
+            }
 
-                    int r = ((value >>> redOffset) & redMask) << (8 - redLength);
-                    int g = ((value >>> greenOffset) & greenMask) << (8 - greenLength);
-                    int b = ((value >>> blueOffset) & blueMask) << (8 - blueLength);
-                    int a = 0xFF;
+            final int redMask = getMask(redLength);
+            final int greenMask = getMask(greenLength);
+            final int blueMask = getMask(blueLength);
+            final int alphaMask = getMask(alphaLength);
 
-                    if (alphaLength != 0) {
-                        a = ((value >>> alphaOffset) & alphaMask) << (8 - alphaLength);
-                    }
+            for (int i = 0, index = 0; i < count; i++) {
+                int value = buffer[index++] & 0x00FF;
+                value |= (buffer[index++] & 0x00FF) << 8;
+                value |= (buffer[index++] & 0x00FF) << 16;
+                value |= (buffer[index++] & 0x00FF) << 24;
 
-                    scanline[x] = a << 24 | r << 16 | g << 8 | b;
+                int r = ((value >>> redOffset) & redMask) << (8 - redLength);
+                int g = ((value >>> greenOffset) & greenMask) << (8 - greenLength);
+                int b = ((value >>> blueOffset) & blueMask) << (8 - blueLength);
+                int a = 0xFF;
+
+                if (alphaLength != 0) {
+                    a = ((value >>> alphaOffset) & alphaMask) << (8 - alphaLength);
                 }
 
-                image.setRGB(0, y, rawImage.width, 1, scanline,
-                        0, rawImage.width);
+                pixels[i] = a << 24 | r << 16 | g << 8 | b;
             }
         }
 
-        private void rawImage16toARGB(RawImage rawImage) {
+        private void rawImage16toARGB(RawImage rawImage, int[] pixels) {
             byte[] buffer = rawImage.data;
-            int index = 0;
-
-            for (int y = 0 ; y < rawImage.height ; y++) {
-                for (int x = 0 ; x < rawImage.width ; x++) {
-                    int value = buffer[index++] & 0x00FF;
-                    value |= (buffer[index++] << 8) & 0x0FF00;
+            final int count = rawImage.width * rawImage.height;
 
-                    int r = ((value >> 11) & 0x01F) << 3;
-                    int g = ((value >> 5) & 0x03F) << 2;
-                    int b = ((value     ) & 0x01F) << 3;
+            for (int i = 0, index = 0; i < count; i++) {
+                int value = buffer[index++] & 0x00FF;
+                value |= (buffer[index++] << 8) & 0x0FF00;
 
-                    scanline[x] = 0xFF << 24 | r << 16 | g << 8 | b;
-                }
+                int r = ((value >> 11) & 0x01F) << 3;
+                int g = ((value >> 5) & 0x03F) << 2;
+                int b = ((value     ) & 0x01F) << 3;
 
-                image.setRGB(0, y, rawImage.width, 1, scanline,
-                        0, rawImage.width);
+                pixels[i] = 0xFF << 24 | r << 16 | g << 8 | b;
             }
         }
 
         @Override
         protected void done() {
-            workspace.endTask();
+            if (showProgress) {
+                workspace.endTask();
+            }
+
+            Rectangle changed = null;
             try {
-                if (get()) {
-                    validate();
-                    crosshair.crosshair = new Point(image.getWidth() / 2,
-                            image.getHeight() / 2);
-                    status.showPixel(image.getWidth() / 2, image.getHeight() / 2);
-                    loupe.moveToPoint(image.getWidth() / 2, image.getHeight() / 2);
-                }
+                changed = get();
             } catch (InterruptedException e) {
                 e.printStackTrace();
             } catch (ExecutionException e) {
                 e.printStackTrace();
             }
-            repaint();
+
+            if (newImage != null) {
+                image = newImage;
+                validate();
+                crosshair.crosshair = new Point(image.getWidth() / 2,
+                        image.getHeight() / 2);
+                status.showPixel(image.getWidth() / 2, image.getHeight() / 2);
+                loupe.moveToPoint(image.getWidth() / 2, image.getHeight() / 2);
+                repaint();
+            } else if (changed != null) {
+                copyChangedTiles();
+                crosshair.repaint(changed);
+                loupe.repaint();
+                status.showPixel(crosshair.crosshair.x, crosshair.crosshair.y);
+            }
+
+            refreshing = false;
+            scheduleNextRefresh(changed != null);
         }
     }
 
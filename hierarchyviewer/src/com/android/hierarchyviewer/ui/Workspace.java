@@ -77,6 +77,7 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
 import java.util.regex.Pattern;
@@ -1178,17 +1179,35 @@ public class Workspace extends JFrame {
     private class CaptureNodeTask extends SwingWorker<Image, Void> {
         private String captureParams;
         private ViewNode node;
+        private List<ViewNode> nodes = new ArrayList<ViewNode>();
 
         private CaptureNodeTask() {
             node = (ViewNode) scene.getFocusedObject();
             captureParams = node.toString();
+
+            // the children are captured along with the node, so that their images can be
+            // shown in the layout view without going back to the device
+            nodes.add(node);
+            for (ViewNode child : node.children) {
+                if (!child.willNotDraw && child.width > 0 && child.height > 0) {
+                    nodes.add(child);
+                }
+            }
             beginTask();
         }
 
         @Override
         @WorkerThread
         protected Image doInBackground() throws Exception {
-            node.image = CaptureLoader.loadCapture(currentDevice, currentWindow, captureParams);
+            String[] params = new String[nodes.size()];
+            for (int i = 0; i < params.length; i++) {
+                params[i] = nodes.get(i).toString();
+            }
+
+            Image[] images = CaptureLoader.loadCaptures(currentDevice, currentWindow, params);
+            for (int i = 0; i < images.length; i++) {
+                nodes.get(i).image = images[i];
+            }
             return node.image;
         }
 
@@ -21,7 +21,11 @@ import java.awt.Point;
 import java.awt.image.BufferedImage;
 import java.io.BufferedOutputStream;
 import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
@@ -31,8 +35,18 @@ import java.util.List;
  * Writes PSD file.
  * 
  * Supports only 8 bits, RGB images with 4 channels.
+ *
+ * The channels of each layer are RLE compressed and written to a temporary file as soon as
+ * the layer is added, so that only one layer at a time and the merged image are kept in
+ * memory. {@link #write(OutputStream)} then copies them into the PSD file in a single pass.
  */
 public class PsdFile {
+    private static final short COMPRESSION_RLE = 1;
+
+    // Order of the channels of the layers, and of the merged image
+    private static final int[] LAYER_CHANNEL_SHIFTS = { 24, 16, 8, 0 };
+    private static final int[] MERGED_CHANNEL_SHIFTS = { 16, 8, 0, 24 };
+
     private final Header mHeader;
     private final ColorMode mColorMode;
     private final ImageResources mImageResources;
@@ -42,6 +56,9 @@ public class PsdFile {
     private final BufferedImage mMergedImage;
     private final Graphics2D mGraphics;
 
+    private File mChannelsFile;
+    private DataOutputStream mChannelsOut;
+
     public PsdFile(int width, int height) {
         mHeader = new Header(width, height);
         mColorMode = new ColorMode();
@@ -53,12 +70,21 @@ public class PsdFile {
         mGraphics = mMergedImage.createGraphics();
     }
 
-    public void addLayer(String name, BufferedImage image, Point offset) {
+    public void addLayer(String name, BufferedImage image, Point offset) throws IOException {
         addLayer(name, image, offset, true);
     }
     
-    public void addLayer(String name, BufferedImage image, Point offset, boolean visible) {
-        mLayersInfo.addLayer(name, image, offset, visible);
+    public void addLayer(String name, BufferedImage image, Point offset, boolean visible)
+            throws IOException {
+        if (mChannelsOut == null) {
+            mChannelsFile = File.createTempFile("layers", ".psd");
+            mChannelsFile.deleteOnExit();
+            mChannelsOut = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(mChannelsFile), 64 * 1024));
+        }
+
+        int[] channelLengths = writeChannels(image, mChannelsOut);
+        mLayersInfo.addLayer(name, image, offset, visible, channelLengths);
         if (visible) mGraphics.drawImage(image, null, offset.x, offset.y);
     }
     
@@ -76,10 +102,14 @@ public class PsdFile {
             mLayersInfo.write(out);
             out.flush();
 
-            mLayersInfo.writeImageData(out);
+            copyChannels(out);
+            // The layer info is padded to an even length
+            if ((mLayersInfo.getLength() & 0x1) == 0x1) out.write(0);
+            // Global layer mask info length
+            out.writeInt(0);
             out.flush();
             
-            writeImage(mMergedImage, out, false);
+            writeMergedImage(mMergedImage, out);
             out.flush();
         } catch (IOException e) {
             e.printStackTrace();
@@ -89,44 +119,167 @@ public class PsdFile {
             } catch (IOException e) {
                 e.printStackTrace();
             }
+            dispose();
+        }
+    }
+
+    /**
+     * Deletes the temporary file holding the channels of the layers. This is done by
+     * {@link #write(OutputStream)}, and only needs to be called if the file is not written.
+     */
+    public void dispose() {
+        try {
+            if (mChannelsOut != null) {
+                mChannelsOut.close();
+                mChannelsOut = null;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (mChannelsFile != null) {
+            mChannelsFile.delete();
+            mChannelsFile = null;
+        }
+    }
+
+    private void copyChannels(OutputStream out) throws IOException {
+        if (mChannelsOut == null) {
+            return;
+        }
+        mChannelsOut.close();
+        mChannelsOut = null;
+
+        InputStream in = new FileInputStream(mChannelsFile);
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+        } finally {
+            in.close();
         }
     }
 
-    private static void writeImage(BufferedImage image, DataOutputStream out, boolean split)
+    /**
+     * Writes the RLE compressed alpha, red, green and blue channels of a layer.
+     * @return the length of each channel, in the same order
+     */
+    private static int[] writeChannels(BufferedImage image, DataOutputStream out)
             throws IOException {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+
+        int[] pixels = new int[width * height];
+        image.getRGB(0, 0, width, height, pixels, 0, width);
+
+        byte[] row = new byte[width];
+        short[] rowLengths = new short[height];
+        byte[] data = new byte[height * getMaxPackedLength(width)];
+
+        int[] lengths = new int[LAYER_CHANNEL_SHIFTS.length];
+        for (int c = 0; c < LAYER_CHANNEL_SHIFTS.length; c++) {
+            final int shift = LAYER_CHANNEL_SHIFTS[c];
+
+            int dataLength = 0;
+            for (int y = 0; y < height; y++) {
+                getChannelRow(pixels, y * width, width, shift, row);
+                int length = packBits(row, width, data, dataLength);
+                rowLengths[y] = (short) length;
+                dataLength += length;
+            }
 
-        if (!split) out.writeShort(0);
-        
-        int width = image.getWidth();
-        int height = image.getHeight();
+            out.writeShort(COMPRESSION_RLE);
+            for (short length : rowLengths) {
+                out.writeShort(length);
+            }
+            out.write(data, 0, dataLength);
 
-        final int length = width * height;
-        int[] pixels = new int[length];
+            lengths[c] = 2 + 2 * height + dataLength;
+        }
 
-        image.getData().getDataElements(0, 0, width, height, pixels);
+        return lengths;
+    }
 
-        byte[] a = new byte[length];
-        byte[] r = new byte[length];
-        byte[] g = new byte[length];
-        byte[] b = new byte[length];
+    /**
+     * Writes the RLE compressed merged image. All the row lengths must be written before
+     * the data, so each row is compressed twice instead of keeping the whole compressed
+     * image in memory.
+     */
+    private static void writeMergedImage(BufferedImage image, DataOutputStream out)
+            throws IOException {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+
+        int[] pixels = new int[width];
+        byte[] row = new byte[width];
+        byte[] packed = new byte[getMaxPackedLength(width)];
+
+        out.writeShort(COMPRESSION_RLE);
+
+        for (int pass = 0; pass < 2; pass++) {
+            for (int shift : MERGED_CHANNEL_SHIFTS) {
+                for (int y = 0; y < height; y++) {
+                    image.getRGB(0, y, width, 1, pixels, 0, width);
+                    getChannelRow(pixels, 0, width, shift, row);
+                    int length = packBits(row, width, packed, 0);
+                    if (pass == 0) {
+                        out.writeShort(length);
+                    } else {
+                        out.write(packed, 0, length);
+                    }
+                }
+            }
+        }
+    }
 
-        for (int i = 0; i < length; i++) {
-            final int pixel = pixels[i];
-            a[i] = (byte) ((pixel >> 24) & 0xFF);
-            r[i] = (byte) ((pixel >> 16) & 0xFF);
-            g[i] = (byte) ((pixel >>  8) & 0xFF);
-            b[i] = (byte)  (pixel        & 0xFF);
+    private static void getChannelRow(int[] pixels, int offset, int width, int shift,
+            byte[] row) {
+        for (int x = 0; x < width; x++) {
+            row[x] = (byte) ((pixels[offset + x] >> shift) & 0xFF);
         }
+    }
 
-        if (split) out.writeShort(0);
-        if (split) out.write(a);
-        if (split) out.writeShort(0);
-        out.write(r);
-        if (split) out.writeShort(0);
-        out.write(g);
-        if (split) out.writeShort(0);
-        out.write(b);
-        if (!split) out.write(a);
+    private static int getMaxPackedLength(int length) {
+        return length + (length + 127) / 128;
+    }
+
+    /**
+     * Compresses the given bytes with the PackBits algorithm used by PSD files.
+     * @return the number of bytes written to dest
+     */
+    static int packBits(byte[] src, int length, byte[] dest, int destOffset) {
+        int p = destOffset;
+        int i = 0;
+
+        while (i < length) {
+            int run = 1;
+            while (i + run < length && run < 128 && src[i + run] == src[i]) {
+                run++;
+            }
+
+            if (run > 1) {
+                dest[p++] = (byte) (1 - run);
+                dest[p++] = src[i];
+                i += run;
+                continue;
+            }
+
+            // Copy the bytes literally until the next run of at least 3 bytes, shorter
+            // runs don't save anything in the middle of literal bytes
+            int start = i;
+            while (i < length && i - start < 128 &&
+                    (i + 2 >= length || src[i] != src[i + 1] || src[i] != src[i + 2])) {
+                i++;
+            }
+
+            int count = i - start;
+            dest[p++] = (byte) (count - 1);
+            System.arraycopy(src, start, dest, p, count);
+            p += count;
+        }
+
+        return p - destOffset;
     }
 
     @SuppressWarnings({"UnusedDeclaration"})
@@ -244,8 +397,9 @@ public class PsdFile {
     static class LayersInfo {
         final List<Layer> mLayers = new ArrayList<Layer>();
 
-        void addLayer(String name, BufferedImage image, Point offset, boolean visible) {
-            mLayers.add(new Layer(name, image, offset, visible));
+        void addLayer(String name, BufferedImage image, Point offset, boolean visible,
+                int[] channelLengths) {
+            mLayers.add(new Layer(name, image, offset, visible, channelLengths));
         }
 
         int getLength() {
@@ -262,14 +416,6 @@ public class PsdFile {
                 layer.write(out);
             }
         }
-
-        void writeImageData(DataOutputStream out) throws IOException {
-            for (Layer layer : mLayers) {
-                layer.writeImageData(out);
-            }
-            // Global layer mask info length
-            out.writeInt(0);
-        }
     }
     
     @SuppressWarnings({"UnusedDeclaration"})
@@ -310,18 +456,16 @@ public class PsdFile {
         final byte[] mLayerExtraKey = "luni".getBytes();
         int mLayerExtraLength;
         final String mOriginalName;
-        
-        private BufferedImage mImage;
 
-        Layer(String name, BufferedImage image, Point offset, boolean visible) {
+        Layer(String name, BufferedImage image, Point offset, boolean visible,
+                int[] channelLengths) {
             final int height = image.getHeight();
             final int width = image.getWidth();
-            final int length = width * height;
 
-            mChannelInfo[0] = new Channel(Channel.ID_ALPHA, length);
-            mChannelInfo[1] = new Channel(Channel.ID_RED, length);
-            mChannelInfo[2] = new Channel(Channel.ID_GREEN, length);
-            mChannelInfo[3] = new Channel(Channel.ID_BLUE, length);
+            mChannelInfo[0] = new Channel(Channel.ID_ALPHA, channelLengths[0]);
+            mChannelInfo[1] = new Channel(Channel.ID_RED, channelLengths[1]);
+            mChannelInfo[2] = new Channel(Channel.ID_GREEN, channelLengths[2]);
+            mChannelInfo[3] = new Channel(Channel.ID_BLUE, channelLengths[3]);
 
             mTop = offset.y;
             mLeft = offset.x;
@@ -353,8 +497,6 @@ public class PsdFile {
             mExtraSize += mLayerExtraLength + 4 + mLayerExtraKey.length +
                     mLayerExtraSignature.length;
 
-            mImage = image;
-            
             if (!visible) {
                 mFlags |= FLAG_INVISIBLE;
             }
@@ -408,10 +550,6 @@ public class PsdFile {
             out.writeInt(mOriginalName.length() + 1);
             out.write(mOriginalName.getBytes("UTF-16"));
         }
-
-        void writeImageData(DataOutputStream out) throws IOException {
-            writeImage(mImage, out, true);
-        }
     }
     
     @SuppressWarnings({"UnusedDeclaration"})
@@ -427,7 +565,7 @@ public class PsdFile {
 
         Channel(short id, int dataLength) {
             mId = id;
-            mDataLength = dataLength + 2;
+            mDataLength = dataLength;
         }
         
         int getLength() {